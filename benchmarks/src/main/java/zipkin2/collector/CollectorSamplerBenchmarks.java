@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.internal.TraceIdSampler;
+
+/**
+ * Compares decoding a message of 100 spans then sampling them, to sampling spans before they are
+ * decoded, as {@link Collector} does when the sample rate is less than one.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class CollectorSamplerBenchmarks {
+  static final Span CLIENT_SPAN =
+    SpanBytesDecoder.JSON_V2.decodeOne(read("/zipkin2-client.json"));
+
+  @Param({"0.01", "0.1", "1.0"})
+  public float sampleRate;
+
+  @Param({"JSON_V2", "PROTO3", "THRIFT"})
+  public SpanBytesEncoder encoding;
+
+  SpanBytesDecoder decoder;
+  CollectorSampler sampler;
+  TraceIdSampler traceIdSampler;
+  ByteBuffer message;
+
+  @Setup public void setup() {
+    decoder = SpanBytesDecoder.valueOf(encoding.name());
+    sampler = CollectorSampler.create(sampleRate);
+    traceIdSampler = new TraceIdSampler() {
+      @Override public boolean isSampled(long traceId, boolean debug) {
+        return sampler.isSampled(traceId, debug);
+      }
+    };
+    List<Span> spans = new ArrayList<>();
+    for (long i = 1; i <= 100; i++) {
+      long traceId = i * 0x9e3779b97f4a7c15L; // spread trace IDs across the sampling boundary
+      spans.add(CLIENT_SPAN.toBuilder().traceId(0L, traceId).build());
+    }
+    message = ByteBuffer.wrap(encoding.encodeList(spans));
+  }
+
+  @Benchmark public List<Span> decodeThenSample() {
+    List<Span> result = new ArrayList<>();
+    for (Span span : decoder.decodeList(message)) {
+      if (sampler.isSampled(span.traceId(), Boolean.TRUE.equals(span.debug()))) result.add(span);
+    }
+    return result;
+  }
+
+  @Benchmark public List<Span> sampleBeforeDecode() {
+    List<Span> result = new ArrayList<>();
+    traceIdSampler.decodeList(decoder, message, result);
+    return result;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .addProfiler("gc")
+      .include(".*" + CollectorSamplerBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+
+  static byte[] read(String resource) {
+    try {
+      return ByteStreams.toByteArray(
+        CollectorSamplerBenchmarks.class.getResourceAsStream(resource));
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares naming the index of each span written, using a day-index cache, to formatting the date
+ * on each call as done before.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Threads(2)
+public class IndexNameFormatterBenchmarks {
+  static final long TIMESTAMP = 1556668800000L + TimeUnit.HOURS.toMillis(13); // 2019-05-01T13:00Z
+  static final long WEEK = TimeUnit.DAYS.toMillis(7);
+
+  static final IndexNameFormatter FORMATTER =
+    IndexNameFormatter.newBuilder().index("zipkin").dateSeparator('-').build();
+
+  static final ThreadLocal<SimpleDateFormat> DATE_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+    @Override protected SimpleDateFormat initialValue() {
+      SimpleDateFormat result = new SimpleDateFormat("yyyy-MM-dd");
+      result.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return result;
+    }
+  };
+
+  long timestamp = TIMESTAMP;
+
+  @Benchmark public String formatTypeAndTimestamp() {
+    return FORMATTER.formatTypeAndTimestamp("span", nextTimestamp());
+  }
+
+  /** The former implementation, which formatted a date for each span */
+  @Benchmark public String formatTypeAndTimestamp_simpleDateFormat() {
+    return FORMATTER.index() + ":span-" + DATE_FORMAT.get().format(new Date(nextTimestamp()));
+  }
+
+  @Benchmark public List<String> formatTypeAndRange_week() {
+    return FORMATTER.formatTypeAndRange("span", TIMESTAMP - WEEK, TIMESTAMP);
+  }
+
+  /** Spans in a batch have nearby timestamps, so vary them within the day */
+  long nextTimestamp() {
+    return timestamp = timestamp + 1000L > TIMESTAMP + 3600000L ? TIMESTAMP : timestamp + 1000L;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .addProfiler("gc")
+      .include(".*" + IndexNameFormatterBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.DependencyLink;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+/**
+ * Compares {@link DependencyLinker} to {@link CompactDependencyLinker} when linking many traces.
+ * Each trace is a tree of RPCs between a given count of services.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class DependencyLinkerBenchmarks {
+  static final int TRACE_COUNT = 1000;
+
+  @Param({"10", "100"})
+  int serviceCount;
+
+  List<List<Span>> traces = new ArrayList<>();
+  int nextTrace;
+  CompactDependencyLinker compactLinker = new CompactDependencyLinker();
+
+  @Setup public void setup() {
+    Random random = new Random(serviceCount);
+    for (int i = 0; i < TRACE_COUNT; i++) {
+      traces.add(newTrace(random, 1 + random.nextInt(50)));
+    }
+  }
+
+  /** The linker is discarded after each trace, as it allocates per link counted. */
+  @Benchmark public List<DependencyLink> putTrace_dependencyLinker() {
+    return new DependencyLinker().putTrace(nextTrace()).link();
+  }
+
+  @Benchmark public CompactDependencyLinker putTrace_compactDependencyLinker() {
+    return compactLinker.putTrace(nextTrace());
+  }
+
+  @Benchmark public List<DependencyLink> link_compactDependencyLinker() {
+    compactLinker.clear();
+    return compactLinker.putTrace(nextTrace()).link();
+  }
+
+  List<Span> nextTrace() {
+    if (nextTrace == TRACE_COUNT) nextTrace = 0;
+    return traces.get(nextTrace++);
+  }
+
+  /** Returns an RPC tree where each server calls others, sometimes through a local span. */
+  List<Span> newTrace(Random random, int rpcCount) {
+    String traceId = Long.toHexString(random.nextLong());
+    List<Span> result = new ArrayList<>();
+    List<Span> servers = new ArrayList<>();
+    long nextId = 1;
+    Span root = Span.newBuilder().traceId(traceId).id(nextId++).name("get").kind(Span.Kind.SERVER)
+      .localEndpoint(endpoint(random.nextInt(serviceCount))).build();
+    result.add(root);
+    servers.add(root);
+    for (int i = 0; i < rpcCount; i++) {
+      Span caller = servers.get(random.nextInt(servers.size()));
+      String parentId = caller.id();
+      if (random.nextInt(4) == 0) {
+        Span local = Span.newBuilder().traceId(traceId).parentId(parentId).id(nextId++)
+          .name("local").localEndpoint(caller.localEndpoint()).build();
+        result.add(local);
+        parentId = local.id();
+      }
+      Endpoint callee = endpoint(random.nextInt(serviceCount));
+      Span.Builder client = Span.newBuilder().traceId(traceId).parentId(parentId).id(nextId++)
+        .name("get").kind(Span.Kind.CLIENT)
+        .localEndpoint(caller.localEndpoint()).remoteEndpoint(callee);
+      if (random.nextInt(10) == 0) client.putTag("error", "");
+      Span clientSpan = client.build();
+      result.add(clientSpan);
+      if (random.nextInt(5) == 0) continue; // uninstrumented server
+
+      Span server = Span.newBuilder().traceId(traceId).parentId(parentId).id(clientSpan.id())
+        .shared(true).name("get").kind(Span.Kind.SERVER)
+        .localEndpoint(callee).remoteEndpoint(caller.localEndpoint()).build();
+      result.add(server);
+      servers.add(server);
+    }
+    return result;
+  }
+
+  static Endpoint endpoint(int service) {
+    return Endpoint.newBuilder().serviceName("service" + service).build();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .addProfiler("gc")
+      .include(".*" + DependencyLinkerBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
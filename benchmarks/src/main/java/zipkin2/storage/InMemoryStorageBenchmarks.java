@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Measures ingest throughput of {@link InMemoryStorage} while queries run at the same time.
+ *
+ * <p>The group runs writers calling {@link InMemoryStorage#accept(List)} alongside one reader
+ * calling {@link InMemoryStorage#getTraces(QueryRequest)}. Change the writer count with the
+ * {@code -tg} option, ex. {@code -tg 16,1}, or run {@link #main(String[])} to scale from 1 to 32.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+public class InMemoryStorageBenchmarks {
+  static final Endpoint FRONTEND =
+    Endpoint.newBuilder().serviceName("frontend").ip("127.0.0.1").build();
+  static final Endpoint BACKEND =
+    Endpoint.newBuilder().serviceName("backend").ip("192.168.99.101").port(9000).build();
+  static final Span CLIENT_SPAN = Span.newBuilder()
+    .traceId("86154a4ba6e91385")
+    .parentId("86154a4ba6e91385")
+    .id("4d1e00c0db9010db")
+    .name("get")
+    .kind(Span.Kind.CLIENT)
+    .localEndpoint(FRONTEND)
+    .remoteEndpoint(BACKEND)
+    .timestamp(1472470996199000L)
+    .duration(207000L)
+    .putTag("http.path", "/api")
+    .build();
+
+  InMemoryStorage storage;
+  QueryRequest request;
+
+  @Setup public void setup() {
+    storage = InMemoryStorage.newBuilder().maxSpanCount(100000).build();
+    for (int i = 0; i < 100000; i++) storage.accept(asList(nextSpan()));
+    request = QueryRequest.newBuilder()
+      .serviceName("frontend")
+      .endTs(1472470996199L)
+      .lookback(86400000L)
+      .limit(10)
+      .build();
+  }
+
+  @Benchmark @Group("ingestWhileQuerying") @GroupThreads(4)
+  public void accept() throws IOException {
+    storage.accept(asList(nextSpan())).execute();
+  }
+
+  @Benchmark @Group("ingestWhileQuerying") @GroupThreads(1)
+  public List<List<Span>> getTraces() throws IOException {
+    return storage.getTraces(request).execute();
+  }
+
+  static Span nextSpan() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    return CLIENT_SPAN.toBuilder()
+      .traceId(random.nextLong(), random.nextLong())
+      .timestamp(CLIENT_SPAN.timestampAsLong() + random.nextInt(1000000))
+      .build();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    for (int writers : new int[] {1, 2, 4, 8, 16, 32}) {
+      Options opt = new OptionsBuilder()
+        .include(".*" + InMemoryStorageBenchmarks.class.getSimpleName() + ".*")
+        .threadGroups(writers, 1)
+        .build();
+
+      new Runner(opt).run();
+    }
+  }
+}
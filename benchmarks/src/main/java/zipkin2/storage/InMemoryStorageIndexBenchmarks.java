@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Measures the index structures of {@link InMemoryStorage} when holding a million spans. As the
+ * store is full, accepts periodically evict the eldest segment.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Threads(1)
+public class InMemoryStorageIndexBenchmarks {
+  static final int SPAN_COUNT = 1000000;
+  static final int SERVICE_COUNT = 100;
+  static final long TIMESTAMP = 1472470996199000L;
+
+  InMemoryStorage storage;
+  QueryRequest serviceRequest;
+  long nextTraceId = 1L;
+  String existingTraceId;
+
+  @Setup public void setup() {
+    storage = InMemoryStorage.newBuilder().maxSpanCount(SPAN_COUNT).build();
+    for (int i = 0; i < SPAN_COUNT; i++) storage.accept(asList(nextSpan()));
+    existingTraceId = Long.toHexString(nextTraceId - 1);
+    serviceRequest = QueryRequest.newBuilder()
+      .serviceName("service1")
+      .endTs(TIMESTAMP / 1000 + SPAN_COUNT)
+      .lookback(SPAN_COUNT)
+      .limit(10)
+      .build();
+  }
+
+  @Benchmark public void accept_evictingEldest() throws IOException {
+    storage.accept(asList(nextSpan())).execute();
+  }
+
+  @Benchmark public List<List<Span>> getTraces_serviceName() throws IOException {
+    return storage.getTraces(serviceRequest).execute();
+  }
+
+  @Benchmark public List<Span> getTrace() throws IOException {
+    return storage.getTrace(existingTraceId).execute();
+  }
+
+  @Benchmark public List<String> getSpanNames() throws IOException {
+    return storage.getSpanNames("service1").execute();
+  }
+
+  Span nextSpan() {
+    long traceId = nextTraceId++;
+    return Span.newBuilder()
+      .traceId(0L, traceId)
+      .id(traceId)
+      .name("get")
+      .kind(Span.Kind.SERVER)
+      .localEndpoint(Endpoint.newBuilder()
+        .serviceName("service" + (traceId % SERVICE_COUNT))
+        .ip("127.0.0.1")
+        .build())
+      .timestamp(TIMESTAMP + traceId * 1000L)
+      .duration(1000L)
+      .build();
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .addProfiler("gc")
+      .include(".*" + InMemoryStorageIndexBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
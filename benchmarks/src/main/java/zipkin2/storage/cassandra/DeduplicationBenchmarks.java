@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.internal.BloomDelayLimiter;
+import zipkin2.internal.DelayLimiter;
+import zipkin2.storage.cassandra.InsertServiceSpan.Input;
+
+/**
+ * Compares the limiters used to deduplicate writes of service and span names, on the inputs the
+ * span consumer passes them. As in the span consumer, each limiter is shared by all threads.
+ *
+ * <p>Half of the inputs are past the cardinality, so {@link DelayLimiter} evicts, and {@link
+ * BloomDelayLimiter} has more false positives. Change the thread count with the {@code -t} option.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Threads(4)
+public class DeduplicationBenchmarks {
+  static final int CARDINALITY = 5 * 4000;
+
+  final Input[] inputs = new Input[CARDINALITY * 2];
+  final DelayLimiter<Input> delayLimiter =
+    DelayLimiter.newBuilder().cardinality(CARDINALITY).build();
+  final BloomDelayLimiter<Input> bloomDelayLimiter =
+    BloomDelayLimiter.newBuilder().cardinality(CARDINALITY).build(Input.HASHER);
+
+  public DeduplicationBenchmarks() {
+    for (int i = 0; i < inputs.length; i++) {
+      inputs[i] = Input.create("service" + i % 50, "span" + i);
+    }
+  }
+
+  @Benchmark public boolean delayLimiter_randomInput() {
+    return delayLimiter.shouldInvoke(randomInput());
+  }
+
+  @Benchmark public boolean delayLimiter_sameInput() {
+    return delayLimiter.shouldInvoke(inputs[0]);
+  }
+
+  @Benchmark public boolean bloomDelayLimiter_randomInput() {
+    return bloomDelayLimiter.shouldInvoke(randomInput());
+  }
+
+  @Benchmark public boolean bloomDelayLimiter_sameInput() {
+    return bloomDelayLimiter.shouldInvoke(inputs[0]);
+  }
+
+  Input randomInput() {
+    return inputs[ThreadLocalRandom.current().nextInt(inputs.length)];
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .addProfiler("gc")
+      .include(".*" + DeduplicationBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
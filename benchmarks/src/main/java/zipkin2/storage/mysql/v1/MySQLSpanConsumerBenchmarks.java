@@ -0,0 +1,153 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.mysql.v1;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+
+/**
+ * Measures span ingest throughput of {@link MySQLSpanConsumer}, comparing one jOOQ statement per
+ * row ({@code maxRowsPerInsert=0}) with multi-row inserts.
+ *
+ * <p>This runs against H2 in MySQL mode, so doesn't need a server. Absolute numbers are not
+ * representative of MySQL, which has network round trips and a different storage engine. Use the
+ * results to compare the work done in the client, such as rendering SQL and binding parameters.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Threads(1)
+public class MySQLSpanConsumerBenchmarks {
+  static final Endpoint FRONTEND =
+    Endpoint.newBuilder().serviceName("frontend").ip("127.0.0.1").build();
+  static final Endpoint BACKEND =
+    Endpoint.newBuilder().serviceName("backend").ip("192.168.99.101").port(9000).build();
+  static final Span CLIENT_SPAN = Span.newBuilder()
+    .traceId("86154a4ba6e91385")
+    .parentId("86154a4ba6e91385")
+    .id("4d1e00c0db9010db")
+    .name("get")
+    .kind(Span.Kind.CLIENT)
+    .localEndpoint(FRONTEND)
+    .remoteEndpoint(BACKEND)
+    .timestamp(1472470996199000L)
+    .duration(207000L)
+    .addAnnotation(1472470996238000L, "foo")
+    .putTag("http.path", "/api")
+    .putTag("clnt/finagle.version", "6.45.0")
+    .build();
+
+  // Simplified from mysql.sql, as H2 doesn't support index comments or table options
+  static final String[] DDL = {
+    "CREATE TABLE IF NOT EXISTS zipkin_spans ("
+      + "trace_id_high BIGINT NOT NULL DEFAULT 0, trace_id BIGINT NOT NULL, id BIGINT NOT NULL,"
+      + "name VARCHAR(255) NOT NULL, remote_service_name VARCHAR(255), parent_id BIGINT,"
+      + "debug BIT, start_ts BIGINT, duration BIGINT,"
+      + "PRIMARY KEY (trace_id_high, trace_id, id))",
+    "CREATE TABLE IF NOT EXISTS zipkin_annotations ("
+      + "trace_id_high BIGINT NOT NULL DEFAULT 0, trace_id BIGINT NOT NULL,"
+      + "span_id BIGINT NOT NULL, a_key VARCHAR(255) NOT NULL, a_value BLOB, a_type INT NOT NULL,"
+      + "a_timestamp BIGINT, endpoint_ipv4 INT, endpoint_ipv6 BINARY(16), endpoint_port SMALLINT,"
+      + "endpoint_service_name VARCHAR(255),"
+      + "UNIQUE (trace_id_high, trace_id, span_id, a_key, a_timestamp))",
+    "CREATE TABLE IF NOT EXISTS zipkin_dependencies ("
+      + "day DATE NOT NULL, parent VARCHAR(255) NOT NULL, child VARCHAR(255) NOT NULL,"
+      + "call_count BIGINT, error_count BIGINT, PRIMARY KEY (day, parent, child))"
+  };
+
+  @Param({"0", "50", "500"})
+  int maxRowsPerInsert;
+
+  @Param({"100"})
+  int spanCount;
+
+  MySQLStorage storage;
+  SpanConsumer consumer;
+
+  @Setup public void setup() throws SQLException {
+    JdbcDataSource datasource = new JdbcDataSource();
+    datasource.setURL("jdbc:h2:mem:zipkin;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+    try (Connection conn = datasource.getConnection();
+         Statement statement = conn.createStatement()) {
+      for (String ddl : DDL) statement.execute(ddl);
+    }
+    storage = MySQLStorage.newBuilder()
+      .datasource(datasource)
+      .executor(Runnable::run)
+      .maxRowsPerInsert(maxRowsPerInsert)
+      .build();
+    consumer = storage.spanConsumer();
+  }
+
+  @TearDown(Level.Iteration) public void clear() {
+    storage.clear(); // don't measure the cost of growing indexes
+  }
+
+  @Benchmark public void accept() throws IOException {
+    consumer.accept(nextSpans(spanCount)).execute();
+  }
+
+  static List<Span> nextSpans(int count) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    List<Span> result = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      result.add(CLIENT_SPAN.toBuilder()
+        .traceId(random.nextLong(), random.nextLong())
+        .timestamp(CLIENT_SPAN.timestampAsLong() + random.nextInt(1000000))
+        .build());
+    }
+    return result;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .addProfiler("gc")
+      .include(".*" + MySQLSpanConsumerBenchmarks.class.getSimpleName() + ".*")
+      .build();
+
+    new Runner(opt).run();
+  }
+}
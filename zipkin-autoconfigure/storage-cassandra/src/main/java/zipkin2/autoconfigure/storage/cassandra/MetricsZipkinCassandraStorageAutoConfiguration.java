@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.cassandra;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import zipkin2.storage.cassandra.internal.call.ConcurrencyLimiter;
+import zipkin2.storage.cassandra.v1.CassandraStorage;
+
+/** Exports the adaptive limit of Cassandra writes, when enabled. */
+@ConditionalOnClass(name = "io.micrometer.core.instrument.MeterRegistry")
+@ConditionalOnProperty(name = "zipkin.storage.type", havingValue = "cassandra")
+@Configuration
+class MetricsZipkinCassandraStorageAutoConfiguration implements BeanPostProcessor {
+  // Lazy as post processors are created before the registry
+  @Autowired @Lazy MeterRegistry registry;
+
+  /** Storage is checked before initialization, as other post processors wrap it after. */
+  @Override public Object postProcessBeforeInitialization(Object bean, String beanName) {
+    if (!(bean instanceof CassandraStorage)) return bean;
+    ConcurrencyLimiter limiter = ((CassandraStorage) bean).writeLimiter();
+    if (limiter == null) return bean;
+    Gauge.builder("zipkin_storage.write_limiter.limit", limiter, ConcurrencyLimiter::limit)
+      .description("count of writes currently allowed in flight")
+      .tag("type", "cassandra")
+      .register(registry);
+    Gauge.builder("zipkin_storage.write_limiter.in_flight", limiter, ConcurrencyLimiter::inFlight)
+      .description("count of writes in flight")
+      .tag("type", "cassandra")
+      .register(registry);
+    Gauge.builder("zipkin_storage.write_limiter.queued", limiter, ConcurrencyLimiter::queued)
+      .description("count of writes waiting for the limit")
+      .tag("type", "cassandra")
+      .register(registry);
+    FunctionCounter.builder("zipkin_storage.write_limiter.rejected", limiter,
+      ConcurrencyLimiter::rejectedCount)
+      .description("cumulative amount of writes rejected as the queue was full")
+      .tag("type", "cassandra")
+      .register(registry);
+    return bean;
+  }
+
+  @Override public Object postProcessAfterInitialization(Object bean, String beanName) {
+    return bean;
+  }
+}
@@ -38,6 +38,10 @@ class ZipkinCassandraStorageProperties implements Serializable { // for Spark jo
   private int indexCacheTtl = 60;
   /** See {@link CassandraStorage.Builder#indexFetchMultiplier(int)} */
   private int indexFetchMultiplier = 3;
+  /** See {@link CassandraStorage.Builder#maxConcurrentWrites(int)} */
+  private int maxConcurrentWrites = 0;
+  /** See {@link CassandraStorage.Builder#maxQueuedWrites(int)} */
+  private int maxQueuedWrites = 10000;
 
   public String getKeyspace() {
     return keyspace;
@@ -151,6 +155,22 @@ class ZipkinCassandraStorageProperties implements Serializable { // for Spark jo
     this.indexFetchMultiplier = indexFetchMultiplier;
   }
 
+  public int getMaxConcurrentWrites() {
+    return maxConcurrentWrites;
+  }
+
+  public void setMaxConcurrentWrites(int maxConcurrentWrites) {
+    this.maxConcurrentWrites = maxConcurrentWrites;
+  }
+
+  public int getMaxQueuedWrites() {
+    return maxQueuedWrites;
+  }
+
+  public void setMaxQueuedWrites(int maxQueuedWrites) {
+    this.maxQueuedWrites = maxQueuedWrites;
+  }
+
   public CassandraStorage.Builder toBuilder() {
     return CassandraStorage.newBuilder()
         .keyspace(keyspace)
@@ -165,6 +185,8 @@ class ZipkinCassandraStorageProperties implements Serializable { // for Spark jo
         .indexTtl(indexTtl)
         .indexCacheMax(indexCacheMax)
         .indexCacheTtl(indexCacheTtl)
-        .indexFetchMultiplier(indexFetchMultiplier);
+        .indexFetchMultiplier(indexFetchMultiplier)
+        .maxConcurrentWrites(maxConcurrentWrites)
+        .maxQueuedWrites(maxQueuedWrites);
   }
 }
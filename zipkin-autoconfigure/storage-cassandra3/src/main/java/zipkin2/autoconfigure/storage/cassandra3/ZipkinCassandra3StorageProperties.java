@@ -34,6 +34,16 @@ class ZipkinCassandra3StorageProperties implements Serializable { // for Spark j
   private String password;
   /** See {@link CassandraStorage.Builder#indexFetchMultiplier(int)} */
   private int indexFetchMultiplier = 3;
+  /** See {@link CassandraStorage.Builder#maxConcurrentWrites(int)} */
+  private int maxConcurrentWrites = 0;
+  /** See {@link CassandraStorage.Builder#maxQueuedWrites(int)} */
+  private int maxQueuedWrites = 10000;
+  /** See {@link CassandraStorage.Builder#unloggedBatchSize(int)} */
+  private int unloggedBatchSize = 0;
+  /** See {@link CassandraStorage.Builder#maxInFlightWritesPerHost(int)} */
+  private int maxInFlightWritesPerHost = 64;
+  /** See {@link CassandraStorage.Builder#bloomFilterDeduplication(boolean)} */
+  private boolean bloomFilterDeduplication = false;
 
   public String getKeyspace() {
     return keyspace;
@@ -107,6 +117,46 @@ class ZipkinCassandra3StorageProperties implements Serializable { // for Spark j
     this.indexFetchMultiplier = indexFetchMultiplier;
   }
 
+  public int getUnloggedBatchSize() {
+    return unloggedBatchSize;
+  }
+
+  public void setUnloggedBatchSize(int unloggedBatchSize) {
+    this.unloggedBatchSize = unloggedBatchSize;
+  }
+
+  public int getMaxInFlightWritesPerHost() {
+    return maxInFlightWritesPerHost;
+  }
+
+  public void setMaxInFlightWritesPerHost(int maxInFlightWritesPerHost) {
+    this.maxInFlightWritesPerHost = maxInFlightWritesPerHost;
+  }
+
+  public int getMaxConcurrentWrites() {
+    return maxConcurrentWrites;
+  }
+
+  public void setMaxConcurrentWrites(int maxConcurrentWrites) {
+    this.maxConcurrentWrites = maxConcurrentWrites;
+  }
+
+  public int getMaxQueuedWrites() {
+    return maxQueuedWrites;
+  }
+
+  public void setMaxQueuedWrites(int maxQueuedWrites) {
+    this.maxQueuedWrites = maxQueuedWrites;
+  }
+
+  public boolean isBloomFilterDeduplication() {
+    return bloomFilterDeduplication;
+  }
+
+  public void setBloomFilterDeduplication(boolean bloomFilterDeduplication) {
+    this.bloomFilterDeduplication = bloomFilterDeduplication;
+  }
+
   public Builder toBuilder() {
     return newBuilder()
         .keyspace(keyspace)
@@ -117,6 +167,11 @@ class ZipkinCassandra3StorageProperties implements Serializable { // for Spark j
         .useSsl(useSsl)
         .username(username)
         .password(password)
-        .indexFetchMultiplier(indexFetchMultiplier);
+        .indexFetchMultiplier(indexFetchMultiplier)
+        .unloggedBatchSize(unloggedBatchSize)
+        .maxInFlightWritesPerHost(maxInFlightWritesPerHost)
+        .maxConcurrentWrites(maxConcurrentWrites)
+        .maxQueuedWrites(maxQueuedWrites)
+        .bloomFilterDeduplication(bloomFilterDeduplication);
   }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.autoconfigure.storage.elasticsearch;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+import zipkin2.elasticsearch.ElasticsearchStorage;
+
+/** Counts how often Elasticsearch name and dependency queries are served from cache. */
+@ConditionalOnClass(name = "io.micrometer.core.instrument.MeterRegistry")
+@ConditionalOnProperty(name = "zipkin.storage.type", havingValue = "elasticsearch")
+@Configuration
+class MetricsZipkinElasticsearchStorageAutoConfiguration implements BeanPostProcessor {
+  // Lazy as post processors are created before the registry
+  @Autowired @Lazy MeterRegistry registry;
+
+  /** Storage is checked before initialization, as other post processors wrap it after. */
+  @Override public Object postProcessBeforeInitialization(Object bean, String beanName) {
+    if (!(bean instanceof ElasticsearchStorage)) return bean;
+    ElasticsearchStorage storage = (ElasticsearchStorage) bean;
+    FunctionCounter.builder("zipkin_storage.query_cache.hits", storage,
+      ElasticsearchStorage::queryCacheHitCount)
+      .description("cumulative amount of queries served from cache or a request in flight")
+      .tag("type", "elasticsearch")
+      .register(registry);
+    FunctionCounter.builder("zipkin_storage.query_cache.misses", storage,
+      ElasticsearchStorage::queryCacheMissCount)
+      .description("cumulative amount of queries which resulted in a request")
+      .tag("type", "elasticsearch")
+      .register(registry);
+    return bean;
+  }
+
+  @Override public Object postProcessAfterInitialization(Object bean, String beanName) {
+    return bean;
+  }
+}
@@ -39,6 +39,16 @@ class ZipkinElasticsearchStorageProperties implements Serializable { // for Spar
   private String dateSeparator = "-";
   /** Sets maximum in-flight requests from this process to any Elasticsearch host. Defaults to 64 */
   private int maxRequests = 64;
+  /** Once a bulk request reaches this size in bytes, another is started. Defaults to 5MiB */
+  private int bulkMaxBytes = 5 * 1024 * 1024;
+  /** The maximum count of documents in a single bulk request. Defaults to 5000 */
+  private int bulkMaxDocuments = 5000;
+  /** Bulk requests in-flight at the same time for one write, per host. Defaults to 2 */
+  private int bulkConcurrency = 2;
+  /** When positive, names and dependency links are cached for this many millis. Defaults to 0 */
+  private int queryCacheTtl = 0;
+  /** The maximum count of query results cached. Defaults to 1000 */
+  private int queryCacheMaxSize = 1000;
   /** Number of shards (horizontal scaling factor) per index. Defaults to 5. */
   private int indexShards = 5;
   /** Number of replicas (redundancy factor) per index. Defaults to 1.` */
@@ -106,6 +116,46 @@ class ZipkinElasticsearchStorageProperties implements Serializable { // for Spar
     this.maxRequests = maxRequests;
   }
 
+  public int getBulkMaxBytes() {
+    return bulkMaxBytes;
+  }
+
+  public void setBulkMaxBytes(int bulkMaxBytes) {
+    this.bulkMaxBytes = bulkMaxBytes;
+  }
+
+  public int getBulkMaxDocuments() {
+    return bulkMaxDocuments;
+  }
+
+  public void setBulkMaxDocuments(int bulkMaxDocuments) {
+    this.bulkMaxDocuments = bulkMaxDocuments;
+  }
+
+  public int getBulkConcurrency() {
+    return bulkConcurrency;
+  }
+
+  public void setBulkConcurrency(int bulkConcurrency) {
+    this.bulkConcurrency = bulkConcurrency;
+  }
+
+  public int getQueryCacheTtl() {
+    return queryCacheTtl;
+  }
+
+  public void setQueryCacheTtl(int queryCacheTtl) {
+    this.queryCacheTtl = queryCacheTtl;
+  }
+
+  public int getQueryCacheMaxSize() {
+    return queryCacheMaxSize;
+  }
+
+  public void setQueryCacheMaxSize(int queryCacheMaxSize) {
+    this.queryCacheMaxSize = queryCacheMaxSize;
+  }
+
   public void setIndex(String index) {
     this.index = index;
   }
@@ -178,6 +228,11 @@ class ZipkinElasticsearchStorageProperties implements Serializable { // for Spar
         .dateSeparator(dateSeparator.isEmpty() ? 0 : dateSeparator.charAt(0))
         .pipeline(pipeline)
         .maxRequests(maxRequests)
+        .bulkMaxBytes(bulkMaxBytes)
+        .bulkMaxDocuments(bulkMaxDocuments)
+        .bulkConcurrency(bulkConcurrency)
+        .queryCacheTtl(queryCacheTtl)
+        .queryCacheMaxSize(queryCacheMaxSize)
         .indexShards(indexShards)
         .indexReplicas(indexReplicas);
   }
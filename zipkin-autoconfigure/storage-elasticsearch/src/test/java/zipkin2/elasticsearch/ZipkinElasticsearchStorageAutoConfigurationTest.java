@@ -110,6 +110,40 @@ public class ZipkinElasticsearchStorageAutoConfigurationTest {
     assertThat(es().maxRequests()).isEqualTo(200);
   }
 
+  @Test
+  public void configuresBulk() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:elasticsearch",
+        "zipkin.storage.elasticsearch.hosts:http://host1:9200",
+        "zipkin.storage.elasticsearch.bulk-max-bytes:1048576",
+        "zipkin.storage.elasticsearch.bulk-max-documents:100",
+        "zipkin.storage.elasticsearch.bulk-concurrency:4")
+      .applyTo(context);
+    Access.registerElasticsearchHttp(context);
+    context.refresh();
+
+    assertThat(es().bulkMaxBytes()).isEqualTo(1048576);
+    assertThat(es().bulkMaxDocuments()).isEqualTo(100);
+    assertThat(es().bulkConcurrency()).isEqualTo(4);
+  }
+
+  @Test
+  public void configuresQueryCache() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+        "zipkin.storage.type:elasticsearch",
+        "zipkin.storage.elasticsearch.hosts:http://host1:9200",
+        "zipkin.storage.elasticsearch.query-cache-ttl:60000",
+        "zipkin.storage.elasticsearch.query-cache-max-size:100")
+      .applyTo(context);
+    Access.registerElasticsearchHttp(context);
+    context.refresh();
+
+    assertThat(es().queryCacheTtl()).isEqualTo(60000);
+    assertThat(es().queryCacheMaxSize()).isEqualTo(100);
+  }
+
   /** This helps ensure old setups don't break (provided they have http port 9200 open) */
   @Test
   public void coersesPort9300To9200() {
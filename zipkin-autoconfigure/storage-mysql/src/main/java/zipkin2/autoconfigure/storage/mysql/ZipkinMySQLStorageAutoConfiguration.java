@@ -67,6 +67,9 @@ class ZipkinMySQLStorageAutoConfiguration {
       .strictTraceId(strictTraceId)
       .searchEnabled(searchEnabled)
       .autocompleteKeys(autocompleteKeys)
+      .maxRowsPerInsert(mysql.getMaxRowsPerInsert())
+      .streamTraces(mysql.isStreamTraces())
+      .dependencyQuietPeriod(mysql.getDependencyQuietPeriod())
       .executor(executor)
       .datasource(dataSource)
       .listenerProvider(listener)
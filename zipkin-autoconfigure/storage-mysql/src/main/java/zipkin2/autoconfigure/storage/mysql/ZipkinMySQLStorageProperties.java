@@ -31,6 +31,12 @@ class ZipkinMySQLStorageProperties implements Serializable { // for Spark jobs
   private String db = "zipkin";
   private int maxActive = 10;
   private boolean useSsl;
+  /** See {@link zipkin2.storage.mysql.v1.MySQLStorage.Builder#maxRowsPerInsert(int)} */
+  private int maxRowsPerInsert;
+  /** See {@link zipkin2.storage.mysql.v1.MySQLStorage.Builder#streamTraces(boolean)} */
+  private boolean streamTraces;
+  /** See {@link zipkin2.storage.mysql.v1.MySQLStorage.Builder#dependencyQuietPeriod(int)} */
+  private int dependencyQuietPeriod;
 
   public String getJdbcUrl() {
     return jdbcUrl;
@@ -96,6 +102,30 @@ class ZipkinMySQLStorageProperties implements Serializable { // for Spark jobs
     this.useSsl = useSsl;
   }
 
+  public int getMaxRowsPerInsert() {
+    return maxRowsPerInsert;
+  }
+
+  public void setMaxRowsPerInsert(int maxRowsPerInsert) {
+    this.maxRowsPerInsert = maxRowsPerInsert;
+  }
+
+  public boolean isStreamTraces() {
+    return streamTraces;
+  }
+
+  public void setStreamTraces(boolean streamTraces) {
+    this.streamTraces = streamTraces;
+  }
+
+  public int getDependencyQuietPeriod() {
+    return dependencyQuietPeriod;
+  }
+
+  public void setDependencyQuietPeriod(int dependencyQuietPeriod) {
+    this.dependencyQuietPeriod = dependencyQuietPeriod;
+  }
+
   public DataSource toDataSource() {
     HikariDataSource result = new HikariDataSource();
     result.setDriverClassName("org.mariadb.jdbc.Driver");
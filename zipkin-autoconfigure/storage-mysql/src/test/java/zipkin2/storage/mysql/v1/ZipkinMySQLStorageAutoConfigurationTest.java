@@ -121,6 +121,66 @@ public class ZipkinMySQLStorageAutoConfigurationTest {
       .containsOnly("environment");
   }
 
+  @Test
+  public void maxRowsPerInsert_defaultsToZero() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of("zipkin.storage.type:mysql").applyTo(context);
+    Access.registerMySQL(context);
+    context.refresh();
+
+    assertThat(context.getBean(MySQLStorage.class).maxRowsPerInsert).isZero();
+  }
+
+  @Test
+  public void maxRowsPerInsert() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+      "zipkin.storage.type:mysql",
+      "zipkin.storage.mysql.max-rows-per-insert:100")
+      .applyTo(context);
+    Access.registerMySQL(context);
+    context.refresh();
+
+    assertThat(context.getBean(MySQLStorage.class).maxRowsPerInsert).isEqualTo(100);
+  }
+
+  @Test
+  public void streamTraces_canSetToTrue() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+      "zipkin.storage.type:mysql",
+      "zipkin.storage.mysql.stream-traces:true")
+      .applyTo(context);
+    Access.registerMySQL(context);
+    context.refresh();
+
+    assertThat(context.getBean(MySQLStorage.class).streamTraces).isTrue();
+  }
+
+  @Test
+  public void dependencyQuietPeriod_defaultsToOnDemand() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of("zipkin.storage.type:mysql").applyTo(context);
+    Access.registerMySQL(context);
+    context.refresh();
+
+    assertThat(context.getBean(MySQLStorage.class).dependencyAggregator).isNull();
+  }
+
+  @Test
+  public void dependencyQuietPeriod() {
+    context = new AnnotationConfigApplicationContext();
+    TestPropertyValues.of(
+      "zipkin.storage.type:mysql",
+      "zipkin.storage.mysql.dependency-quiet-period:900000")
+      .applyTo(context);
+    Access.registerMySQL(context);
+    context.refresh();
+
+    assertThat(context.getBean(MySQLStorage.class).dependencyAggregator.quietPeriodMicros)
+      .isEqualTo(900_000_000L);
+  }
+
   @Test
   public void usesJdbcUrl_whenPresent() {
     context = new AnnotationConfigApplicationContext();
@@ -13,6 +13,7 @@
  */
 package zipkin2.collector;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
@@ -22,6 +23,8 @@ import zipkin2.Callback;
 import zipkin2.Span;
 import zipkin2.SpanBytesDecoderDetector;
 import zipkin2.codec.BytesDecoder;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.internal.TraceIdSampler;
 import zipkin2.storage.StorageComponent;
 
 import static java.lang.String.format;
@@ -82,7 +85,13 @@ public class Collector { // not final for mock
   final Logger logger;
   final CollectorMetrics metrics;
   final CollectorSampler sampler;
+  final boolean sampleByTraceId;
   final StorageComponent storage;
+  final TraceIdSampler traceIdSampler = new TraceIdSampler() {
+    @Override public boolean isSampled(long traceId, boolean debug) {
+      return sampler.isSampled(traceId, debug);
+    }
+  };
 
   Collector(Builder builder) {
     if (builder.logger == null) throw new NullPointerException("logger == null");
@@ -91,6 +100,21 @@ public class Collector { // not final for mock
     if (builder.storage == null) throw new NullPointerException("storage == null");
     this.storage = builder.storage;
     this.sampler = builder.sampler == null ? CollectorSampler.ALWAYS_SAMPLE : builder.sampler;
+    this.sampleByTraceId = sampleByTraceId(sampler);
+  }
+
+  /**
+   * Sampling before decoding calls {@link CollectorSampler#isSampled(long, boolean)}. A subclass
+   * that overrides {@link CollectorSampler#isSampled(String, boolean)} would be bypassed, so its
+   * spans are decoded first, as before.
+   */
+  static boolean sampleByTraceId(CollectorSampler sampler) {
+    try {
+      return sampler.getClass().getMethod("isSampled", String.class, boolean.class)
+        .getDeclaringClass() == CollectorSampler.class;
+    } catch (NoSuchMethodException e) {
+      throw new AssertionError(e); // the method is public on CollectorSampler
+    }
   }
 
   public void accept(List<Span> spans, Callback<Void> callback) {
@@ -99,8 +123,10 @@ public class Collector { // not final for mock
       return;
     }
     metrics.incrementSpans(spans.size());
+    store(sample(spans), callback);
+  }
 
-    List<Span> sampled = sample(spans);
+  void store(List<Span> sampled, Callback<Void> callback) {
     if (sampled.isEmpty()) {
       callback.onSuccess(null);
       return;
@@ -129,6 +155,10 @@ public class Collector { // not final for mock
 
   public void acceptSpans(
       byte[] serializedSpans, BytesDecoder<Span> decoder, Callback<Void> callback) {
+    if (decoder instanceof SpanBytesDecoder && !decodeBeforeSampling()) {
+      acceptSpans(ByteBuffer.wrap(serializedSpans), (SpanBytesDecoder) decoder, callback);
+      return;
+    }
     metrics.incrementBytes(serializedSpans.length);
     List<Span> spans;
     try {
@@ -140,6 +170,58 @@ public class Collector { // not final for mock
     accept(spans, callback);
   }
 
+  /**
+   * Like {@link #acceptSpans(byte[], BytesDecoder, Callback)}, except this decodes the remaining
+   * bytes of the buffer in place. Use this to avoid copying pooled transport buffers into an array.
+   */
+  public void acceptSpans(
+      ByteBuffer encoded, SpanBytesDecoder decoder, Callback<Void> callback) {
+    metrics.incrementBytes(encoded.remaining());
+    if (!decodeBeforeSampling()) {
+      acceptSampledSpans(encoded, decoder, callback);
+      return;
+    }
+    List<Span> spans;
+    try {
+      spans = decoder.decodeList(encoded);
+    } catch (RuntimeException e) {
+      callback.onError(errorReading(e));
+      return;
+    }
+    accept(spans, callback);
+  }
+
+  /**
+   * Reads only the trace ID and debug flag of each span, skipping the rest of those not sampled.
+   * This avoids building spans only to drop them.
+   */
+  void acceptSampledSpans(ByteBuffer encoded, SpanBytesDecoder decoder, Callback<Void> callback) {
+    List<Span> sampled = new ArrayList<>();
+    int spanCount;
+    try {
+      spanCount = traceIdSampler.decodeList(decoder, encoded, sampled);
+    } catch (RuntimeException e) {
+      callback.onError(errorReading(e));
+      return;
+    }
+    if (spanCount == 0) {
+      callback.onSuccess(null);
+      return;
+    }
+    metrics.incrementSpans(spanCount);
+    int dropped = spanCount - sampled.size();
+    if (dropped > 0) metrics.incrementSpansDropped(dropped);
+    store(sampled, callback);
+  }
+
+  /**
+   * When true, spans are decoded before sampling, as there's no benefit in sampling first, or the
+   * sampler needs the hex trace ID.
+   */
+  boolean decodeBeforeSampling() {
+    return !sampleByTraceId || sampler.boundary() == Long.MAX_VALUE;
+  }
+
   List<Span> decodeList(BytesDecoder<Span> decoder, byte[] serialized) {
     List<Span> out = new ArrayList<>();
     if (!decoder.decodeList(serialized, out)) return Collections.emptyList();
@@ -196,9 +278,15 @@ public class Collector { // not final for mock
     return errorReading("Cannot decode spans", e);
   }
 
+  /**
+   * Errors reading a message are {@linkplain IllegalArgumentException}, so that transports such as
+   * http can tell a bad message from a storage failure.
+   */
   RuntimeException errorReading(String message, Throwable e) {
     metrics.incrementMessagesDropped();
-    return doError(message, e);
+    RuntimeException error = doError(message, e);
+    if (error instanceof IllegalArgumentException) return error;
+    return new IllegalArgumentException(error.getMessage(), e);
   }
 
   /**
@@ -210,7 +298,10 @@ public class Collector { // not final for mock
     // The exception could be related to a span being huge. Instead of filling logs,
     // print trace id, span id pairs
     StringBuilder msg = appendSpanIds(spans, new StringBuilder("Cannot store spans "));
-    return doError(msg.toString(), e);
+    RuntimeException error = doError(msg.toString(), e);
+    // Don't look like an error reading the message, even if storage threw one
+    if (error instanceof IllegalArgumentException) return new RuntimeException(msg.toString(), e);
+    return error;
   }
 
   RuntimeException doError(String message, Throwable e) {
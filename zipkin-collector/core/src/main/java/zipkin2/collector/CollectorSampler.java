@@ -62,7 +62,21 @@ public abstract class CollectorSampler {
    */
   public boolean isSampled(String hexTraceId, boolean debug) {
     if (Boolean.TRUE.equals(debug)) return true;
-    long traceId = HexCodec.lowerHexToUnsignedLong(hexTraceId);
+    return isSampled(HexCodec.lowerHexToUnsignedLong(hexTraceId), false);
+  }
+
+  /**
+   * Like {@link #isSampled(String, boolean)}, except the trace ID is already parsed. This allows
+   * sampling spans before they are decoded.
+   *
+   * <p>If a subclass overrides {@link #isSampled(String, boolean)}, the collector decodes spans
+   * first and calls that instead.
+   *
+   * @param traceId the lower 64 bits of the span's trace ID
+   * @param debug when true, always passes sampling
+   */
+  public boolean isSampled(long traceId, boolean debug) {
+    if (debug) return true;
     // The absolute value of Long.MIN_VALUE is larger than a long, so Math.abs returns identity.
     // This converts to MAX_VALUE to avoid always dropping when traceId == Long.MIN_VALUE
     long t = traceId == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(traceId);
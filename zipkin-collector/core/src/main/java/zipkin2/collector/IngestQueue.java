@@ -0,0 +1,453 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.Span;
+import zipkin2.storage.AutocompleteTags;
+import zipkin2.storage.ServiceAndSpanNames;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.SpanStore;
+import zipkin2.storage.StorageComponent;
+
+/**
+ * Decorates storage with a bounded queue in front of its {@link SpanConsumer}. This limits the
+ * spans accepted by collectors, but not yet stored, and how many storage calls are in flight.
+ *
+ * <p>Collectors only enqueue spans into storage, so when storage slows down, spans accumulate in
+ * memory. Passing this to all collectors, instead of the storage it wraps, makes them share one
+ * bound. When it is reached, the {@link Overflow} policy decides what to do with new spans.
+ *
+ * <p>Messages waiting in the queue are merged into fewer storage calls. For example, many small
+ * messages become one Elasticsearch bulk request. Each message's callback completes when the
+ * storage call including it does. See {@link Builder#maxBatchSpans(int)} and {@link
+ * Builder#linger(long, TimeUnit)}.
+ *
+ * <p>Only {@link Call#enqueue(Callback)} is queued. {@link Call#execute()} calls storage directly.
+ */
+public final class IngestQueue extends StorageComponent {
+
+  /** What to do with spans when the queue is full. */
+  public enum Overflow {
+    /** Drops the incoming spans. This is the default. */
+    DROP_NEWEST,
+    /** Drops the spans queued the longest, or the incoming spans if none are waiting. */
+    DROP_OLDEST,
+    /**
+     * Blocks the calling thread until there is room. This applies backpressure to pull-based
+     * transports, such as Kafka, but should not be used with event loops, such as HTTP.
+     */
+    BLOCK,
+    /**
+     * Fails {@link Collector#accept} synchronously with a {@link RejectedExecutionException}, so
+     * that transports can tell clients to retry later. For example, HTTP responds with 503.
+     */
+    REJECT
+  }
+
+  public static Builder newBuilder(StorageComponent delegate) {
+    return new Builder(delegate);
+  }
+
+  public static final class Builder {
+    final StorageComponent delegate;
+    int maxSpans = 100000, maxConcurrency = 64, maxBatchSpans = 500;
+    long lingerNanos;
+    Overflow overflow = Overflow.DROP_NEWEST;
+
+    Builder(StorageComponent delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.delegate = delegate;
+    }
+
+    /**
+     * Maximum spans waiting in the queue or being stored. A single message larger than this is
+     * only accepted when nothing else is queued or in flight. Defaults to 100000.
+     */
+    public Builder maxSpans(int maxSpans) {
+      if (maxSpans <= 0) throw new IllegalArgumentException("maxSpans <= 0");
+      this.maxSpans = maxSpans;
+      return this;
+    }
+
+    /** Maximum concurrent calls to the storage span consumer. Defaults to 64. */
+    public Builder maxConcurrency(int maxConcurrency) {
+      if (maxConcurrency <= 0) throw new IllegalArgumentException("maxConcurrency <= 0");
+      this.maxConcurrency = maxConcurrency;
+      return this;
+    }
+
+    /**
+     * Messages waiting in the queue are merged into one storage call of at most this many spans,
+     * unless a single message is larger. Defaults to 500.
+     */
+    public Builder maxBatchSpans(int maxBatchSpans) {
+      if (maxBatchSpans <= 0) throw new IllegalArgumentException("maxBatchSpans <= 0");
+      this.maxBatchSpans = maxBatchSpans;
+      return this;
+    }
+
+    /**
+     * How long to wait for more messages before storing fewer than {@link #maxBatchSpans(int)}.
+     * This trades latency for fewer storage calls when messages are small. Defaults to zero, which
+     * only merges messages that queued while storage was busy.
+     */
+    public Builder linger(long linger, TimeUnit unit) {
+      if (linger < 0) throw new IllegalArgumentException("linger < 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.lingerNanos = unit.toNanos(linger);
+      return this;
+    }
+
+    /** What to do with spans when {@link #maxSpans(int)} is reached. */
+    public Builder overflow(Overflow overflow) {
+      if (overflow == null) throw new NullPointerException("overflow == null");
+      this.overflow = overflow;
+      return this;
+    }
+
+    public IngestQueue build() {
+      return new IngestQueue(this);
+    }
+  }
+
+  final StorageComponent delegate;
+  final int maxSpans, maxConcurrency, maxBatchSpans;
+  final long lingerNanos;
+  final Overflow overflow;
+  final SpanConsumer spanConsumer = new QueuedSpanConsumer();
+
+  // guarded by queue
+  final ArrayDeque<Pending> queue = new ArrayDeque<>();
+  int queuedSpans, inFlightSpans, inFlightCalls;
+  long droppedSpans, dispatchedCount, totalWaitNanos;
+  boolean drainScheduled, closed;
+  ScheduledExecutorService timer; // lazy as only used when lingering
+
+  /** Counts requests to drain, so that only one thread dispatches and none are missed. */
+  final AtomicInteger drainRequests = new AtomicInteger();
+
+  IngestQueue(Builder builder) {
+    delegate = builder.delegate;
+    maxSpans = builder.maxSpans;
+    maxConcurrency = builder.maxConcurrency;
+    maxBatchSpans = builder.maxBatchSpans;
+    lingerNanos = builder.lingerNanos;
+    overflow = builder.overflow;
+  }
+
+  @Override public SpanStore spanStore() {
+    return delegate.spanStore();
+  }
+
+  @Override public AutocompleteTags autocompleteTags() {
+    return delegate.autocompleteTags();
+  }
+
+  @Override public ServiceAndSpanNames serviceAndSpanNames() {
+    return delegate.serviceAndSpanNames();
+  }
+
+  @Override public SpanConsumer spanConsumer() {
+    return spanConsumer;
+  }
+
+  @Override public CheckResult check() {
+    return delegate.check();
+  }
+
+  /** Stores any lingering messages before closing storage. */
+  @Override public void close() throws IOException {
+    ScheduledExecutorService timer;
+    synchronized (queue) {
+      closed = true;
+      timer = this.timer;
+    }
+    if (timer != null) timer.shutdownNow();
+    drain();
+    delegate.close();
+  }
+
+  /** Spans waiting for a storage call. */
+  public int queuedSpans() {
+    synchronized (queue) {
+      return queuedSpans;
+    }
+  }
+
+  /** Spans in storage calls that haven't yet completed. */
+  public int inFlightSpans() {
+    synchronized (queue) {
+      return inFlightSpans;
+    }
+  }
+
+  /** Cumulative spans dropped due to the {@link Overflow} policy. */
+  public long droppedSpans() {
+    synchronized (queue) {
+      return droppedSpans;
+    }
+  }
+
+  /**
+   * Cumulative count of messages passed to storage, for use with {@link #totalWaitNanos()}. This
+   * is higher than the count of storage calls when messages are batched.
+   */
+  public long dispatchedCount() {
+    synchronized (queue) {
+      return dispatchedCount;
+    }
+  }
+
+  /** Cumulative nanoseconds messages waited in the queue before being passed to storage. */
+  public long totalWaitNanos() {
+    synchronized (queue) {
+      return totalWaitNanos;
+    }
+  }
+
+  @Override public String toString() {
+    return "IngestQueue{maxSpans=" + maxSpans + ", maxConcurrency=" + maxConcurrency
+      + ", maxBatchSpans=" + maxBatchSpans + ", overflow=" + overflow + ", delegate=" + delegate
+      + "}";
+  }
+
+  void offer(List<Span> spans, Callback<Void> callback) {
+    int count = spans.size();
+    List<Pending> evicted = null;
+    boolean dropped = false;
+    synchronized (queue) {
+      while (!hasRoom(count)) {
+        if (overflow == Overflow.BLOCK) {
+          try {
+            queue.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted waiting for room in " + this);
+          }
+        } else if (overflow == Overflow.DROP_OLDEST && !queue.isEmpty()) {
+          Pending oldest = queue.poll();
+          queuedSpans -= oldest.spans.size();
+          droppedSpans += oldest.spans.size();
+          if (evicted == null) evicted = new ArrayList<>();
+          evicted.add(oldest);
+        } else if (overflow == Overflow.REJECT) {
+          throw new RejectedExecutionException(
+            "Cannot accept " + count + " spans as " + this + " is full");
+        } else { // DROP_NEWEST, or DROP_OLDEST when there's nothing to evict
+          droppedSpans += count;
+          dropped = true;
+          break;
+        }
+      }
+      if (!dropped) {
+        queue.add(new Pending(spans, callback, System.nanoTime()));
+        queuedSpans += count;
+      }
+    }
+    if (evicted != null) fail(evicted);
+    if (dropped) {
+      callback.onError(new RejectedExecutionException(
+        "Dropped " + count + " spans as " + this + " is full"));
+      return;
+    }
+    drain();
+  }
+
+  boolean hasRoom(int count) {
+    int pending = queuedSpans + inFlightSpans;
+    return pending == 0 || pending + count <= maxSpans;
+  }
+
+  /** Invoke outside the lock, as callbacks could re-enter. */
+  void fail(List<Pending> evicted) {
+    for (Pending pending : evicted) {
+      pending.callback.onError(new RejectedExecutionException(
+        "Evicted " + pending.spans.size() + " spans as " + this + " is full"));
+    }
+  }
+
+  /**
+   * Dispatches queued spans while under the concurrency limit. When storage completes
+   * synchronously, this is re-entered from the callback. The counter turns that into another loop
+   * iteration instead of recursion.
+   */
+  void drain() {
+    if (drainRequests.getAndIncrement() != 0) return;
+    int missed = 1;
+    do {
+      for (Batch next; (next = poll()) != null; ) dispatch(next);
+      missed = drainRequests.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  /** Merges the oldest messages into a batch, or returns null if none should be dispatched. */
+  Batch poll() {
+    synchronized (queue) {
+      if (inFlightCalls >= maxConcurrency || queue.isEmpty()) return null;
+      long now = System.nanoTime();
+      if (lingerNanos > 0 && !closed && queuedSpans < maxBatchSpans) {
+        long remaining = lingerNanos - (now - queue.peek().enqueuedNanos);
+        if (remaining > 0) {
+          scheduleDrain(remaining);
+          return null;
+        }
+      }
+      Batch batch = new Batch();
+      for (Pending next; (next = queue.peek()) != null; ) {
+        int count = next.spans.size();
+        if (batch.spanCount > 0 && batch.spanCount + count > maxBatchSpans) break;
+        queue.poll();
+        batch.add(next);
+        dispatchedCount++;
+        totalWaitNanos += now - next.enqueuedNanos;
+      }
+      queuedSpans -= batch.spanCount;
+      inFlightSpans += batch.spanCount;
+      inFlightCalls++;
+      return batch;
+    }
+  }
+
+  /** Called under the lock when the oldest message hasn't lingered long enough. */
+  void scheduleDrain(long delayNanos) {
+    if (drainScheduled) return;
+    drainScheduled = true;
+    if (timer == null) {
+      timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread result = new Thread(r, "zipkin-ingest-queue");
+        result.setDaemon(true);
+        return result;
+      });
+    }
+    timer.schedule(() -> {
+      synchronized (queue) {
+        drainScheduled = false;
+      }
+      drain();
+    }, delayNanos, TimeUnit.NANOSECONDS);
+  }
+
+  void dispatch(Batch batch) {
+    try {
+      delegate.spanConsumer().accept(batch.spans()).enqueue(batch);
+    } catch (RuntimeException | Error e) {
+      Call.propagateIfFatal(e);
+      batch.onError(e);
+    }
+  }
+
+  void complete(Batch batch) {
+    synchronized (queue) {
+      inFlightSpans -= batch.spanCount;
+      inFlightCalls--;
+      queue.notifyAll(); // wake any producers blocked on room
+    }
+    drain();
+  }
+
+  final class QueuedSpanConsumer implements SpanConsumer {
+    @Override public Call<Void> accept(List<Span> spans) {
+      return new QueuedCall(spans);
+    }
+
+    @Override public String toString() {
+      return "QueuedSpanConsumer(" + delegate.spanConsumer() + ")";
+    }
+  }
+
+  final class QueuedCall extends Call.Base<Void> {
+    final List<Span> spans;
+
+    QueuedCall(List<Span> spans) {
+      this.spans = spans;
+    }
+
+    @Override protected Void doExecute() throws IOException {
+      return delegate.spanConsumer().accept(spans).execute();
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      offer(spans, callback);
+    }
+
+    @Override public Call<Void> clone() {
+      return new QueuedCall(spans);
+    }
+
+    @Override public String toString() {
+      return "QueuedCall(" + spans.size() + " spans)";
+    }
+  }
+
+  /** Spans from one call to {@link SpanConsumer#accept(List)}, waiting in the queue. */
+  static final class Pending {
+    final List<Span> spans;
+    final Callback<Void> callback;
+    final long enqueuedNanos;
+
+    Pending(List<Span> spans, Callback<Void> callback, long enqueuedNanos) {
+      this.spans = spans;
+      this.callback = callback;
+      this.enqueuedNanos = enqueuedNanos;
+    }
+  }
+
+  /** Messages merged into one storage call, which completes each of their callbacks. */
+  final class Batch implements Callback<Void> {
+    final List<Pending> messages = new ArrayList<>();
+    int spanCount;
+    boolean completed; // guards against storage calling back twice
+
+    void add(Pending pending) {
+      messages.add(pending);
+      spanCount += pending.spans.size();
+    }
+
+    List<Span> spans() {
+      if (messages.size() == 1) return messages.get(0).spans;
+      List<Span> result = new ArrayList<>(spanCount);
+      for (Pending pending : messages) result.addAll(pending.spans);
+      return result;
+    }
+
+    @Override public void onSuccess(Void value) {
+      if (!markCompleted()) return;
+      complete(this);
+      for (Pending pending : messages) pending.callback.onSuccess(value);
+    }
+
+    @Override public void onError(Throwable t) {
+      if (!markCompleted()) return;
+      complete(this);
+      for (Pending pending : messages) pending.callback.onError(t);
+    }
+
+    synchronized boolean markCompleted() {
+      if (completed) return false;
+      return completed = true;
+    }
+  }
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.CheckResult;
+import zipkin2.DependencyLink;
+import zipkin2.Span;
+import zipkin2.internal.CompactDependencyLinker;
+import zipkin2.internal.DependencyLinker;
+import zipkin2.internal.Nullable;
+import zipkin2.storage.AutocompleteTags;
+import zipkin2.storage.QueryRequest;
+import zipkin2.storage.ServiceAndSpanNames;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.SpanStore;
+import zipkin2.storage.StorageComponent;
+
+import static java.util.logging.Level.WARNING;
+import static zipkin2.internal.HexCodec.lowerHexToUnsignedLong;
+
+/**
+ * Decorates storage, linking dependencies of traces as they are collected. {@link
+ * SpanStore#getDependencies(long, long)} then sums links in memory with those in storage.
+ *
+ * <p>Spans passed to the {@link SpanConsumer} are buffered per trace until none arrive for the
+ * {@link Builder#quietPeriod(long, TimeUnit) quiet period}. A background thread then links the
+ * trace with a reused {@link CompactDependencyLinker}, and adds its links to a rollup for the
+ * minute of its earliest span, or the current minute if that is in the future. Rollups older than
+ * the {@link Builder#retention(long, TimeUnit) retention} are discarded. Collector threads only
+ * hold a lock while buffering spans, never while linking.
+ *
+ * <p>Memory is bounded: spans beyond {@link Builder#maxSpans(int)} in total, or {@link
+ * Builder#maxSpansPerTrace(int)} in a trace, are stored but not linked. Spans arriving after their
+ * trace was linked are linked as a separate trace, which can count a call twice.
+ *
+ * <p>By default, links are only in memory: they are lost on restart, and not shared between
+ * servers. Storage is only queried for links before this started, such as those of an offline job.
+ * When a {@link Builder#flushTo(LinkWriter) writer} is set, rollups are instead written to storage
+ * once their minute ended a quiet period ago, and storage is queried for the whole lookback.
+ */
+public final class OnlineDependencyLinker extends StorageComponent {
+  static final Logger LOG = Logger.getLogger(OnlineDependencyLinker.class.getName());
+  static final long MINUTE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  static final long MAX_LINK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  public static Builder newBuilder(StorageComponent delegate) {
+    return new Builder(delegate);
+  }
+
+  /** Writes links to storage, for example to the table read by the dependencies api. */
+  public interface LinkWriter {
+    /**
+     * Adds links to any already written for the minute beginning at the epoch millis. A minute can
+     * be written again when a trace is linked after it was written.
+     */
+    Call<Void> write(long minuteMillis, List<DependencyLink> links);
+  }
+
+  public static final class Builder {
+    final StorageComponent delegate;
+    long quietPeriodNanos = TimeUnit.MINUTES.toNanos(1);
+    long retentionMillis = TimeUnit.DAYS.toMillis(1);
+    int maxSpans = 100000, maxSpansPerTrace = 1000;
+    LinkWriter linkWriter;
+    LongSupplier nanoTime = System::nanoTime, currentTimeMillis = System::currentTimeMillis;
+
+    Builder(StorageComponent delegate) {
+      if (delegate == null) throw new NullPointerException("delegate == null");
+      this.delegate = delegate;
+    }
+
+    /** How long after the last span of a trace to link it. Defaults to one minute. */
+    public Builder quietPeriod(long quietPeriod, TimeUnit unit) {
+      if (quietPeriod <= 0) throw new IllegalArgumentException("quietPeriod <= 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.quietPeriodNanos = unit.toNanos(quietPeriod);
+      return this;
+    }
+
+    /** How long to keep links in memory, relative to the current time. Defaults to one day. */
+    public Builder retention(long retention, TimeUnit unit) {
+      if (retention <= 0) throw new IllegalArgumentException("retention <= 0");
+      if (unit == null) throw new NullPointerException("unit == null");
+      this.retentionMillis = unit.toMillis(retention);
+      return this;
+    }
+
+    /** Maximum spans buffered for all traces waiting to be linked. Defaults to 100000. */
+    public Builder maxSpans(int maxSpans) {
+      if (maxSpans <= 0) throw new IllegalArgumentException("maxSpans <= 0");
+      this.maxSpans = maxSpans;
+      return this;
+    }
+
+    /** Maximum spans buffered per trace. Defaults to 1000. */
+    public Builder maxSpansPerTrace(int maxSpansPerTrace) {
+      if (maxSpansPerTrace <= 0) throw new IllegalArgumentException("maxSpansPerTrace <= 0");
+      this.maxSpansPerTrace = maxSpansPerTrace;
+      return this;
+    }
+
+    /** When set, rollups are written to storage and dropped from memory. Defaults to none. */
+    public Builder flushTo(LinkWriter linkWriter) {
+      if (linkWriter == null) throw new NullPointerException("linkWriter == null");
+      this.linkWriter = linkWriter;
+      return this;
+    }
+
+    Builder nanoTime(LongSupplier nanoTime) { // do not expose public: only for tests
+      this.nanoTime = nanoTime;
+      return this;
+    }
+
+    Builder currentTimeMillis(LongSupplier currentTimeMillis) { // do not expose: only for tests
+      this.currentTimeMillis = currentTimeMillis;
+      return this;
+    }
+
+    public OnlineDependencyLinker build() {
+      return new OnlineDependencyLinker(this);
+    }
+  }
+
+  final StorageComponent delegate;
+  final long quietPeriodNanos, retentionMillis;
+  final int maxSpans, maxSpansPerTrace;
+  @Nullable final LinkWriter linkWriter;
+  final LongSupplier nanoTime, currentTimeMillis;
+  /** Links of minutes before this are read from storage. */
+  final long storageCutoff;
+
+  // guarded by this
+  /** In access order, so that the first trace is the one quiet the longest. */
+  final LinkedHashMap<Long, PendingTrace> pendingTraces = new LinkedHashMap<>(16, 0.75f, true);
+  int bufferedSpans;
+  long droppedSpans;
+  boolean closed;
+  ScheduledExecutorService timer; // lazy, so that building this doesn't start a thread
+
+  // guarded by rollups
+  /** Links by the epoch millis of their minute. */
+  final TreeMap<Long, List<DependencyLink>> rollups = new TreeMap<>();
+  /** Rollups being written, which are read from here until written. */
+  final TreeMap<Long, List<DependencyLink>> flushing = new TreeMap<>();
+  /** Reused across traces, as it keeps scratch space to link without allocating per span. */
+  final CompactDependencyLinker linker = new CompactDependencyLinker();
+  long linkedTraces;
+
+  OnlineDependencyLinker(Builder builder) {
+    delegate = builder.delegate;
+    quietPeriodNanos = builder.quietPeriodNanos;
+    retentionMillis = builder.retentionMillis;
+    maxSpans = builder.maxSpans;
+    maxSpansPerTrace = builder.maxSpansPerTrace;
+    linkWriter = builder.linkWriter;
+    nanoTime = builder.nanoTime;
+    currentTimeMillis = builder.currentTimeMillis;
+    long now = currentTimeMillis.getAsLong();
+    storageCutoff = linkWriter != null ? Long.MAX_VALUE : now - now % MINUTE_MILLIS;
+  }
+
+  @Override public SpanStore spanStore() {
+    return new LinkingSpanStore(delegate.spanStore());
+  }
+
+  @Override public AutocompleteTags autocompleteTags() {
+    return delegate.autocompleteTags();
+  }
+
+  @Override public ServiceAndSpanNames serviceAndSpanNames() {
+    return delegate.serviceAndSpanNames();
+  }
+
+  @Override public SpanConsumer spanConsumer() {
+    SpanConsumer delegate = this.delegate.spanConsumer();
+    return spans -> {
+      accept(spans);
+      return delegate.accept(spans);
+    };
+  }
+
+  @Override public CheckResult check() {
+    return delegate.check();
+  }
+
+  @Override public void close() throws IOException {
+    ScheduledExecutorService timer;
+    synchronized (this) {
+      closed = true;
+      timer = this.timer;
+    }
+    if (timer != null) timer.shutdownNow();
+    try {
+      flush();
+    } finally {
+      delegate.close();
+    }
+  }
+
+  /**
+   * Writes all rollups to the {@link Builder#flushTo(LinkWriter) writer}, if set. Rollups not
+   * written due to an error are kept, to retry later.
+   */
+  public void flush() throws IOException {
+    flush(Long.MAX_VALUE);
+  }
+
+  /** Traces waiting for their quiet period. */
+  public synchronized int pendingTraces() {
+    return pendingTraces.size();
+  }
+
+  /** Spans of traces waiting for their quiet period. */
+  public synchronized int bufferedSpans() {
+    return bufferedSpans;
+  }
+
+  /** Traces linked since startup. */
+  public long linkedTraces() {
+    synchronized (rollups) {
+      return linkedTraces;
+    }
+  }
+
+  /** Spans not linked because {@link Builder#maxSpans(int)} or a per-trace limit was reached. */
+  public synchronized long droppedSpans() {
+    return droppedSpans;
+  }
+
+  synchronized void accept(List<Span> spans) {
+    if (closed) return;
+    long now = nanoTime.getAsLong();
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      Span span = spans.get(i);
+      // Like other linkers, ignore the high bits of the trace ID, so that spans of 64-bit and
+      // 128-bit instrumentation in the same trace are linked together.
+      Long traceId = lowerHexToUnsignedLong(span.traceId());
+      if (bufferedSpans >= maxSpans) { // check before get, which moves the trace to the end
+        droppedSpans++;
+        continue;
+      }
+      PendingTrace trace = pendingTraces.get(traceId);
+      if (trace == null) pendingTraces.put(traceId, trace = new PendingTrace());
+      // get moved the trace to the end, so update its time even if the span is dropped. This keeps
+      // traces in the order they become quiet.
+      trace.lastUpdateNanos = now;
+      if (trace.spans.size() >= maxSpansPerTrace) {
+        droppedSpans++;
+        continue;
+      }
+      trace.add(span);
+      bufferedSpans++;
+    }
+    if (timer == null) startTimer();
+  }
+
+  // guarded by this
+  void startTimer() {
+    timer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread result = new Thread(r, "zipkin-dependency-linker");
+      result.setDaemon(true);
+      return result;
+    });
+    long interval = Math.min(quietPeriodNanos, MAX_LINK_INTERVAL_NANOS);
+    timer.scheduleWithFixedDelay(() -> {
+      try {
+        linkQuietTraces();
+      } catch (RuntimeException e) { // don't let an unexpected trace stop future linking
+        LOG.log(WARNING, "Unexpected error linking dependencies", e);
+      }
+      try {
+        flushQuietRollups();
+      } catch (IOException | RuntimeException e) {
+        LOG.log(WARNING, "Error writing dependency links, will retry", e);
+      }
+    }, interval, interval, TimeUnit.NANOSECONDS);
+  }
+
+  /** Links traces quiet for the quiet period. Invoked by the timer, outside the buffer lock. */
+  void linkQuietTraces() {
+    List<PendingTrace> quietTraces = removeQuietTraces(nanoTime.getAsLong());
+    if (quietTraces.isEmpty()) return;
+    synchronized (rollups) {
+      for (int i = 0, length = quietTraces.size(); i < length; i++) link(quietTraces.get(i));
+    }
+  }
+
+  synchronized List<PendingTrace> removeQuietTraces(long now) {
+    List<PendingTrace> result = new ArrayList<>();
+    Iterator<PendingTrace> i = pendingTraces.values().iterator();
+    while (i.hasNext()) {
+      PendingTrace trace = i.next();
+      if (now - trace.lastUpdateNanos < quietPeriodNanos) break; // the rest are more recent
+      i.remove();
+      bufferedSpans -= trace.spans.size();
+      result.add(trace);
+    }
+    return result;
+  }
+
+  /** Writes rollups of minutes that ended at least a quiet period ago. */
+  void flushQuietRollups() throws IOException {
+    long before = currentTimeMillis.getAsLong() - TimeUnit.NANOSECONDS.toMillis(quietPeriodNanos);
+    flush(before - before % MINUTE_MILLIS);
+  }
+
+  /** Writes rollups of minutes before the epoch millis, keeping those not written. */
+  void flush(long before) throws IOException {
+    if (linkWriter == null) return;
+    List<Map.Entry<Long, List<DependencyLink>>> toWrite;
+    synchronized (rollups) {
+      if (!flushing.isEmpty()) return; // another thread is flushing
+      SortedMap<Long, List<DependencyLink>> head = rollups.headMap(before);
+      flushing.putAll(head);
+      head.clear();
+      toWrite = new ArrayList<>(flushing.entrySet());
+    }
+    try {
+      for (Map.Entry<Long, List<DependencyLink>> rollup : toWrite) {
+        linkWriter.write(rollup.getKey(), rollup.getValue()).execute();
+        synchronized (rollups) {
+          flushing.remove(rollup.getKey());
+        }
+      }
+    } finally {
+      synchronized (rollups) { // put back any rollups not written
+        for (Map.Entry<Long, List<DependencyLink>> rollup : flushing.entrySet()) {
+          addRollup(rollup.getKey(), rollup.getValue());
+        }
+        flushing.clear();
+      }
+    }
+  }
+
+  List<DependencyLink> getDependencies(long endTs, long lookback) {
+    long beginTs = Math.max(0L, endTs - lookback);
+    long beginMinute = beginTs - beginTs % MINUTE_MILLIS;
+    List<DependencyLink> result = new ArrayList<>();
+    synchronized (rollups) {
+      for (List<DependencyLink> links : rollups.subMap(beginMinute, true, endTs, true).values()) {
+        result.addAll(links);
+      }
+      for (List<DependencyLink> links : flushing.subMap(beginMinute, true, endTs, true).values()) {
+        result.addAll(links);
+      }
+    }
+    return result;
+  }
+
+  // guarded by rollups
+  void link(PendingTrace trace) {
+    linkedTraces++;
+    linker.clear();
+    List<DependencyLink> links = linker.putTrace(trace.spans).link();
+    if (links.isEmpty()) return;
+
+    // Use the wall clock for the present, so that a span from the future, for example due to
+    // clock skew, can't cause retention to drop current links.
+    long now = currentTimeMillis.getAsLong();
+    long timestamp = trace.earliestTimestamp != 0L
+      ? Math.min(trace.earliestTimestamp / 1000L, now)
+      : now;
+    addRollup(timestamp - timestamp % MINUTE_MILLIS, links);
+    rollups.headMap(now - retentionMillis).clear();
+  }
+
+  // guarded by rollups
+  void addRollup(long minute, List<DependencyLink> links) {
+    List<DependencyLink> rollup = rollups.get(minute);
+    if (rollup == null) {
+      rollups.put(minute, links);
+    } else {
+      List<DependencyLink> merged = new ArrayList<>(rollup);
+      merged.addAll(links);
+      rollups.put(minute, DependencyLinker.merge(merged));
+    }
+  }
+
+  static final class PendingTrace {
+    final List<Span> spans = new ArrayList<>();
+    long lastUpdateNanos, earliestTimestamp;
+
+    void add(Span span) {
+      spans.add(span);
+      long timestamp = span.timestampAsLong();
+      if (timestamp != 0L && (earliestTimestamp == 0L || timestamp < earliestTimestamp)) {
+        earliestTimestamp = timestamp;
+      }
+    }
+  }
+
+  final class LinkingSpanStore implements SpanStore {
+    final SpanStore delegate;
+
+    LinkingSpanStore(SpanStore delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override public Call<List<List<Span>>> getTraces(QueryRequest request) {
+      return delegate.getTraces(request);
+    }
+
+    @Override public Call<List<Span>> getTrace(String traceId) {
+      return delegate.getTrace(traceId);
+    }
+
+    @Override @Deprecated public Call<List<String>> getServiceNames() {
+      return delegate.getServiceNames();
+    }
+
+    @Override @Deprecated public Call<List<String>> getSpanNames(String serviceName) {
+      return delegate.getSpanNames(serviceName);
+    }
+
+    @Override public Call<List<DependencyLink>> getDependencies(long endTs, long lookback) {
+      if (endTs <= 0) throw new IllegalArgumentException("endTs <= 0");
+      if (lookback <= 0) throw new IllegalArgumentException("lookback <= 0");
+      long beginTs = Math.max(0L, endTs - lookback);
+      long storageEndTs = Math.min(endTs, storageCutoff - 1);
+      Call<List<DependencyLink>> storageCall = storageEndTs > beginTs
+        ? delegate.getDependencies(storageEndTs, storageEndTs - beginTs)
+        : Call.emptyList();
+      return new GetDependencies(storageCall, endTs, lookback);
+    }
+
+    @Override public String toString() {
+      return "LinkingSpanStore{" + delegate + "}";
+    }
+  }
+
+  /** Sums rollups with links in storage when executed, not when created, like storage calls. */
+  final class GetDependencies extends Call.Base<List<DependencyLink>> {
+    final Call<List<DependencyLink>> storageCall;
+    final long endTs, lookback;
+
+    GetDependencies(Call<List<DependencyLink>> storageCall, long endTs, long lookback) {
+      this.storageCall = storageCall;
+      this.endTs = endTs;
+      this.lookback = lookback;
+    }
+
+    @Override protected List<DependencyLink> doExecute() throws IOException {
+      return merge(storageCall.execute());
+    }
+
+    @Override protected void doEnqueue(Callback<List<DependencyLink>> callback) {
+      storageCall.enqueue(new Callback<List<DependencyLink>>() {
+        @Override public void onSuccess(List<DependencyLink> value) {
+          List<DependencyLink> result;
+          try {
+            result = merge(value);
+          } catch (RuntimeException | Error e) {
+            Call.propagateIfFatal(e);
+            callback.onError(e);
+            return;
+          }
+          callback.onSuccess(result);
+        }
+
+        @Override public void onError(Throwable t) {
+          callback.onError(t);
+        }
+      });
+    }
+
+    List<DependencyLink> merge(List<DependencyLink> stored) {
+      List<DependencyLink> result = getDependencies(endTs, lookback);
+      result.addAll(stored);
+      return DependencyLinker.merge(result);
+    }
+
+    @Override protected void doCancel() {
+      storageCall.cancel();
+    }
+
+    @Override public Call<List<DependencyLink>> clone() {
+      return new GetDependencies(storageCall.clone(), endTs, lookback);
+    }
+
+    @Override public String toString() {
+      return "GetDependencies{storageCall=" + storageCall + ", endTs=" + endTs
+        + ", lookback=" + lookback + "}";
+    }
+  }
+
+  @Override public String toString() {
+    return "OnlineDependencyLinker{" + delegate + "}";
+  }
+}
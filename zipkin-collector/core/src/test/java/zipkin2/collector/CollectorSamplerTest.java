@@ -18,6 +18,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import zipkin2.Span;
+import zipkin2.internal.HexCodec;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.data.Percentage.withPercentage;
@@ -66,6 +67,23 @@ public class CollectorSamplerTest {
             lotsOfSpans().filter(s -> sampler2.isSampled(s.traceId(), false)).toArray());
   }
 
+  @Test
+  public void parsedTraceIdMatchesHex() {
+    CollectorSampler sampler = CollectorSampler.create(0.1f);
+
+    assertThat(lotsOfSpans().filter(s -> sampler.isSampled(s.traceId(), false)).toArray())
+        .containsExactly(lotsOfSpans()
+            .filter(s -> sampler.isSampled(HexCodec.lowerHexToUnsignedLong(s.traceId()), false))
+            .toArray());
+  }
+
+  @Test
+  public void debugWins_parsedTraceId() {
+    CollectorSampler sampler = CollectorSampler.create(0.0f);
+
+    assertThat(sampler.isSampled(Long.MIN_VALUE, true)).isTrue();
+  }
+
   @Test
   public void zeroMeansDropAllTraces() {
     CollectorSampler sampler = CollectorSampler.create(0.0f);
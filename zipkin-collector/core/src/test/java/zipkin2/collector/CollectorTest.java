@@ -13,6 +13,7 @@
  */
 package zipkin2.collector;
 
+import java.nio.ByteBuffer;
 import org.junit.Before;
 import org.junit.Test;
 import zipkin2.Callback;
@@ -23,7 +24,9 @@ import zipkin2.storage.StorageComponent;
 
 import static java.util.Arrays.asList;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -74,6 +77,57 @@ public class CollectorTest {
     verify(collector).accept(asList(CLIENT_SPAN), callback);
   }
 
+  @Test
+  public void acceptSpans_byteBuffer() {
+    CollectorMetrics metrics = mock(CollectorMetrics.class);
+    collector = spy(Collector.newBuilder(Collector.class).metrics(metrics).storage(storage).build());
+
+    byte[] bytes = SpanBytesEncoder.PROTO3.encodeList(asList(CLIENT_SPAN));
+    collector.acceptSpans(ByteBuffer.wrap(bytes), SpanBytesDecoder.PROTO3, callback);
+
+    verify(metrics).incrementBytes(bytes.length);
+    verify(collector).accept(asList(CLIENT_SPAN), callback);
+  }
+
+  @Test
+  public void acceptSpans_samplesBeforeDecoding() {
+    CollectorMetrics metrics = mock(CollectorMetrics.class);
+    collector = spy(Collector.newBuilder(Collector.class)
+        .sampler(CollectorSampler.create(0.0f)).metrics(metrics).storage(storage).build());
+    Span debug = CLIENT_SPAN.toBuilder().id("2").debug(true).build();
+
+    byte[] bytes = SpanBytesEncoder.PROTO3.encodeList(asList(CLIENT_SPAN, debug));
+    collector.acceptSpans(bytes, SpanBytesDecoder.PROTO3, callback);
+
+    verify(metrics).incrementSpans(2);
+    verify(metrics).incrementSpansDropped(1);
+    verify(collector).store(asList(debug), callback);
+    verify(collector, never()).accept(any(), any());
+  }
+
+  /** A sampler that only overrides the string variant mustn't be bypassed. */
+  @Test
+  public void acceptSpans_decodesFirstWhenSamplerOverridesHexTraceId() {
+    CollectorSampler dropsClientSpan = new CollectorSampler() {
+      @Override protected long boundary() {
+        return 0L;
+      }
+
+      @Override public boolean isSampled(String hexTraceId, boolean debug) {
+        return !hexTraceId.equals(CLIENT_SPAN.traceId());
+      }
+    };
+    collector = spy(Collector.newBuilder(Collector.class)
+        .sampler(dropsClientSpan).storage(storage).build());
+    Span otherTrace = CLIENT_SPAN.toBuilder().traceId("2").build();
+
+    byte[] bytes = SpanBytesEncoder.PROTO3.encodeList(asList(CLIENT_SPAN, otherTrace));
+    collector.acceptSpans(bytes, SpanBytesDecoder.PROTO3, callback);
+
+    verify(collector).accept(asList(CLIENT_SPAN, otherTrace), callback);
+    verify(collector).store(asList(otherTrace), callback);
+  }
+
   @Test
   public void acceptSpansCallback_toStringIncludesSpanIds() {
     Span span2 = CLIENT_SPAN.toBuilder().id("3").build();
@@ -160,4 +214,20 @@ public class CollectorTest {
 
     assertThat(message).isEqualTo("Truncated reading spans");
   }
+
+  @Test
+  public void errorDecoding_isIllegalArgumentException() {
+    assertThat(collector.errorReading(new RuntimeException()))
+        .isInstanceOf(IllegalArgumentException.class);
+  }
+
+  @Test
+  public void errorAcceptingSpans_isNotIllegalArgumentException() {
+    RuntimeException exception = new IllegalArgumentException("Malformed reading spans");
+
+    RuntimeException error = collector.errorStoringSpans(asList(CLIENT_SPAN), exception);
+
+    assertThat(error).isNotInstanceOf(IllegalArgumentException.class);
+    assertThat(error.getCause()).isSameAs(exception);
+  }
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.StorageComponent;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+
+public class IngestQueueTest {
+  static final List<Span> ONE_SPAN = asList(CLIENT_SPAN);
+  static final List<Span> TWO_SPANS = asList(CLIENT_SPAN, CLIENT_SPAN);
+
+  StorageComponent storage = mock(StorageComponent.class);
+  /** Storage calls complete when the test invokes their callbacks. */
+  List<Callback<Void>> storageCallbacks = new CopyOnWriteArrayList<>();
+  List<List<Span>> storageCalls = new CopyOnWriteArrayList<>();
+
+  @Before public void setup() {
+    SpanConsumer consumer = spans -> new Call.Base<Void>() {
+      @Override protected Void doExecute() {
+        return null;
+      }
+
+      @Override protected void doEnqueue(Callback<Void> callback) {
+        storageCalls.add(spans);
+        storageCallbacks.add(callback);
+      }
+
+      @Override public Call<Void> clone() {
+        throw new UnsupportedOperationException();
+      }
+    };
+    when(storage.spanConsumer()).thenReturn(consumer);
+  }
+
+  @Test public void dispatchesUpToMaxConcurrency() {
+    IngestQueue queue = IngestQueue.newBuilder(storage).maxConcurrency(1).build();
+
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+    queue.spanConsumer().accept(TWO_SPANS).enqueue(mock(Callback.class));
+
+    assertThat(storageCallbacks).hasSize(1);
+    assertThat(queue.inFlightSpans()).isEqualTo(1);
+    assertThat(queue.queuedSpans()).isEqualTo(2);
+
+    storageCallbacks.get(0).onSuccess(null);
+
+    assertThat(storageCallbacks).hasSize(2);
+    assertThat(queue.inFlightSpans()).isEqualTo(2);
+    assertThat(queue.queuedSpans()).isZero();
+    assertThat(queue.dispatchedCount()).isEqualTo(2);
+  }
+
+  @Test public void mergesQueuedMessages() {
+    IngestQueue queue = IngestQueue.newBuilder(storage).maxConcurrency(1).build();
+    Callback<Void> first = mock(Callback.class), second = mock(Callback.class);
+
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(first);
+    queue.spanConsumer().accept(TWO_SPANS).enqueue(second);
+    storageCallbacks.get(0).onSuccess(null);
+
+    assertThat(storageCalls).extracting(List::size).containsExactly(1, 3);
+    verify(first, never()).onSuccess(null);
+
+    storageCallbacks.get(1).onSuccess(null);
+
+    verify(first).onSuccess(null);
+    verify(second).onSuccess(null);
+    assertThat(queue.dispatchedCount()).isEqualTo(3);
+  }
+
+  @Test public void mergesUpToMaxBatchSpans() {
+    IngestQueue queue = IngestQueue.newBuilder(storage).maxConcurrency(1).maxBatchSpans(2).build();
+
+    for (int i = 0; i < 4; i++) {
+      queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+    }
+    storageCallbacks.get(0).onSuccess(null);
+    storageCallbacks.get(1).onSuccess(null);
+
+    assertThat(storageCalls).extracting(List::size).containsExactly(1, 2, 1);
+  }
+
+  @Test public void linger_waitsForMoreMessages() throws Exception {
+    IngestQueue queue = IngestQueue.newBuilder(storage)
+      .maxBatchSpans(3).linger(100, TimeUnit.MILLISECONDS).build();
+
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+    assertThat(storageCalls).isEmpty();
+
+    Thread.sleep(200);
+    assertThat(storageCalls).extracting(List::size).containsExactly(2);
+  }
+
+  @Test public void linger_dispatchesFullBatches() {
+    IngestQueue queue = IngestQueue.newBuilder(storage)
+      .maxBatchSpans(3).linger(1, TimeUnit.HOURS).build();
+
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+    queue.spanConsumer().accept(TWO_SPANS).enqueue(mock(Callback.class));
+
+    assertThat(storageCalls).extracting(List::size).containsExactly(3);
+  }
+
+  @Test public void close_dispatchesLingeringMessages() throws Exception {
+    IngestQueue queue = IngestQueue.newBuilder(storage).linger(1, TimeUnit.HOURS).build();
+
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+    queue.close();
+
+    assertThat(storageCalls).hasSize(1);
+  }
+
+  @Test public void propagatesStorageResult() {
+    IngestQueue queue = IngestQueue.newBuilder(storage).build();
+    Callback<Void> success = mock(Callback.class), failure = mock(Callback.class);
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(success);
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(failure);
+
+    storageCallbacks.get(0).onSuccess(null);
+    IllegalStateException error = new IllegalStateException();
+    storageCallbacks.get(1).onError(error);
+
+    verify(success).onSuccess(null);
+    verify(failure).onError(error);
+    assertThat(queue.inFlightSpans()).isZero();
+  }
+
+  @Test public void drainsSynchronousStorageWithoutRecursion() {
+    when(storage.spanConsumer()).thenReturn(spans -> Call.create(null));
+    IngestQueue queue = IngestQueue.newBuilder(storage).maxConcurrency(1).build();
+
+    for (int i = 0; i < 10000; i++) {
+      queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+    }
+
+    assertThat(queue.dispatchedCount()).isEqualTo(10000);
+    assertThat(queue.inFlightSpans()).isZero();
+  }
+
+  @Test public void dropNewest() {
+    IngestQueue queue = IngestQueue.newBuilder(storage).maxSpans(2).maxConcurrency(1).build();
+    Callback<Void> dropped = mock(Callback.class);
+
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(dropped);
+
+    verify(dropped).onError(any(RejectedExecutionException.class));
+    assertThat(queue.droppedSpans()).isEqualTo(1);
+    assertThat(queue.queuedSpans()).isEqualTo(1);
+  }
+
+  @Test public void dropOldest() {
+    IngestQueue queue = IngestQueue.newBuilder(storage)
+      .maxSpans(2).maxConcurrency(1).overflow(IngestQueue.Overflow.DROP_OLDEST).build();
+    Callback<Void> inFlight = mock(Callback.class), oldest = mock(Callback.class);
+
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(inFlight);
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(oldest);
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+
+    verify(oldest).onError(any(RejectedExecutionException.class));
+    verify(inFlight, never()).onError(any(Throwable.class));
+    assertThat(queue.droppedSpans()).isEqualTo(1);
+    assertThat(queue.queuedSpans()).isEqualTo(1);
+    assertThat(queue.inFlightSpans()).isEqualTo(1);
+  }
+
+  @Test public void reject() {
+    IngestQueue queue = IngestQueue.newBuilder(storage)
+      .maxSpans(1).overflow(IngestQueue.Overflow.REJECT).build();
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+
+    assertThatThrownBy(() -> queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class)))
+      .isInstanceOf(RejectedExecutionException.class);
+  }
+
+  @Test public void reject_failsCollectorCallback() {
+    IngestQueue queue = IngestQueue.newBuilder(storage)
+      .maxSpans(1).overflow(IngestQueue.Overflow.REJECT).build();
+    Collector collector = Collector.newBuilder(Collector.class).storage(queue).build();
+    Callback<Void> callback = mock(Callback.class);
+
+    collector.accept(ONE_SPAN, mock(Callback.class));
+    collector.accept(ONE_SPAN, callback);
+
+    verify(callback).onError(any(RuntimeException.class));
+  }
+
+  @Test public void acceptsOversizedMessageWhenEmpty() {
+    IngestQueue queue = IngestQueue.newBuilder(storage).maxSpans(1).build();
+    Callback<Void> callback = mock(Callback.class);
+
+    queue.spanConsumer().accept(TWO_SPANS).enqueue(callback);
+
+    assertThat(storageCallbacks).hasSize(1);
+    verify(callback, never()).onError(any(Throwable.class));
+  }
+
+  @Test public void block_waitsForRoom() throws Exception {
+    IngestQueue queue = IngestQueue.newBuilder(storage)
+      .maxSpans(1).overflow(IngestQueue.Overflow.BLOCK).build();
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+
+    CountDownLatch accepted = new CountDownLatch(1);
+    Thread producer = new Thread(() -> {
+      queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+      accepted.countDown();
+    });
+    producer.start();
+
+    assertThat(accepted.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+    storageCallbacks.get(0).onSuccess(null);
+
+    assertThat(accepted.await(1, TimeUnit.SECONDS)).isTrue();
+    producer.join();
+  }
+
+  @Test public void ignoresDuplicateStorageCallbacks() {
+    IngestQueue queue = IngestQueue.newBuilder(storage).build();
+    queue.spanConsumer().accept(ONE_SPAN).enqueue(mock(Callback.class));
+
+    storageCallbacks.get(0).onSuccess(null);
+    storageCallbacks.get(0).onError(new IllegalStateException());
+
+    assertThat(queue.inFlightSpans()).isZero();
+  }
+}
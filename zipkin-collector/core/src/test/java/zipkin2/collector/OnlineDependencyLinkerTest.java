@@ -0,0 +1,332 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.collector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.DependencyLink;
+import zipkin2.Span;
+import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.SpanStore;
+import zipkin2.storage.StorageComponent;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static zipkin2.TestObjects.DAY;
+import static zipkin2.TestObjects.TODAY;
+import static zipkin2.TestObjects.TRACE;
+
+public class OnlineDependencyLinkerTest {
+  static final long QUIET_NANOS = TimeUnit.MINUTES.toNanos(1);
+  static final List<DependencyLink> TRACE_LINKS = asList(
+    DependencyLink.newBuilder().parent("frontend").child("backend").callCount(1).build(),
+    DependencyLink.newBuilder().parent("backend").child("db").callCount(1).errorCount(1).build()
+  );
+
+  StorageComponent storage = mock(StorageComponent.class);
+  SpanStore spanStore = mock(SpanStore.class);
+  List<List<Span>> stored = new ArrayList<>();
+  Map<Long, List<DependencyLink>> written = new TreeMap<>();
+  long nanoTime, currentTimeMillis = TODAY + DAY / 2;
+  OnlineDependencyLinker linker;
+
+  @Before public void setup() {
+    SpanConsumer consumer = spans -> {
+      stored.add(spans);
+      return Call.create(null);
+    };
+    when(storage.spanConsumer()).thenReturn(consumer);
+    when(storage.spanStore()).thenReturn(spanStore);
+    when(spanStore.getDependencies(anyLong(), anyLong())).thenReturn(Call.emptyList());
+    linker = newBuilder().build();
+  }
+
+  @After public void close() throws IOException {
+    linker.close();
+  }
+
+  OnlineDependencyLinker.Builder newBuilder() {
+    return OnlineDependencyLinker.newBuilder(storage)
+      .nanoTime(() -> nanoTime)
+      .currentTimeMillis(() -> currentTimeMillis);
+  }
+
+  @Test public void spanConsumer_storesSpans() throws Exception {
+    linker.spanConsumer().accept(TRACE).execute();
+
+    assertThat(stored).containsExactly(TRACE);
+  }
+
+  @Test public void linksTraceAfterQuietPeriod() throws Exception {
+    linker.spanConsumer().accept(TRACE);
+
+    assertThat(getDependencies()).isEmpty();
+    assertThat(linker.pendingTraces()).isEqualTo(1);
+
+    passQuietPeriod();
+    assertThat(getDependencies()).containsExactlyInAnyOrderElementsOf(TRACE_LINKS);
+    assertThat(linker.pendingTraces()).isZero();
+    assertThat(linker.linkedTraces()).isEqualTo(1);
+  }
+
+  @Test public void assemblesTraceAcrossMessages() throws Exception {
+    for (Span span : TRACE) {
+      linker.spanConsumer().accept(asList(span));
+      nanoTime += QUIET_NANOS / 2; // each span extends the quiet period
+      linker.linkQuietTraces();
+    }
+
+    assertThat(getDependencies()).isEmpty();
+
+    passQuietPeriod();
+    assertThat(getDependencies()).containsExactlyInAnyOrderElementsOf(TRACE_LINKS);
+    assertThat(linker.linkedTraces()).isEqualTo(1);
+  }
+
+  @Test public void mergesLinksOfTraces() throws Exception {
+    linker.spanConsumer().accept(TRACE);
+    linker.spanConsumer().accept(withTraceId(TRACE, "1"));
+    passQuietPeriod();
+
+    assertThat(getDependencies()).containsExactlyInAnyOrder(
+      DependencyLink.newBuilder().parent("frontend").child("backend").callCount(2).build(),
+      DependencyLink.newBuilder().parent("backend").child("db").callCount(2).errorCount(2).build()
+    );
+  }
+
+  @Test public void dropsSpansBeyondMaxSpans() throws Exception {
+    linker = newBuilder().maxSpans(TRACE.size()).build();
+
+    linker.spanConsumer().accept(TRACE);
+    linker.spanConsumer().accept(withTraceId(TRACE, "1"));
+
+    assertThat(linker.pendingTraces()).isEqualTo(1);
+    assertThat(linker.bufferedSpans()).isEqualTo(TRACE.size());
+    assertThat(linker.droppedSpans()).isEqualTo(TRACE.size());
+
+    passQuietPeriod();
+    assertThat(linker.bufferedSpans()).isZero(); // room for more spans once linked
+    assertThat(getDependencies()).containsExactlyInAnyOrderElementsOf(TRACE_LINKS);
+  }
+
+  /** A dropped span mustn't reorder its trace behind newer ones, delaying it being linked. */
+  @Test public void dropsSpansBeyondMaxSpans_withoutDelayingTheirTrace() {
+    linker = newBuilder().maxSpans(TRACE.size() + 1).build();
+
+    linker.spanConsumer().accept(TRACE);
+    nanoTime += QUIET_NANOS / 2;
+    linker.spanConsumer().accept(withTraceId(TRACE, "1").subList(0, 1)); // fills the buffer
+    linker.spanConsumer().accept(TRACE.subList(0, 1));
+    assertThat(linker.droppedSpans()).isEqualTo(1);
+
+    nanoTime += QUIET_NANOS / 2;
+    linker.linkQuietTraces();
+
+    assertThat(linker.linkedTraces()).isEqualTo(1);
+    assertThat(linker.pendingTraces()).isEqualTo(1);
+  }
+
+  @Test public void dropsSpansBeyondMaxSpansPerTrace() throws Exception {
+    linker = newBuilder().maxSpansPerTrace(2).build();
+
+    linker.spanConsumer().accept(TRACE);
+    passQuietPeriod();
+
+    assertThat(getDependencies()).containsExactly(TRACE_LINKS.get(0)); // db call wasn't linked
+    assertThat(linker.droppedSpans()).isEqualTo(2);
+    assertThat(stored).containsExactly(TRACE); // but all spans are stored
+  }
+
+  @Test public void getDependencies_sumsLinksWhenExecuted() throws Exception {
+    Call<List<DependencyLink>> call = linker.spanStore().getDependencies(TODAY + DAY, DAY);
+
+    linker.spanConsumer().accept(TRACE);
+    passQuietPeriod();
+
+    assertThat(call.execute()).containsExactlyInAnyOrderElementsOf(TRACE_LINKS);
+  }
+
+  @Test public void getDependencies_excludesLinksOutsideLookback() throws Exception {
+    linker.spanConsumer().accept(TRACE);
+    passQuietPeriod();
+
+    assertThat(linker.spanStore().getDependencies(TODAY - 1, DAY).execute()).isEmpty();
+    assertThat(linker.spanStore().getDependencies(TODAY + 2 * DAY, DAY).execute()).isEmpty();
+  }
+
+  @Test public void dropsLinksOlderThanRetention() throws Exception {
+    currentTimeMillis = TODAY + 2 * DAY + DAY / 2;
+    linker = newBuilder().retention(1, TimeUnit.DAYS).build();
+
+    linker.spanConsumer().accept(TRACE);
+    linker.spanConsumer().accept(withTimestamp(withTraceId(TRACE, "1"), 2 * DAY));
+    passQuietPeriod();
+
+    assertThat(linker.spanStore().getDependencies(TODAY + DAY, DAY).execute()).isEmpty();
+    assertThat(linker.spanStore().getDependencies(TODAY + 3 * DAY, DAY).execute())
+      .containsExactlyInAnyOrderElementsOf(TRACE_LINKS);
+  }
+
+  /** Retention is relative to the clock, so a span from the future can't drop current links. */
+  @Test public void linksFutureTracesAtCurrentTime() throws Exception {
+    linker = newBuilder().retention(1, TimeUnit.DAYS).build();
+
+    linker.spanConsumer().accept(TRACE);
+    linker.spanConsumer().accept(withTimestamp(withTraceId(TRACE, "1"), 10 * DAY));
+    passQuietPeriod();
+
+    assertThat(linker.rollups).containsOnlyKeys(TODAY, currentTimeMillis);
+    assertThat(getDependencies()).containsExactlyInAnyOrder(
+      DependencyLink.newBuilder().parent("frontend").child("backend").callCount(2).build(),
+      DependencyLink.newBuilder().parent("backend").child("db").callCount(2).errorCount(2).build()
+    );
+  }
+
+  @Test public void getDependencies_mergesLinksInStorageBeforeStart() throws Exception {
+    when(spanStore.getDependencies(currentTimeMillis - 1, DAY / 2 - 1)).thenReturn(Call.create(
+      asList(DependencyLink.newBuilder().parent("frontend").child("backend").callCount(3).build())
+    ));
+
+    linker.spanConsumer().accept(TRACE);
+    passQuietPeriod();
+
+    assertThat(getDependencies()).containsExactlyInAnyOrder(
+      DependencyLink.newBuilder().parent("frontend").child("backend").callCount(4).build(),
+      TRACE_LINKS.get(1)
+    );
+  }
+
+  @Test public void getDependencies_doesntQueryStorageAfterStart() throws Exception {
+    linker.spanStore().getDependencies(TODAY + DAY, DAY / 4).execute();
+
+    verify(spanStore, never()).getDependencies(anyLong(), anyLong());
+  }
+
+  @Test public void flushTo_writesQuietRollups() throws Exception {
+    linker = newBuilder().flushTo(this::write).build();
+
+    linker.spanConsumer().accept(TRACE);
+    passQuietPeriod();
+    linker.flushQuietRollups();
+
+    assertThat(written).containsOnlyKeys(TODAY);
+    assertThat(written.get(TODAY)).containsExactlyInAnyOrderElementsOf(TRACE_LINKS);
+    assertThat(linker.rollups).isEmpty();
+
+    // now links are read from storage, for the whole lookback
+    when(spanStore.getDependencies(TODAY + DAY, DAY)).thenReturn(Call.create(written.get(TODAY)));
+    assertThat(getDependencies()).containsExactlyInAnyOrderElementsOf(TRACE_LINKS);
+  }
+
+  @Test public void flushTo_skipsMinutesNotQuiet() throws Exception {
+    linker = newBuilder().flushTo(this::write).build();
+
+    linker.spanConsumer().accept(withTimestamp(TRACE, currentTimeMillis - TODAY));
+    passQuietPeriod();
+    linker.flushQuietRollups();
+
+    assertThat(written).isEmpty();
+    assertThat(getDependencies()).containsExactlyInAnyOrderElementsOf(TRACE_LINKS);
+  }
+
+  @Test public void flushTo_keepsRollupsNotWritten() throws Exception {
+    linker = newBuilder().flushTo((minute, links) -> {
+      throw new IllegalStateException("storage is down");
+    }).build();
+
+    linker.spanConsumer().accept(TRACE);
+    passQuietPeriod();
+
+    assertThatThrownBy(linker::flush).isInstanceOf(IllegalStateException.class);
+    assertThat(linker.rollups).containsOnlyKeys(TODAY);
+    assertThat(linker.flushing).isEmpty();
+    assertThat(getDependencies()).containsExactlyInAnyOrderElementsOf(TRACE_LINKS);
+  }
+
+  @Test public void close_flushes() throws IOException {
+    linker = newBuilder().flushTo(this::write).build();
+
+    linker.spanConsumer().accept(TRACE);
+    passQuietPeriod();
+    linker.close();
+
+    assertThat(written.get(TODAY)).containsExactlyInAnyOrderElementsOf(TRACE_LINKS);
+  }
+
+  @Test public void spanStore_delegatesTraceQueries() {
+    linker.spanStore().getTrace("1");
+
+    verify(spanStore).getTrace("1");
+  }
+
+  @Test public void startsTimerOnFirstSpans() {
+    assertThat(linker.timer).isNull(); // building doesn't start a thread
+
+    linker.spanConsumer().accept(TRACE);
+
+    assertThat(linker.timer).isNotNull();
+  }
+
+  @Test public void close_stopsTimerAndClosesDelegate() throws IOException {
+    linker.spanConsumer().accept(TRACE);
+
+    linker.close();
+
+    assertThat(linker.timer.isShutdown()).isTrue();
+    verify(storage).close();
+  }
+
+  /** Invokes what the timer would after the quiet period */
+  void passQuietPeriod() {
+    nanoTime += QUIET_NANOS;
+    linker.linkQuietTraces();
+  }
+
+  Call<Void> write(long minuteMillis, List<DependencyLink> links) {
+    written.put(minuteMillis, links);
+    return Call.create(null);
+  }
+
+  List<DependencyLink> getDependencies() throws IOException {
+    return linker.spanStore().getDependencies(TODAY + DAY, DAY).execute();
+  }
+
+  static List<Span> withTraceId(List<Span> trace, String traceId) {
+    List<Span> result = new ArrayList<>();
+    for (Span span : trace) result.add(span.toBuilder().traceId(traceId).build());
+    return result;
+  }
+
+  static List<Span> withTimestamp(List<Span> trace, long offsetMillis) {
+    List<Span> result = new ArrayList<>();
+    for (Span span : trace) {
+      result.add(span.toBuilder().timestamp(span.timestampAsLong() + offsetMillis * 1000L).build());
+    }
+    return result;
+  }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import zipkin2.Span;
+import zipkin2.SpanBytesDecoderDetector;
+import zipkin2.codec.SpanBytesDecoder;
+
+import static zipkin2.server.internal.BodyIsExceptionMessage.testForUnexpectedFormat;
+
+/**
+ * Decodes a list message as it is written in chunks, such as a gzip body being inflated, in
+ * sub-batches of about {@link #BATCH_BYTES}. This bounds the encoded bytes held to a window,
+ * instead of the whole inflated message.
+ *
+ * <p>Json and proto3 lists are split on element boundaries without decoding them. Thrift lists
+ * can't be split without parsing, so they are decoded as one batch when the message ends.
+ *
+ * <p>Json batches are decoded in place by overwriting the separators around them with brackets.
+ * This is safe as those bytes are never scanned again.
+ *
+ * <p>Decoded spans are held until {@link #finish()} has checked that the message is a whole list,
+ * so that a truncated message, which a client may retry, isn't partially stored.
+ */
+final class StreamingSpanDecoder {
+  static final int BATCH_BYTES = 64 * 1024;
+
+  final SpanBytesDecoder decoder;
+  final List<Span> spans = new ArrayList<>();
+
+  byte[] buf = new byte[BATCH_BYTES * 2];
+  int end; // exclusive end of bytes written into buf
+  int scan; // the next byte to split
+  int batchStart; // for json, this is the separator before the first element
+  boolean batchHasElement, splittable, done, checkedFormat;
+  int bytesRead;
+
+  // json splitting state, as elements can end in a later write
+  int depth;
+  boolean inString, escaped;
+
+  StreamingSpanDecoder(SpanBytesDecoder decoder) {
+    this.decoder = decoder;
+    splittable = decoder == SpanBytesDecoder.JSON_V1 || decoder == SpanBytesDecoder.JSON_V2
+      || decoder == SpanBytesDecoder.PROTO3;
+  }
+
+  /**
+   * Appends the next bytes of the message, decoding any batches they complete.
+   *
+   * @throws IllegalArgumentException if the message isn't the expected format, or a span in it
+   * couldn't be decoded
+   */
+  void write(byte[] bytes, int offset, int length) {
+    bytesRead += length;
+    while (length > 0) {
+      if (end == buf.length) makeRoom();
+      int count = Math.min(length, buf.length - end);
+      System.arraycopy(bytes, offset, buf, end, count);
+      end += count;
+      offset += count;
+      length -= count;
+      if (!checkedFormat && end > 1) checkFormat();
+      if (splittable) split();
+    }
+  }
+
+  /**
+   * Called when the message ends, to decode any remaining batch.
+   *
+   * @return all spans in the message
+   * @throws IllegalArgumentException if the message is empty, or isn't a whole list
+   */
+  List<Span> finish() {
+    if (bytesRead == 0) throw new IllegalArgumentException("Empty " + decoder.name() + " message");
+    if (!checkedFormat) checkFormat();
+    if (!splittable) { // thrift, which is decoded all at once
+      emit(batchStart, end);
+    } else if (isJson() ? !done : scan != end) {
+      if (isJson()) buf[batchStart] = '[';
+      decoder.decodeList(ByteBuffer.wrap(buf, batchStart, end - batchStart)); // reports the error
+      throw new IllegalArgumentException(
+        "Truncated reading List<Span> from " + (isJson() ? "json" : "proto3"));
+    } else if (!isJson() && end > batchStart) {
+      emit(batchStart, end);
+    }
+    if (spans.isEmpty()) throw new IllegalArgumentException("Empty " + decoder.name() + " message");
+    return spans;
+  }
+
+  /** Like the check made when decoding a whole message, this looks at its first bytes. */
+  void checkFormat() {
+    checkedFormat = true;
+    try {
+      SpanBytesDecoderDetector.decoderForListMessage(ByteBuffer.wrap(buf, 0, end));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Expected a " + decoder + " encoded list\n", e);
+    }
+  }
+
+  void split() {
+    if (isJson()) {
+      splitJson();
+    } else {
+      splitProto3();
+    }
+  }
+
+  void splitJson() {
+    if (done) {
+      checkNothingAfterList();
+      return;
+    }
+    if (depth == 0) { // find the opening bracket of the list
+      while (scan < end && isWhitespace(buf[scan])) scan++;
+      if (scan == end) return;
+      if (buf[scan] != '[') {
+        splittable = false;
+        return;
+      }
+      batchStart = scan;
+    }
+    for (; scan < end && !done; scan++) {
+      byte c = buf[scan];
+      if (inString) {
+        if (escaped) {
+          escaped = false;
+        } else if (c == '\\') {
+          escaped = true;
+        } else if (c == '"') {
+          inString = false;
+        }
+        continue;
+      }
+      switch (c) {
+        case '"':
+          inString = true;
+          break;
+        case '{':
+        case '[':
+          if (depth++ == 1) batchHasElement = true;
+          break;
+        case '}':
+        case ']':
+          if (--depth == 0) {
+            done = true;
+            emitJson(scan);
+          }
+          break;
+        case ',':
+          if (depth == 1 && scan + 1 - batchStart >= BATCH_BYTES) emitJson(scan);
+          break;
+        default:
+          break;
+      }
+    }
+    if (done) checkNothingAfterList();
+  }
+
+  void checkNothingAfterList() {
+    for (; scan < end; scan++) {
+      if (!isWhitespace(buf[scan])) {
+        throw new IllegalArgumentException("Malformed reading List<Span> from json: "
+          + "unexpected data after the end of the list");
+      }
+    }
+    batchStart = scan; // allows whitespace to be discarded
+  }
+
+  /** Decodes elements between the separator at {@link #batchStart} and the one at the index. */
+  void emitJson(int separator) {
+    if (batchHasElement) {
+      buf[batchStart] = '[';
+      buf[separator] = ']';
+      emit(batchStart, separator + 1);
+    }
+    batchStart = separator;
+    batchHasElement = false;
+  }
+
+  void splitProto3() {
+    while (scan < end) {
+      if (buf[scan] != 10) { // not a span field
+        notSplittableProto3();
+        return;
+      }
+      int length = 0, pos = scan + 1;
+      for (int shift = 0; ; shift += 7) {
+        if (pos == end) return; // wait for more data
+        if (shift == 35) { // more than 32-bits
+          notSplittableProto3();
+          return;
+        }
+        byte b = buf[pos++];
+        length |= (b & 0x7f) << shift;
+        if (b >= 0) break;
+      }
+      if (length < 0 || pos + length > end) return; // wait for more data
+      scan = pos + length;
+      if (scan - batchStart >= BATCH_BYTES) {
+        emit(batchStart, scan);
+        batchStart = scan;
+      }
+    }
+  }
+
+  /** Thrift isn't split either, but a proto3 list that can't be split is malformed. */
+  void notSplittableProto3() {
+    throw new IllegalArgumentException("Malformed reading List<Span> from proto3: "
+      + "expected a span field");
+  }
+
+  void emit(int from, int to) {
+    ByteBuffer batch = ByteBuffer.wrap(buf, from, to - from);
+    SpanBytesDecoder unexpectedDecoder = testForUnexpectedFormat(decoder, batch);
+    if (unexpectedDecoder != null) {
+      throw new IllegalArgumentException(
+        "Expected a " + decoder + " encoded list, but received: " + unexpectedDecoder + "\n");
+    }
+    decoder.decodeList(batch, spans);
+  }
+
+  /** Discards bytes already decoded, or grows when one element is larger than the buffer. */
+  void makeRoom() {
+    if (batchStart > 0) {
+      int length = end - batchStart;
+      System.arraycopy(buf, batchStart, buf, 0, length);
+      scan -= batchStart;
+      end = length;
+      batchStart = 0;
+    }
+    if (end == buf.length) {
+      byte[] grown = new byte[buf.length * 2];
+      System.arraycopy(buf, 0, grown, 0, end);
+      buf = grown;
+    }
+  }
+
+  boolean isJson() {
+    return decoder == SpanBytesDecoder.JSON_V1 || decoder == SpanBytesDecoder.JSON_V2;
+  }
+
+  static boolean isWhitespace(byte c) {
+    return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+  }
+}
@@ -14,14 +14,18 @@
 package zipkin2.server.internal;
 
 import com.linecorp.armeria.client.encoding.GzipStreamDecoderFactory;
+import com.linecorp.armeria.client.encoding.StreamDecoder;
 import com.linecorp.armeria.common.AggregatedHttpMessage;
 import com.linecorp.armeria.common.HttpData;
 import com.linecorp.armeria.common.HttpHeaderNames;
+import com.linecorp.armeria.common.HttpMethod;
+import com.linecorp.armeria.common.HttpObject;
 import com.linecorp.armeria.common.HttpRequest;
 import com.linecorp.armeria.common.HttpResponse;
 import com.linecorp.armeria.common.HttpStatus;
 import com.linecorp.armeria.common.MediaType;
 import com.linecorp.armeria.common.RequestContext;
+import com.linecorp.armeria.server.Service;
 import com.linecorp.armeria.server.ServiceRequestContext;
 import com.linecorp.armeria.server.annotation.Consumes;
 import com.linecorp.armeria.server.annotation.ConsumesJson;
@@ -34,9 +38,13 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import zipkin2.Callback;
 import zipkin2.Span;
@@ -50,62 +58,72 @@ import zipkin2.storage.StorageComponent;
 
 import static com.linecorp.armeria.common.HttpStatus.BAD_REQUEST;
 import static com.linecorp.armeria.common.HttpStatus.INTERNAL_SERVER_ERROR;
+import static com.linecorp.armeria.common.HttpStatus.SERVICE_UNAVAILABLE;
 import static zipkin2.server.internal.BodyIsExceptionMessage.testForUnexpectedFormat;
 
 @ConditionalOnProperty(name = "zipkin.collector.http.enabled", matchIfMissing = true)
 @RequestConverter(UnzippingBytesRequestConverter.class)
 @ExceptionHandler(BodyIsExceptionMessage.class)
 public class ZipkinHttpCollector {
+  static final GzipStreamDecoderFactory GZIP_DECODER_FACTORY = new GzipStreamDecoderFactory();
   static volatile CollectorMetrics metrics;
   final Collector collector;
+  /** When true, gzipped bodies are inflated and decoded as they arrive, instead of all at once. */
+  final boolean streaming;
 
   ZipkinHttpCollector(
-    StorageComponent storage, CollectorSampler sampler, CollectorMetrics metrics) {
+    StorageComponent storage, CollectorSampler sampler, CollectorMetrics metrics,
+    @Value("${zipkin.collector.http.streaming:false}") boolean streaming) {
     metrics = metrics.forTransport("http");
     collector =
       Collector.newBuilder(getClass()).storage(storage).sampler(sampler).metrics(metrics).build();
     ZipkinHttpCollector.metrics = metrics; // converter instances aren't injected by Spring
+    this.streaming = streaming;
   }
 
   @Post("/api/v2/spans")
-  public HttpResponse uploadSpans(byte[] serializedSpans) {
+  public HttpResponse uploadSpans(ByteBuffer serializedSpans) {
     return validateAndStoreSpans(SpanBytesDecoder.JSON_V2, serializedSpans);
   }
 
   @Post("/api/v2/spans")
   @ConsumesJson
-  public HttpResponse uploadSpansJson(byte[] serializedSpans) {
+  public HttpResponse uploadSpansJson(ByteBuffer serializedSpans) {
     return validateAndStoreSpans(SpanBytesDecoder.JSON_V2, serializedSpans);
   }
 
   @Post("/api/v2/spans")
   @ConsumesProtobuf
-  public HttpResponse uploadSpansProtobuf(byte[] serializedSpans) {
+  public HttpResponse uploadSpansProtobuf(ByteBuffer serializedSpans) {
     return validateAndStoreSpans(SpanBytesDecoder.PROTO3, serializedSpans);
   }
 
   @Post("/api/v1/spans")
-  public HttpResponse uploadSpansV1(byte[] serializedSpans) {
+  public HttpResponse uploadSpansV1(ByteBuffer serializedSpans) {
     return validateAndStoreSpans(SpanBytesDecoder.JSON_V1, serializedSpans);
   }
 
   @Post("/api/v1/spans")
   @ConsumesJson
-  public HttpResponse uploadSpansV1Json(byte[] serializedSpans) {
+  public HttpResponse uploadSpansV1Json(ByteBuffer serializedSpans) {
     return validateAndStoreSpans(SpanBytesDecoder.JSON_V1, serializedSpans);
   }
 
   @Post("/api/v1/spans")
   @ConsumesThrift
-  public HttpResponse uploadSpansV1Thrift(byte[] serializedSpans) {
+  public HttpResponse uploadSpansV1Thrift(ByteBuffer serializedSpans) {
     return validateAndStoreSpans(SpanBytesDecoder.THRIFT, serializedSpans);
   }
 
-  /** This synchronously decodes the message so that users can see data errors. */
-  HttpResponse validateAndStoreSpans(SpanBytesDecoder decoder, byte[] serializedSpans) {
+  /**
+   * This synchronously decodes the message so that users can see data errors. The collector
+   * samples spans before decoding them, so unsampled spans aren't built.
+   */
+  HttpResponse validateAndStoreSpans(SpanBytesDecoder decoder, ByteBuffer serializedSpans) {
     try {
       SpanBytesDecoderDetector.decoderForListMessage(serializedSpans);
     } catch (IllegalArgumentException e) {
+      metrics.incrementBytes(serializedSpans.remaining());
       metrics.incrementMessagesDropped();
       return HttpResponse.of(
         BAD_REQUEST, MediaType.PLAIN_TEXT_UTF_8, "Expected a " + decoder + " encoded list\n");
@@ -113,20 +131,152 @@ public class ZipkinHttpCollector {
 
     SpanBytesDecoder unexpectedDecoder = testForUnexpectedFormat(decoder, serializedSpans);
     if (unexpectedDecoder != null) {
+      metrics.incrementBytes(serializedSpans.remaining());
       metrics.incrementMessagesDropped();
       return HttpResponse.of(
         BAD_REQUEST, MediaType.PLAIN_TEXT_UTF_8,
         "Expected a " + decoder + " encoded list, but received: " + unexpectedDecoder + "\n");
     }
 
-    CompletableCallback result = new CompletableCallback();
-    List<Span> spans = new ArrayList<>();
-    if (!decoder.decodeList(serializedSpans, spans)) {
+    // The collector accepts an empty list from other transports, but this has always rejected it
+    if (isEmptyList(serializedSpans)) {
+      metrics.incrementBytes(serializedSpans.remaining());
       throw new IllegalArgumentException("Empty " + decoder.name() + " message");
     }
-    collector.accept(spans, result);
+
+    // The collector counts bytes, and reports decoding errors before returning
+    CompletableCallback result = new CompletableCallback();
+    collector.acceptSpans(serializedSpans, decoder, result);
     return HttpResponse.from(result);
   }
+
+  /** Returns true if the message is a list, such as "[]", with no spans in it. */
+  static boolean isEmptyList(ByteBuffer body) {
+    int pos = body.position(), limit = body.limit();
+    if (body.get(pos) != '[') { // thrift, as an empty proto3 list is an empty body
+      return limit - pos == 5 && body.getInt(pos + 1) == 0; // element type, then count
+    }
+    pos++;
+    while (pos < limit && StreamingSpanDecoder.isWhitespace(body.get(pos))) pos++;
+    if (pos == limit || body.get(pos++) != ']') return false;
+    while (pos < limit && StreamingSpanDecoder.isWhitespace(body.get(pos))) pos++;
+    return pos == limit;
+  }
+
+  /**
+   * Decorates this service when streaming, so that a gzipped body is inflated and decoded as its
+   * chunks arrive, instead of being aggregated first. Other requests go to the annotated methods.
+   */
+  HttpResponse streamGzippedSpans(Service<HttpRequest, HttpResponse> delegate,
+    ServiceRequestContext ctx, HttpRequest req) throws Exception {
+    String encoding = req.headers().get(HttpHeaderNames.CONTENT_ENCODING);
+    SpanBytesDecoder decoder = req.method() == HttpMethod.POST
+      && encoding != null && encoding.contains("gzip") ? decoderForRequest(ctx.path(), req) : null;
+    if (decoder == null) return delegate.serve(ctx, req);
+
+    metrics.incrementMessages();
+    CompletableCallback result = new CompletableCallback();
+    req.subscribe(new GzippedSpansSubscriber(ctx, req, decoder, result), ctx.eventLoop());
+    return HttpResponse.from(result);
+  }
+
+  /** Matches the routes of the annotated methods, or returns null if none do. */
+  static SpanBytesDecoder decoderForRequest(String path, HttpRequest req) {
+    String contentType = req.headers().get(HttpHeaderNames.CONTENT_TYPE);
+    if ("/api/v2/spans".equals(path)) {
+      return contentType != null && contentType.startsWith("application/x-protobuf")
+        ? SpanBytesDecoder.PROTO3 : SpanBytesDecoder.JSON_V2;
+    } else if ("/api/v1/spans".equals(path)) {
+      return contentType != null && contentType.startsWith("application/x-thrift")
+        ? SpanBytesDecoder.THRIFT : SpanBytesDecoder.JSON_V1;
+    }
+    return null;
+  }
+
+  /**
+   * Inflates each chunk of the body once, as it arrives, and decodes it in sub-batches. Spans are
+   * stored when the body ends, after checking the message is a whole list. Like {@link
+   * #validateAndStoreSpans}, errors are reported in the response.
+   */
+  final class GzippedSpansSubscriber implements Subscriber<HttpObject> {
+    final ServiceRequestContext ctx;
+    final HttpRequest req;
+    final StreamingSpanDecoder decoder;
+    final CompletableCallback result;
+    final StreamDecoder gunzipper = GZIP_DECODER_FACTORY.newDecoder();
+    Subscription subscription;
+    boolean empty = true, failed;
+
+    GzippedSpansSubscriber(ServiceRequestContext ctx, HttpRequest req, SpanBytesDecoder decoder,
+      CompletableCallback result) {
+      this.ctx = ctx;
+      this.req = req;
+      this.decoder = new StreamingSpanDecoder(decoder);
+      this.result = result;
+    }
+
+    @Override public void onSubscribe(Subscription subscription) {
+      this.subscription = subscription;
+      subscription.request(1);
+    }
+
+    @Override public void onNext(HttpObject object) {
+      if (failed) return;
+      if (object instanceof HttpData && !((HttpData) object).isEmpty()) {
+        empty = false;
+        try {
+          write(gunzip((HttpData) object));
+        } catch (RuntimeException e) {
+          fail(e);
+          return;
+        }
+      }
+      subscription.request(1); // trailers are ignored
+    }
+
+    @Override public void onError(Throwable t) {
+      if (failed) return;
+      failed = true;
+      metrics.incrementMessagesDropped();
+      result.completeExceptionally(t);
+    }
+
+    @Override public void onComplete() {
+      if (failed) return;
+      List<Span> spans;
+      try {
+        if (empty) throw new IllegalArgumentException("Empty POST body");
+        write(gunzipper.finish());
+        // The implementation of the armeria decoder is to return an empty body of failure
+        if (decoder.bytesRead == 0) throw new IllegalArgumentException("Cannot gunzip spans");
+        spans = decoder.finish();
+      } catch (RuntimeException e) {
+        fail(e);
+        return;
+      }
+      metrics.incrementBytes(decoder.bytesRead);
+      collector.accept(spans, result);
+    }
+
+    HttpData gunzip(HttpData chunk) {
+      try {
+        return gunzipper.decode(chunk);
+      } catch (RuntimeException e) {
+        throw new IllegalArgumentException("Cannot gunzip spans", e);
+      }
+    }
+
+    void write(HttpData inflated) {
+      decoder.write(inflated.array(), inflated.offset(), inflated.length());
+    }
+
+    void fail(RuntimeException e) {
+      failed = true;
+      subscription.cancel();
+      metrics.incrementBytes(decoder.bytesRead);
+      result.complete(new BodyIsExceptionMessage().handleException(ctx, req, e));
+    }
+  }
 }
 
 @Retention(RetentionPolicy.RUNTIME)
@@ -147,12 +297,25 @@ final class CompletableCallback extends CompletableFuture<HttpResponse>
   }
 
   @Override public void onError(Throwable t) {
+    // the collector couldn't decode the message, and has already counted it as dropped. Storage
+    // failures aren't reported as this type, even if caused by one.
+    if (t instanceof IllegalArgumentException) {
+      complete(HttpResponse.of(BAD_REQUEST, MediaType.ANY_TEXT_TYPE, t.getMessage()));
+      return;
+    }
+    // the ingest queue is full: tell the client to retry later
+    for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+      if (cause instanceof RejectedExecutionException) {
+        ZipkinHttpCollector.metrics.incrementMessagesDropped();
+        complete(HttpResponse.of(SERVICE_UNAVAILABLE, MediaType.ANY_TEXT_TYPE, t.getMessage()));
+        return;
+      }
+    }
     completeExceptionally(t);
   }
 }
 
 final class UnzippingBytesRequestConverter implements RequestConverterFunction {
-  static final GzipStreamDecoderFactory GZIP_DECODER_FACTORY = new GzipStreamDecoderFactory();
 
   @Override public Object convertRequest(ServiceRequestContext ctx, AggregatedHttpMessage request,
     Class<?> expectedResultType) {
@@ -162,12 +325,13 @@ final class UnzippingBytesRequestConverter implements RequestConverterFunction {
 
     String encoding = request.headers().get(HttpHeaderNames.CONTENT_ENCODING);
     if (encoding != null && encoding.contains("gzip")) {
-      content = GZIP_DECODER_FACTORY.newDecoder().decode(content);
+      content = ZipkinHttpCollector.GZIP_DECODER_FACTORY.newDecoder().decode(content);
       // The implementation of the armeria decoder is to return an empty body of failure
       if (content.isEmpty()) throw new IllegalArgumentException("Cannot gunzip spans");
     }
-    byte[] result = content.array();
-    ZipkinHttpCollector.metrics.incrementBytes(result.length);
+    // wrap instead of copying, honoring the offset of the data in its array. Bytes are counted by
+    // the collector.
+    ByteBuffer result = ByteBuffer.wrap(content.array(), content.offset(), content.length());
     return result;
   }
 }
@@ -188,7 +352,7 @@ final class BodyIsExceptionMessage implements ExceptionHandlerFunction {
    * Some formats clash on partial data. For example, a v1 and v2 span is identical if only the span
    * name is sent. This looks for unexpected data format.
    */
-  static SpanBytesDecoder testForUnexpectedFormat(BytesDecoder<Span> decoder, byte[] body) {
+  static SpanBytesDecoder testForUnexpectedFormat(BytesDecoder<Span> decoder, ByteBuffer body) {
     if (decoder == SpanBytesDecoder.JSON_V2) {
       if (contains(body, BINARY_ANNOTATION_FIELD_SUFFIX)) {
         return SpanBytesDecoder.JSON_V1;
@@ -207,11 +371,11 @@ final class BodyIsExceptionMessage implements ExceptionHandlerFunction {
   static final byte[] ENDPOINT_FIELD_SUFFIX = {'E', 'n', 'd', 'p', 'o', 'i', 'n', 't', '"'};
   static final byte[] TAGS_FIELD = {'"', 't', 'a', 'g', 's', '"'};
 
-  static boolean contains(byte[] bytes, byte[] subsequence) {
+  static boolean contains(ByteBuffer bytes, byte[] subsequence) {
     bytes:
-    for (int i = 0; i < bytes.length - subsequence.length + 1; i++) {
+    for (int i = bytes.position(); i < bytes.limit() - subsequence.length + 1; i++) {
       for (int j = 0; j < subsequence.length; j++) {
-        if (bytes[i + j] != subsequence[j]) {
+        if (bytes.get(i + j) != subsequence[j]) {
           continue bytes;
         }
       }
@@ -20,27 +20,37 @@ import com.linecorp.armeria.server.RedirectService;
 import com.linecorp.armeria.server.cors.CorsServiceBuilder;
 import com.linecorp.armeria.spring.ArmeriaServerConfigurator;
 import com.linecorp.armeria.spring.actuate.ArmeriaSpringActuatorAutoConfiguration;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.FunctionTimer;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.config.MeterFilter;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.config.BeanPostProcessor;
 import org.springframework.boot.actuate.autoconfigure.metrics.MeterRegistryCustomizer;
 import org.springframework.boot.actuate.health.HealthAggregator;
 import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Condition;
 import org.springframework.context.annotation.ConditionContext;
 import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.annotation.Order;
 import org.springframework.core.type.AnnotatedTypeMetadata;
 import org.springframework.web.servlet.config.annotation.ViewControllerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import zipkin2.collector.CollectorMetrics;
 import zipkin2.collector.CollectorSampler;
+import zipkin2.collector.IngestQueue;
+import zipkin2.collector.OnlineDependencyLinker;
 import zipkin2.server.internal.brave.TracingStorageComponent;
 import zipkin2.storage.InMemoryStorage;
 import zipkin2.storage.StorageComponent;
@@ -64,7 +74,13 @@ public class ZipkinServerConfiguration implements WebMvcConfigurer {
         sb.annotatedService(httpQuery);
         sb.annotatedService("/zipkin", httpQuery); // For UI.
       }
-      if (httpCollector != null) sb.annotatedService(httpCollector);
+      if (httpCollector != null) {
+        if (httpCollector.streaming) { // gzipped bodies are streamed instead of aggregated
+          sb.annotatedService(httpCollector, s -> s.decorate(httpCollector::streamGzippedSpans));
+        } else {
+          sb.annotatedService(httpCollector);
+        }
+      }
       if (healthController != null) sb.annotatedService(healthController);
       // Redirects the prometheus scrape endpoint for backward compatibility
       sb.service("/prometheus", new RedirectService("/actuator/prometheus"));
@@ -151,6 +167,125 @@ public class ZipkinServerConfiguration implements WebMvcConfigurer {
     }
   }
 
+  /**
+   * Wraps storage in a bounded queue shared by all collectors, as they all write through the
+   * storage bean's span consumer. The queue also merges small messages into fewer storage calls.
+   */
+  @Configuration
+  @ConditionalOnExpression("${zipkin.collector.queue.max-spans:0} > 0")
+  static class IngestQueueStorageComponentEnhancer implements BeanPostProcessor {
+
+    @Value("${zipkin.collector.queue.max-spans}")
+    int maxSpans;
+
+    @Value("${zipkin.collector.queue.max-concurrency:64}")
+    int maxConcurrency;
+
+    @Value("${zipkin.collector.queue.max-batch-spans:500}")
+    int maxBatchSpans;
+
+    @Value("${zipkin.collector.queue.linger:0}")
+    long lingerMillis;
+
+    @Value("${zipkin.collector.queue.overflow:drop-newest}")
+    String overflow;
+
+    @Autowired @Lazy
+    MeterRegistry registry;
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+      return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+      if (!(bean instanceof StorageComponent) || bean instanceof IngestQueue) return bean;
+      IngestQueue result = IngestQueue.newBuilder((StorageComponent) bean)
+        .maxSpans(maxSpans)
+        .maxConcurrency(maxConcurrency)
+        .maxBatchSpans(maxBatchSpans)
+        .linger(lingerMillis, TimeUnit.MILLISECONDS)
+        .overflow(IngestQueue.Overflow.valueOf(
+          overflow.trim().toUpperCase(Locale.ROOT).replace('-', '_')))
+        .build();
+      Gauge.builder("zipkin_collector.queue.spans", result, IngestQueue::queuedSpans)
+        .description("count of spans waiting to be stored")
+        .register(registry);
+      Gauge.builder("zipkin_collector.queue.in_flight_spans", result, IngestQueue::inFlightSpans)
+        .description("count of spans being stored")
+        .register(registry);
+      FunctionCounter.builder("zipkin_collector.queue.spans_dropped", result,
+        IngestQueue::droppedSpans)
+        .description("cumulative amount of spans dropped because the queue was full")
+        .register(registry);
+      FunctionTimer.builder("zipkin_collector.queue.wait", result,
+        IngestQueue::dispatchedCount, IngestQueue::totalWaitNanos, TimeUnit.NANOSECONDS)
+        .description("time messages waited in the queue before being stored")
+        .register(registry);
+      return result;
+    }
+  }
+
+  /**
+   * Links dependencies as spans are collected, so that the dependency graph is available without
+   * an offline job. The span consumer of storage is still invoked for every span.
+   */
+  @Configuration
+  @ConditionalOnProperty(name = "zipkin.collector.dependency-linker.enabled", havingValue = "true")
+  static class OnlineDependencyLinkerStorageComponentEnhancer implements BeanPostProcessor {
+
+    @Value("${zipkin.collector.dependency-linker.quiet-period:60000}")
+    long quietPeriodMillis;
+
+    @Value("${zipkin.collector.dependency-linker.max-spans:100000}")
+    int maxSpans;
+
+    @Value("${zipkin.collector.dependency-linker.max-spans-per-trace:1000}")
+    int maxSpansPerTrace;
+
+    @Value("${zipkin.collector.dependency-linker.retention:86400000}")
+    long retentionMillis;
+
+    @Autowired @Lazy
+    MeterRegistry registry;
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) {
+      return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+      if (!(bean instanceof StorageComponent) || bean instanceof OnlineDependencyLinker) {
+        return bean;
+      }
+      OnlineDependencyLinker result = OnlineDependencyLinker.newBuilder((StorageComponent) bean)
+        .quietPeriod(quietPeriodMillis, TimeUnit.MILLISECONDS)
+        .maxSpans(maxSpans)
+        .maxSpansPerTrace(maxSpansPerTrace)
+        .retention(retentionMillis, TimeUnit.MILLISECONDS)
+        .build();
+      Gauge.builder("zipkin_collector.dependency_linker.pending_traces", result,
+        OnlineDependencyLinker::pendingTraces)
+        .description("count of traces waiting for their quiet period before being linked")
+        .register(registry);
+      Gauge.builder("zipkin_collector.dependency_linker.spans", result,
+        OnlineDependencyLinker::bufferedSpans)
+        .description("count of spans buffered until their trace is linked")
+        .register(registry);
+      FunctionCounter.builder("zipkin_collector.dependency_linker.linked_traces", result,
+        OnlineDependencyLinker::linkedTraces)
+        .description("cumulative amount of traces linked")
+        .register(registry);
+      FunctionCounter.builder("zipkin_collector.dependency_linker.spans_dropped", result,
+        OnlineDependencyLinker::droppedSpans)
+        .description("cumulative amount of spans not linked because the buffer or trace was full")
+        .register(registry);
+      return result;
+    }
+  }
+
   /**
    * This is a special-case configuration if there's no StorageComponent of any kind. In-Mem can
    * supply both read apis, so we add two beans here.
@@ -164,13 +299,24 @@ public class ZipkinServerConfiguration implements WebMvcConfigurer {
       @Value("${zipkin.storage.strict-trace-id:true}") boolean strictTraceId,
       @Value("${zipkin.storage.search-enabled:true}") boolean searchEnabled,
       @Value("${zipkin.storage.mem.max-spans:500000}") int maxSpans,
-      @Value("${zipkin.storage.autocomplete-keys:}") List<String> autocompleteKeys) {
-      return InMemoryStorage.newBuilder()
+      @Value("${zipkin.storage.mem.off-heap:false}") boolean offHeap,
+      @Value("${zipkin.storage.mem.max-off-heap-bytes:268435456}") long maxOffHeapBytes,
+      @Value("${zipkin.storage.autocomplete-keys:}") List<String> autocompleteKeys,
+      MeterRegistry registry) {
+      InMemoryStorage result = InMemoryStorage.newBuilder()
         .strictTraceId(strictTraceId)
         .searchEnabled(searchEnabled)
         .maxSpanCount(maxSpans)
+        .offHeap(offHeap)
+        .maxOffHeapBytes(maxOffHeapBytes)
         .autocompleteKeys(autocompleteKeys)
         .build();
+      FunctionCounter.builder("zipkin_storage.spans_evicted", result,
+        InMemoryStorage::evictedSpanCount)
+        .description("cumulative amount of spans evicted to stay within max-spans")
+        .tag("type", "mem")
+        .register(registry);
+      return result;
     }
   }
 
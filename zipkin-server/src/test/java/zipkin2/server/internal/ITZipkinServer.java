@@ -101,6 +101,12 @@ public class ITZipkinServer {
       .startsWith("Expected a JSON_V2 encoded list\n");
   }
 
+  @Test public void writeSpans_emptyListIsBadRequest() throws Exception {
+    Response response = post("/api/v2/spans", new byte[] {'[', ' ', ']'});
+    assertThat(response.code()).isEqualTo(400);
+    assertThat(response.body().string()).isEqualTo("Empty JSON_V2 message");
+  }
+
   @Test public void writeSpans_incorrectJsonFormatIsBadRequest_v1_v2() throws Exception {
     byte[] message = SpanBytesEncoder.JSON_V1.encodeList(TRACE);
 
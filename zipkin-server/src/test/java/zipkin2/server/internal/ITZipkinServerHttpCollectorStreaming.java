@@ -0,0 +1,197 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.server.internal;
+
+import com.linecorp.armeria.server.Server;
+import java.util.ArrayList;
+import java.util.List;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.GzipSink;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import zipkin.server.ZipkinServer;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
+import zipkin2.storage.InMemoryStorage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.TestObjects.CLIENT_SPAN;
+import static zipkin2.TestObjects.UTF_8;
+import static zipkin2.server.internal.ITZipkinServer.url;
+
+/** Messages larger than a sub-batch should be stored entirely when streaming. */
+@SpringBootTest(
+  classes = ZipkinServer.class,
+  webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+  properties = {
+    "spring.config.name=zipkin-server",
+    "zipkin.collector.http.streaming=true"
+  })
+@RunWith(SpringRunner.class)
+public class ITZipkinServerHttpCollectorStreaming {
+  static final List<Span> SPANS = new ArrayList<>();
+
+  static {
+    for (int i = 1; i <= 2000; i++) {
+      SPANS.add(CLIENT_SPAN.toBuilder().traceId(0L, i).id(i).build());
+    }
+  }
+
+  @Autowired InMemoryStorage storage;
+  @Autowired Server server;
+  OkHttpClient client = new OkHttpClient.Builder().followRedirects(false).build();
+
+  @Before public void init() {
+    storage.clear();
+  }
+
+  @Test public void writeSpans_gzipEncoded_json() throws Exception {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(SPANS);
+    assertThat(message.length).isGreaterThan(StreamingSpanDecoder.BATCH_BYTES);
+
+    assertThat(postGzipped(null, message).code()).isEqualTo(202);
+    assertThat(storage.acceptedSpanCount()).isEqualTo(SPANS.size());
+  }
+
+  @Test public void writeSpans_gzipEncoded_proto3() throws Exception {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(SPANS);
+    assertThat(message.length).isGreaterThan(StreamingSpanDecoder.BATCH_BYTES);
+
+    assertThat(postGzipped("application/x-protobuf", message).code()).isEqualTo(202);
+    assertThat(storage.acceptedSpanCount()).isEqualTo(SPANS.size());
+  }
+
+  @Test public void writeSpans_malformedGzipIsBadRequest() throws Exception {
+    Response response = client.newCall(new Request.Builder()
+      .url(url(server, "/api/v2/spans"))
+      .header("Content-Encoding", "gzip") // << gzip here, but the body isn't!
+      .post(RequestBody.create(null, new byte[] {'h', 'e', 'l', 'l', 'o'}))
+      .build()).execute();
+
+    assertThat(response.code()).isEqualTo(400);
+    assertThat(response.body().string()).startsWith("Cannot gunzip spans");
+  }
+
+  @Test public void writeSpans_truncatedJsonIsBadRequest() throws Exception {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(SPANS);
+    byte[] truncated = new byte[message.length - 1];
+    System.arraycopy(message, 0, truncated, 0, truncated.length);
+
+    Response response = postGzipped(null, truncated);
+    assertThat(response.code()).isEqualTo(400);
+    assertThat(response.body().string()).startsWith("Malformed reading List<Span> from json");
+    assertThat(storage.acceptedSpanCount()).isZero();
+  }
+
+  @Test public void writeSpans_truncatedProto3IsBadRequest() throws Exception {
+    byte[] message = SpanBytesEncoder.PROTO3.encodeList(SPANS);
+    byte[] truncated = new byte[message.length - 1];
+    System.arraycopy(message, 0, truncated, 0, truncated.length);
+
+    Response response = postGzipped("application/x-protobuf", truncated);
+    assertThat(response.code()).isEqualTo(400);
+    assertThat(response.body().string()).endsWith("reading List<Span> from proto3");
+    assertThat(storage.acceptedSpanCount()).isZero();
+  }
+
+  @Test public void writeSpans_dataAfterListIsBadRequest() throws Exception {
+    byte[] message = SpanBytesEncoder.JSON_V2.encodeList(SPANS);
+    byte[] trailing = new byte[message.length + 2];
+    System.arraycopy(message, 0, trailing, 0, message.length);
+    trailing[message.length] = ']';
+    trailing[message.length + 1] = '\n';
+
+    Response response = postGzipped(null, trailing);
+    assertThat(response.code()).isEqualTo(400);
+    assertThat(response.body().string())
+      .isEqualTo("Malformed reading List<Span> from json: "
+        + "unexpected data after the end of the list");
+    assertThat(storage.acceptedSpanCount()).isZero();
+  }
+
+  @Test public void writeSpans_notAListIsBadRequest() throws Exception {
+    Response response = postGzipped(null, SpanBytesEncoder.JSON_V2.encode(CLIENT_SPAN));
+    assertThat(response.code()).isEqualTo(400);
+    assertThat(response.body().string()).isEqualTo("Expected a JSON_V2 encoded list\n");
+  }
+
+  /** Malformed spans in a whole list are found after earlier sub-batches are decoded. */
+  @Test public void writeSpans_malformedSpanIsBadRequest() throws Exception {
+    String json = new String(SpanBytesEncoder.JSON_V2.encodeList(SPANS), UTF_8);
+    int lastTraceId = json.lastIndexOf("\"traceId\"");
+    byte[] malformed = (json.substring(0, lastTraceId) + "\"traceId\":\"zz\""
+      + json.substring(json.indexOf(',', lastTraceId))).getBytes(UTF_8);
+
+    Response response = postGzipped(null, malformed);
+    assertThat(response.code()).isEqualTo(400);
+    assertThat(storage.acceptedSpanCount()).isZero();
+  }
+
+  @Test public void writeSpans_emptyGzipIsBadRequest() throws Exception {
+    Response response = postGzipped(null, "[]".getBytes(UTF_8));
+    assertThat(response.code()).isEqualTo(400);
+    assertThat(response.body().string()).isEqualTo("Empty JSON_V2 message");
+  }
+
+  @Test public void writeSpans_notGzipped_json() throws Exception {
+    Response response = client.newCall(new Request.Builder()
+      .url(url(server, "/api/v2/spans"))
+      .post(RequestBody.create(null, SpanBytesEncoder.JSON_V2.encodeList(SPANS)))
+      .build()).execute();
+
+    assertThat(response.code()).isEqualTo(202);
+    assertThat(storage.acceptedSpanCount()).isEqualTo(SPANS.size());
+  }
+
+  @Test public void writeSpans_gzipEncoded_thrift() throws Exception {
+    byte[] message = SpanBytesEncoder.THRIFT.encodeList(SPANS);
+
+    Buffer sink = new Buffer();
+    GzipSink gzipSink = new GzipSink(sink);
+    gzipSink.write(new Buffer().write(message), message.length);
+    gzipSink.close();
+
+    Response response = client.newCall(new Request.Builder()
+      .url(url(server, "/api/v1/spans"))
+      .header("Content-Encoding", "gzip")
+      .post(RequestBody.create(MediaType.parse("application/x-thrift"), sink.readByteArray()))
+      .build()).execute();
+
+    assertThat(response.code()).isEqualTo(202);
+    assertThat(storage.acceptedSpanCount()).isEqualTo(SPANS.size());
+  }
+
+  Response postGzipped(String contentType, byte[] message) throws Exception {
+    Buffer sink = new Buffer();
+    GzipSink gzipSink = new GzipSink(sink);
+    gzipSink.write(new Buffer().write(message), message.length);
+    gzipSink.close();
+
+    return client.newCall(new Request.Builder()
+      .url(url(server, "/api/v2/spans"))
+      .header("Content-Encoding", "gzip")
+      .post(RequestBody.create(
+        contentType != null ? MediaType.parse(contentType) : null, sink.readByteArray()))
+      .build()).execute();
+  }
+}
@@ -29,7 +29,9 @@ import org.springframework.boot.test.util.TestPropertyValues;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import zipkin2.collector.IngestQueue;
 import zipkin2.server.internal.brave.TracingConfiguration;
+import zipkin2.storage.InMemoryStorage;
 import zipkin2.storage.StorageComponent;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -137,6 +139,41 @@ public class ZipkinServerConfigurationTest {
       .containsExactly(false);
   }
 
+  @Test public void ingestQueue_disabledByDefault() {
+    context.register(
+      ArmeriaSpringActuatorAutoConfiguration.class,
+      EndpointAutoConfiguration.class,
+      PropertyPlaceholderAutoConfiguration.class,
+      ZipkinServerConfigurationTest.Config.class,
+      ZipkinServerConfiguration.class
+    );
+    context.refresh();
+
+    assertThat(context.getBean(StorageComponent.class)).isInstanceOf(InMemoryStorage.class);
+  }
+
+  @Test public void ingestQueue_canEnable() {
+    TestPropertyValues.of(
+      "zipkin.collector.queue.max-spans:1000",
+      "zipkin.collector.queue.overflow:drop-oldest"
+    ).applyTo(context);
+    context.register(
+      ArmeriaSpringActuatorAutoConfiguration.class,
+      EndpointAutoConfiguration.class,
+      PropertyPlaceholderAutoConfiguration.class,
+      ZipkinServerConfigurationTest.Config.class,
+      ZipkinServerConfiguration.class
+    );
+    context.refresh();
+
+    assertThat(context.getBean(StorageComponent.class))
+      .isInstanceOf(IngestQueue.class)
+      .extracting("maxSpans", "overflow")
+      .containsExactly(1000, IngestQueue.Overflow.DROP_OLDEST);
+    assertThat(context.getBean(MeterRegistry.class).find("zipkin_collector.queue.spans").gauge())
+      .isNotNull();
+  }
+
   @Configuration
   public static class Config {
     @Bean
@@ -28,6 +28,7 @@ import zipkin2.internal.AggregateCall;
 import zipkin2.internal.Nullable;
 import zipkin2.internal.V1ThriftSpanWriter;
 import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.cassandra.internal.call.ConcurrencyLimiter;
 import zipkin2.v1.V1Span;
 import zipkin2.v1.V2SpanConverter;
 
@@ -35,6 +36,7 @@ final class CassandraSpanConsumer implements SpanConsumer {
   final InsertTrace.Factory insertTrace;
   final boolean searchEnabled;
   final Set<String> autocompleteKeys;
+  @Nullable final ConcurrencyLimiter writeLimiter; // null unless writes are limited
 
   // Everything below here is null when search is disabled
   @Nullable final InsertServiceName.Factory insertServiceName;
@@ -48,6 +50,7 @@ final class CassandraSpanConsumer implements SpanConsumer {
     Schema.Metadata metadata = storage.metadata();
     searchEnabled = storage.searchEnabled;
     autocompleteKeys = new LinkedHashSet<>(storage.autocompleteKeys);
+    writeLimiter = storage.writeLimiter;
     int spanTtl = metadata.hasDefaultTtl ? 0 : storage.spanTtl;
 
     insertTrace = new InsertTrace.Factory(session, metadata, spanTtl);
@@ -139,7 +142,9 @@ final class CassandraSpanConsumer implements SpanConsumer {
     for (Map.Entry<String, String> autocompleteTag : autocompleteTags) {
       insertAutocompleteValue.maybeAdd(autocompleteTag, calls);
     }
-    return calls.isEmpty() ? Call.create(null) : AggregateCall.newVoidCall(calls);
+    if (calls.isEmpty()) return Call.create(null);
+    if (writeLimiter != null) calls.replaceAll(writeLimiter::limit);
+    return AggregateCall.newVoidCall(calls);
   }
 
   /** Clears any caches */
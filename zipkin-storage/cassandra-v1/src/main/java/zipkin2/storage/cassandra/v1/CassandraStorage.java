@@ -27,6 +27,7 @@ import zipkin2.storage.ServiceAndSpanNames;
 import zipkin2.storage.SpanConsumer;
 import zipkin2.storage.SpanStore;
 import zipkin2.storage.StorageComponent;
+import zipkin2.storage.cassandra.internal.call.ConcurrencyLimiter;
 import zipkin2.storage.cassandra.internal.call.DeduplicatingVoidCallFactory;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -62,6 +63,8 @@ public class CassandraStorage extends StorageComponent { // not final for mockin
     int indexCacheMax = 100000;
     int indexCacheTtl = 60;
     int indexFetchMultiplier = 3;
+    int maxConcurrentWrites = 0;
+    int maxQueuedWrites = 10000;
     List<String> autocompleteKeys = new ArrayList<>();
     int autocompleteTtl = (int) TimeUnit.HOURS.toMillis(1);
     int autocompleteCardinality = 5 * 4000; // Ex. 5 site tags with cardinality 4000 each
@@ -258,6 +261,29 @@ public class CassandraStorage extends StorageComponent { // not final for mockin
       return this;
     }
 
+    /**
+     * When positive, the count of write calls in flight is limited adaptively, between one and this
+     * value. The limit grows while latency stays near the lowest observed, and shrinks when latency
+     * rises or writes fail. Defaults to 0, which leaves only the driver's connection pool limits.
+     *
+     * <p>Use this to avoid bursts overrunning the pool with a {@code BusyPoolException}. See
+     * {@link CassandraStorage#writeLimiter()} for metrics.
+     */
+    public Builder maxConcurrentWrites(int maxConcurrentWrites) {
+      this.maxConcurrentWrites = maxConcurrentWrites;
+      return this;
+    }
+
+    /**
+     * When {@link #maxConcurrentWrites(int) limiting writes}, how many writes can wait for the
+     * limit. Writes past this fail fast with a {@code RejectedExecutionException}. Defaults to
+     * 10000.
+     */
+    public Builder maxQueuedWrites(int maxQueuedWrites) {
+      this.maxQueuedWrites = maxQueuedWrites;
+      return this;
+    }
+
     @Override
     public CassandraStorage build() {
       return new CassandraStorage(this);
@@ -285,6 +311,7 @@ public class CassandraStorage extends StorageComponent { // not final for mockin
   final List<String> autocompleteKeys;
   final int autocompleteTtl;
   final int autocompleteCardinality;
+  @Nullable final ConcurrencyLimiter writeLimiter;
 
   /** close is typically called from a different thread */
   volatile boolean closeCalled;
@@ -320,6 +347,23 @@ public class CassandraStorage extends StorageComponent { // not final for mockin
     this.autocompleteKeys = b.autocompleteKeys;
     this.autocompleteTtl = b.autocompleteTtl;
     this.autocompleteCardinality = b.autocompleteCardinality;
+    if (b.maxConcurrentWrites > 0) {
+      this.writeLimiter = ConcurrencyLimiter.newBuilder()
+        .initialLimit(Math.min(20, b.maxConcurrentWrites))
+        .maxLimit(b.maxConcurrentWrites)
+        .maxQueueSize(b.maxQueuedWrites)
+        .build();
+    } else {
+      this.writeLimiter = null;
+    }
+  }
+
+  /**
+   * Returns the limiter of write calls, which exposes the current limit, in-flight, queued and
+   * rejected counts, or null if {@link Builder#maxConcurrentWrites(int) unlimited}.
+   */
+  @Nullable public ConcurrencyLimiter writeLimiter() {
+    return writeLimiter;
   }
 
   /** Lazy initializes or returns the session in use by this storage component. */
@@ -14,6 +14,7 @@
 package zipkin2.storage.cassandra;
 
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.utils.UUIDs;
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
@@ -21,12 +22,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.Supplier;
 import zipkin2.Annotation;
 import zipkin2.Call;
 import zipkin2.Span;
 import zipkin2.internal.AggregateCall;
 import zipkin2.internal.Nullable;
 import zipkin2.storage.SpanConsumer;
+import zipkin2.storage.cassandra.internal.call.ConcurrencyLimiter;
+import zipkin2.storage.cassandra.internal.call.UnloggedBatches;
 
 import static zipkin2.storage.cassandra.CassandraUtil.durationIndexBucket;
 
@@ -35,6 +39,8 @@ class CassandraSpanConsumer implements SpanConsumer { // not final for testing
   final boolean strictTraceId, searchEnabled;
   final InsertSpan.Factory insertSpan;
   final Set<String> autocompleteKeys;
+  @Nullable final UnloggedBatches unloggedBatches; // null unless batching is enabled
+  @Nullable final ConcurrencyLimiter writeLimiter; // null unless writes are limited
 
   // Everything below here is null when search is disabled
   @Nullable final InsertTraceByServiceRemoteService.Factory insertTraceByServiceRemoteService;
@@ -51,6 +57,12 @@ class CassandraSpanConsumer implements SpanConsumer { // not final for testing
     autocompleteKeys = new LinkedHashSet<>(storage.autocompleteKeys());
 
     insertSpan = new InsertSpan.Factory(session, strictTraceId, searchEnabled);
+    int unloggedBatchSize = storage.unloggedBatchSize();
+    writeLimiter = storage.writeLimiter();
+    unloggedBatches = unloggedBatchSize > 0
+      ? new UnloggedBatches(session, unloggedBatchSize, storage.maxInFlightWritesPerHost(),
+        storage.maxQueuedWrites(), writeLimiter)
+      : null;
 
     if (!searchEnabled) {
       insertTraceByServiceRemoteService = null;
@@ -81,6 +93,9 @@ class CassandraSpanConsumer implements SpanConsumer { // not final for testing
   /**
    * This fans out into many requests, last count was 2 * spans.size. If any of these fail, the
    * returned future will fail. Most callers drop or log the result.
+   *
+   * <p>When {@link CassandraStorage.Builder#unloggedBatchSize(int) batching}, span and trace index
+   * rows are grouped by partition instead, which usually means one request per trace and index.
    */
   @Override public Call<Void> accept(List<Span> input) {
     if (input.isEmpty()) return Call.create(null);
@@ -145,8 +160,29 @@ class CassandraSpanConsumer implements SpanConsumer { // not final for testing
       }
     }
     List<Call<Void>> calls = new ArrayList<>();
-    for (InsertSpan.Input span : spans) {
-      calls.add(insertSpan.create(span));
+    Call<Void> batchCall = null; // limits each request it sends, so isn't limited again below
+    if (unloggedBatches != null) {
+      List<Supplier<? extends Statement>> statements = new ArrayList<>();
+      for (InsertSpan.Input span : spans) {
+        statements.add(insertSpan.create(span)::newStatement);
+      }
+      for (InsertTraceByServiceSpan.Input serviceSpan : traceByServiceSpans) {
+        statements.add(insertTraceByServiceSpan.create(serviceSpan)::newStatement);
+      }
+      for (InsertTraceByServiceRemoteService.Input remoteService : traceByServiceRemoteServices) {
+        statements.add(insertTraceByServiceRemoteService.create(remoteService)::newStatement);
+      }
+      batchCall = unloggedBatches.newCall(statements);
+    } else {
+      for (InsertSpan.Input span : spans) {
+        calls.add(insertSpan.create(span));
+      }
+      for (InsertTraceByServiceSpan.Input serviceSpan : traceByServiceSpans) {
+        calls.add(insertTraceByServiceSpan.create(serviceSpan));
+      }
+      for (InsertTraceByServiceRemoteService.Input remoteService : traceByServiceRemoteServices) {
+        calls.add(insertTraceByServiceRemoteService.create(remoteService));
+      }
     }
     for (InsertServiceSpan.Input serviceSpan : serviceSpans) {
       insertServiceSpan.maybeAdd(serviceSpan, calls);
@@ -154,16 +190,13 @@ class CassandraSpanConsumer implements SpanConsumer { // not final for testing
     for (InsertServiceRemoteService.Input serviceRemoteService : serviceRemoteServices) {
       insertServiceRemoteService.maybeAdd(serviceRemoteService, calls);
     }
-    for (InsertTraceByServiceSpan.Input serviceSpan : traceByServiceSpans) {
-      calls.add(insertTraceByServiceSpan.create(serviceSpan));
-    }
-    for (InsertTraceByServiceRemoteService.Input serviceRemoteService : traceByServiceRemoteServices) {
-      calls.add(insertTraceByServiceRemoteService.create(serviceRemoteService));
-    }
     for (Map.Entry<String, String> autocompleteTag : autocompleteTags) {
       insertAutocompleteValue.maybeAdd(autocompleteTag, calls);
     }
-    return calls.isEmpty() ? Call.create(null) : AggregateCall.newVoidCall(calls);
+    if (writeLimiter != null) calls.replaceAll(writeLimiter::limit);
+    if (batchCall != null) calls.add(0, batchCall);
+    if (calls.isEmpty()) return Call.create(null);
+    return AggregateCall.newVoidCall(calls);
   }
 
   static long guessTimestamp(Span span) {
@@ -14,6 +14,7 @@
 package zipkin2.storage.cassandra;
 
 import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.exceptions.DriverException;
 import com.datastax.driver.core.utils.UUIDs;
@@ -33,8 +34,10 @@ import zipkin2.storage.ServiceAndSpanNames;
 import zipkin2.storage.SpanStore;
 import zipkin2.storage.cassandra.internal.call.IntersectKeySets;
 import zipkin2.storage.cassandra.internal.call.IntersectMaps;
+import zipkin2.storage.cassandra.internal.call.IntersectTraceIdPages;
 
 import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
 import static zipkin2.storage.cassandra.CassandraUtil.traceIdsSortedByDescTimestamp;
 import static zipkin2.storage.cassandra.Schema.TABLE_SERVICE_REMOTE_SERVICES;
 import static zipkin2.storage.cassandra.Schema.TABLE_TRACE_BY_SERVICE_SPAN;
@@ -42,7 +45,7 @@ import static zipkin2.storage.cassandra.Schema.TABLE_TRACE_BY_SERVICE_SPAN;
 class CassandraSpanStore implements SpanStore, ServiceAndSpanNames { // not final for testing
   static final Logger LOG = LoggerFactory.getLogger(CassandraSpanStore.class);
 
-  final int indexFetchMultiplier;
+  final int indexFetchMultiplier, maxTraceCols;
   final boolean searchEnabled;
   final SelectFromSpan.Factory spans;
   final SelectDependencies.Factory dependencies;
@@ -59,7 +62,7 @@ class CassandraSpanStore implements SpanStore, ServiceAndSpanNames { // not fina
   CassandraSpanStore(CassandraStorage storage) {
     Session session = storage.session();
     Schema.Metadata metadata = storage.metadata();
-    int maxTraceCols = storage.maxTraceCols();
+    maxTraceCols = storage.maxTraceCols();
     indexFetchMultiplier = storage.indexFetchMultiplier();
     boolean strictTraceId = storage.strictTraceId();
     searchEnabled = storage.searchEnabled();
@@ -118,6 +121,10 @@ class CassandraSpanStore implements SpanStore, ServiceAndSpanNames { // not fina
    * select statements for the expression, possibly follow-up calls for pagination (when over 5K
    * rows match). Once IDs are parsed, there's one call for each 5K rows of span data. This means
    * "http.path=/foo and error" is minimally 3 network calls, the first two in parallel.
+   *
+   * <p>When there is more than one criteria and the service name is known, each index is read a
+   * page at a time, newest first, until enough trace IDs are in all of them. See {@link
+   * IntersectTraceIdPages}.
    */
   @Override
   public Call<List<List<Span>>> getTraces(QueryRequest request) {
@@ -127,6 +134,17 @@ class CassandraSpanStore implements SpanStore, ServiceAndSpanNames { // not fina
     // If we have to make multiple queries, over fetch on indexes as they don't return distinct
     // (trace id, timestamp) rows. This mitigates intersection resulting in < limit traces
     final int traceIndexFetchSize = request.limit() * indexFetchMultiplier;
+
+    // Page indexes in parallel, stopping once enough trace IDs are in all of them
+    if (request.serviceName() != null) {
+      List<IntersectTraceIdPages.Source> sources =
+        traceIdSources(request, timestampRange, traceIndexFetchSize);
+      if (sources.size() > 1) {
+        return new IntersectTraceIdPages(sources, request.limit())
+          .flatMap(spans.newFlatMapper(request));
+      }
+    }
+
     List<Call<Map<String, Long>>> callsToIntersect = new ArrayList<>();
 
     List<String> annotationKeys = CassandraUtil.annotationKeys(request);
@@ -161,6 +179,55 @@ class CassandraSpanStore implements SpanStore, ServiceAndSpanNames { // not fina
     return intersectedTraceIds.flatMap(spans.newFlatMapper(request));
   }
 
+  /**
+   * Returns a source of trace IDs for each criteria of the request. Each query returns at most
+   * {@link CassandraStorage#maxTraceCols()} rows, read {@code pageSize} rows at a time.
+   */
+  List<IntersectTraceIdPages.Source> traceIdSources(
+    QueryRequest request, TimestampRange timestampRange, int pageSize) {
+    List<IntersectTraceIdPages.Source> result = new ArrayList<>();
+    List<String> annotationKeys = CassandraUtil.annotationKeys(request);
+    for (String annotationKey : annotationKeys) {
+      if (spanTable == null) {
+        throw new IllegalArgumentException(request.annotationQueryString()
+          + " query unsupported due to missing annotation_query index");
+      }
+      // rows of the span table are partitioned by trace ID, so aren't in timestamp order
+      result.add(IntersectTraceIdPages.newSource(singletonList(spanTable.newPageCall(
+        request.serviceName(), annotationKey, timestampRange, maxTraceCols, pageSize)),
+        false, row -> row.getLong("ts") / 1000L));
+    }
+    if (request.remoteServiceName() == null
+      && request.spanName() == null
+      && request.minDuration() == null
+      && !annotationKeys.isEmpty()) {
+      return result;
+    }
+
+    List<SelectTraceIdsFromServiceSpan.Input> serviceSpans = new ArrayList<>();
+    List<SelectTraceIdsFromServiceRemoteService.Input> serviceRemoteServices = new ArrayList<>();
+    addBucketedInputs(request, timestampRange, maxTraceCols, serviceSpans, serviceRemoteServices);
+
+    // buckets are added newest first, and rows of each bucket are in descending timestamp order
+    if (!serviceSpans.isEmpty()) {
+      List<Call<ResultSet>> queries = new ArrayList<>();
+      for (SelectTraceIdsFromServiceSpan.Input input : serviceSpans) {
+        queries.add(traceIdsFromServiceSpan.newPageCall(input, pageSize));
+      }
+      result.add(IntersectTraceIdPages.newSource(queries, true,
+        row -> UUIDs.unixTimestamp(row.getUUID("ts"))));
+    }
+    if (!serviceRemoteServices.isEmpty()) {
+      List<Call<ResultSet>> queries = new ArrayList<>();
+      for (SelectTraceIdsFromServiceRemoteService.Input input : serviceRemoteServices) {
+        queries.add(traceIdsFromServiceRemoteService.newPageCall(input, pageSize));
+      }
+      result.add(IntersectTraceIdPages.newSource(queries, true,
+        row -> UUIDs.unixTimestamp(row.getUUID("ts"))));
+    }
+    return result;
+  }
+
   /**
    * Creates a call representing one or more queries against {@link Schema#TABLE_TRACE_BY_SERVICE_SPAN}
    * and possibly {@link Schema#TABLE_TRACE_BY_SERVICE_REMOTE_SERVICE}.
@@ -177,6 +244,41 @@ class CassandraSpanStore implements SpanStore, ServiceAndSpanNames { // not fina
   // and speculatively query those first.
   Call<Map<String, Long>> newBucketedTraceIdCall(
     QueryRequest request, TimestampRange timestampRange, int traceIndexFetchSize) {
+    List<SelectTraceIdsFromServiceSpan.Input> serviceSpans = new ArrayList<>();
+    List<SelectTraceIdsFromServiceRemoteService.Input> serviceRemoteServices = new ArrayList<>();
+    addBucketedInputs(
+      request, timestampRange, traceIndexFetchSize, serviceSpans, serviceRemoteServices);
+
+    if (request.serviceName() == null) {
+      // If we have no service name, we have to lookup service names before running trace ID queries
+      Call<List<String>> serviceNames = getServiceNames();
+      if (serviceRemoteServices.isEmpty()) {
+        return serviceNames.flatMap(traceIdsFromServiceSpan.newFlatMapper(serviceSpans));
+      } else if (serviceSpans.isEmpty()) {
+        return serviceNames.flatMap(
+          traceIdsFromServiceRemoteService.newFlatMapper(serviceRemoteServices));
+      }
+      return serviceNames.flatMap(new AggregateFlatMapper<>(
+        traceIdsFromServiceSpan.newFlatMapper(serviceSpans),
+        traceIdsFromServiceRemoteService.newFlatMapper(serviceRemoteServices)
+      ));
+    }
+    if (serviceRemoteServices.isEmpty()) {
+      return traceIdsFromServiceSpan.newCall(serviceSpans);
+    } else if (serviceSpans.isEmpty()) {
+      return traceIdsFromServiceRemoteService.newCall(serviceRemoteServices);
+    } else {
+      return new IntersectMaps<>(asList(
+        traceIdsFromServiceSpan.newCall(serviceSpans),
+        traceIdsFromServiceRemoteService.newCall(serviceRemoteServices)
+      ));
+    }
+  }
+
+  /** Adds inputs for each duration bucket in the timestamp range, newest first. */
+  void addBucketedInputs(QueryRequest request, TimestampRange timestampRange, int limit,
+    List<SelectTraceIdsFromServiceSpan.Input> serviceSpans,
+    List<SelectTraceIdsFromServiceRemoteService.Input> serviceRemoteServices) {
     // trace_by_service_span adds special empty-string span name in order to search by all
     String spanName = null != request.spanName() ? request.spanName() : "";
     Long minDuration = request.minDuration(), maxDuration = request.maxDuration();
@@ -190,10 +292,6 @@ class CassandraSpanStore implements SpanStore, ServiceAndSpanNames { // not fina
     // "" isn't a real value. it is used to template bucketed calls and replaced later
     String serviceName = null != request.serviceName() ? request.serviceName() : "";
 
-    // TODO: ideally, the buckets are traversed backwards, only spawning queries for older buckets
-    // if younger buckets are empty. This will be an async continuation, punted for now.
-    List<SelectTraceIdsFromServiceSpan.Input> serviceSpans = new ArrayList<>();
-    List<SelectTraceIdsFromServiceRemoteService.Input> serviceRemoteServices = new ArrayList<>();
     String remoteService = request.remoteServiceName();
     for (int bucket = endBucket; bucket >= startBucket; bucket--) {
       boolean addSpanQuery = true;
@@ -208,7 +306,7 @@ class CassandraSpanStore implements SpanStore, ServiceAndSpanNames { // not fina
             remoteService,
             bucket,
             timestampRange,
-            traceIndexFetchSize));
+            limit));
         // If the remote service query can satisfy the request, don't make a redundant span query
         addSpanQuery = !spanName.isEmpty() || minDuration != null;
       }
@@ -222,32 +320,7 @@ class CassandraSpanStore implements SpanStore, ServiceAndSpanNames { // not fina
           minDuration,
           maxDuration,
           timestampRange,
-          traceIndexFetchSize));
-    }
-
-    if ("".equals(serviceName)) {
-      // If we have no service name, we have to lookup service names before running trace ID queries
-      Call<List<String>> serviceNames = getServiceNames();
-      if (serviceRemoteServices.isEmpty()) {
-        return serviceNames.flatMap(traceIdsFromServiceSpan.newFlatMapper(serviceSpans));
-      } else if (serviceSpans.isEmpty()) {
-        return serviceNames.flatMap(
-          traceIdsFromServiceRemoteService.newFlatMapper(serviceRemoteServices));
-      }
-      return serviceNames.flatMap(new AggregateFlatMapper<>(
-        traceIdsFromServiceSpan.newFlatMapper(serviceSpans),
-        traceIdsFromServiceRemoteService.newFlatMapper(serviceRemoteServices)
-      ));
-    }
-    if (serviceRemoteServices.isEmpty()) {
-      return traceIdsFromServiceSpan.newCall(serviceSpans);
-    } else if (serviceSpans.isEmpty()) {
-      return traceIdsFromServiceRemoteService.newCall(serviceRemoteServices);
-    } else {
-      return new IntersectMaps<>(asList(
-        traceIdsFromServiceSpan.newCall(serviceSpans),
-        traceIdsFromServiceRemoteService.newCall(serviceRemoteServices)
-      ));
+          limit));
     }
   }
 
@@ -30,6 +30,7 @@ import zipkin2.storage.ServiceAndSpanNames;
 import zipkin2.storage.SpanConsumer;
 import zipkin2.storage.SpanStore;
 import zipkin2.storage.StorageComponent;
+import zipkin2.storage.cassandra.internal.call.ConcurrencyLimiter;
 
 /**
  * CQL3 implementation of zipkin storage.
@@ -65,10 +66,15 @@ public abstract class CassandraStorage extends StorageComponent {
         .useSsl(false)
         .maxTraceCols(100000)
         .indexFetchMultiplier(3)
+        .unloggedBatchSize(0)
+        .maxInFlightWritesPerHost(64)
+        .maxConcurrentWrites(0)
+        .maxQueuedWrites(10000)
         .sessionFactory(SessionFactory.DEFAULT)
         .autocompleteKeys(Collections.emptyList())
         .autocompleteTtl((int) TimeUnit.HOURS.toMillis(1))
-        .autocompleteCardinality(5 * 4000); // Ex. 5 site tags with cardinality 4000 each
+        .autocompleteCardinality(5 * 4000) // Ex. 5 site tags with cardinality 4000 each
+        .bloomFilterDeduplication(false);
   }
 
   @AutoValue.Builder
@@ -93,6 +99,17 @@ public abstract class CassandraStorage extends StorageComponent {
     @Override
     public abstract Builder autocompleteCardinality(int autocompleteCardinality);
 
+    /**
+     * When true, service, span and autocomplete names already written are remembered in a fixed
+     * size bloom filter, instead of a map bounded by {@link #autocompleteCardinality(int)}. Defaults
+     * to false.
+     *
+     * <p>Use this when names are high cardinality, as the filter doesn't grow or evict. The cost is
+     * a small chance (about 1% at the configured cardinality) of skipping a name not yet written
+     * until the filter rotates, which happens at half of {@link #autocompleteTtl(int)}.
+     */
+    public abstract Builder bloomFilterDeduplication(boolean bloomFilterDeduplication);
+
     /** Override to control how sessions are created. */
     public abstract Builder sessionFactory(SessionFactory sessionFactory);
 
@@ -155,6 +172,44 @@ public abstract class CassandraStorage extends StorageComponent {
      */
     public abstract Builder indexFetchMultiplier(int indexFetchMultiplier);
 
+    /**
+     * When positive, span and trace index rows sharing a partition key are written together as
+     * UNLOGGED batches of up to this many statements. Defaults to 0, which writes each row with a
+     * separate request.
+     *
+     * <p>Batches are sent to a replica owning their partition, saving round trips and coordinator
+     * work. Keep the size small: Cassandra logs a warning when a batch exceeds {@code
+     * batch_size_warn_threshold_in_kb} (5KiB by default) and rejects it past {@code
+     * batch_size_fail_threshold_in_kb}.
+     */
+    public abstract Builder unloggedBatchSize(int unloggedBatchSize);
+
+    /**
+     * When {@link #unloggedBatchSize(int) batching}, the maximum count of write requests in flight
+     * to a replica at the same time. Further requests wait for one to complete, up to {@link
+     * #maxQueuedWrites(int)} per replica. Defaults to 64.
+     */
+    public abstract Builder maxInFlightWritesPerHost(int maxInFlightWritesPerHost);
+
+    /**
+     * When positive, the count of write calls in flight is limited adaptively, between one and this
+     * value. The limit grows while latency stays near the lowest observed, and shrinks when latency
+     * rises or writes fail. Defaults to 0, which leaves only the driver's connection pool limits.
+     *
+     * <p>Use this to avoid bursts overrunning the pool with a {@code BusyPoolException}. See
+     * {@link CassandraStorage#writeLimiter()} for metrics. When {@link #unloggedBatchSize(int)
+     * batching}, each batch request is limited, as opposed to all batches of a call together.
+     */
+    public abstract Builder maxConcurrentWrites(int maxConcurrentWrites);
+
+    /**
+     * When {@link #maxConcurrentWrites(int) limiting writes}, how many writes can wait for the
+     * limit. When {@link #unloggedBatchSize(int) batching}, this also bounds the write requests
+     * waiting for each replica. Writes past this fail fast with a {@code
+     * RejectedExecutionException}. Defaults to 10000.
+     */
+    public abstract Builder maxQueuedWrites(int maxQueuedWrites);
+
     @Override
     public abstract CassandraStorage build();
 
@@ -184,6 +239,14 @@ public abstract class CassandraStorage extends StorageComponent {
 
   abstract int indexFetchMultiplier();
 
+  abstract int unloggedBatchSize();
+
+  abstract int maxInFlightWritesPerHost();
+
+  abstract int maxConcurrentWrites();
+
+  abstract int maxQueuedWrites();
+
   abstract boolean strictTraceId();
 
   abstract boolean searchEnabled();
@@ -194,6 +257,8 @@ public abstract class CassandraStorage extends StorageComponent {
 
   abstract int autocompleteCardinality();
 
+  abstract boolean bloomFilterDeduplication();
+
   abstract SessionFactory sessionFactory();
 
   /** session and close are typically called from different threads */
@@ -232,6 +297,19 @@ public abstract class CassandraStorage extends StorageComponent {
     return new CassandraSpanConsumer(this);
   }
 
+  /**
+   * Returns the limiter of write calls, which exposes the current limit, in-flight, queued and
+   * rejected counts, or null if {@link Builder#maxConcurrentWrites(int) unlimited}.
+   */
+  @Memoized @Nullable public ConcurrencyLimiter writeLimiter() {
+    if (maxConcurrentWrites() <= 0) return null;
+    return ConcurrencyLimiter.newBuilder()
+      .initialLimit(Math.min(20, maxConcurrentWrites()))
+      .maxLimit(maxConcurrentWrites())
+      .maxQueueSize(maxQueuedWrites())
+      .build();
+  }
+
   @Memoized Schema.Metadata metadata() { // warn only once when schema problems exist
     return Schema.readMetadata(session());
   }
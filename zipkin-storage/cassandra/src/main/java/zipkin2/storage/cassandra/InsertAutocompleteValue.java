@@ -21,19 +21,25 @@ import com.datastax.driver.core.querybuilder.Insert;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import java.util.Map;
 import zipkin2.Call;
+import zipkin2.internal.BloomDelayLimiter;
 import zipkin2.storage.cassandra.internal.call.DeduplicatingVoidCallFactory;
 import zipkin2.storage.cassandra.internal.call.ResultSetFutureCall;
 
+import static zipkin2.internal.BloomDelayLimiter.hashString;
 import static zipkin2.storage.cassandra.Schema.TABLE_AUTOCOMPLETE_TAGS;
 
 final class InsertAutocompleteValue extends ResultSetFutureCall<Void> {
 
   static class Factory extends DeduplicatingVoidCallFactory<Map.Entry<String, String>> {
+    static final BloomDelayLimiter.Hasher<Map.Entry<String, String>> HASHER =
+      entry -> hashString(hashString(0L, entry.getKey()), entry.getValue());
+
     final Session session;
     final PreparedStatement preparedStatement;
 
     Factory(CassandraStorage storage) {
-      super(storage.autocompleteTtl(), storage.autocompleteCardinality());
+      super(storage.autocompleteTtl(), storage.autocompleteCardinality(),
+        storage.bloomFilterDeduplication() ? HASHER : null);
       session = storage.session();
       Insert insertQuery = QueryBuilder.insertInto(TABLE_AUTOCOMPLETE_TAGS)
         .value("key", QueryBuilder.bindMarker("key"))
@@ -20,15 +20,20 @@ import com.datastax.driver.core.Session;
 import com.datastax.driver.core.querybuilder.Insert;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.google.auto.value.AutoValue;
+import zipkin2.internal.BloomDelayLimiter;
 import zipkin2.storage.cassandra.internal.call.DeduplicatingVoidCallFactory;
 import zipkin2.storage.cassandra.internal.call.ResultSetFutureCall;
 
+import static zipkin2.internal.BloomDelayLimiter.hashString;
 import static zipkin2.storage.cassandra.Schema.TABLE_SERVICE_SPANS;
 
 final class InsertServiceSpan extends ResultSetFutureCall<Void> {
 
   @AutoValue
   abstract static class Input {
+    static final BloomDelayLimiter.Hasher<Input> HASHER =
+      input -> hashString(hashString(0L, input.service()), input.span());
+
     static Input create(String service, String span) {
       return new AutoValue_InsertServiceSpan_Input(service, span);
     }
@@ -46,7 +51,8 @@ final class InsertServiceSpan extends ResultSetFutureCall<Void> {
     final PreparedStatement preparedStatement;
 
     Factory(CassandraStorage storage) {
-      super(storage.autocompleteTtl(), storage.autocompleteCardinality());
+      super(storage.autocompleteTtl(), storage.autocompleteCardinality(),
+        storage.bloomFilterDeduplication() ? Input.HASHER : null);
       session = storage.session();
       Insert insertQuery = QueryBuilder.insertInto(TABLE_SERVICE_SPANS)
         .value("service", QueryBuilder.bindMarker("service"))
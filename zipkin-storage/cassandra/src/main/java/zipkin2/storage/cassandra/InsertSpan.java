@@ -26,7 +26,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.stream.Collectors;
-import zipkin2.Call;
 import zipkin2.internal.Nullable;
 import zipkin2.storage.cassandra.Schema.AnnotationUDT;
 import zipkin2.storage.cassandra.Schema.EndpointUDT;
@@ -142,7 +141,7 @@ final class InsertSpan extends ResultSetFutureCall<Void> {
           Boolean.TRUE.equals(span.shared()));
     }
 
-    Call<Void> create(Input span) {
+    InsertSpan create(Input span) {
       return new InsertSpan(this, span);
     }
   }
@@ -155,6 +154,11 @@ final class InsertSpan extends ResultSetFutureCall<Void> {
     this.input = input;
   }
 
+  @Override
+  protected ResultSetFuture newFuture() {
+    return factory.session.executeAsync(newStatement());
+  }
+
   /**
    * TLDR: we are guarding against setting null, as doing so implies tombstones. We are dodging setX
    * to keep code simpler than other alternatives described below.
@@ -180,8 +184,7 @@ final class InsertSpan extends ResultSetFutureCall<Void> {
    * cassandra-reaper project here:
    * https://github.com/thelastpickle/cassandra-reaper/blob/master/src/server/src/main/java/io/cassandrareaper/storage/CassandraStorage.java#L622-L642
    */
-  @Override
-  protected ResultSetFuture newFuture() {
+  BoundStatement newStatement() {
     BoundStatement bound =
         factory
             .preparedStatement
@@ -210,7 +213,7 @@ final class InsertSpan extends ResultSetFutureCall<Void> {
         bound.setString("annotation_query", input.annotation_query());
       }
     }
-    return factory.session.executeAsync(bound);
+    return bound;
   }
 
   @Override public Void map(ResultSet input) {
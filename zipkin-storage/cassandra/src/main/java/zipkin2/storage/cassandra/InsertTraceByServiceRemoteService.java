@@ -13,6 +13,7 @@
  */
 package zipkin2.storage.cassandra;
 
+import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
@@ -20,7 +21,6 @@ import com.datastax.driver.core.Session;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.google.auto.value.AutoValue;
 import java.util.UUID;
-import zipkin2.Call;
 import zipkin2.storage.cassandra.internal.call.ResultSetFutureCall;
 
 import static zipkin2.storage.cassandra.Schema.TABLE_TRACE_BY_SERVICE_REMOTE_SERVICE;
@@ -65,7 +65,7 @@ final class InsertTraceByServiceRemoteService extends ResultSetFutureCall<Void>
         !strictTraceId && trace_id.length() == 32 ? trace_id.substring(16) : trace_id);
     }
 
-    Call<Void> create(Input input) {
+    InsertTraceByServiceRemoteService create(Input input) {
       return new InsertTraceByServiceRemoteService(this, input);
     }
   }
@@ -79,12 +79,16 @@ final class InsertTraceByServiceRemoteService extends ResultSetFutureCall<Void>
   }
 
   @Override protected ResultSetFuture newFuture() {
-    return factory.session.executeAsync(factory.preparedStatement.bind()
+    return factory.session.executeAsync(newStatement());
+  }
+
+  BoundStatement newStatement() {
+    return factory.preparedStatement.bind()
       .setString("service", input.service())
       .setString("remote_service", input.remote_service())
       .setInt("bucket", input.bucket())
       .setUUID("ts", input.ts())
-      .setString("trace_id", input.trace_id()));
+      .setString("trace_id", input.trace_id());
   }
 
   @Override public Void map(ResultSet input) {
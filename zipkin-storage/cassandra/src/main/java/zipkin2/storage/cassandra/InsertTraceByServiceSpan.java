@@ -21,7 +21,6 @@ import com.datastax.driver.core.Session;
 import com.datastax.driver.core.querybuilder.QueryBuilder;
 import com.google.auto.value.AutoValue;
 import java.util.UUID;
-import zipkin2.Call;
 import zipkin2.storage.cassandra.internal.call.ResultSetFutureCall;
 
 import static zipkin2.storage.cassandra.Schema.TABLE_TRACE_BY_SERVICE_SPAN;
@@ -77,7 +76,7 @@ final class InsertTraceByServiceSpan extends ResultSetFutureCall<Void> {
           durationMillis);
     }
 
-    Call<Void> create(Input input) {
+    InsertTraceByServiceSpan create(Input input) {
       return new InsertTraceByServiceSpan(this, input);
     }
   }
@@ -92,6 +91,10 @@ final class InsertTraceByServiceSpan extends ResultSetFutureCall<Void> {
 
   @Override
   protected ResultSetFuture newFuture() {
+    return factory.session.executeAsync(newStatement());
+  }
+
+  BoundStatement newStatement() {
     BoundStatement bound =
         factory
             .preparedStatement
@@ -105,7 +108,7 @@ final class InsertTraceByServiceSpan extends ResultSetFutureCall<Void> {
     if (0L != input.duration()) {
       bound.setLong("duration", input.duration());
     }
-    return factory.session.executeAsync(bound);
+    return bound;
   }
 
   @Override public Void map(ResultSet input) {
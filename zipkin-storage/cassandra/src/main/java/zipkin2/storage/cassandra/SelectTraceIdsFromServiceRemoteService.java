@@ -101,8 +101,12 @@ final class SelectTraceIdsFromServiceRemoteService extends ResultSetFutureCall<R
     }
 
     Call<Map<String, Long>> newCall(Input input) {
-      return new SelectTraceIdsFromServiceRemoteService(this, preparedStatement, input)
-        .flatMap(new AccumulateTraceIdTsUuid());
+      return newPageCall(input, input.limit_()).flatMap(new AccumulateTraceIdTsUuid());
+    }
+
+    /** Returns the first page of rows, up to {@link Input#limit_()} if paged to the end. */
+    Call<ResultSet> newPageCall(Input input, int fetchSize) {
+      return new SelectTraceIdsFromServiceRemoteService(this, preparedStatement, input, fetchSize);
     }
 
     /** Applies all deferred service names to all input templates */
@@ -146,12 +150,14 @@ final class SelectTraceIdsFromServiceRemoteService extends ResultSetFutureCall<R
   final Factory factory;
   final PreparedStatement preparedStatement;
   final Input input;
+  final int fetchSize;
 
   SelectTraceIdsFromServiceRemoteService(Factory factory, PreparedStatement preparedStatement,
-    Input input) {
+    Input input, int fetchSize) {
     this.factory = factory;
     this.preparedStatement = preparedStatement;
     this.input = input;
+    this.fetchSize = fetchSize;
   }
 
   @Override protected ResultSetFuture newFuture() {
@@ -162,7 +168,7 @@ final class SelectTraceIdsFromServiceRemoteService extends ResultSetFutureCall<R
       .setUUID("start_ts", input.start_ts())
       .setUUID("end_ts", input.end_ts())
       .setInt("limit_", input.limit_())
-      .setFetchSize(input.limit_());
+      .setFetchSize(fetchSize);
     return factory.session.executeAsync(bound);
   }
 
@@ -175,6 +181,7 @@ final class SelectTraceIdsFromServiceRemoteService extends ResultSetFutureCall<R
   }
 
   @Override public SelectTraceIdsFromServiceRemoteService clone() {
-    return new SelectTraceIdsFromServiceRemoteService(factory, preparedStatement, input);
+    return new SelectTraceIdsFromServiceRemoteService(factory, preparedStatement, input,
+      fetchSize);
   }
 }
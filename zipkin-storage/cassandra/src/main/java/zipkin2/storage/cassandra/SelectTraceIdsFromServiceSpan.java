@@ -137,13 +137,18 @@ final class SelectTraceIdsFromServiceSpan extends ResultSetFutureCall<ResultSet>
     }
 
     Call<Map<String, Long>> newCall(Input input) {
+      return newPageCall(input, input.limit_()).flatMap(new AccumulateTraceIdTsUuid());
+    }
+
+    /** Returns the first page of rows, up to {@link Input#limit_()} if paged to the end. */
+    Call<ResultSet> newPageCall(Input input, int fetchSize) {
       return new SelectTraceIdsFromServiceSpan(
-              this,
-              input.start_duration() != null
-                  ? selectTraceIdsByServiceSpanNameAndDuration
-                  : selectTraceIdsByServiceSpanName,
-              input)
-          .flatMap(new AccumulateTraceIdTsUuid());
+          this,
+          input.start_duration() != null
+              ? selectTraceIdsByServiceSpanNameAndDuration
+              : selectTraceIdsByServiceSpanName,
+          input,
+          fetchSize);
     }
 
     /** Applies all deferred service names to all input templates */
@@ -187,11 +192,14 @@ final class SelectTraceIdsFromServiceSpan extends ResultSetFutureCall<ResultSet>
   final Factory factory;
   final PreparedStatement preparedStatement;
   final Input input;
+  final int fetchSize;
 
-  SelectTraceIdsFromServiceSpan(Factory factory, PreparedStatement preparedStatement, Input input) {
+  SelectTraceIdsFromServiceSpan(Factory factory, PreparedStatement preparedStatement, Input input,
+    int fetchSize) {
     this.factory = factory;
     this.preparedStatement = preparedStatement;
     this.input = input;
+    this.fetchSize = fetchSize;
   }
 
   @Override
@@ -208,7 +216,7 @@ final class SelectTraceIdsFromServiceSpan extends ResultSetFutureCall<ResultSet>
         .setUUID("start_ts", input.start_ts())
         .setUUID("end_ts", input.end_ts())
         .setInt("limit_", input.limit_())
-        .setFetchSize(input.limit_());
+        .setFetchSize(fetchSize);
     return factory.session.executeAsync(bound);
   }
 
@@ -223,6 +231,6 @@ final class SelectTraceIdsFromServiceSpan extends ResultSetFutureCall<ResultSet>
 
   @Override
   public SelectTraceIdsFromServiceSpan clone() {
-    return new SelectTraceIdsFromServiceSpan(factory, preparedStatement, input);
+    return new SelectTraceIdsFromServiceSpan(factory, preparedStatement, input, fetchSize);
   }
 }
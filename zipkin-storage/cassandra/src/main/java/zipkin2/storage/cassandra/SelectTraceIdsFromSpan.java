@@ -100,6 +100,17 @@ final class SelectTraceIdsFromSpan extends ResultSetFutureCall<ResultSet> {
         String annotationKey,
         TimestampRange timestampRange,
         int limit) {
+      return newPageCall(serviceName, annotationKey, timestampRange, limit, limit)
+          .flatMap(new AccumulateTraceIdTsLong());
+    }
+
+    /** Returns the first page of rows, up to {@code limit} if paged to the end. */
+    Call<ResultSet> newPageCall(
+        @Nullable String serviceName,
+        String annotationKey,
+        TimestampRange timestampRange,
+        int limit,
+        int fetchSize) {
       Input input =
           new AutoValue_SelectTraceIdsFromSpan_Input(
               serviceName,
@@ -108,21 +119,24 @@ final class SelectTraceIdsFromSpan extends ResultSetFutureCall<ResultSet> {
               timestampRange.endUUID,
               limit);
       return new SelectTraceIdsFromSpan(
-              this,
-              serviceName != null ? withServiceAndAnnotationQuery : withAnnotationQuery,
-              input)
-          .flatMap(new AccumulateTraceIdTsLong());
+          this,
+          serviceName != null ? withServiceAndAnnotationQuery : withAnnotationQuery,
+          input,
+          fetchSize);
     }
   }
 
   final Factory factory;
   final PreparedStatement preparedStatement;
   final Input input;
+  final int fetchSize;
 
-  SelectTraceIdsFromSpan(Factory factory, PreparedStatement preparedStatement, Input input) {
+  SelectTraceIdsFromSpan(Factory factory, PreparedStatement preparedStatement, Input input,
+      int fetchSize) {
     this.factory = factory;
     this.preparedStatement = preparedStatement;
     this.input = input;
+    this.fetchSize = fetchSize;
   }
 
   @Override
@@ -136,7 +150,7 @@ final class SelectTraceIdsFromSpan extends ResultSetFutureCall<ResultSet> {
         .setUUID("start_ts", input.start_ts())
         .setUUID("end_ts", input.end_ts())
         .setInt("limit_", input.limit_())
-        .setFetchSize(input.limit_());
+        .setFetchSize(fetchSize);
     return factory.session.executeAsync(bound);
   }
 
@@ -146,7 +160,7 @@ final class SelectTraceIdsFromSpan extends ResultSetFutureCall<ResultSet> {
 
   @Override
   public SelectTraceIdsFromSpan clone() {
-    return new SelectTraceIdsFromSpan(factory, preparedStatement, input);
+    return new SelectTraceIdsFromSpan(factory, preparedStatement, input, fetchSize);
   }
 
   @Override
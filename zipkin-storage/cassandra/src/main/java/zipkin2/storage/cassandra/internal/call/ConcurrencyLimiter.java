@@ -0,0 +1,332 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+/**
+ * Limits how many calls are in flight, adjusting the limit to observed latency. Calls over the
+ * limit wait in a bounded queue. When the queue is full, calls fail fast with a {@link
+ * RejectedExecutionException}, as opposed to piling up until the driver raises a {@code
+ * BusyPoolException}.
+ *
+ * <p>The limit follows TCP Vegas: the lowest latency seen is taken as the latency without
+ * queuing, so {@code limit * (1 - minLatency / latency)} estimates how many calls are queued in
+ * the server. The limit shrinks by one when that is high, and grows by one when it is low. Like
+ * AIMD, a failure cuts the limit by a fixed ratio.
+ */
+// this is a dependency-free variant of concurrency-limits, in the spirit of DelayLimiter
+public final class ConcurrencyLimiter {
+  /** Don't grow the limit when the estimated count of queued calls is at least this. */
+  static final int ALPHA = 3;
+  /** Shrink the limit when the estimated count of queued calls is more than this. */
+  static final int BETA = 6;
+  /** Ratio applied to the limit on failure. */
+  static final double BACKOFF_RATIO = 0.9;
+  /** Forget the lowest latency after this count of samples, in case the baseline changed. */
+  static final int PROBE_INTERVAL = 1000;
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    Ticker ticker = new Ticker();
+    int initialLimit = 20, maxLimit = 200, maxQueueSize = 10000;
+
+    /** The limit before any latency is observed. Defaults to 20. */
+    public Builder initialLimit(int initialLimit) {
+      if (initialLimit <= 0) throw new IllegalArgumentException("initialLimit <= 0");
+      this.initialLimit = initialLimit;
+      return this;
+    }
+
+    /** The limit will not grow over this count of calls in flight. Defaults to 200. */
+    public Builder maxLimit(int maxLimit) {
+      if (maxLimit <= 0) throw new IllegalArgumentException("maxLimit <= 0");
+      this.maxLimit = maxLimit;
+      return this;
+    }
+
+    /** How many calls over the limit can wait before new ones are rejected. Defaults to 10000. */
+    public Builder maxQueueSize(int maxQueueSize) {
+      if (maxQueueSize < 0) throw new IllegalArgumentException("maxQueueSize < 0");
+      this.maxQueueSize = maxQueueSize;
+      return this;
+    }
+
+    Builder ticker(Ticker ticker) { // do not expose public: only for tests
+      this.ticker = ticker;
+      return this;
+    }
+
+    public ConcurrencyLimiter build() {
+      return new ConcurrencyLimiter(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  static class Ticker { // not final for tests
+    long read() {
+      return System.nanoTime();
+    }
+  }
+
+  final Ticker ticker;
+  final int maxLimit, maxQueueSize;
+  final ArrayDeque<Runnable> queue = new ArrayDeque<>(); // guarded by this
+  final LongAdder rejected = new LongAdder();
+  /** Counts requests to drain, so that only one thread starts tasks and none are missed. */
+  final AtomicInteger drainRequests = new AtomicInteger();
+  double limit; // guarded by this
+  int inFlight; // guarded by this
+  long minLatency = Long.MAX_VALUE; // guarded by this
+  int samples; // guarded by this
+
+  ConcurrencyLimiter(Builder builder) {
+    ticker = builder.ticker;
+    maxLimit = builder.maxLimit;
+    maxQueueSize = builder.maxQueueSize;
+    limit = Math.min(builder.initialLimit, maxLimit);
+  }
+
+  /**
+   * Returns a call which waits for the limiter before invoking the input. When rejected, the input
+   * is canceled, so that it can undo any side effects.
+   */
+  public <V> Call<V> limit(Call<V> call) {
+    return new LimitedCall<>(this, call);
+  }
+
+  /** The current count of calls allowed in flight. */
+  public synchronized int limit() {
+    return (int) limit;
+  }
+
+  /** The count of calls in flight. */
+  public synchronized int inFlight() {
+    return inFlight;
+  }
+
+  /** The count of calls waiting for a call in flight to complete. */
+  public synchronized int queued() {
+    return queue.size();
+  }
+
+  /** The count of calls rejected as the queue was full. */
+  public long rejectedCount() {
+    return rejected.sum();
+  }
+
+  /**
+   * Runs the task when under the limit, or queues it until a call in flight is released. Returns
+   * false if the queue is full.
+   */
+  boolean submit(Runnable task) {
+    synchronized (this) {
+      if (inFlight >= (int) limit && queue.size() >= maxQueueSize) {
+        rejected.increment();
+        return false;
+      }
+      queue.add(task);
+    }
+    drain();
+    return true;
+  }
+
+  /** Returns true if the task was still queued. Otherwise, the caller must {@link #release}. */
+  synchronized boolean remove(Runnable task) {
+    return queue.remove(task);
+  }
+
+  /**
+   * Call once per task started, when it completes. This samples the latency, then passes the
+   * permit to the next task in queue.
+   *
+   * @param startNanos when the call started, per {@link Ticker#read()}
+   * @param failed true if the call failed
+   */
+  void release(long startNanos, boolean failed) {
+    long latency = ticker.read() - startNanos;
+    synchronized (this) {
+      updateLimit(latency, failed);
+    }
+    release();
+  }
+
+  /** Like {@link #release(long, boolean)}, but without a latency sample. */
+  void release() {
+    synchronized (this) {
+      inFlight--;
+    }
+    drain();
+  }
+
+  /**
+   * Starts queued tasks while under the limit, which can be more than one when the limit grew. A
+   * call that fails immediately releases before its task returns. The counter turns that re-entry
+   * into another loop iteration instead of recursion, which could otherwise nest once per queued
+   * task.
+   */
+  void drain() {
+    if (drainRequests.getAndIncrement() != 0) return;
+    int missed = 1;
+    do {
+      for (Runnable next; (next = pollUnderLimit()) != null; ) next.run();
+      missed = drainRequests.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  synchronized Runnable pollUnderLimit() {
+    if (inFlight >= (int) limit) return null;
+    Runnable result = queue.poll();
+    if (result != null) inFlight++;
+    return result;
+  }
+
+  // guarded by this
+  void updateLimit(long latency, boolean failed) {
+    if (failed) {
+      limit = Math.max(1, limit * BACKOFF_RATIO);
+      return;
+    }
+    if (++samples >= PROBE_INTERVAL) {
+      samples = 0;
+      minLatency = latency;
+    } else if (latency < minLatency) {
+      minLatency = latency;
+    }
+    if (latency <= 0) return;
+
+    double queueSize = limit * (1.0 - (double) minLatency / latency);
+    if (queueSize > BETA) {
+      limit = Math.max(1, limit - 1);
+    } else if (queueSize < ALPHA && inFlight * 2 >= limit) { // only grow when the limit is in use
+      limit = Math.min(maxLimit, limit + 1);
+    }
+  }
+
+  @Override public String toString() {
+    return "ConcurrencyLimiter{limit=" + limit() + ", inFlight=" + inFlight() + ", queued="
+      + queued() + ", rejected=" + rejectedCount() + "}";
+  }
+
+  static final class LimitedCall<V> extends Call.Base<V> {
+    final ConcurrencyLimiter limiter;
+    final Call<V> delegate;
+
+    LimitedCall(ConcurrencyLimiter limiter, Call<V> delegate) {
+      this.limiter = limiter;
+      this.delegate = delegate;
+    }
+
+    @Override protected V doExecute() throws IOException {
+      CountDownLatch permit = new CountDownLatch(1);
+      Runnable task = permit::countDown;
+      if (!limiter.submit(task)) throw reject();
+      try {
+        permit.await();
+      } catch (InterruptedException e) {
+        if (!limiter.remove(task)) limiter.release();
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted waiting for a call in flight", e);
+      }
+      long start = limiter.ticker.read();
+      boolean failed = true;
+      try {
+        V result = delegate.execute();
+        failed = false;
+        return result;
+      } finally {
+        limiter.release(start, failed);
+      }
+    }
+
+    @Override protected void doEnqueue(Callback<V> callback) {
+      if (!limiter.submit(() -> start(callback))) callback.onError(reject());
+    }
+
+    void start(Callback<V> callback) {
+      if (isCanceled()) {
+        limiter.release();
+        delegate.cancel();
+        callback.onError(new IOException("Canceled"));
+        return;
+      }
+      ReleasingCallback<V> releasing = new ReleasingCallback<>(limiter, callback);
+      try {
+        delegate.enqueue(releasing);
+      } catch (RuntimeException | Error e) {
+        Call.propagateIfFatal(e);
+        releasing.onError(e); // no-op if the delegate already notified the callback
+      }
+    }
+
+    RejectedExecutionException reject() {
+      delegate.cancel();
+      return new RejectedExecutionException("Rejected as " + limiter);
+    }
+
+    @Override protected void doCancel() {
+      delegate.cancel();
+    }
+
+    @Override protected boolean doIsCanceled() {
+      return delegate.isCanceled();
+    }
+
+    @Override public Call<V> clone() {
+      return new LimitedCall<>(limiter, delegate.clone());
+    }
+
+    @Override public String toString() {
+      return "LimitedCall{" + delegate + "}";
+    }
+  }
+
+  /** Releases the permit of a call once, when it completes. */
+  static final class ReleasingCallback<V> extends AtomicBoolean implements Callback<V> {
+    final ConcurrencyLimiter limiter;
+    final Callback<V> delegate;
+    final long startNanos;
+
+    ReleasingCallback(ConcurrencyLimiter limiter, Callback<V> delegate) {
+      this.limiter = limiter;
+      this.delegate = delegate;
+      this.startNanos = limiter.ticker.read();
+    }
+
+    @Override public void onSuccess(V value) {
+      if (!compareAndSet(false, true)) return;
+      limiter.release(startNanos, false);
+      delegate.onSuccess(value);
+    }
+
+    @Override public void onError(Throwable t) {
+      if (!compareAndSet(false, true)) return;
+      limiter.release(startNanos, true);
+      delegate.onError(t);
+    }
+  }
+}
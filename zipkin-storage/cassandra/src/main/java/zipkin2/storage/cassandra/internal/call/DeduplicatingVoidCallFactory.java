@@ -17,13 +17,28 @@ import java.io.IOException;
 import java.util.List;
 import zipkin2.Call;
 import zipkin2.Callback;
+import zipkin2.internal.BloomDelayLimiter;
 import zipkin2.internal.DelayLimiter;
+import zipkin2.internal.InvocationLimiter;
+import zipkin2.internal.Nullable;
 
 public abstract class DeduplicatingVoidCallFactory<I> {
-  final DelayLimiter<I> delayLimiter;
+  final InvocationLimiter<I> delayLimiter;
 
   protected DeduplicatingVoidCallFactory(int ttl, int cardinality) {
-    delayLimiter = DelayLimiter.newBuilder().ttl(ttl).cardinality(cardinality).build();
+    this(ttl, cardinality, null);
+  }
+
+  /**
+   * @param bloomFilterHasher when not null, inputs are remembered in a fixed size bloom filter,
+   * hashed on their content by this. That doesn't bound cardinality, but occasionally skips a call
+   * not made before.
+   */
+  protected DeduplicatingVoidCallFactory(int ttl, int cardinality,
+    @Nullable BloomDelayLimiter.Hasher<? super I> bloomFilterHasher) {
+    delayLimiter = bloomFilterHasher != null
+      ? BloomDelayLimiter.newBuilder().ttl(ttl).cardinality(cardinality).<I>build(bloomFilterHasher)
+      : DelayLimiter.newBuilder().ttl(ttl).cardinality(cardinality).<I>build();
   }
 
   protected abstract Call<Void> newCall(I input);
@@ -40,10 +55,10 @@ public abstract class DeduplicatingVoidCallFactory<I> {
 
   public static final class InvalidatingVoidCall<I> extends Call.Base<Void> {
     final Call<Void> delegate;
-    final DelayLimiter<I> delayLimiter;
+    final InvocationLimiter<I> delayLimiter;
     final I input;
 
-    InvalidatingVoidCall(Call<Void> delegate, DelayLimiter<I> delayLimiter, I input) {
+    InvalidatingVoidCall(Call<Void> delegate, InvocationLimiter<I> delayLimiter, I input) {
       this.delegate = delegate;
       this.delayLimiter = delayLimiter;
       this.input = input;
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.ToLongFunction;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+/**
+ * Intersects trace IDs from several index queries, reading a page of each in parallel until
+ * {@code limit} trace IDs are in all of them.
+ *
+ * <p>{@link IntersectKeySets} needs each index to return all candidates in one request. A fixed
+ * over-fetch either misses traces matching all criteria, or reads far more rows than needed. Here,
+ * the count of rows read tracks the count of results instead of the lookback.
+ *
+ * <p>A source is a list of queries read in order, for example one per duration bucket, newest
+ * first. When a source is exhausted, only its trace IDs can match. If the other sources are in
+ * descending timestamp order and have read past the oldest of those, reading stops early.
+ */
+public final class IntersectTraceIdPages extends Call.Base<Set<String>> {
+
+  /**
+   * @param queries read in order until exhausted. Their rows include "trace_id" and "ts" columns.
+   * @param descending true if rows of all queries, in order, are in descending timestamp order
+   * @param timestamp parses the "ts" column of a row into epoch milliseconds
+   */
+  public static Source newSource(List<Call<ResultSet>> queries, boolean descending,
+    ToLongFunction<Row> timestamp) {
+    if (queries.isEmpty()) throw new IllegalArgumentException("queries were empty");
+    return new Source(queries, descending, timestamp);
+  }
+
+  public static final class Source {
+    final List<Call<ResultSet>> queries;
+    final boolean descending;
+    final ToLongFunction<Row> timestamp;
+
+    Source(List<Call<ResultSet>> queries, boolean descending, ToLongFunction<Row> timestamp) {
+      this.queries = queries;
+      this.descending = descending;
+      this.timestamp = timestamp;
+    }
+
+    @Override public String toString() {
+      return queries.toString();
+    }
+  }
+
+  final List<Source> sources;
+  final int limit;
+  final List<Call<ResultSet>> inFlight = new ArrayList<>(); // guarded by this
+
+  public IntersectTraceIdPages(List<Source> sources, int limit) {
+    if (sources.size() < 2) throw new IllegalArgumentException("less than two sources");
+    if (limit <= 0) throw new IllegalArgumentException("limit <= 0");
+    this.sources = sources;
+    this.limit = limit;
+  }
+
+  @Override protected Set<String> doExecute() throws IOException {
+    CountDownLatch latch = new CountDownLatch(1);
+    Object[] result = new Object[1]; // either the trace IDs or an error
+    doEnqueue(new Callback<Set<String>>() {
+      @Override public void onSuccess(Set<String> value) {
+        result[0] = value;
+        latch.countDown();
+      }
+
+      @Override public void onError(Throwable t) {
+        result[0] = t;
+        latch.countDown();
+      }
+    });
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      cancel();
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted intersecting trace IDs", e);
+    }
+    if (result[0] instanceof IOException) throw (IOException) result[0];
+    if (result[0] instanceof RuntimeException) throw (RuntimeException) result[0];
+    if (result[0] instanceof Error) throw (Error) result[0];
+    @SuppressWarnings("unchecked") Set<String> traceIds = (Set<String>) result[0];
+    return traceIds;
+  }
+
+  @Override protected void doEnqueue(Callback<Set<String>> callback) {
+    List<Cursor> cursors = new ArrayList<>();
+    for (Source source : sources) cursors.add(new Cursor(source));
+    new Round(cursors, callback).start();
+  }
+
+  @Override protected synchronized void doCancel() {
+    for (Call<ResultSet> call : inFlight) call.cancel();
+  }
+
+  @Override public IntersectTraceIdPages clone() {
+    return new IntersectTraceIdPages(sources, limit);
+  }
+
+  @Override public String toString() {
+    return "IntersectTraceIdPages{sources=" + sources + ", limit=" + limit + "}";
+  }
+
+  /** Returns the trace IDs to return, or null if more pages should be read. */
+  Set<String> maybeComplete(List<Cursor> cursors) {
+    Map<String, Long> confirmed = intersect(cursors);
+    if (confirmed.size() >= limit) return newestFirst(confirmed);
+
+    boolean hasMore = false;
+    for (Cursor cursor : cursors) hasMore |= cursor.hasMore();
+    if (!hasMore) return newestFirst(confirmed);
+
+    for (Cursor exhausted : cursors) {
+      if (exhausted.hasMore()) continue;
+      long oldestCandidate = Long.MAX_VALUE;
+      for (Map.Entry<String, Long> entry : exhausted.traceIds.entrySet()) {
+        if (confirmed.containsKey(entry.getKey())) continue;
+        oldestCandidate = Math.min(oldestCandidate, entry.getValue());
+      }
+      if (oldestCandidate == Long.MAX_VALUE) return newestFirst(confirmed); // nothing left to match
+
+      boolean canMatch = false;
+      for (Cursor cursor : cursors) {
+        if (!cursor.hasMore()) continue;
+        canMatch |= !cursor.source.descending || cursor.oldest >= oldestCandidate;
+      }
+      if (!canMatch) return newestFirst(confirmed);
+    }
+    return null;
+  }
+
+  /** Returns trace IDs read from all cursors, mapped to their newest timestamp. */
+  static Map<String, Long> intersect(List<Cursor> cursors) {
+    Cursor smallest = cursors.get(0);
+    for (Cursor cursor : cursors) {
+      if (cursor.traceIds.size() < smallest.traceIds.size()) smallest = cursor;
+    }
+    Map<String, Long> result = new LinkedHashMap<>();
+    for (Map.Entry<String, Long> entry : smallest.traceIds.entrySet()) {
+      long timestamp = entry.getValue();
+      boolean inAll = true;
+      for (Cursor cursor : cursors) {
+        Long other = cursor.traceIds.get(entry.getKey());
+        if (other == null) {
+          inAll = false;
+          break;
+        }
+        timestamp = Math.max(timestamp, other);
+      }
+      if (inAll) result.put(entry.getKey(), timestamp);
+    }
+    return result;
+  }
+
+  Set<String> newestFirst(Map<String, Long> traceIds) {
+    List<Map.Entry<String, Long>> entries = new ArrayList<>(traceIds.entrySet());
+    entries.sort((left, right) -> Long.compare(right.getValue(), left.getValue()));
+    Set<String> result = new LinkedHashSet<>();
+    for (int i = 0, length = Math.min(limit, entries.size()); i < length; i++) {
+      result.add(entries.get(i).getKey());
+    }
+    return result;
+  }
+
+  /** Reads pages of a source in order, accumulating trace IDs and their newest timestamp. */
+  static final class Cursor {
+    final Source source;
+    final Map<String, Long> traceIds = new LinkedHashMap<>();
+    int nextQuery;
+    ResultSet current;
+    long oldest = Long.MAX_VALUE; // timestamp of the oldest row read
+
+    Cursor(Source source) {
+      this.source = source;
+    }
+
+    boolean hasMore() {
+      return (current != null && !current.isFullyFetched()) || nextQuery < source.queries.size();
+    }
+
+    Call<ResultSet> nextPage() {
+      if (current != null && !current.isFullyFetched()) {
+        return AccumulateAllResults.FetchMoreResults.create(current);
+      }
+      current = null;
+      return source.queries.get(nextQuery++).clone();
+    }
+
+    void accept(ResultSet page) {
+      current = page;
+      while (page.getAvailableWithoutFetching() > 0) {
+        Row row = page.one();
+        if (row.isNull("ts")) continue;
+        long timestamp = source.timestamp.applyAsLong(row);
+        traceIds.merge(row.getString("trace_id"), timestamp, Math::max);
+        oldest = Math.min(oldest, timestamp);
+      }
+    }
+  }
+
+  /** Reads the next page of each cursor with more rows, then decides whether to read more. */
+  final class Round {
+    final List<Cursor> cursors;
+    final Callback<Set<String>> callback;
+    int remaining; // guarded by this
+    Throwable error; // guarded by this
+
+    Round(List<Cursor> cursors, Callback<Set<String>> callback) {
+      this.cursors = cursors;
+      this.callback = callback;
+    }
+
+    void start() {
+      List<Cursor> toRead = new ArrayList<>();
+      for (Cursor cursor : cursors) {
+        if (cursor.hasMore()) toRead.add(cursor);
+      }
+      synchronized (this) {
+        remaining = toRead.size();
+      }
+      for (Cursor cursor : toRead) read(cursor);
+    }
+
+    void read(Cursor cursor) {
+      Call<ResultSet> page = cursor.nextPage();
+      synchronized (IntersectTraceIdPages.this) {
+        inFlight.add(page);
+      }
+      page.enqueue(new Callback<ResultSet>() {
+        @Override public void onSuccess(ResultSet value) {
+          synchronized (Round.this) {
+            cursor.accept(value);
+          }
+          onPage(page, null);
+        }
+
+        @Override public void onError(Throwable t) {
+          onPage(page, t);
+        }
+      });
+    }
+
+    void onPage(Call<ResultSet> page, Throwable t) {
+      synchronized (IntersectTraceIdPages.this) {
+        inFlight.remove(page);
+      }
+      Throwable error;
+      synchronized (this) {
+        if (t != null && this.error == null) this.error = t;
+        if (--remaining > 0) return;
+        error = this.error;
+      }
+      if (error == null && isCanceled()) error = new IOException("Canceled");
+      if (error != null) {
+        callback.onError(error);
+        return;
+      }
+      Set<String> result;
+      try {
+        result = maybeComplete(cursors);
+      } catch (RuntimeException | Error e) {
+        Call.propagateIfFatal(e);
+        callback.onError(e);
+        return;
+      }
+      if (result != null) {
+        callback.onSuccess(result);
+      } else {
+        new Round(cursors, callback).start();
+      }
+    }
+  }
+}
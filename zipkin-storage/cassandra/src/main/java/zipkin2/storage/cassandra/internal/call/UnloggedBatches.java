@@ -0,0 +1,359 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.internal.Nullable;
+
+/**
+ * Groups write statements that share a partition key into UNLOGGED batches, and limits how many
+ * batches are in flight to the replica that owns each partition.
+ *
+ * <p>An unlogged batch for a single partition is applied as one mutation by the coordinator. As
+ * the {@link com.datastax.driver.core.policies.TokenAwarePolicy} sends the batch to a replica of
+ * its routing key, this saves both round trips and coordinator work. A partition is identified by
+ * keyspace, table and routing key, as tables with different key types can encode the same bytes.
+ * Statements without a routing key, or whose table isn't known, are sent alone.
+ *
+ * <p>Batches are not grouped across partitions, as that moves work to the coordinator instead of
+ * saving it.
+ *
+ * <p>Requests are queued by the first replica returned for their partition, which is the one the
+ * token aware policy tries first unless it shuffles replicas. The limit is per owning replica, not
+ * per connection used, so a request can be counted against a replica that isn't sent it. Each
+ * queue is bounded, so when a replica slows down, further requests to it fail fast with a {@link
+ * RejectedExecutionException} instead of queuing without limit.
+ *
+ * <p>When a {@link ConcurrencyLimiter} is supplied, each request sent is limited on its own, after
+ * it leaves its host queue. Limiting the whole call instead would count many requests as one
+ * sample of latency.
+ */
+public final class UnloggedBatches {
+  static final Logger LOG = Logger.getLogger(UnloggedBatches.class.getName());
+
+  final Session session;
+  final int maxStatementsPerBatch, maxInFlightPerHost, maxQueuedPerHost;
+  @Nullable final ConcurrencyLimiter limiter; // null unless writes are limited
+  final ConcurrentMap<Host, HostQueue> hostQueues = new ConcurrentHashMap<>();
+  final HostQueue unknownHost; // used when replicas of a partition aren't known
+
+  public UnloggedBatches(Session session, int maxStatementsPerBatch, int maxInFlightPerHost,
+    int maxQueuedPerHost, @Nullable ConcurrencyLimiter limiter) {
+    if (maxStatementsPerBatch <= 0) {
+      throw new IllegalArgumentException("maxStatementsPerBatch <= 0");
+    }
+    if (maxInFlightPerHost <= 0) throw new IllegalArgumentException("maxInFlightPerHost <= 0");
+    if (maxQueuedPerHost < 0) throw new IllegalArgumentException("maxQueuedPerHost < 0");
+    this.session = session;
+    this.maxStatementsPerBatch = maxStatementsPerBatch;
+    this.maxInFlightPerHost = maxInFlightPerHost;
+    this.maxQueuedPerHost = maxQueuedPerHost;
+    this.limiter = limiter;
+    this.unknownHost = new HostQueue(maxInFlightPerHost, maxQueuedPerHost);
+  }
+
+  /**
+   * Returns a call which writes the statements in batches. Statements are created when the call is
+   * executed or enqueued, not before.
+   */
+  public Call<Void> newCall(List<Supplier<? extends Statement>> statements) {
+    if (statements.isEmpty()) throw new IllegalArgumentException("statements were empty");
+    return new BatchCall(this, statements);
+  }
+
+  /** Groups statements by partition, in order of first appearance. */
+  List<Statement> group(List<Supplier<? extends Statement>> statements) {
+    Configuration configuration = session.getCluster().getConfiguration();
+    ProtocolVersion protocolVersion = configuration.getProtocolOptions().getProtocolVersion();
+    CodecRegistry codecRegistry = configuration.getCodecRegistry();
+
+    List<Statement> result = new ArrayList<>();
+    Map<List<Object>, BatchStatement> open = new LinkedHashMap<>();
+    for (Supplier<? extends Statement> supplier : statements) {
+      Statement statement = supplier.get();
+      ByteBuffer routingKey = statement.getRoutingKey(protocolVersion, codecRegistry);
+      String table = table(statement);
+      if (routingKey == null || table == null) {
+        result.add(statement);
+        continue;
+      }
+      List<Object> partition = Arrays.asList(statement.getKeyspace(), table, routingKey);
+      BatchStatement batch = open.get(partition);
+      if (batch == null) {
+        open.put(partition, batch = new BatchStatement(BatchStatement.Type.UNLOGGED));
+      }
+      batch.add(statement);
+      if (batch.size() == maxStatementsPerBatch) {
+        result.add(unwrapSingle(batch));
+        open.remove(partition);
+      }
+    }
+    for (BatchStatement batch : open.values()) result.add(unwrapSingle(batch));
+    return result;
+  }
+
+  /** Returns the table a bound statement writes to, or null if it isn't known. */
+  static String table(Statement statement) {
+    if (!(statement instanceof BoundStatement)) return null;
+    ColumnDefinitions variables = ((BoundStatement) statement).preparedStatement().getVariables();
+    return variables.size() > 0 ? variables.getTable(0) : null;
+  }
+
+  /** Avoids batch overhead when a partition only has one statement. */
+  static Statement unwrapSingle(BatchStatement batch) {
+    return batch.size() == 1 ? batch.getStatements().iterator().next() : batch;
+  }
+
+  /**
+   * Returns the queue of the first replica of the statement's partition. This doesn't consult the
+   * load balancing policy, so it may not be the host the driver sends the statement to.
+   */
+  HostQueue hostQueue(Statement statement) {
+    Configuration configuration = session.getCluster().getConfiguration();
+    ByteBuffer routingKey = statement.getRoutingKey(
+      configuration.getProtocolOptions().getProtocolVersion(), configuration.getCodecRegistry());
+    String keyspace = statement.getKeyspace();
+    if (routingKey == null || keyspace == null) return unknownHost;
+
+    Metadata metadata = session.getCluster().getMetadata();
+    Set<Host> replicas = metadata.getReplicas(Metadata.quote(keyspace), routingKey);
+    if (replicas.isEmpty()) return unknownHost;
+    return hostQueues.computeIfAbsent(replicas.iterator().next(),
+      host -> new HostQueue(maxInFlightPerHost, maxQueuedPerHost));
+  }
+
+  /**
+   * Runs at most {@code maxInFlight} tasks at the same time, queuing up to {@code maxPending} of the
+   * rest until a task in flight is released.
+   */
+  static final class HostQueue {
+    final int maxInFlight, maxPending;
+    final ArrayDeque<Runnable> pending = new ArrayDeque<>(); // guarded by this
+    int inFlight; // guarded by this
+
+    /** Counts requests to drain, so that only one thread runs tasks and none are missed. */
+    final AtomicInteger drainRequests = new AtomicInteger();
+
+    HostQueue(int maxInFlight, int maxPending) {
+      this.maxInFlight = maxInFlight;
+      this.maxPending = maxPending;
+    }
+
+    /** Returns false, without running the task, if the queue is full. */
+    boolean submit(Runnable task) {
+      synchronized (this) {
+        if (inFlight >= maxInFlight && pending.size() >= maxPending) return false;
+        pending.add(task);
+      }
+      drain();
+      return true;
+    }
+
+    /** Call once per task, when it completes. The next pending task, if any, takes its place. */
+    void release() {
+      synchronized (this) {
+        inFlight--;
+      }
+      drain();
+    }
+
+    /**
+     * Runs pending tasks while under the limit. A future that already failed calls its listener
+     * inline, so a task can release before it returns. The counter turns that re-entry into
+     * another loop iteration instead of recursion, which could otherwise nest once per pending
+     * task.
+     */
+    void drain() {
+      if (drainRequests.getAndIncrement() != 0) return;
+      int missed = 1;
+      do {
+        for (Runnable next; (next = poll()) != null; ) next.run();
+        missed = drainRequests.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    synchronized Runnable poll() {
+      if (inFlight >= maxInFlight) return null;
+      Runnable next = pending.poll();
+      if (next != null) inFlight++;
+      return next;
+    }
+  }
+
+  static final class BatchCall extends Call.Base<Void> {
+    final UnloggedBatches batches;
+    final List<Supplier<? extends Statement>> statements;
+    final List<ResultSetFuture> futures = new ArrayList<>(); // guarded by this
+
+    BatchCall(UnloggedBatches batches, List<Supplier<? extends Statement>> statements) {
+      this.batches = batches;
+      this.statements = statements;
+    }
+
+    @Override protected Void doExecute() throws IOException {
+      AwaitableCallback callback = new AwaitableCallback();
+      doEnqueue(callback);
+      callback.await();
+      return null;
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      List<Statement> grouped = batches.group(statements);
+      AtomicInteger remaining = new AtomicInteger(grouped.size());
+      AtomicReference<Throwable> firstError = new AtomicReference<>();
+      for (Statement statement : grouped) {
+        HostQueue queue = batches.hostQueue(statement);
+        if (!queue.submit(() -> send(statement, queue, remaining, firstError, callback))) {
+          complete(statement, new RejectedExecutionException(
+            "Rejected as " + queue.maxPending + " requests already wait for the same replica"),
+            remaining, firstError, callback);
+        }
+      }
+    }
+
+    void send(Statement statement, HostQueue queue, AtomicInteger remaining,
+      AtomicReference<Throwable> firstError, Callback<Void> callback) {
+      ConcurrencyLimiter limiter = batches.limiter;
+      if (limiter == null) {
+        execute(statement, queue, null, remaining, firstError, callback);
+      } else if (!limiter.submit(
+        () -> execute(statement, queue, limiter, remaining, firstError, callback))) {
+        queue.release();
+        complete(statement, new RejectedExecutionException("Rejected as " + limiter), remaining,
+          firstError, callback);
+      }
+    }
+
+    /** Holds a permit from the host queue and from the limiter, if present, until complete. */
+    void execute(Statement statement, HostQueue queue, @Nullable ConcurrencyLimiter limiter,
+      AtomicInteger remaining, AtomicReference<Throwable> firstError, Callback<Void> callback) {
+      if (isCanceled()) {
+        if (limiter != null) limiter.release();
+        queue.release();
+        complete(statement, new IllegalStateException("canceled"), remaining, firstError, callback);
+        return;
+      }
+      long startNanos = limiter != null ? limiter.ticker.read() : 0L;
+      ResultSetFuture future;
+      try {
+        future = batches.session.executeAsync(statement);
+      } catch (RuntimeException | Error e) {
+        Call.propagateIfFatal(e);
+        if (limiter != null) limiter.release(startNanos, true);
+        queue.release();
+        complete(statement, e, remaining, firstError, callback);
+        return;
+      }
+      synchronized (this) {
+        futures.add(future);
+      }
+      future.addListener(() -> {
+        Throwable error = null;
+        try {
+          future.getUninterruptibly();
+        } catch (RuntimeException | Error e) {
+          Call.propagateIfFatal(e);
+          error = e;
+        }
+        if (limiter != null) limiter.release(startNanos, error != null);
+        queue.release();
+        complete(statement, error, remaining, firstError, callback);
+      }, DirectExecutor.INSTANCE);
+    }
+
+    /** Like {@code AggregateCall}, the first error is returned after all statements complete. */
+    static void complete(Statement statement, Throwable error, AtomicInteger remaining,
+      AtomicReference<Throwable> firstError, Callback<Void> callback) {
+      if (error != null && !firstError.compareAndSet(null, error) && LOG.isLoggable(Level.INFO)) {
+        LOG.log(Level.INFO, "error from " + statement, error);
+      }
+      if (remaining.decrementAndGet() > 0) return;
+      Throwable result = firstError.get();
+      if (result != null) {
+        callback.onError(result);
+      } else {
+        callback.onSuccess(null);
+      }
+    }
+
+    @Override protected synchronized void doCancel() {
+      for (ResultSetFuture future : futures) future.cancel(true);
+    }
+
+    @Override public BatchCall clone() {
+      return new BatchCall(batches, statements);
+    }
+
+    @Override public String toString() {
+      return "UnloggedBatchCall{statements=" + statements.size() + "}";
+    }
+  }
+
+  static final class AwaitableCallback implements Callback<Void> {
+    final CountDownLatch latch = new CountDownLatch(1);
+    volatile Throwable error;
+
+    @Override public void onSuccess(Void value) {
+      latch.countDown();
+    }
+
+    @Override public void onError(Throwable t) {
+      error = t;
+      latch.countDown();
+    }
+
+    void await() throws IOException {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted waiting for batches", e);
+      }
+      Throwable error = this.error;
+      if (error instanceof RuntimeException) throw (RuntimeException) error;
+      if (error instanceof Error) throw (Error) error;
+      if (error != null) throw new IllegalStateException(error);
+    }
+  }
+}
@@ -251,6 +251,38 @@ public class CassandraSpanConsumerTest {
       .isInstanceOf(ResultSetFutureCall.class);
   }
 
+  @Test public void unloggedBatchSize_groupsSpanAndTraceIndexRows() {
+    consumer = spanConsumer(CassandraStorage.newBuilder().unloggedBatchSize(10));
+
+    Span span = spanWithoutAnnotationsOrTags.toBuilder().remoteEndpoint(BACKEND).build();
+    Call<Void> call = consumer.accept(singletonList(span));
+
+    // the span, two trace_by_service_span and one trace_by_service_remote_service rows
+    assertEnclosedCalls(call)
+      .filteredOn(c -> c.toString().startsWith("UnloggedBatchCall"))
+      .extracting("statements")
+      .hasSize(1)
+      .first()
+      .asList()
+      .hasSize(4);
+
+    // deduplicated name indexes are still written separately
+    assertEnclosedCalls(call)
+      .filteredOn(c -> c instanceof DeduplicatingVoidCallFactory.InvalidatingVoidCall)
+      .hasSize(2);
+  }
+
+  @Test public void maxConcurrentWrites_limitsEachCall() {
+    consumer = spanConsumer(CassandraStorage.newBuilder().maxConcurrentWrites(10));
+
+    Span span = spanWithoutAnnotationsOrTags.toBuilder().remoteEndpoint(BACKEND).build();
+    Call<Void> call = consumer.accept(singletonList(span));
+
+    assertEnclosedCalls(call)
+      .isNotEmpty()
+      .allSatisfy(c -> assertThat(c.toString()).startsWith("LimitedCall"));
+  }
+
   static AbstractListAssert<?, List<? extends Call<Void>>, Call<Void>, ObjectAssert<Call<Void>>>
   assertEnclosedCalls(Call<Void> call) {
     return assertThat(call)
@@ -21,6 +21,7 @@ import zipkin2.Call;
 import zipkin2.Span;
 import zipkin2.storage.QueryRequest;
 import zipkin2.storage.cassandra.SelectTraceIdsFromServiceSpan.Factory.FlatMapServicesToInputs;
+import zipkin2.storage.cassandra.internal.call.IntersectTraceIdPages;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
@@ -107,6 +108,35 @@ public class CassandraSpanStoreTest {
       .contains("service=frontend, span=get,");
   }
 
+  @Test public void getTraces_withSpanNameAndRemoteServiceName_pagesIndexes() {
+    Call<List<List<Span>>> call = spanStore.getTraces(
+      queryBuilder.serviceName("frontend").remoteServiceName("backend").spanName("get").build());
+
+    assertThat(call.toString())
+      .contains(IntersectTraceIdPages.class.getSimpleName())
+      .contains("limit_=100000,"); // maxTraceCols, as opposed to limit * indexFetchMultiplier
+  }
+
+  @Test public void getTraces_withTagAndSpanName_pagesIndexes() {
+    Call<List<List<Span>>> call = spanStore.getTraces(queryBuilder.serviceName("frontend")
+      .spanName("get")
+      .annotationQuery(Collections.singletonMap("environment", "production"))
+      .build());
+
+    assertThat(call.toString())
+      .contains(IntersectTraceIdPages.class.getSimpleName())
+      .contains("l_service=frontend, annotation_query=environment=production")
+      .contains("service=frontend, span=get,");
+  }
+
+  @Test public void getTraces_withTagButNoServiceName_doesntPageIndexes() {
+    Call<List<List<Span>>> call = spanStore.getTraces(queryBuilder.spanName("get")
+      .annotationQuery(Collections.singletonMap("environment", "production"))
+      .build());
+
+    assertThat(call.toString()).doesNotContain(IntersectTraceIdPages.class.getSimpleName());
+  }
+
   @Test public void searchDisabled_doesntMakeRemoteQueryRequests() {
     CassandraSpanStore spanStore = spanStore(CassandraStorage.newBuilder().searchEnabled(false));
 
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrencyLimiterTest {
+  static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  FakeTicker ticker = new FakeTicker();
+  ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder()
+    .initialLimit(2).maxLimit(4).maxQueueSize(1).ticker(ticker).build();
+  List<Callback<Void>> inFlight = new ArrayList<>();
+  List<Object> results = new ArrayList<>();
+
+  @Test public void underLimit_startsImmediately() {
+    enqueue();
+    enqueue();
+
+    assertThat(inFlight).hasSize(2);
+    assertThat(limiter.inFlight()).isEqualTo(2);
+    assertThat(limiter.queued()).isZero();
+  }
+
+  @Test public void overLimit_waitsForRelease() {
+    enqueue();
+    enqueue();
+    enqueue();
+
+    assertThat(inFlight).hasSize(2);
+    assertThat(limiter.queued()).isEqualTo(1);
+
+    complete(0, 10);
+    assertThat(inFlight).hasSize(2); // the queued call took the permit
+    assertThat(limiter.queued()).isZero();
+    assertThat(results).containsExactly("ok");
+  }
+
+  @Test public void queueFull_rejects() {
+    enqueue();
+    enqueue();
+    enqueue();
+    FakeCall rejected = enqueue();
+
+    assertThat(results).hasSize(1).first().isInstanceOf(RejectedExecutionException.class);
+    assertThat(rejected.isCanceled()).isTrue(); // so that deduplicating calls can invalidate
+    assertThat(limiter.rejectedCount()).isEqualTo(1);
+  }
+
+  @Test public void stableLatency_growsLimit() {
+    enqueue();
+    enqueue();
+    complete(0, 10);
+    enqueue();
+    complete(0, 10);
+
+    assertThat(limiter.limit()).isEqualTo(4);
+  }
+
+  @Test public void growsNoMoreThanMaxLimit() {
+    for (int i = 0; i < 10; i++) {
+      enqueue();
+      enqueue();
+      complete(0, 10);
+      complete(0, 10);
+    }
+
+    assertThat(limiter.limit()).isEqualTo(4);
+  }
+
+  @Test public void risingLatency_shrinksLimit() {
+    limiter = ConcurrencyLimiter.newBuilder().initialLimit(20).maxLimit(20).ticker(ticker).build();
+    for (int i = 0; i < 20; i++) enqueue();
+    complete(0, 10);
+
+    complete(0, 100); // estimated queue is 20 * (1 - 10ms/110ms), about 18 calls
+
+    assertThat(limiter.limit()).isEqualTo(19);
+  }
+
+  @Test public void failure_backsOff() {
+    limiter = ConcurrencyLimiter.newBuilder().initialLimit(20).maxLimit(20).ticker(ticker).build();
+    enqueue();
+
+    inFlight.remove(0).onError(new IOException("BusyPoolException"));
+
+    assertThat(limiter.limit()).isEqualTo(18);
+    assertThat(results).hasSize(1).first().isInstanceOf(IOException.class);
+  }
+
+  /** Driver futures that already failed call their listeners inline. */
+  @Test public void immediateFailures_drainQueueWithoutRecursion() {
+    limiter = ConcurrencyLimiter.newBuilder()
+      .initialLimit(1).maxQueueSize(100_000).ticker(ticker).build();
+    enqueue(); // holds the only permit
+    for (int i = 0; i < 100_000; i++) {
+      limiter.limit(new FailingCall()).enqueue(new Callback<Void>() {
+        @Override public void onSuccess(Void value) {
+          results.add("ok");
+        }
+
+        @Override public void onError(Throwable t) {
+          results.add(t);
+        }
+      });
+    }
+
+    complete(0, 10);
+
+    assertThat(results).hasSize(100_001);
+    assertThat(limiter.inFlight()).isZero();
+    assertThat(limiter.queued()).isZero();
+  }
+
+  @Test public void execute_waitsForPermit() throws Exception {
+    enqueue();
+    enqueue();
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Void> future = executor.submit(() -> limiter.limit(new FakeCall()).execute());
+      Thread.sleep(100L);
+      assertThat(future).isNotDone();
+      assertThat(limiter.queued()).isEqualTo(1);
+
+      complete(0, 10);
+      future.get(1, TimeUnit.SECONDS);
+      assertThat(limiter.inFlight()).isEqualTo(1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  FakeCall enqueue() {
+    FakeCall call = new FakeCall();
+    limiter.limit(call).enqueue(new Callback<Void>() {
+      @Override public void onSuccess(Void value) {
+        results.add("ok");
+      }
+
+      @Override public void onError(Throwable t) {
+        results.add(t);
+      }
+    });
+    return call;
+  }
+
+  void complete(int index, long latencyMillis) {
+    ticker.time += latencyMillis * MILLIS;
+    inFlight.remove(index).onSuccess(null);
+  }
+
+  static final class FakeTicker extends ConcurrencyLimiter.Ticker {
+    long time;
+
+    @Override long read() {
+      return time;
+    }
+  }
+
+  /** Succeeds on execute, or waits for the test to complete the callback on enqueue */
+  class FakeCall extends Call.Base<Void> {
+    @Override protected Void doExecute() {
+      return null;
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      inFlight.add(callback);
+    }
+
+    @Override public Call<Void> clone() {
+      return new FakeCall();
+    }
+  }
+
+  static final class FailingCall extends Call.Base<Void> {
+    @Override protected Void doExecute() throws IOException {
+      throw new IOException("BusyPoolException");
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      callback.onError(new IOException("BusyPoolException"));
+    }
+
+    @Override public Call<Void> clone() {
+      return new FailingCall();
+    }
+  }
+}
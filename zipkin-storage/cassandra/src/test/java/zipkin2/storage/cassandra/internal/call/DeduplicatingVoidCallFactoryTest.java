@@ -20,6 +20,7 @@ import java.util.function.Function;
 import org.junit.Test;
 import zipkin2.Call;
 import zipkin2.Callback;
+import zipkin2.internal.BloomDelayLimiter;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
@@ -145,11 +146,39 @@ public class DeduplicatingVoidCallFactoryTest {
     assertThat(values).containsExactly("bar", "foo");
   }
 
+  @Test public void bloomFilter_dedupesSameCalls() throws Exception {
+    callFactory = new TestDeduplicatingVoidCallFactory(delegate, true);
+
+    dedupesSameCalls();
+  }
+
+  @Test public void bloomFilter_exceptionsInvalidate() throws Exception {
+    callFactory = new TestDeduplicatingVoidCallFactory(delegate, true);
+
+    exceptionsInvalidate_execute();
+  }
+
+  @Test public void bloomFilter_cancelInvalidates() {
+    callFactory = new TestDeduplicatingVoidCallFactory(delegate, true);
+
+    List<Call<Void>> calls = new ArrayList<>();
+    callFactory.maybeAdd("foo", calls);
+    calls.get(0).cancel();
+
+    calls.clear();
+    callFactory.maybeAdd("foo", calls);
+    assertThat(calls).isNotEmpty();
+  }
+
   static class TestDeduplicatingVoidCallFactory extends DeduplicatingVoidCallFactory<String> {
     final Function<String, Call<Void>> delegate;
 
     TestDeduplicatingVoidCallFactory(Function<String, Call<Void>> delegate) {
-      super(1000, 1000);
+      this(delegate, false);
+    }
+
+    TestDeduplicatingVoidCallFactory(Function<String, Call<Void>> delegate, boolean bloomFilter) {
+      super(1000, 1000, bloomFilter ? s -> BloomDelayLimiter.hashString(0L, s) : null);
       this.delegate = delegate;
     }
 
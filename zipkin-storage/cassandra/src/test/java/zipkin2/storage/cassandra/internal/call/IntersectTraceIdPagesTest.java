@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.util.concurrent.Futures;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class IntersectTraceIdPagesTest {
+  List<String> executed = new ArrayList<>();
+
+  @Test public void stopsOnceLimitConfirmed() throws Exception {
+    Query a = new Query("a", page(row("1", 30), row("2", 20)), page(row("3", 10)));
+    Query b = new Query("b", page(row("2", 20), row("1", 30)), page(row("3", 10)));
+
+    assertThat(intersect(2, source(true, a), source(true, b))).containsExactly("1", "2");
+    assertThat(a.pagesRead).isEqualTo(1);
+    assertThat(b.pagesRead).isEqualTo(1);
+  }
+
+  @Test public void readsPagesUntilMatched() throws Exception {
+    Query a = new Query("a", page(row("1", 40), row("2", 30)), page(row("3", 20), row("4", 10)));
+    Query b = new Query("b", page(row("3", 20), row("5", 15)), page(row("4", 10)));
+
+    assertThat(intersect(2, source(true, a), source(true, b))).containsExactly("3", "4");
+  }
+
+  @Test public void readsQueriesInOrder() throws Exception {
+    Query newer = new Query("newer", page(row("1", 30)));
+    Query older = new Query("older", page(row("2", 10)));
+    Query b = new Query("b", page(row("1", 30), row("2", 10)));
+
+    assertThat(intersect(1, source(true, newer, older), source(true, b))).containsExactly("1");
+    assertThat(executed).containsExactly("newer", "b"); // older bucket was never queried
+  }
+
+  @Test public void returnsNewestFirst() throws Exception {
+    Query a = new Query("a", page(row("1", 10), row("2", 30), row("3", 20)));
+    Query b = new Query("b", page(row("3", 20), row("2", 30), row("1", 10)));
+
+    assertThat(intersect(10, source(false, a), source(false, b)))
+      .containsExactly("2", "3", "1");
+  }
+
+  @Test public void stopsWhenExhaustedSourceCantMatch() throws Exception {
+    Query a = new Query("a", page(row("1", 100)));
+    Query b = new Query("b", page(row("2", 200)), page(row("3", 50)), page(row("4", 10)));
+
+    assertThat(intersect(10, source(true, a), source(true, b))).isEmpty();
+    assertThat(b.pagesRead).isEqualTo(2); // read past the timestamp of "1"
+  }
+
+  @Test public void readsUnorderedSourceToTheEnd() throws Exception {
+    Query a = new Query("a", page(row("1", 100)));
+    Query b = new Query("b", page(row("2", 200)), page(row("3", 50)), page(row("1", 100)));
+
+    assertThat(intersect(10, source(true, a), source(false, b))).containsExactly("1");
+    assertThat(b.pagesRead).isEqualTo(3);
+  }
+
+  @Test public void skipsRowsWithoutTimestamp() throws Exception {
+    Row noTimestamp = row("1", 0);
+    when(noTimestamp.isNull("ts")).thenReturn(true);
+    Query a = new Query("a", page(noTimestamp));
+    Query b = new Query("b", page(row("1", 30)));
+
+    assertThat(intersect(1, source(true, a), source(true, b))).isEmpty();
+  }
+
+  @Test public void enqueue_returnsError() {
+    IllegalStateException error = new IllegalStateException("timeout");
+    Query a = new Query("a", page(row("1", 30)));
+    Query b = new Query("b", page(row("1", 30))) {
+      @Override protected ResultSet doExecute() {
+        throw error;
+      }
+    };
+
+    Callback<Set<String>> callback = mock(Callback.class);
+    new IntersectTraceIdPages(Arrays.asList(source(true, a), source(true, b)), 1)
+      .enqueue(callback);
+
+    verify(callback).onError(error);
+  }
+
+  @Test public void toString_includesQueries() {
+    Query a = new Query("a", page(row("1", 30)));
+    Query b = new Query("b", page(row("1", 30)));
+
+    assertThat(new IntersectTraceIdPages(Arrays.asList(source(true, a), source(true, b)), 1))
+      .hasToString("IntersectTraceIdPages{sources=[[a], [b]], limit=1}");
+  }
+
+  @Test(expected = IllegalArgumentException.class) public void needsTwoSources() {
+    new IntersectTraceIdPages(Arrays.asList(source(true, new Query("a"))), 1);
+  }
+
+  Set<String> intersect(int limit, IntersectTraceIdPages.Source... sources) throws Exception {
+    return new IntersectTraceIdPages(Arrays.asList(sources), limit).execute();
+  }
+
+  static IntersectTraceIdPages.Source source(boolean descending, Query... queries) {
+    return IntersectTraceIdPages.newSource(
+      new ArrayList<>(Arrays.asList(queries)), descending, row -> row.getLong("ts"));
+  }
+
+  static Row row(String traceId, long ts) {
+    Row row = mock(Row.class);
+    when(row.getString("trace_id")).thenReturn(traceId);
+    when(row.getLong("ts")).thenReturn(ts);
+    return row;
+  }
+
+  static List<Row> page(Row... rows) {
+    return Arrays.asList(rows);
+  }
+
+  /** Returns a result set which fetches each page on demand */
+  class Query extends Call.Base<ResultSet> {
+    final String name;
+    final Deque<List<Row>> pages;
+    final Deque<Row> current = new ArrayDeque<>();
+    int pagesRead;
+
+    @SafeVarargs Query(String name, List<Row>... pages) {
+      this.name = name;
+      this.pages = new ArrayDeque<>(Arrays.asList(pages));
+    }
+
+    @Override protected ResultSet doExecute() {
+      executed.add(name);
+      ResultSet resultSet = mock(ResultSet.class);
+      when(resultSet.getAvailableWithoutFetching()).then(i -> current.size());
+      when(resultSet.one()).then(i -> current.poll());
+      when(resultSet.isFullyFetched()).then(i -> pages.isEmpty());
+      when(resultSet.fetchMoreResults()).then(i -> {
+        nextPage();
+        return Futures.immediateFuture(resultSet);
+      });
+      nextPage();
+      return resultSet;
+    }
+
+    void nextPage() {
+      List<Row> page = pages.poll();
+      if (page != null) current.addAll(page);
+      pagesRead++;
+    }
+
+    @Override protected void doEnqueue(Callback<ResultSet> callback) {
+      try {
+        callback.onSuccess(doExecute());
+      } catch (RuntimeException e) {
+        callback.onError(e);
+      }
+    }
+
+    @Override public Call<ResultSet> clone() {
+      return this; // state is shared so that tests can see which pages were read
+    }
+
+    @Override public String toString() {
+      return name;
+    }
+  }
+}
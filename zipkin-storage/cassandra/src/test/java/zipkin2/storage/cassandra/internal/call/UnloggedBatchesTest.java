@@ -0,0 +1,269 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.cassandra.internal.call;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.ProtocolOptions;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.WriteType;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.Before;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+import static org.mockito.Mockito.when;
+
+public class UnloggedBatchesTest {
+  Session session = mock(Session.class);
+  Metadata metadata = mock(Metadata.class);
+  Host host = mock(Host.class);
+  Callback<Void> callback = mock(Callback.class);
+  List<Runnable> listeners = new ArrayList<>();
+  List<ResultSetFuture> futures = new ArrayList<>();
+
+  UnloggedBatches batches = new UnloggedBatches(session, 2, 1, 10, null);
+
+  @Before public void setup() {
+    Cluster cluster = mock(Cluster.class);
+    Configuration configuration = mock(Configuration.class);
+    ProtocolOptions protocolOptions = mock(ProtocolOptions.class);
+    when(session.getCluster()).thenReturn(cluster);
+    when(cluster.getConfiguration()).thenReturn(configuration);
+    when(cluster.getMetadata()).thenReturn(metadata);
+    when(configuration.getProtocolOptions()).thenReturn(protocolOptions);
+    when(configuration.getCodecRegistry()).thenReturn(CodecRegistry.DEFAULT_INSTANCE);
+    when(protocolOptions.getProtocolVersion()).thenReturn(ProtocolVersion.V4);
+    when(metadata.getReplicas(eq("zipkin2"), any(ByteBuffer.class)))
+      .thenReturn(Collections.singleton(host));
+
+    when(session.executeAsync(any(Statement.class))).then(invocation -> {
+      ResultSetFuture future = mock(ResultSetFuture.class);
+      doAnswer(i -> listeners.add(i.getArgument(0))).when(future).addListener(any(), any());
+      futures.add(future);
+      return future;
+    });
+  }
+
+  @Test public void group_batchesByRoutingKey() {
+    Statement a1 = statement("a"), b = statement("b"), a2 = statement("a");
+
+    List<Statement> grouped = batches.group(statements(() -> a1, () -> b, () -> a2));
+
+    assertThat(grouped).hasSize(2);
+    assertThat(grouped.get(0)).isInstanceOf(BatchStatement.class);
+    assertThat(((BatchStatement) grouped.get(0)).getStatements()).containsExactly(a1, a2);
+    assertThat(((BatchStatement) grouped.get(0)).getBatchType())
+      .isEqualTo(BatchStatement.Type.UNLOGGED);
+    assertThat(grouped.get(1)).isSameAs(b);
+  }
+
+  @Test public void group_splitsAtMaxStatementsPerBatch() {
+    Statement a1 = statement("a"), a2 = statement("a"), a3 = statement("a");
+
+    List<Statement> grouped = batches.group(statements(() -> a1, () -> a2, () -> a3));
+
+    assertThat(grouped).hasSize(2);
+    assertThat(((BatchStatement) grouped.get(0)).getStatements()).containsExactly(a1, a2);
+    assertThat(grouped.get(1)).isSameAs(a3);
+  }
+
+  @Test public void group_sendsStatementsWithoutRoutingKeyAlone() {
+    Statement a = statement(null), b = statement(null);
+
+    assertThat(batches.group(statements(() -> a, () -> b))).containsExactly(a, b);
+  }
+
+  @Test public void group_doesntBatchAcrossTables() {
+    Statement a = statement("span", "a"), b = statement("trace_by_service_span", "a");
+
+    assertThat(batches.group(statements(() -> a, () -> b))).containsExactly(a, b);
+  }
+
+  @Test public void group_sendsStatementsWithoutTableAlone() {
+    Statement a = mock(Statement.class), b = mock(Statement.class);
+    ByteBuffer key = ByteBuffer.wrap("a".getBytes(StandardCharsets.UTF_8));
+    when(a.getRoutingKey(any(), any())).thenReturn(key);
+    when(b.getRoutingKey(any(), any())).thenReturn(key);
+
+    assertThat(batches.group(statements(() -> a, () -> b))).containsExactly(a, b);
+  }
+
+  /** Failed futures call their listeners inline, so a release can happen inside a task. */
+  @Test public void hostQueue_drainsTasksThatReleaseInlineWithoutRecursion() {
+    UnloggedBatches.HostQueue queue = new UnloggedBatches.HostQueue(1, Integer.MAX_VALUE);
+    AtomicInteger ran = new AtomicInteger();
+
+    queue.submit(ran::incrementAndGet); // holds the only permit
+    for (int i = 0; i < 100_000; i++) {
+      queue.submit(() -> {
+        ran.incrementAndGet();
+        queue.release();
+      });
+    }
+    queue.release();
+
+    assertThat(ran).hasValue(100_001);
+    assertThat(queue.inFlight).isZero();
+    assertThat(queue.pending).isEmpty();
+  }
+
+  @Test public void enqueue_limitsInFlightPerHost() {
+    Statement a = statement("a"), b = statement("b");
+
+    batches.newCall(statements(() -> a, () -> b)).enqueue(callback);
+
+    verify(session).executeAsync(a); // b waits for a as they share the same replica
+    verifyNoMoreInteractions(callback);
+
+    listeners.remove(0).run();
+    verify(session).executeAsync(b);
+    verifyNoMoreInteractions(callback);
+
+    listeners.remove(0).run();
+    verify(callback).onSuccess(null);
+  }
+
+  @Test public void enqueue_rejectsWhenHostQueueIsFull() {
+    batches = new UnloggedBatches(session, 2, 1, 1, null);
+    Statement a = statement("a"), b = statement("b"), c = statement("c");
+
+    batches.newCall(statements(() -> a, () -> b, () -> c)).enqueue(callback);
+
+    verify(session).executeAsync(a); // b waits for a, and c is rejected as the queue is full
+    listeners.remove(0).run();
+    verify(session).executeAsync(b);
+    verifyNoMoreInteractions(callback);
+
+    listeners.remove(0).run();
+    verify(session, never()).executeAsync(c);
+    verify(callback).onError(any(RejectedExecutionException.class));
+  }
+
+  @Test public void enqueue_limitsEachRequest() {
+    ConcurrencyLimiter limiter = ConcurrencyLimiter.newBuilder().initialLimit(1).build();
+    batches = new UnloggedBatches(session, 2, 2, 10, limiter);
+    Statement a = statement("a"), b = statement("b");
+
+    batches.newCall(statements(() -> a, () -> b)).enqueue(callback);
+
+    verify(session).executeAsync(a); // b waits for a as the limit is one request
+    verify(session, never()).executeAsync(b);
+    assertThat(limiter.inFlight()).isEqualTo(1);
+
+    listeners.remove(0).run();
+    verify(session).executeAsync(b);
+    verifyNoMoreInteractions(callback);
+
+    listeners.remove(0).run();
+    verify(callback).onSuccess(null);
+    assertThat(limiter.inFlight()).isZero();
+  }
+
+  @Test public void enqueue_doesntLimitOtherHosts() {
+    Statement a = statement("a"), b = statement("b");
+    ByteBuffer routingKey = b.getRoutingKey(ProtocolVersion.V4, CodecRegistry.DEFAULT_INSTANCE);
+    when(metadata.getReplicas("zipkin2", routingKey))
+      .thenReturn(Collections.singleton(mock(Host.class)));
+
+    batches.newCall(statements(() -> a, () -> b)).enqueue(callback);
+
+    verify(session).executeAsync(a);
+    verify(session).executeAsync(b);
+  }
+
+  @Test public void enqueue_returnsErrorAfterAllComplete() {
+    Statement a = statement("a"), b = statement("b");
+
+    batches.newCall(statements(() -> a, () -> b)).enqueue(callback);
+
+    WriteTimeoutException error =
+      new WriteTimeoutException(ConsistencyLevel.ONE, WriteType.UNLOGGED_BATCH, 0, 1);
+    when(futures.get(0).getUninterruptibly()).thenThrow(error);
+    listeners.remove(0).run();
+    verifyNoMoreInteractions(callback);
+
+    listeners.remove(0).run();
+    verify(callback).onError(error);
+  }
+
+  @Test public void cancel_skipsPendingStatements() {
+    Statement a = statement("a"), b = statement("b");
+
+    Call<Void> call = batches.newCall(statements(() -> a, () -> b));
+    call.enqueue(callback);
+    call.cancel();
+
+    verify(futures.get(0)).cancel(true);
+    listeners.remove(0).run();
+
+    verify(session).executeAsync(a);
+    verify(session, never()).executeAsync(b);
+    verify(callback).onError(any(IllegalStateException.class));
+  }
+
+  static Statement statement(String routingKey) {
+    return statement("span", routingKey);
+  }
+
+  static Statement statement(String table, String routingKey) {
+    BoundStatement statement = mock(BoundStatement.class);
+    PreparedStatement prepared = mock(PreparedStatement.class);
+    ColumnDefinitions variables = mock(ColumnDefinitions.class);
+    when(statement.preparedStatement()).thenReturn(prepared);
+    when(prepared.getVariables()).thenReturn(variables);
+    when(variables.size()).thenReturn(1);
+    when(variables.getTable(0)).thenReturn(table);
+    when(statement.getKeyspace()).thenReturn("zipkin2");
+    if (routingKey != null) {
+      ByteBuffer key = ByteBuffer.wrap(routingKey.getBytes(StandardCharsets.UTF_8));
+      when(statement.getRoutingKey(any(), any())).thenReturn(key);
+    }
+    return statement;
+  }
+
+  @SafeVarargs
+  static List<Supplier<? extends Statement>> statements(Supplier<? extends Statement>... s) {
+    return Arrays.asList(s);
+  }
+}
@@ -15,7 +15,11 @@ package zipkin2.elasticsearch;
 
 import com.squareup.moshi.JsonReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import okio.BufferedSource;
 import zipkin2.DependencyLink;
 import zipkin2.Span;
@@ -24,6 +28,7 @@ import zipkin2.elasticsearch.internal.client.SearchResultConverter;
 import zipkin2.internal.DependencyLinker;
 
 import static zipkin2.elasticsearch.internal.JsonReaders.collectValuesNamed;
+import static zipkin2.elasticsearch.internal.client.SearchResultConverter.readHits;
 
 public final class BodyConverters {
   static final HttpCall.BodyConverter<Object> NULL =
@@ -42,6 +47,8 @@ public final class BodyConverters {
       };
   static final HttpCall.BodyConverter<List<Span>> SPANS =
       SearchResultConverter.create(JsonAdapters.SPAN_ADAPTER);
+  static final HttpCall.BodyConverter<List<List<Span>>> TRACES = new Traces(true);
+  static final HttpCall.BodyConverter<List<List<Span>>> TRACES_LOWER_64 = new Traces(false);
   static final HttpCall.BodyConverter<List<DependencyLink>> DEPENDENCY_LINKS =
       new SearchResultConverter<DependencyLink>(JsonAdapters.DEPENDENCY_LINK_ADAPTER) {
         @Override
@@ -50,4 +57,31 @@ public final class BodyConverters {
           return result.isEmpty() ? result : DependencyLinker.merge(result);
         }
       };
+
+  /**
+   * Groups spans by trace ID as they are decoded, instead of collecting them into one list and
+   * grouping them after.
+   */
+  static final class Traces implements HttpCall.BodyConverter<List<List<Span>>> {
+    final boolean strictTraceId;
+
+    Traces(boolean strictTraceId) {
+      this.strictTraceId = strictTraceId;
+    }
+
+    @Override public List<List<Span>> convert(BufferedSource content) throws IOException {
+      Map<String, List<Span>> groupedByTraceId = new LinkedHashMap<>();
+      readHits(content, JsonAdapters.SPAN_ADAPTER, span -> {
+        String traceId = span.traceId();
+        if (!strictTraceId && traceId.length() == 32) traceId = traceId.substring(16);
+        groupedByTraceId.computeIfAbsent(traceId, k -> new ArrayList<>()).add(span);
+      });
+      if (groupedByTraceId.isEmpty()) return Collections.emptyList();
+      return new ArrayList<>(groupedByTraceId.values());
+    }
+
+    @Override public String toString() {
+      return "Traces{strictTraceId=" + strictTraceId + "}";
+    }
+  }
 }
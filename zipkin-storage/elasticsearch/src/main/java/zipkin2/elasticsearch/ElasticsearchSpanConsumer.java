@@ -13,36 +13,37 @@
  */
 package zipkin2.elasticsearch;
 
-import com.squareup.moshi.JsonWriter;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import okio.Buffer;
-import okio.ByteString;
 import zipkin2.Annotation;
 import zipkin2.Call;
 import zipkin2.Span;
-import zipkin2.codec.SpanBytesEncoder;
 import zipkin2.elasticsearch.internal.HttpBulkIndexer;
+import zipkin2.elasticsearch.internal.HttpBulkIndexer.DocumentWriter;
 import zipkin2.elasticsearch.internal.IndexNameFormatter;
+import zipkin2.elasticsearch.internal.QueryCache;
+import zipkin2.internal.Buffer;
 import zipkin2.internal.DelayLimiter;
+import zipkin2.internal.V2SpanWriter;
 import zipkin2.storage.SpanConsumer;
 
 import static zipkin2.elasticsearch.ElasticsearchAutocompleteTags.AUTOCOMPLETE;
+import static zipkin2.elasticsearch.ElasticsearchSpanStore.REMOTE_SERVICE_NAMES;
+import static zipkin2.elasticsearch.ElasticsearchSpanStore.SERVICE_NAMES;
 import static zipkin2.elasticsearch.ElasticsearchSpanStore.SPAN;
+import static zipkin2.elasticsearch.ElasticsearchSpanStore.SPAN_NAMES;
+import static zipkin2.elasticsearch.ElasticsearchSpanStore.namesCacheKey;
+import static zipkin2.internal.Buffer.asciiSizeInBytes;
 import static zipkin2.internal.JsonEscaper.jsonEscape;
 import static zipkin2.internal.JsonEscaper.jsonEscapedSizeInBytes;
 
 class ElasticsearchSpanConsumer implements SpanConsumer { // not final for testing
-  static final Logger LOG = Logger.getLogger(ElasticsearchSpanConsumer.class.getName());
   static final int INDEX_CHARS_LIMIT = 256;
-  static final ByteString EMPTY_JSON = ByteString.of(new byte[] {'{', '}'});
+  static final V2SpanWriter SPAN_WRITER = new V2SpanWriter();
 
   final ElasticsearchStorage es;
   final Set<String> autocompleteKeys;
@@ -64,15 +65,47 @@ class ElasticsearchSpanConsumer implements SpanConsumer { // not final for testi
     if (spans.isEmpty()) return Call.create(null);
     BulkSpanIndexer indexer = new BulkSpanIndexer(this);
     indexSpans(indexer, spans);
-    return indexer.newCall();
+    Call<Void> result = indexer.newCall();
+    if (!searchEnabled || !es.queryCache().isEnabled()) return result;
+    return result.map(new RefreshCachedNames(es.queryCache(), spans));
+  }
+
+  /** After a write, refreshes cached names which are missing any in the spans written. */
+  static final class RefreshCachedNames implements Call.Mapper<Void, Void> {
+    final QueryCache queryCache;
+    final List<Span> spans;
+
+    RefreshCachedNames(QueryCache queryCache, List<Span> spans) {
+      this.queryCache = queryCache;
+      this.spans = spans;
+    }
+
+    @Override public Void map(Void input) {
+      for (Span span : spans) {
+        String serviceName = span.localServiceName();
+        if (serviceName == null) continue;
+        queryCache.refreshUnlessContains(SERVICE_NAMES, serviceName);
+        if (span.name() != null) {
+          queryCache.refreshUnlessContains(namesCacheKey(SPAN_NAMES, serviceName), span.name());
+        }
+        if (span.remoteServiceName() != null) {
+          queryCache.refreshUnlessContains(
+            namesCacheKey(REMOTE_SERVICE_NAMES, serviceName), span.remoteServiceName());
+        }
+      }
+      return null;
+    }
+
+    @Override public String toString() {
+      return "RefreshCachedNames";
+    }
   }
 
   void indexSpans(BulkSpanIndexer indexer, List<Span> spans) {
     for (Span span : spans) {
-      long spanTimestamp = span.timestampAsLong();
       long indexTimestamp = 0L; // which index to store this span into
-      if (spanTimestamp != 0L) {
-        indexTimestamp = spanTimestamp = TimeUnit.MICROSECONDS.toMillis(spanTimestamp);
+      if (span.timestampAsLong() != 0L) {
+        indexTimestamp = timestampMillis(span);
       } else {
         // guessTimestamp is made for determining the span's authoritative timestamp. When choosing
         // the index bucket, any annotation is better than using current time.
@@ -82,7 +115,7 @@ class ElasticsearchSpanConsumer implements SpanConsumer { // not final for testi
         }
         if (indexTimestamp == 0L) indexTimestamp = System.currentTimeMillis();
       }
-      indexer.add(indexTimestamp, span, spanTimestamp);
+      indexer.add(indexTimestamp, span);
       if (searchEnabled && !span.tags().isEmpty()) {
         indexer.addAutocompleteValues(indexTimestamp, span);
       }
@@ -100,13 +133,11 @@ class ElasticsearchSpanConsumer implements SpanConsumer { // not final for testi
       this.consumer = consumer;
     }
 
-    void add(long indexTimestamp, Span span, long timestampMillis) {
+    void add(long indexTimestamp, Span span) {
       String index = consumer.indexNameFormatter
         .formatTypeAndTimestamp(SPAN, indexTimestamp);
-      byte[] document = consumer.searchEnabled
-        ? prefixWithTimestampMillisAndQuery(span, timestampMillis)
-        : SpanBytesEncoder.JSON_V2.encode(span);
-      indexer.add(index, SPAN, document, null /* Allow ES to choose an ID */);
+      DocumentWriter<Span> writer = consumer.searchEnabled ? SPAN_SEARCH_DOCUMENT : SPAN_DOCUMENT;
+      indexer.add(index, SPAN, span, writer, null /* Allow ES to choose an ID */);
     }
 
     void addAutocompleteValues(long indexTimestamp, Span span) {
@@ -123,19 +154,7 @@ class ElasticsearchSpanConsumer implements SpanConsumer { // not final for testi
         AutocompleteContext context = new AutocompleteContext(indexTimestamp, id);
         if (!consumer.delayLimiter.shouldInvoke(context)) continue;
         pendingAutocompleteContexts.add(context);
-
-        // encode using zipkin's internal buffer so we don't have to catch exceptions etc
-        int sizeInBytes = 27; // {"tagKey":"","tagValue":""}
-        sizeInBytes += jsonEscapedSizeInBytes(tag.getKey());
-        sizeInBytes += jsonEscapedSizeInBytes(tag.getValue());
-        zipkin2.internal.Buffer b = zipkin2.internal.Buffer.allocate(sizeInBytes);
-        b.writeAscii("{\"tagKey\":\"");
-        b.writeUtf8(jsonEscape(tag.getKey()));
-        b.writeAscii("\",\"tagValue\":\"");
-        b.writeUtf8(jsonEscape(tag.getValue()));
-        b.writeAscii("\"}");
-        byte[] document = b.toByteArray();
-        indexer.add(idx, AUTOCOMPLETE, document, id);
+        indexer.add(idx, AUTOCOMPLETE, tag, AUTOCOMPLETE_DOCUMENT, id);
       }
     }
 
@@ -151,6 +170,50 @@ class ElasticsearchSpanConsumer implements SpanConsumer { // not final for testi
     }
   }
 
+  /** Used when search is disabled, as the span is stored verbatim. */
+  static final DocumentWriter<Span> SPAN_DOCUMENT = new DocumentWriter<Span>() {
+    @Override public int sizeInBytes(Span span) {
+      return SPAN_WRITER.sizeInBytes(span);
+    }
+
+    @Override public void write(Span span, byte[] document) {
+      SPAN_WRITER.write(span, Buffer.wrap(document, 0));
+    }
+  };
+
+  static final DocumentWriter<Span> SPAN_SEARCH_DOCUMENT = new DocumentWriter<Span>() {
+    @Override public int sizeInBytes(Span span) {
+      return searchDocumentSizeInBytes(span, timestampMillis(span));
+    }
+
+    @Override public void write(Span span, byte[] document) {
+      writeSearchDocument(span, timestampMillis(span), document);
+    }
+  };
+
+  static final DocumentWriter<Map.Entry<String, String>> AUTOCOMPLETE_DOCUMENT =
+    new DocumentWriter<Map.Entry<String, String>>() {
+      @Override public int sizeInBytes(Map.Entry<String, String> tag) {
+        int sizeInBytes = 27; // {"tagKey":"","tagValue":""}
+        sizeInBytes += jsonEscapedSizeInBytes(tag.getKey());
+        sizeInBytes += jsonEscapedSizeInBytes(tag.getValue());
+        return sizeInBytes;
+      }
+
+      @Override public void write(Map.Entry<String, String> tag, byte[] document) {
+        Buffer b = Buffer.wrap(document, 0);
+        b.writeAscii("{\"tagKey\":\"");
+        b.writeUtf8(jsonEscape(tag.getKey()));
+        b.writeAscii("\",\"tagValue\":\"");
+        b.writeUtf8(jsonEscape(tag.getValue()));
+        b.writeAscii("\"}");
+      }
+    };
+
+  static long timestampMillis(Span span) {
+    return TimeUnit.MICROSECONDS.toMillis(span.timestampAsLong());
+  }
+
   /**
    * In order to allow systems like Kibana to search by timestamp, we add a field "timestamp_millis"
    * when storing. The cheapest way to do this without changing the codec is prefixing it to the
@@ -166,50 +229,96 @@ class ElasticsearchSpanConsumer implements SpanConsumer { // not final for testi
    * <p>Ex {@code curl -s localhost:9200/zipkin:span-2017-08-11/_search?q=_q:error=500}
    */
   static byte[] prefixWithTimestampMillisAndQuery(Span span, long timestampMillis) {
-    Buffer prefix = new Buffer();
-    JsonWriter writer = JsonWriter.of(prefix);
-    try {
-      writer.beginObject();
-
-      if (timestampMillis != 0L) writer.name("timestamp_millis").value(timestampMillis);
-      if (!span.tags().isEmpty() || !span.annotations().isEmpty()) {
-        writer.name("_q");
-        writer.beginArray();
-        for (Annotation a : span.annotations()) {
-          if (a.value().length() > INDEX_CHARS_LIMIT) continue;
-          writer.value(a.value());
-        }
-        for (Map.Entry<String, String> tag : span.tags().entrySet()) {
-          int length = tag.getKey().length() + tag.getValue().length() + 1;
-          if (length > INDEX_CHARS_LIMIT) continue;
-          writer.value(tag.getKey()); // search is possible by key alone
-          writer.value(tag.getKey() + "=" + tag.getValue());
-        }
-        writer.endArray();
-      }
-      writer.endObject();
-    } catch (IOException e) {
-      // very unexpected to have an IOE for an in-memory write
-      assert false : "Error indexing query for span: " + span;
-      if (LOG.isLoggable(Level.FINE)) {
-        LOG.log(Level.FINE, "Error indexing query for span: " + span, e);
-      }
-      return SpanBytesEncoder.JSON_V2.encode(span);
+    byte[] document = new byte[searchDocumentSizeInBytes(span, timestampMillis)];
+    writeSearchDocument(span, timestampMillis, document);
+    return document;
+  }
+
+  static int searchDocumentSizeInBytes(Span span, long timestampMillis) {
+    int prefixSizeInBytes = prefixSizeInBytes(span, timestampMillis);
+    int sizeInBytes = SPAN_WRITER.sizeInBytes(span);
+    // the span's opening brace is replaced by a comma, unless there's no prefix to separate
+    return prefixSizeInBytes == 1 ? sizeInBytes : prefixSizeInBytes + sizeInBytes;
+  }
+
+  /** Writes the prefix, then overwrites the span's opening brace with a comma when needed. */
+  static void writeSearchDocument(Span span, long timestampMillis, byte[] document) {
+    Buffer b = Buffer.wrap(document, 0);
+    writePrefix(span, timestampMillis, b);
+    int prefixSizeInBytes = b.pos();
+    if (prefixSizeInBytes == 1) { // empty prefix
+      SPAN_WRITER.write(span, Buffer.wrap(document, 0));
+      return;
+    }
+    SPAN_WRITER.write(span, Buffer.wrap(document, prefixSizeInBytes));
+    document[prefixSizeInBytes] = ',';
+  }
+
+  /** Returns the size of the prefix, excluding the comma before the span's fields. */
+  static int prefixSizeInBytes(Span span, long timestampMillis) {
+    int sizeInBytes = 1; // {
+    if (timestampMillis != 0L) {
+      sizeInBytes += 19; // "timestamp_millis":
+      sizeInBytes += asciiSizeInBytes(timestampMillis);
+    }
+    if (span.tags().isEmpty() && span.annotations().isEmpty()) return sizeInBytes;
+
+    if (timestampMillis != 0L) sizeInBytes++; // ,
+    sizeInBytes += 7; // "_q":[]
+    int valueCount = 0;
+    for (Annotation a : span.annotations()) {
+      if (a.value().length() > INDEX_CHARS_LIMIT) continue;
+      sizeInBytes += jsonEscapedSizeInBytes(a.value()) + 2; // quotes
+      valueCount++;
+    }
+    for (Map.Entry<String, String> tag : span.tags().entrySet()) {
+      int length = tag.getKey().length() + tag.getValue().length() + 1;
+      if (length > INDEX_CHARS_LIMIT) continue;
+      int keySizeInBytes = jsonEscapedSizeInBytes(tag.getKey());
+      sizeInBytes += keySizeInBytes + 2; // "key"
+      sizeInBytes += keySizeInBytes + jsonEscapedSizeInBytes(tag.getValue()) + 3; // "key=value"
+      valueCount += 2;
+    }
+    if (valueCount > 1) sizeInBytes += valueCount - 1; // commas
+    return sizeInBytes;
+  }
+
+  static void writePrefix(Span span, long timestampMillis, Buffer b) {
+    b.writeByte('{');
+    if (timestampMillis != 0L) {
+      b.writeAscii("\"timestamp_millis\":");
+      b.writeAscii(timestampMillis);
+    }
+    if (span.tags().isEmpty() && span.annotations().isEmpty()) return;
+
+    if (timestampMillis != 0L) b.writeByte(',');
+    b.writeAscii("\"_q\":[");
+    boolean wroteValue = false;
+    for (Annotation a : span.annotations()) {
+      if (a.value().length() > INDEX_CHARS_LIMIT) continue;
+      if (wroteValue) b.writeByte(',');
+      writeQuoted(a.value(), b);
+      wroteValue = true;
+    }
+    for (Map.Entry<String, String> tag : span.tags().entrySet()) {
+      int length = tag.getKey().length() + tag.getValue().length() + 1;
+      if (length > INDEX_CHARS_LIMIT) continue;
+      if (wroteValue) b.writeByte(',');
+      writeQuoted(tag.getKey(), b); // search is possible by key alone
+      b.writeAscii(",\"");
+      b.writeUtf8(jsonEscape(tag.getKey()));
+      b.writeByte('=');
+      b.writeUtf8(jsonEscape(tag.getValue()));
+      b.writeByte('"');
+      wroteValue = true;
     }
-    byte[] document = SpanBytesEncoder.JSON_V2.encode(span);
-    if (prefix.rangeEquals(0L, EMPTY_JSON)) return document;
-    return mergeJson(prefix.readByteArray(), document);
+    b.writeByte(']');
   }
 
-  static byte[] mergeJson(byte[] prefix, byte[] suffix) {
-    byte[] newSpanBytes = new byte[prefix.length + suffix.length - 1];
-    int pos = 0;
-    System.arraycopy(prefix, 0, newSpanBytes, pos, prefix.length);
-    pos += prefix.length;
-    newSpanBytes[pos - 1] = ',';
-    // starting at position 1 discards the old head of '{'
-    System.arraycopy(suffix, 1, newSpanBytes, pos, suffix.length - 1);
-    return newSpanBytes;
+  static void writeQuoted(String value, Buffer b) {
+    b.writeByte('"');
+    b.writeUtf8(jsonEscape(value));
+    b.writeByte('"');
   }
 
   static final class AutocompleteContext {
@@ -20,11 +20,11 @@ import zipkin2.Call;
 import zipkin2.DependencyLink;
 import zipkin2.Span;
 import zipkin2.elasticsearch.internal.IndexNameFormatter;
+import zipkin2.elasticsearch.internal.QueryCache;
 import zipkin2.elasticsearch.internal.client.Aggregation;
 import zipkin2.elasticsearch.internal.client.HttpCall;
 import zipkin2.elasticsearch.internal.client.SearchCallFactory;
 import zipkin2.elasticsearch.internal.client.SearchRequest;
-import zipkin2.storage.GroupByTraceId;
 import zipkin2.storage.QueryRequest;
 import zipkin2.storage.ServiceAndSpanNames;
 import zipkin2.storage.SpanStore;
@@ -40,21 +40,30 @@ final class ElasticsearchSpanStore implements SpanStore, ServiceAndSpanNames {
   /** To not produce unnecessarily long queries, we don't look back further than first ES support */
   static final long EARLIEST_MS = 1456790400000L; // March 2016
 
+  /** Terms aggregated for name queries, which are also their cache keys */
+  static final String SERVICE_NAMES = "localEndpoint.serviceName",
+    REMOTE_SERVICE_NAMES = "remoteEndpoint.serviceName", SPAN_NAMES = "name";
+
+  /** Fields only indexed for search, which needn't be returned when reading spans. */
+  static final String[] SEARCH_FIELDS = {"_q", "timestamp_millis"};
+
   final SearchCallFactory search;
-  final Call.Mapper<List<Span>, List<List<Span>>> groupByTraceId;
+  final HttpCall.BodyConverter<List<List<Span>>> traces;
   final String[] allSpanIndices;
   final IndexNameFormatter indexNameFormatter;
   final boolean strictTraceId, searchEnabled;
   final int namesLookback;
+  final QueryCache queryCache;
 
   ElasticsearchSpanStore(ElasticsearchStorage es) {
     this.search = new SearchCallFactory(es.http());
-    this.groupByTraceId = GroupByTraceId.create(es.strictTraceId());
+    this.traces = es.strictTraceId() ? BodyConverters.TRACES : BodyConverters.TRACES_LOWER_64;
     this.allSpanIndices = new String[] {es.indexNameFormatter().formatType(SPAN)};
     this.indexNameFormatter = es.indexNameFormatter();
     this.strictTraceId = es.strictTraceId();
     this.searchEnabled = es.searchEnabled();
     this.namesLookback = es.namesLookback();
+    this.queryCache = es.queryCache();
   }
 
   @Override
@@ -111,7 +120,7 @@ final class ElasticsearchSpanStore implements SpanStore, ServiceAndSpanNames {
     HttpCall<List<String>> traceIdsCall = search.newCall(esRequest, BodyConverters.KEYS);
 
     Call<List<List<Span>>> result =
-      traceIdsCall.flatMap(new GetSpansByTraceId(search, indices)).map(groupByTraceId);
+      traceIdsCall.flatMap(new GetSpansByTraceId(search, indices, traces));
     // Elasticsearch lookup by trace ID is by the full 128-bit length, but there's still a chance of
     // clash on lower-64 bit. When strict trace ID is enabled, we only filter client-side on clash.
     return strictTraceId ? result.map(StrictTraceId.filterTraces(request)) : result;
@@ -125,13 +134,17 @@ final class ElasticsearchSpanStore implements SpanStore, ServiceAndSpanNames {
     // Unless we are strict, truncate the trace ID to 64bit (encoded as 16 characters)
     if (!strictTraceId && traceId.length() == 32) traceId = traceId.substring(16);
 
-    SearchRequest request = SearchRequest.create(asList(allSpanIndices)).term("traceId", traceId);
+    SearchRequest request = SearchRequest.create(asList(allSpanIndices)).term("traceId", traceId)
+      .excludeSource(SEARCH_FIELDS);
     return search.newCall(request, BodyConverters.SPANS);
   }
 
   @Override public Call<List<String>> getServiceNames() {
     if (!searchEnabled) return Call.emptyList();
+    return queryCache.newCall(SERVICE_NAMES, this::serviceNames);
+  }
 
+  Call<List<String>> serviceNames() {
     long endMillis = System.currentTimeMillis();
     long beginMillis = endMillis - namesLookback;
 
@@ -140,21 +153,31 @@ final class ElasticsearchSpanStore implements SpanStore, ServiceAndSpanNames {
 
     SearchRequest request = SearchRequest.create(indices)
       .filters(new SearchRequest.Filters().addRange("timestamp_millis", beginMillis, endMillis))
-      .addAggregation(Aggregation.terms("localEndpoint.serviceName", Integer.MAX_VALUE));
+      .addAggregation(Aggregation.terms(SERVICE_NAMES, Integer.MAX_VALUE));
     return search.newCall(request, BodyConverters.KEYS);
   }
 
   @Override public Call<List<String>> getRemoteServiceNames(String serviceName) {
-    return aggregatedFieldByServiceName(serviceName, "remoteEndpoint.serviceName");
+    return aggregatedFieldByServiceName(serviceName, REMOTE_SERVICE_NAMES);
   }
 
   @Override public Call<List<String>> getSpanNames(String serviceName) {
-    return aggregatedFieldByServiceName(serviceName, "name");
+    return aggregatedFieldByServiceName(serviceName, SPAN_NAMES);
   }
 
   Call<List<String>> aggregatedFieldByServiceName(String serviceName, String term) {
     if (serviceName.isEmpty() || !searchEnabled) return Call.emptyList();
+    String lowercaseServiceName = serviceName.toLowerCase(Locale.ROOT);
+    return queryCache.newCall(namesCacheKey(term, lowercaseServiceName),
+      () -> aggregatedFieldByLowercaseServiceName(lowercaseServiceName, term));
+  }
+
+  /** Identifies a cached query of names by service name. Shared with the span consumer. */
+  static String namesCacheKey(String term, String lowercaseServiceName) {
+    return term + "/" + lowercaseServiceName;
+  }
 
+  Call<List<String>> aggregatedFieldByLowercaseServiceName(String serviceName, String term) {
     long endMillis = System.currentTimeMillis();
     long beginMillis = endMillis - namesLookback;
 
@@ -164,7 +187,7 @@ final class ElasticsearchSpanStore implements SpanStore, ServiceAndSpanNames {
     // A span name is only valid on a local endpoint, as a span name is defined locally
     SearchRequest.Filters filters = new SearchRequest.Filters()
       .addRange("timestamp_millis", beginMillis, endMillis)
-      .addTerm("localEndpoint.serviceName", serviceName.toLowerCase(Locale.ROOT));
+      .addTerm(SERVICE_NAMES, serviceName);
 
     SearchRequest request = SearchRequest.create(indices).filters(filters)
       .addAggregation(Aggregation.terms(term, Integer.MAX_VALUE));
@@ -184,24 +207,30 @@ final class ElasticsearchSpanStore implements SpanStore, ServiceAndSpanNames {
     List<String> indices = indexNameFormatter.formatTypeAndRange(DEPENDENCY, beginMillis, endTs);
     if (indices.isEmpty()) return Call.emptyList();
 
-    return search.newCall(SearchRequest.create(indices), BodyConverters.DEPENDENCY_LINKS);
+    // The result only varies by the daily indices read, so we cache by them, not by timestamp.
+    return queryCache.newCall(DEPENDENCY + "/" + String.join(",", indices),
+      () -> search.newCall(SearchRequest.create(indices), BodyConverters.DEPENDENCY_LINKS));
   }
 
-  static final class GetSpansByTraceId implements Call.FlatMapper<List<String>, List<Span>> {
+  static final class GetSpansByTraceId implements Call.FlatMapper<List<String>, List<List<Span>>> {
     final SearchCallFactory search;
     final List<String> indices;
+    final HttpCall.BodyConverter<List<List<Span>>> traces;
 
-    GetSpansByTraceId(SearchCallFactory search, List<String> indices) {
+    GetSpansByTraceId(SearchCallFactory search, List<String> indices,
+      HttpCall.BodyConverter<List<List<Span>>> traces) {
       this.search = search;
       this.indices = indices;
+      this.traces = traces;
     }
 
     @Override
-    public Call<List<Span>> map(List<String> input) {
+    public Call<List<List<Span>>> map(List<String> input) {
       if (input.isEmpty()) return Call.emptyList();
 
-      SearchRequest getTraces = SearchRequest.create(indices).terms("traceId", input);
-      return search.newCall(getTraces, BodyConverters.SPANS);
+      SearchRequest getTraces = SearchRequest.create(indices).terms("traceId", input)
+        .excludeSource(SEARCH_FIELDS);
+      return search.newCall(getTraces, traces);
     }
 
     @Override
@@ -31,6 +31,7 @@ import okio.Buffer;
 import okio.BufferedSource;
 import zipkin2.CheckResult;
 import zipkin2.elasticsearch.internal.IndexNameFormatter;
+import zipkin2.elasticsearch.internal.QueryCache;
 import zipkin2.elasticsearch.internal.client.HttpCall;
 import zipkin2.internal.Nullable;
 import zipkin2.internal.Platform;
@@ -63,6 +64,9 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
         .client(client)
         .hosts(Collections.singletonList("http://localhost:9200"))
         .maxRequests(64)
+        .bulkMaxBytes(5 * 1024 * 1024)
+        .bulkMaxDocuments(5000)
+        .bulkConcurrency(2)
         .strictTraceId(true)
         .searchEnabled(true)
         .index("zipkin")
@@ -70,6 +74,8 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
         .indexShards(5)
         .indexReplicas(1)
         .namesLookback(86400000)
+        .queryCacheTtl(0)
+        .queryCacheMaxSize(1000)
         .shutdownClientOnClose(false)
         .flushOnWrites(false)
         .autocompleteKeys(Collections.emptyList())
@@ -128,6 +134,29 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
      */
     public abstract Builder maxRequests(int maxRequests);
 
+    /**
+     * Once a bulk request reaches this size in bytes, further documents written by the same call
+     * are sent in another request. Defaults to 5MiB.
+     *
+     * <p>This should be well under the cluster's {@code http.max_content_length}. A request can
+     * exceed this value by up to one document.
+     */
+    public abstract Builder bulkMaxBytes(int bulkMaxBytes);
+
+    /**
+     * The maximum count of documents in a single bulk request. Writes of more documents are split
+     * into several requests. Defaults to 5000.
+     */
+    public abstract Builder bulkMaxDocuments(int bulkMaxDocuments);
+
+    /**
+     * When a write is split into several bulk requests, this is how many are in-flight at the same
+     * time, per Elasticsearch host. Defaults to 2.
+     *
+     * <p>These requests count against {@link #maxRequests(int)}.
+     */
+    public abstract Builder bulkConcurrency(int bulkConcurrency);
+
     /**
      * Only valid when the destination is Elasticsearch 5.x. Indicates the ingest pipeline used
      * before spans are indexed. No default.
@@ -142,6 +171,18 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
      */
     public abstract Builder namesLookback(int namesLookback);
 
+    /**
+     * When positive, service names, span names, remote service names and dependency links are
+     * cached for this duration in milliseconds. Defaults to 0, which disables the cache.
+     *
+     * <p>Identical queries in flight at the same time share one request. When a write includes a
+     * name missing from a cached result, that result is refreshed in the background.
+     */
+    public abstract Builder queryCacheTtl(int queryCacheTtl);
+
+    /** The maximum count of query results cached when {@link #queryCacheTtl(int)} is positive. */
+    public abstract Builder queryCacheMaxSize(int queryCacheMaxSize);
+
     /** Visible for testing */
     public abstract Builder flushOnWrites(boolean flushOnWrites);
 
@@ -226,6 +267,12 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
 
   public abstract int maxRequests();
 
+  public abstract int bulkMaxBytes();
+
+  public abstract int bulkMaxDocuments();
+
+  public abstract int bulkConcurrency();
+
   public abstract boolean strictTraceId();
 
   abstract boolean searchEnabled();
@@ -244,6 +291,10 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
 
   public abstract int namesLookback();
 
+  abstract int queryCacheTtl();
+
+  abstract int queryCacheMaxSize();
+
   @Override
   public SpanStore spanStore() {
     ensureIndexTemplates();
@@ -278,6 +329,7 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
     toClear.add(indexNameFormatter().formatType(SPAN));
     toClear.add(indexNameFormatter().formatType(DEPENDENCY));
     for (String index : toClear) clear(index);
+    queryCache().clear();
   }
 
   void clear(String index) throws IOException {
@@ -349,6 +401,25 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
     }
   }
 
+  /** Shared by span stores and consumers, as they are created on each call. */
+  @Memoized
+  QueryCache queryCache() {
+    return QueryCache.newBuilder().ttl(queryCacheTtl()).maxSize(queryCacheMaxSize()).build();
+  }
+
+  /**
+   * Count of name and dependency queries served from cache, including those that joined a
+   * request in flight. This is always zero unless {@link Builder#queryCacheTtl(int)} is positive.
+   */
+  public long queryCacheHitCount() {
+    return queryCache().hitCount();
+  }
+
+  /** Count of name and dependency queries which resulted in a request while caching. */
+  public long queryCacheMissCount() {
+    return queryCache().missCount();
+  }
+
   @Memoized // since we don't want overlapping calls to apply the index templates
   IndexTemplates ensureIndexTemplates() {
     String index = indexNameFormatter().index();
@@ -379,7 +450,7 @@ public abstract class ElasticsearchStorage extends zipkin2.storage.StorageCompon
                 .build();
     ok.dispatcher().setMaxRequests(maxRequests());
     ok.dispatcher().setMaxRequestsPerHost(maxRequests());
-    return new HttpCall.Factory(ok, HttpUrl.parse(hosts.get(0)));
+    return new HttpCall.Factory(ok, HttpUrl.parse(hosts.get(0)), hosts.size());
   }
 
   @Override
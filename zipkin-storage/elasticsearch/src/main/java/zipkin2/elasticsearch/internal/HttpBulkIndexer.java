@@ -13,17 +13,29 @@
  */
 package zipkin2.elasticsearch.internal;
 
+import com.squareup.moshi.JsonReader;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okio.Buffer;
 import okio.BufferedSource;
+import okio.Okio;
+import zipkin2.Call;
+import zipkin2.Callback;
 import zipkin2.elasticsearch.ElasticsearchStorage;
 import zipkin2.elasticsearch.internal.client.HttpCall;
 import zipkin2.internal.Nullable;
@@ -34,54 +46,41 @@ import static zipkin2.internal.JsonEscaper.jsonEscape;
 // exposed to re-use for testing writes of dependency links
 public final class HttpBulkIndexer {
   static final MediaType APPLICATION_JSON = MediaType.parse("application/json");
+  /** How many times documents rejected due to a full write queue are sent again. */
+  static final int MAX_RETRIES = 3;
+  static final long INITIAL_BACKOFF_MILLIS = 100;
 
   final String tag;
   final HttpCall.Factory http;
   final String pipeline;
   final boolean flushOnWrites;
+  final int maxBytes, maxDocuments, maxInFlight;
 
   // Mutated for each call to add
   final Buffer body = new Buffer();
   final Set<String> indices;
-  final HttpCall.BodyConverter<Void> maybeFlush;
+  final List<BulkRequest> requests = new ArrayList<>();
+  byte[] document = new byte[0]; // reused across documents written by this indexer
+  int[] itemOffsets = new int[16]; // positions in the body where each document's metadata starts
+  int itemCount;
 
   public HttpBulkIndexer(String tag, ElasticsearchStorage es) {
     this.tag = tag;
     http = es.http();
     pipeline = es.pipeline();
     flushOnWrites = es.flushOnWrites();
-    if (flushOnWrites) {
-      indices = new LinkedHashSet<>();
-      maybeFlush =
-          new HttpCall.BodyConverter<Void>() {
-            @Override
-            public Void convert(BufferedSource b) throws IOException {
-              CheckForErrors.INSTANCE.convert(b);
-              if (indices.isEmpty()) return null;
-              ElasticsearchStorage.flush(http, join(indices));
-              return null;
-            }
-          };
-    } else {
-      indices = null;
-      maybeFlush = CheckForErrors.INSTANCE;
-    }
+    indices = flushOnWrites ? new LinkedHashSet<>() : null;
+    maxBytes = es.bulkMaxBytes();
+    maxDocuments = es.bulkMaxDocuments();
+    maxInFlight = es.bulkConcurrency() * http.hostCount;
   }
 
-  enum CheckForErrors implements HttpCall.BodyConverter<Void> {
-    INSTANCE;
-
-    @Override
-    public Void convert(BufferedSource b) throws IOException {
-      String content = b.readUtf8();
-      if (content.contains("\"errors\":true")) throw new IllegalStateException(content);
-      return null;
-    }
+  /** Serializes a document directly into the bulk request, without an intermediate array. */
+  public interface DocumentWriter<T> {
+    int sizeInBytes(T value);
 
-    @Override
-    public String toString() {
-      return "CheckForErrors";
-    }
+    /** Writes {@link #sizeInBytes(Object)} bytes of json into the document, from offset zero. */
+    void write(T value, byte[] document);
   }
 
   public void add(String index, String typeName, byte[] document, @Nullable String id) {
@@ -89,8 +88,23 @@ public final class HttpBulkIndexer {
     writeDocument(document);
   }
 
+  public <T> void add(String index, String typeName, T value, DocumentWriter<T> writer,
+    @Nullable String id) {
+    writeIndexMetadata(index, typeName, id);
+    int sizeInBytes = writer.sizeInBytes(value);
+    if (document.length < sizeInBytes) {
+      document = new byte[Math.max(sizeInBytes, document.length * 2)];
+    }
+    writer.write(value, document);
+    body.write(document, 0, sizeInBytes);
+    body.writeByte('\n');
+    maybeSplit();
+  }
+
   void writeIndexMetadata(String index, String typeName, @Nullable String id) {
     if (flushOnWrites) indices.add(index);
+    if (itemCount == itemOffsets.length) itemOffsets = Arrays.copyOf(itemOffsets, itemCount * 2);
+    itemOffsets[itemCount++] = (int) body.size();
     body.writeUtf8("{\"index\":{\"_index\":\"").writeUtf8(index).writeByte('"');
     // the _type parameter is needed for Elasticsearch <6.x
     body.writeUtf8(",\"_type\":\"").writeUtf8(typeName).writeByte('"');
@@ -103,10 +117,37 @@ public final class HttpBulkIndexer {
   void writeDocument(byte[] document) {
     body.write(document);
     body.writeByte('\n');
+    maybeSplit();
   }
 
-  /** Creates a bulk request when there is more than one object to store */
-  public HttpCall<Void> newCall() {
+  /** Starts a new bulk request once the current one is full. */
+  void maybeSplit() {
+    if (body.size() >= maxBytes || itemCount >= maxDocuments) finishRequest();
+  }
+
+  void finishRequest() {
+    if (itemCount == 0) return;
+    int[] offsets = Arrays.copyOf(itemOffsets, itemCount + 1);
+    offsets[itemCount] = (int) body.size();
+    requests.add(new BulkRequest(body.readByteArray(), offsets));
+    itemCount = 0;
+  }
+
+  /**
+   * Creates a call that sends all documents added so far, in one bulk request unless they exceed
+   * {@link ElasticsearchStorage.Builder#bulkMaxBytes(int)} or {@link
+   * ElasticsearchStorage.Builder#bulkMaxDocuments(int)}.
+   */
+  public Call<Void> newCall() {
+    finishRequest();
+    if (requests.isEmpty()) return Call.create(null);
+    if (requests.size() == 1) return new BulkCall(this, requests.get(0));
+    List<BulkCall> calls = new ArrayList<>(requests.size());
+    for (BulkRequest request : requests) calls.add(new BulkCall(this, request));
+    return new PipelinedCall(calls, maxInFlight);
+  }
+
+  HttpCall<Rejected> newHttpCall(BulkRequest bulk) {
     HttpUrl url =
         pipeline != null
             ? http.baseUrl.newBuilder("_bulk").addQueryParameter("pipeline", pipeline).build()
@@ -116,10 +157,314 @@ public final class HttpBulkIndexer {
         new Request.Builder()
             .url(url)
             .tag(tag)
-            .post(RequestBody.create(APPLICATION_JSON, body.readByteString()))
+            .post(RequestBody.create(APPLICATION_JSON, bulk.body))
             .build();
 
-    return http.newCall(request, maybeFlush);
+    return http.newCall(request, ReadRejected.INSTANCE);
+  }
+
+  void maybeFlush() throws IOException {
+    if (flushOnWrites && !indices.isEmpty()) ElasticsearchStorage.flush(http, join(indices));
+  }
+
+  /** The bulk body and the offset of each document in it, followed by the length of the body. */
+  static final class BulkRequest {
+    final byte[] body;
+    final int[] offsets;
+
+    BulkRequest(byte[] body, int[] offsets) {
+      this.body = body;
+      this.offsets = offsets;
+    }
+
+    int documentCount() {
+      return offsets.length - 1;
+    }
+
+    /** Returns a request that only includes the documents at the given indexes. */
+    BulkRequest retain(int[] items) {
+      int[] offsets = new int[items.length + 1];
+      int sizeInBytes = 0;
+      for (int i = 0; i < items.length; i++) {
+        offsets[i] = sizeInBytes;
+        sizeInBytes += this.offsets[items[i] + 1] - this.offsets[items[i]];
+      }
+      offsets[items.length] = sizeInBytes;
+      byte[] body = new byte[sizeInBytes];
+      for (int i = 0; i < items.length; i++) {
+        int start = this.offsets[items[i]];
+        System.arraycopy(this.body, start, body, offsets[i], this.offsets[items[i] + 1] - start);
+      }
+      return new BulkRequest(body, offsets);
+    }
+  }
+
+  /** Documents Elasticsearch didn't index because its write queue was full. */
+  static final class Rejected {
+    final int[] items;
+    final String reason;
+
+    Rejected(int[] items, String reason) {
+      this.items = items;
+      this.reason = reason;
+    }
+  }
+
+  /**
+   * Returns null unless documents were rejected due to back-pressure, which can be retried. Other
+   * document errors fail the whole call.
+   */
+  enum ReadRejected implements HttpCall.BodyConverter<Rejected> {
+    INSTANCE;
+
+    @Override public Rejected convert(BufferedSource b) throws IOException {
+      JsonReader reader = JsonReader.of(b);
+      reader.beginObject();
+      while (reader.hasNext()) {
+        switch (reader.nextName()) {
+          case "errors":
+            if (reader.nextBoolean()) break;
+            b.readAll(Okio.blackhole()); // no need to parse the items
+            return null;
+          case "items":
+            return readItems(reader);
+          default:
+            reader.skipValue();
+        }
+      }
+      return null;
+    }
+
+    static Rejected readItems(JsonReader reader) throws IOException {
+      int[] rejected = new int[0];
+      int rejectedCount = 0;
+      String rejectedReason = null;
+      reader.beginArray();
+      for (int i = 0; reader.hasNext(); i++) {
+        reader.beginObject();
+        reader.nextName(); // the action, ex "index"
+        int status = 0;
+        Object error = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+          String name = reader.nextName();
+          if (name.equals("status")) {
+            status = reader.nextInt();
+          } else if (name.equals("error")) {
+            error = reader.readJsonValue();
+          } else {
+            reader.skipValue();
+          }
+        }
+        reader.endObject();
+        reader.endObject();
+        if (error == null) continue;
+        if (status != 429 && !isRejectedExecution(error)) {
+          throw new IllegalStateException("bulk item " + i + " failed: " + error);
+        }
+        if (rejectedCount == rejected.length) {
+          rejected = Arrays.copyOf(rejected, Math.max(8, rejectedCount * 2));
+        }
+        rejected[rejectedCount++] = i;
+        if (rejectedReason == null) rejectedReason = error.toString();
+      }
+      reader.endArray();
+      if (rejectedCount == 0) return null;
+      return new Rejected(Arrays.copyOf(rejected, rejectedCount), rejectedReason);
+    }
+
+    static boolean isRejectedExecution(Object error) {
+      return error instanceof Map
+        && "es_rejected_execution_exception".equals(((Map<?, ?>) error).get("type"));
+    }
+
+    @Override public String toString() {
+      return "ReadRejected";
+    }
+  }
+
+  static IllegalStateException rejectedException(Rejected rejected, int documentCount) {
+    return new IllegalStateException(rejected.items.length + " of " + documentCount
+      + " documents were rejected after " + MAX_RETRIES + " retries: " + rejected.reason);
+  }
+
+  static long backoffMillis(int retry) {
+    return INITIAL_BACKOFF_MILLIS << retry;
+  }
+
+  /** Sends one bulk request, retrying documents rejected due to back-pressure. */
+  static final class BulkCall extends Call.Base<Void> {
+    final HttpBulkIndexer indexer;
+    final BulkRequest request;
+    volatile Call<Rejected> current;
+
+    BulkCall(HttpBulkIndexer indexer, BulkRequest request) {
+      this.indexer = indexer;
+      this.request = request;
+    }
+
+    @Override protected Void doExecute() throws IOException {
+      BulkRequest bulk = request;
+      for (int retry = 0; ; retry++) {
+        Rejected rejected = (current = indexer.newHttpCall(bulk)).execute();
+        if (rejected == null) break;
+        if (retry == MAX_RETRIES) throw rejectedException(rejected, request.documentCount());
+        try {
+          Thread.sleep(backoffMillis(retry));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+        bulk = bulk.retain(rejected.items);
+      }
+      indexer.maybeFlush();
+      return null;
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      send(request, 0, callback);
+    }
+
+    void send(BulkRequest bulk, int retry, Callback<Void> callback) {
+      if (isCanceled()) {
+        callback.onError(new IOException("Canceled"));
+        return;
+      }
+      (current = indexer.newHttpCall(bulk)).enqueue(new Callback<Rejected>() {
+        @Override public void onSuccess(Rejected rejected) {
+          if (rejected == null) {
+            try {
+              indexer.maybeFlush();
+            } catch (Throwable t) {
+              propagateIfFatal(t);
+              callback.onError(t);
+              return;
+            }
+            callback.onSuccess(null);
+          } else if (retry == MAX_RETRIES) {
+            callback.onError(rejectedException(rejected, request.documentCount()));
+          } else {
+            BulkRequest next = bulk.retain(rejected.items);
+            RetryTimer.INSTANCE.schedule(() -> send(next, retry + 1, callback),
+              backoffMillis(retry), TimeUnit.MILLISECONDS);
+          }
+        }
+
+        @Override public void onError(Throwable t) {
+          callback.onError(t);
+        }
+      });
+    }
+
+    @Override protected void doCancel() {
+      Call<Rejected> current = this.current;
+      if (current != null) current.cancel();
+    }
+
+    @Override public BulkCall clone() {
+      return new BulkCall(indexer, request);
+    }
+
+    @Override public String toString() {
+      return "BulkCall{" + indexer.tag + ", documents=" + request.documentCount() + "}";
+    }
+  }
+
+  /** Only created when there is a backoff, so most processes never start this thread. */
+  static final class RetryTimer {
+    static final ScheduledExecutorService INSTANCE =
+      Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "zipkin-elasticsearch-bulk-retry");
+        thread.setDaemon(true);
+        return thread;
+      });
+  }
+
+  /**
+   * Sends bulk requests in order, keeping up to a fixed count in-flight when enqueued. The first
+   * error fails the call once in-flight requests complete, and requests not yet sent are skipped.
+   */
+  static final class PipelinedCall extends Call.Base<Void> {
+    final List<BulkCall> calls;
+    final int maxInFlight;
+
+    PipelinedCall(List<BulkCall> calls, int maxInFlight) {
+      this.calls = calls;
+      this.maxInFlight = Math.max(1, maxInFlight);
+    }
+
+    @Override protected Void doExecute() throws IOException {
+      for (BulkCall call : calls) call.execute();
+      return null;
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      new Pipeline(callback).start();
+    }
+
+    final class Pipeline implements Callback<Void> {
+      final Callback<Void> callback;
+      int next, inFlight; // guarded by this
+      Throwable error; // guarded by this
+
+      Pipeline(Callback<Void> callback) {
+        this.callback = callback;
+      }
+
+      void start() {
+        int initial;
+        synchronized (this) {
+          initial = Math.min(maxInFlight, calls.size());
+          next = inFlight = initial;
+        }
+        for (int i = 0; i < initial; i++) calls.get(i).enqueue(this);
+      }
+
+      @Override public void onSuccess(Void value) {
+        complete(null);
+      }
+
+      @Override public void onError(Throwable t) {
+        complete(t);
+      }
+
+      void complete(@Nullable Throwable t) {
+        BulkCall toSend = null;
+        boolean done;
+        synchronized (this) {
+          if (t != null && error == null) error = t;
+          if (error == null && next < calls.size()) {
+            toSend = calls.get(next++);
+          } else {
+            inFlight--;
+          }
+          done = inFlight == 0;
+        }
+        if (toSend != null) {
+          toSend.enqueue(this);
+        } else if (done) {
+          if (error != null) {
+            callback.onError(error);
+          } else {
+            callback.onSuccess(null);
+          }
+        }
+      }
+    }
+
+    @Override protected void doCancel() {
+      for (BulkCall call : calls) call.cancel();
+    }
+
+    @Override public PipelinedCall clone() {
+      List<BulkCall> clones = new ArrayList<>(calls.size());
+      for (BulkCall call : calls) clones.add(call.clone());
+      return new PipelinedCall(clones, maxInFlight);
+    }
+
+    @Override public String toString() {
+      return "PipelinedCall{" + calls + "}";
+    }
   }
 
   static String join(Collection<String> parts) {
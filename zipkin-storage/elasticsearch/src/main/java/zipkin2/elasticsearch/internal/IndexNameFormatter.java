@@ -14,20 +14,16 @@
 package zipkin2.elasticsearch.internal;
 
 import com.google.auto.value.AutoValue;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.Calendar;
 import java.util.Collections;
-import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.List;
-import java.util.TimeZone;
-import zipkin2.internal.DateUtil;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import zipkin2.internal.Nullable;
 
-import static java.lang.String.format;
-
 @AutoValue
 public abstract class IndexNameFormatter {
   public static Builder newBuilder() {
@@ -36,13 +32,14 @@ public abstract class IndexNameFormatter {
 
   public abstract Builder toBuilder();
 
-  private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+  static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
 
   public abstract String index();
 
   abstract char dateSeparator();
 
-  abstract ThreadLocal<SimpleDateFormat> dateFormat(); // SimpleDateFormat isn't thread-safe
+  // Index names are requested for each span written, almost always for the same few days.
+  final ConcurrentHashMap<String, DayIndices> typeToDayIndices = new ConcurrentHashMap<>();
 
   @AutoValue.Builder
   public abstract static class Builder {
@@ -50,27 +47,7 @@ public abstract class IndexNameFormatter {
 
     public abstract Builder dateSeparator(char dateSeparator);
 
-    abstract Builder dateFormat(ThreadLocal<SimpleDateFormat> dateFormat);
-
-    abstract char dateSeparator();
-
-    public final IndexNameFormatter build() {
-      return dateFormat(
-              new ThreadLocal<SimpleDateFormat>() {
-                @Override
-                protected SimpleDateFormat initialValue() {
-                  char separator = dateSeparator();
-                  SimpleDateFormat result =
-                      new SimpleDateFormat(
-                          separator == 0 ? "yyyyMMdd" : "yyyy-MM-dd".replace('-', separator));
-                  result.setTimeZone(UTC);
-                  return result;
-                }
-              })
-          .autoBuild();
-    }
-
-    abstract IndexNameFormatter autoBuild();
+    public abstract IndexNameFormatter build();
   }
 
   /**
@@ -81,81 +58,130 @@ public abstract class IndexNameFormatter {
    * result will be 2016-11-30, 2016-12-*, 2017-01-01 and 2017-01-02.
    */
   public List<String> formatTypeAndRange(@Nullable String type, long beginMillis, long endMillis) {
-    GregorianCalendar current = midnightUTC(beginMillis);
-    GregorianCalendar end = midnightUTC(endMillis);
-    if (current.equals(end)) {
-      return Collections.singletonList(formatTypeAndTimestamp(type, current.getTimeInMillis()));
+    long beginDay = Math.floorDiv(beginMillis, DAY_MILLIS);
+    long endDay = Math.floorDiv(endMillis, DAY_MILLIS);
+    if (beginDay == endDay) {
+      return Collections.singletonList(formatTypeAndEpochDay(type, beginDay));
     }
 
     String prefix = prefix(type);
+    LocalDate current = LocalDate.ofEpochDay(beginDay), end = LocalDate.ofEpochDay(endDay);
     List<String> indices = new ArrayList<>();
-    while (current.compareTo(end) <= 0) {
-      if (current.get(Calendar.MONTH) == 0 && current.get(Calendar.DAY_OF_MONTH) == 1) {
+    while (!current.isAfter(end)) {
+      int dayOfMonth = current.getDayOfMonth();
+      if (current.getDayOfYear() == 1) {
         // attempt to compress a year
-        current.set(Calendar.DAY_OF_YEAR, current.getActualMaximum(Calendar.DAY_OF_YEAR));
-        if (current.compareTo(end) <= 0) {
-          indices.add(format("%s-%s%c*", prefix, current.get(Calendar.YEAR), dateSeparator()));
-          current.add(Calendar.DAY_OF_MONTH, 1); // rollover to next year
+        LocalDate lastDay = current.withDayOfYear(current.lengthOfYear());
+        if (!lastDay.isAfter(end)) {
+          indices.add(indexPattern(prefix, current, false, ""));
+          current = lastDay.plusDays(1); // rollover to next year
           continue;
-        } else {
-          current.set(Calendar.DAY_OF_YEAR, 1); // rollback to first of the year
         }
-      } else if (current.get(Calendar.DAY_OF_MONTH) == 1) {
+      } else if (dayOfMonth == 1) {
         // attempt to compress a month
-        current.set(Calendar.DAY_OF_MONTH, current.getActualMaximum(Calendar.DAY_OF_MONTH));
-        if (current.compareTo(end) <= 0) {
-          indices.add(formatIndexPattern("%s-%s%c%02d%c*", current, prefix));
-          current.add(Calendar.DAY_OF_MONTH, 1); // rollover to next month
+        LocalDate lastDay = current.withDayOfMonth(current.lengthOfMonth());
+        if (!lastDay.isAfter(end)) {
+          indices.add(indexPattern(prefix, current, true, ""));
+          current = lastDay.plusDays(1); // rollover to next month
           continue;
         }
-        current.set(Calendar.DAY_OF_MONTH, 9); // try to compress days 0-9
-        if (current.compareTo(end) <= 0) {
-          indices.add(formatIndexPattern("%s-%s%c%02d%c0*", current, prefix));
-          current.add(Calendar.DAY_OF_MONTH, 1); // rollover to day 10
+        lastDay = current.withDayOfMonth(9); // try to compress days 0-9
+        if (!lastDay.isAfter(end)) {
+          indices.add(indexPattern(prefix, current, true, "0"));
+          current = lastDay.plusDays(1); // rollover to day 10
           continue;
         }
-        current.set(Calendar.DAY_OF_MONTH, 1); // set back to day 1
-      } else if (current.get(Calendar.DAY_OF_MONTH) == 10) {
-        current.set(Calendar.DAY_OF_MONTH, 19); // try to compress days 10-19
-        if (current.compareTo(end) <= 0) {
-          indices.add(formatIndexPattern("%s-%s%c%02d%c1*", current, prefix));
-          current.add(Calendar.DAY_OF_MONTH, 1); // rollover to day 20
+      } else if (dayOfMonth == 10 || dayOfMonth == 20) {
+        // try to compress days 10-19 or 20-29, noting February can end before the 29th
+        int lastDayOfMonth = Math.min(dayOfMonth + 9, current.lengthOfMonth());
+        LocalDate lastDay = current.withDayOfMonth(lastDayOfMonth);
+        if (!lastDay.isAfter(end)) {
+          indices.add(indexPattern(prefix, current, true, dayOfMonth == 10 ? "1" : "2"));
+          current = lastDay.plusDays(1); // rollover to day 20 or 30
           continue;
         }
-        current.set(Calendar.DAY_OF_MONTH, 10); // set back to day 10
-      } else if (current.get(Calendar.DAY_OF_MONTH) == 20) {
-        current.set(Calendar.DAY_OF_MONTH, 29); // try to compress days 20-29
-        if (current.compareTo(end) <= 0) {
-          indices.add(formatIndexPattern("%s-%s%c%02d%c2*", current, prefix));
-          current.add(Calendar.DAY_OF_MONTH, 1); // rollover to day 30
-          continue;
-        }
-        current.set(Calendar.DAY_OF_MONTH, 20); // set back to day 20
       }
-      indices.add(formatTypeAndTimestamp(type, current.getTimeInMillis()));
-      current.add(Calendar.DAY_OF_MONTH, 1);
+      indices.add(formatTypeAndEpochDay(type, current.toEpochDay()));
+      current = current.plusDays(1);
     }
     return indices;
   }
 
-  String formatIndexPattern(String format, GregorianCalendar current, String prefix) {
-    return format(
-      format,
-      prefix,
-      current.get(Calendar.YEAR),
-      dateSeparator(),
-      current.get(Calendar.MONTH) + 1,
-      dateSeparator());
+  /** Ex. "zipkin:span-2016-*", "zipkin:span-2016-11-*" or "zipkin:span-2016-11-1*" */
+  String indexPattern(String prefix, LocalDate date, boolean includeMonth, String dayPrefix) {
+    StringBuilder result = new StringBuilder(prefix).append('-').append(date.getYear());
+    if (dateSeparator() != 0) result.append(dateSeparator());
+    if (includeMonth) {
+      appendTwoDigits(result, date.getMonthValue());
+      if (dateSeparator() != 0) result.append(dateSeparator());
+    }
+    return result.append(dayPrefix).append('*').toString();
   }
 
-  static GregorianCalendar midnightUTC(long epochMillis) {
-    GregorianCalendar result = new GregorianCalendar(UTC);
-    result.setTimeInMillis(DateUtil.midnightUTC(epochMillis));
-    return result;
+  public String formatTypeAndTimestamp(@Nullable String type, long timestampMillis) {
+    return formatTypeAndEpochDay(type, Math.floorDiv(timestampMillis, DAY_MILLIS));
   }
 
-  public String formatTypeAndTimestamp(@Nullable String type, long timestampMillis) {
-    return prefix(type) + "-" + dateFormat().get().format(new Date(timestampMillis));
+  String formatTypeAndEpochDay(@Nullable String type, long epochDay) {
+    if (type == null) return formatDate(new StringBuilder(index()).append('-'), epochDay);
+    DayIndices dayIndices = typeToDayIndices.get(type);
+    if (dayIndices == null) { // lazy as the types are few and fixed
+      dayIndices = typeToDayIndices.computeIfAbsent(type, t -> new DayIndices(prefix(t) + "-"));
+    }
+    return dayIndices.get(epochDay);
+  }
+
+  /** Formats the UTC date of the epoch day, ex. "2016-11-01" when the separator is '-' */
+  String formatDate(StringBuilder result, long epochDay) {
+    LocalDate date = LocalDate.ofEpochDay(epochDay);
+    int year = date.getYear();
+    for (int digits = 1000; digits > 1 && year < digits; digits /= 10) {
+      result.append('0'); // like SimpleDateFormat, always use at least 4 digits
+    }
+    result.append(year);
+    if (dateSeparator() != 0) result.append(dateSeparator());
+    appendTwoDigits(result, date.getMonthValue());
+    if (dateSeparator() != 0) result.append(dateSeparator());
+    appendTwoDigits(result, date.getDayOfMonth());
+    return result.toString();
+  }
+
+  static void appendTwoDigits(StringBuilder result, int value) {
+    if (value < 10) result.append('0');
+    result.append(value);
+  }
+
+  /**
+   * Caches index names of a type by UTC epoch day. This is direct-mapped, so looking up a recent
+   * day is an array read, not a date calculation or string concatenation.
+   */
+  final class DayIndices {
+    final String prefix;
+    // Unsynchronized as DayIndex is immutable: at worst, a racing thread recomputes a name.
+    final DayIndex[] recentDays = new DayIndex[8];
+
+    DayIndices(String prefix) {
+      this.prefix = prefix;
+    }
+
+    String get(long epochDay) {
+      int slot = (int) (epochDay & (recentDays.length - 1));
+      DayIndex dayIndex = recentDays[slot];
+      if (dayIndex != null && dayIndex.epochDay == epochDay) return dayIndex.name;
+      String name = formatDate(new StringBuilder(prefix), epochDay);
+      recentDays[slot] = new DayIndex(epochDay, name);
+      return name;
+    }
+  }
+
+  static final class DayIndex {
+    final long epochDay;
+    final String name;
+
+    DayIndex(long epochDay, String name) {
+      this.epochDay = epochDay;
+      this.name = name;
+    }
   }
 
   private String prefix(@Nullable String type) {
@@ -164,9 +190,12 @@ public abstract class IndexNameFormatter {
 
   // for testing
   public long parseDate(String timestamp) {
+    char separator = dateSeparator();
+    DateTimeFormatter format = DateTimeFormatter.ofPattern(
+      separator == 0 ? "yyyyMMdd" : "yyyy-MM-dd".replace('-', separator));
     try {
-      return dateFormat().get().parse(timestamp).getTime();
-    } catch (ParseException e) {
+      return LocalDate.parse(timestamp, format).toEpochDay() * DAY_MILLIS;
+    } catch (DateTimeParseException e) {
       throw new AssertionError(e);
     }
   }
@@ -0,0 +1,340 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal;
+
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+/**
+ * Caches results of expensive read-only queries, such as name aggregations, for a fixed duration.
+ *
+ * <p>Identical queries in flight at the same time share one request. A cached value can also be
+ * refreshed in the background, when a write shows it is missing an element. Readers continue to
+ * see the previous value until the refresh completes.
+ */
+// this is a dependency-free variant of a loading cache, in the spirit of DelayLimiter
+public final class QueryCache {
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    Ticker ticker = new Ticker();
+    long ttlNanos = 0L; // disabled
+    int maxSize = 1000;
+
+    /** How long a query result is served from the cache. Zero disables caching. */
+    public Builder ttl(int ttl) {
+      if (ttl < 0) throw new IllegalArgumentException("ttl < 0");
+      this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+      return this;
+    }
+
+    /** The maximum count of query results held. Least recently used results are evicted first. */
+    public Builder maxSize(int maxSize) {
+      if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+      this.maxSize = maxSize;
+      return this;
+    }
+
+    Builder ticker(Ticker ticker) { // do not expose public: only for tests
+      this.ticker = ticker;
+      return this;
+    }
+
+    public QueryCache build() {
+      return new QueryCache(this);
+    }
+
+    Builder() {
+    }
+  }
+
+  static class Ticker { // not final for tests
+    long read() {
+      return System.nanoTime();
+    }
+  }
+
+  /** Returned by {@link #lookup} when a load is already in flight for the key. */
+  static final Object WAITING = new Object();
+
+  final Ticker ticker;
+  final long ttlNanos;
+  final LinkedHashMap<String, Entry> entries; // guarded by this
+  final LongAdder hits = new LongAdder(), misses = new LongAdder();
+  /**
+   * Keys and elements known to be in a cached value. Like a generation, this is replaced when any
+   * cached value changes, so writes can skip the lock for names they already saw.
+   */
+  volatile Set<Map.Entry<String, Object>> confirmed = ConcurrentHashMap.newKeySet();
+
+  QueryCache(Builder builder) {
+    ticker = builder.ticker;
+    ttlNanos = builder.ttlNanos;
+    int maxSize = builder.maxSize;
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true /* access order */) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  public boolean isEnabled() {
+    return ttlNanos != 0L;
+  }
+
+  /**
+   * Returns a call which reads the result of the query identified by the key from cache, or
+   * invokes the supplied call when absent or expired. When caching is disabled, the supplied call
+   * is returned as-is.
+   *
+   * @param key identifies equivalent queries, regardless of when they were made.
+   * @param query called when a new request is needed. Its result must not be null.
+   */
+  public <V> Call<V> newCall(String key, Supplier<Call<V>> query) {
+    if (!isEnabled()) return query.get();
+    return new CachedCall<>(this, key, query);
+  }
+
+  /**
+   * Refreshes a cached collection in the background, unless it already contains the element. This
+   * does nothing if the key isn't cached, or a request for it is already in flight.
+   */
+  public void refreshUnlessContains(String key, Object element) {
+    if (!isEnabled()) return;
+    Map.Entry<String, Object> keyElement = new SimpleImmutableEntry<>(key, element);
+    if (confirmed.contains(keyElement)) return;
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null || entry.waiters != null) return;
+      if (entry.contains(element)) {
+        confirmed.add(keyElement); // under the lock, so not added to a replaced generation
+        return;
+      }
+      entry.waiters = new ArrayList<>(); // readers keep the current value meanwhile
+    }
+    load(entry);
+  }
+
+  /** Count of reads which didn't result in a request, including those that joined one in flight */
+  public long hitCount() {
+    return hits.sum();
+  }
+
+  /** Count of reads which resulted in a request */
+  public long missCount() {
+    return misses.sum();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    confirmed = ConcurrentHashMap.newKeySet();
+  }
+
+  /**
+   * Returns the cached value when fresh, {@link #WAITING} when the callback was added to a load in
+   * flight, or an entry the caller must load, then {@link #complete}. The callback is notified in
+   * the latter two cases.
+   */
+  synchronized Object lookup(String key, Supplier<? extends Call<?>> query, Callback<?> waiter) {
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entries.put(key, entry = new Entry(key, query));
+    } else if (entry.value != null && entry.expiration - ticker.read() > 0) {
+      hits.increment();
+      return entry.value;
+    } else if (entry.waiters != null) {
+      hits.increment();
+      entry.waiters.add(waiter);
+      return WAITING;
+    }
+    misses.increment();
+    entry.query = query; // use the latest query to refresh, in case its inputs changed
+    entry.waiters = new ArrayList<>();
+    entry.waiters.add(waiter);
+    return entry;
+  }
+
+  void load(Entry entry) {
+    Call<?> call;
+    try {
+      call = entry.query.get();
+    } catch (RuntimeException | Error e) {
+      Call.propagateIfFatal(e);
+      complete(entry, null, e);
+      return;
+    }
+    @SuppressWarnings("unchecked") // the value is only passed to callbacks of the same query
+    Call<Object> untyped = (Call<Object>) call;
+    untyped.enqueue(new Callback<Object>() {
+      @Override public void onSuccess(Object value) {
+        complete(entry, value, null);
+      }
+
+      @Override public void onError(Throwable t) {
+        complete(entry, null, t);
+      }
+    });
+  }
+
+  /** Saves a successful result and notifies any callers that were waiting on it. */
+  void complete(Entry entry, Object value, Throwable error) {
+    List<Callback<?>> waiters;
+    synchronized (this) {
+      waiters = entry.waiters;
+      entry.waiters = null;
+      if (value != null) {
+        entry.value = value;
+        entry.elements = null;
+        entry.expiration = ticker.read() + ttlNanos;
+        confirmed = ConcurrentHashMap.newKeySet();
+      } else if (entry.value == null) {
+        entries.remove(entry.key, entry); // don't cache failures
+      }
+    }
+    if (waiters == null) return;
+    for (Callback<?> waiter : waiters) {
+      if (value != null) {
+        @SuppressWarnings("unchecked") // waiters of one key expect the same type
+        Callback<Object> untyped = (Callback<Object>) waiter;
+        untyped.onSuccess(value);
+      } else {
+        waiter.onError(error);
+      }
+    }
+  }
+
+  @Override public String toString() {
+    return "QueryCache{hits=" + hitCount() + ", misses=" + missCount() + "}";
+  }
+
+  static final class Entry {
+    final String key;
+    Supplier<? extends Call<?>> query;
+    Object value; // null until loaded
+    Set<?> elements; // lazily indexes a collection value
+    long expiration;
+    List<Callback<?>> waiters; // non-null while a request is in flight
+
+    Entry(String key, Supplier<? extends Call<?>> query) {
+      this.key = key;
+      this.query = query;
+    }
+
+    boolean contains(Object element) {
+      if (!(value instanceof Collection)) return false;
+      if (elements == null) elements = new HashSet<>((Collection<?>) value);
+      return elements.contains(element);
+    }
+  }
+
+  static final class CachedCall<V> extends Call.Base<V> {
+    final QueryCache cache;
+    final String key;
+    final Supplier<Call<V>> query;
+
+    CachedCall(QueryCache cache, String key, Supplier<Call<V>> query) {
+      this.cache = cache;
+      this.key = key;
+      this.query = query;
+    }
+
+    @Override protected V doExecute() throws IOException {
+      AwaitableCallback<V> waiter = new AwaitableCallback<>();
+      Object result = cache.lookup(key, query, waiter);
+      if (result instanceof Entry) {
+        Entry entry = (Entry) result; // the waiter is notified, but we needn't await it
+        try {
+          V value = query.get().execute();
+          cache.complete(entry, value, null);
+          return value;
+        } catch (IOException | RuntimeException | Error e) {
+          cache.complete(entry, null, e);
+          throw e;
+        }
+      } else if (result == WAITING) {
+        return waiter.await();
+      }
+      @SuppressWarnings("unchecked") // cached by a query of the same key
+      V value = (V) result;
+      return value;
+    }
+
+    @Override protected void doEnqueue(Callback<V> callback) {
+      Object result = cache.lookup(key, query, callback);
+      if (result instanceof Entry) {
+        cache.load((Entry) result);
+      } else if (result != WAITING) {
+        @SuppressWarnings("unchecked") // cached by a query of the same key
+        V value = (V) result;
+        callback.onSuccess(value);
+      }
+    }
+
+    @Override public Call<V> clone() {
+      return new CachedCall<>(cache, key, query);
+    }
+
+    @Override public String toString() {
+      return "CachedCall{key=" + key + "}";
+    }
+  }
+
+  static final class AwaitableCallback<V> implements Callback<V> {
+    final CountDownLatch latch = new CountDownLatch(1);
+    V value;
+    Throwable error;
+
+    @Override public void onSuccess(V value) {
+      this.value = value;
+      latch.countDown();
+    }
+
+    @Override public void onError(Throwable t) {
+      this.error = t;
+      latch.countDown();
+    }
+
+    V await() throws IOException {
+      try {
+        latch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted waiting for a query in flight", e);
+      }
+      if (error instanceof IOException) throw (IOException) error;
+      if (error instanceof RuntimeException) throw (RuntimeException) error;
+      if (error instanceof Error) throw (Error) error;
+      if (error != null) throw new IllegalStateException(error);
+      return value;
+    }
+  }
+}
@@ -38,11 +38,18 @@ public final class HttpCall<V> extends Call<V> {
     final OkHttpClient ok;
     final Semaphore semaphore;
     public final HttpUrl baseUrl;
+    /** The count of Elasticsearch hosts requests are balanced across. */
+    public final int hostCount;
 
     public Factory(OkHttpClient ok, HttpUrl baseUrl) {
+      this(ok, baseUrl, 1);
+    }
+
+    public Factory(OkHttpClient ok, HttpUrl baseUrl, int hostCount) {
       this.ok = ok;
       this.semaphore = new Semaphore(ok.dispatcher().getMaxRequests());
       this.baseUrl = baseUrl;
+      this.hostCount = hostCount;
     }
 
     public <V> HttpCall<V> newCall(Request request, BodyConverter<V> bodyConverter) {
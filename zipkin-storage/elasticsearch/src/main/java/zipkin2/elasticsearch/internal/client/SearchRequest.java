@@ -14,6 +14,7 @@
 package zipkin2.elasticsearch.internal.client;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -44,7 +45,7 @@ public final class SearchRequest {
   @Nullable transient final String type;
 
   Integer size = MAX_RESULT_WINDOW;
-  Boolean _source;
+  Object _source; // false when only aggregations are needed, or a SourceFilter
   Object query;
   Map<String, Aggregation> aggs;
 
@@ -77,6 +78,15 @@ public final class SearchRequest {
     return query(new Terms(field, values));
   }
 
+  /**
+   * Omits fields from each hit's {@code _source}. Use this for fields that are only indexed for
+   * search, as it reduces the size of the response.
+   */
+  public SearchRequest excludeSource(String... fields) {
+    _source = new SourceFilter(Arrays.asList(fields));
+    return this;
+  }
+
   public SearchRequest addAggregation(Aggregation agg) {
     size = null; // we return aggs, not source data
     _source = false;
@@ -94,6 +104,14 @@ public final class SearchRequest {
     return this;
   }
 
+  static class SourceFilter {
+    final List<String> excludes;
+
+    SourceFilter(List<String> excludes) {
+      this.excludes = excludes;
+    }
+  }
+
   static class Term {
     final Map<String, String> term;
 
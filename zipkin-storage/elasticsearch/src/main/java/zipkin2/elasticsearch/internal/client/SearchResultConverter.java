@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 import okio.BufferedSource;
 
 import static zipkin2.elasticsearch.internal.JsonReaders.enterPath;
@@ -37,19 +38,32 @@ public class SearchResultConverter<T> implements HttpCall.BodyConverter<List<T>>
   }
 
   @Override public List<T> convert(BufferedSource content) throws IOException {
+    List<T> result = new ArrayList<>();
+    readHits(content, adapter, result::add);
+    return result.isEmpty() ? defaultValue : result;
+  }
+
+  /**
+   * Decodes each hit's {@code _source} as the response is read, passing it to the consumer in
+   * order. Other fields of the hit, such as {@code _id} or {@code sort}, are skipped.
+   */
+  public static <T> void readHits(BufferedSource content, JsonAdapter<T> adapter,
+    Consumer<T> consumer) throws IOException {
     JsonReader hits = enterPath(JsonReader.of(content), "hits", "hits");
-    if (hits == null || hits.peek() != JsonReader.Token.BEGIN_ARRAY) return defaultValue;
+    if (hits == null || hits.peek() != JsonReader.Token.BEGIN_ARRAY) return;
 
-    List<T> result = new ArrayList<>();
     hits.beginArray();
     while (hits.hasNext()) {
-      JsonReader source = enterPath(hits, "_source");
-      if (source != null) {
-        result.add(adapter.fromJson(source));
+      hits.beginObject();
+      while (hits.hasNext()) {
+        if (hits.nextName().equals("_source") && hits.peek() != JsonReader.Token.NULL) {
+          consumer.accept(adapter.fromJson(hits));
+        } else {
+          hits.skipValue();
+        }
       }
       hits.endObject();
     }
     hits.endArray();
-    return result.isEmpty() ? defaultValue : result;
   }
 }
@@ -16,6 +16,7 @@ package zipkin2.elasticsearch;
 import java.io.IOException;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
@@ -23,6 +24,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import zipkin2.Call;
 import zipkin2.Callback;
 import zipkin2.Endpoint;
 import zipkin2.Span;
@@ -38,6 +40,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
 import static zipkin2.TestObjects.TODAY;
 import static zipkin2.elasticsearch.ElasticsearchSpanConsumer.prefixWithTimestampMillisAndQuery;
+import static zipkin2.elasticsearch.ElasticsearchSpanStore.SERVICE_NAMES;
 
 public class ElasticsearchSpanConsumerTest {
   static final Endpoint WEB_ENDPOINT = Endpoint.newBuilder().serviceName("web").build();
@@ -74,6 +77,28 @@ public class ElasticsearchSpanConsumerTest {
     storage.close();
   }
 
+  @Test
+  public void refreshesCachedNamesMissingThoseWritten() throws Exception {
+    storage = storage.toBuilder().queryCacheTtl(60000).build();
+    ensureIndexTemplates(storage);
+    AtomicInteger requests = new AtomicInteger();
+    storage.queryCache().newCall(SERVICE_NAMES, () -> {
+      requests.incrementAndGet();
+      return Call.create(asList("app"));
+    }).execute();
+
+    Span span = Span.newBuilder().traceId("20").id("20").name("get")
+      .localEndpoint(APP_ENDPOINT).timestamp(TODAY * 1000).build();
+    es.enqueue(new MockResponse());
+    storage.spanConsumer().accept(asList(span)).execute();
+    assertThat(requests).hasValue(1); // "app" was already cached
+
+    es.enqueue(new MockResponse());
+    storage.spanConsumer().accept(asList(span.toBuilder().localEndpoint(WEB_ENDPOINT).build()))
+      .execute();
+    assertThat(requests).hasValue(2);
+  }
+
   @Test
   public void addsTimestamp_millisIntoJson() throws Exception {
     es.enqueue(new MockResponse());
@@ -169,6 +194,33 @@ public class ElasticsearchSpanConsumerTest {
       .isEqualTo(span); // ignores timestamp_millis field
   }
 
+  @Test
+  public void prefixWithTimestampMillisAndQuery_readable_unicode() {
+    Span span = Span.newBuilder().traceId("20").id("20").name("get").timestamp(TODAY * 1000)
+      .addAnnotation(TODAY * 1000, " ")
+      .putTag("产品", "\"zipkin\"")
+      .build();
+
+    assertThat(
+      SpanBytesDecoder.JSON_V2.decodeOne(
+        prefixWithTimestampMillisAndQuery(span, TODAY)))
+      .isEqualTo(span);
+  }
+
+  @Test
+  public void writesSpansOfDifferentSizes() throws Exception {
+    es.enqueue(new MockResponse());
+
+    Span big = TestObjects.CLIENT_SPAN.toBuilder().timestamp(TODAY * 1000).build();
+    Span small = Span.newBuilder().traceId("1").id("1").name("foo").build();
+    accept(big, small, big);
+
+    String body = es.takeRequest().getBody().readUtf8();
+    assertThat(body)
+      .contains("\n" + new String(SpanBytesEncoder.JSON_V2.encode(small), "UTF-8") + "\n")
+      .endsWith(new String(prefixWithTimestampMillisAndQuery(big, TODAY), "UTF-8") + "\n");
+  }
+
   @Test
   public void doesntWriteDocumentId() throws Exception {
     es.enqueue(new MockResponse());
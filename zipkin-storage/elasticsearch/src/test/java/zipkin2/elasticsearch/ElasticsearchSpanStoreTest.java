@@ -14,6 +14,7 @@
 package zipkin2.elasticsearch;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
@@ -21,6 +22,7 @@ import okhttp3.mockwebserver.RecordedRequest;
 import org.junit.After;
 import org.junit.Rule;
 import org.junit.Test;
+import zipkin2.Span;
 import zipkin2.TestObjects;
 import zipkin2.storage.QueryRequest;
 
@@ -61,6 +63,66 @@ public class ElasticsearchSpanStoreTest {
     assertThat(es.takeRequest().getBody().readUtf8()).contains("\"traceId\":\"3041d36dc43227fd\"");
   }
 
+  @Test
+  public void getTrace_excludesSearchFields() throws Exception {
+    es.enqueue(new MockResponse());
+    spanStore.getTrace("48fec942f3e78b893041d36dc43227fd").execute();
+
+    assertThat(es.takeRequest().getBody().readUtf8())
+      .contains("\"_source\":{\"excludes\":[\"_q\",\"timestamp_millis\"]}");
+  }
+
+  @Test
+  public void getTraces_groupsSpansAsTheyAreRead() throws Exception {
+    es.enqueue(new MockResponse().setBody(""
+      + "{\"hits\":{\"hits\":[]},\"aggregations\":{\"traceId_agg\":{\"buckets\":["
+      + "{\"key\":\"0000000000000001\"},{\"key\":\"0000000000000002\"}"
+      + "]}}}"));
+    es.enqueue(new MockResponse().setBody(""
+      + "{\"hits\":{\"total\":3,\"hits\":["
+      + "{\"_id\":\"a\",\"_source\":{\"traceId\":\"0000000000000001\",\"id\":\"1\"}},"
+      + "{\"_id\":\"b\",\"_source\":{\"traceId\":\"0000000000000002\",\"id\":\"2\"},"
+      + "\"sort\":[1]},"
+      + "{\"_id\":\"c\",\"_source\":{\"traceId\":\"0000000000000001\",\"id\":\"3\"}}"
+      + "]}}"));
+
+    assertThat(spanStore.getTraces(
+      QueryRequest.newBuilder().endTs(TODAY).lookback(10000L).limit(10).build()).execute())
+      .extracting(trace -> trace.size())
+      .containsExactly(2, 1);
+
+    es.takeRequest(); // trace IDs
+    assertThat(es.takeRequest().getBody().readUtf8())
+      .contains("\"_source\":{\"excludes\":[\"_q\",\"timestamp_millis\"]}");
+  }
+
+  /** Only the client span matches by name, but the whole trace is returned. */
+  @Test
+  public void getTraces_returnsSpansThatDidntMatch() throws Exception {
+    es.enqueue(new MockResponse().setBody(""
+      + "{\"hits\":{\"hits\":[]},\"aggregations\":{\"traceId_agg\":{\"buckets\":["
+      + "{\"key\":\"0000000000000001\"}"
+      + "]}}}"));
+    es.enqueue(new MockResponse().setBody(""
+      + "{\"hits\":{\"total\":2,\"hits\":["
+      + "{\"_id\":\"a\",\"_source\":"
+      + "{\"traceId\":\"0000000000000001\",\"id\":\"1\",\"name\":\"get\"}},"
+      + "{\"_id\":\"b\",\"_source\":"
+      + "{\"traceId\":\"0000000000000001\",\"parentId\":\"1\",\"id\":\"2\",\"name\":\"query\"}}"
+      + "]}}"));
+
+    List<List<Span>> traces = spanStore.getTraces(QueryRequest.newBuilder()
+      .endTs(TODAY).lookback(10000L).limit(10).spanName("get").build()).execute();
+
+    assertThat(traces).hasSize(1);
+    assertThat(traces.get(0)).extracting(Span::name).containsExactly("get", "query");
+
+    assertThat(es.takeRequest().getBody().readUtf8()).contains("\"name\":\"get\"");
+    assertThat(es.takeRequest().getBody().readUtf8()) // spans are read by trace ID only
+      .contains("\"traceId\":[\"0000000000000001\"]")
+      .doesNotContain("\"name\":\"get\"");
+  }
+
   @Test
   public void serviceNames_defaultsTo24HrsAgo_6x() throws Exception {
     es.enqueue(new MockResponse().setBody(TestResponses.SERVICE_NAMES));
@@ -77,6 +139,35 @@ public class ElasticsearchSpanStoreTest {
     requestLimitedTo2DaysOfIndices_singleTypeIndex();
   }
 
+  @Test
+  public void queryCache_sharesNamesBetweenSpanStores() throws Exception {
+    storage = storage.toBuilder().queryCacheTtl(60000).build();
+    es.enqueue(new MockResponse().setBody(TestResponses.SPAN_NAMES));
+
+    // the server makes a new span store for each request
+    List<String> first = new ElasticsearchSpanStore(storage).getSpanNames("Foo").execute();
+    List<String> second = new ElasticsearchSpanStore(storage).getSpanNames("foo").execute();
+
+    assertThat(second).isEqualTo(first).isNotEmpty();
+    assertThat(es.getRequestCount()).isEqualTo(1);
+    assertThat(storage.queryCache().hitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void queryCache_dependenciesKeyedByIndices() throws Exception {
+    storage = storage.toBuilder().queryCacheTtl(60000).build();
+    spanStore = new ElasticsearchSpanStore(storage);
+    es.enqueue(new MockResponse());
+    es.enqueue(new MockResponse());
+
+    spanStore.getDependencies(TODAY + 1000L, 1000L).execute();
+    spanStore.getDependencies(TODAY + 2000L, 1000L).execute(); // same day
+    assertThat(es.getRequestCount()).isEqualTo(1);
+
+    spanStore.getDependencies(TODAY + 2000L, TimeUnit.DAYS.toMillis(1)).execute(); // two days
+    assertThat(es.getRequestCount()).isEqualTo(2);
+  }
+
   @Test
   public void searchDisabled_doesntMakeRemoteQueryRequests() throws Exception {
     try (ElasticsearchStorage storage =
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin2.Callback;
+import zipkin2.elasticsearch.ElasticsearchStorage;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class HttpBulkIndexerTest {
+  static final String INDEX_METADATA =
+    "{\"index\":{\"_index\":\"zipkin:span-2019-01-01\",\"_type\":\"span\"}}\n";
+
+  @Rule public MockWebServer es = new MockWebServer();
+
+  ElasticsearchStorage storage;
+
+  @After public void close() {
+    if (storage != null) storage.close();
+  }
+
+  HttpBulkIndexer newIndexer(ElasticsearchStorage.Builder builder) {
+    storage = builder.hosts(asList(es.url("").toString())).build();
+    return new HttpBulkIndexer("index-span", storage);
+  }
+
+  static MockResponse rejectSecond() {
+    return new MockResponse().setBody("{"
+      + "\"took\":1,\"errors\":true,\"items\":["
+      + "{\"index\":{\"_index\":\"zipkin:span-2019-01-01\",\"status\":201}},"
+      + "{\"index\":{\"_index\":\"zipkin:span-2019-01-01\",\"status\":429,\"error\":{"
+      + "\"type\":\"es_rejected_execution_exception\",\"reason\":\"queue capacity 200\"}}}"
+      + "]}");
+  }
+
+  static void addDocuments(HttpBulkIndexer indexer, String... documents) {
+    for (String document : documents) {
+      indexer.add("zipkin:span-2019-01-01", "span", document.getBytes(), null);
+    }
+  }
+
+  @Test public void singleRequestByDefault() throws Exception {
+    HttpBulkIndexer indexer = newIndexer(ElasticsearchStorage.newBuilder());
+    es.enqueue(new MockResponse());
+
+    addDocuments(indexer, "{\"a\":1}", "{\"b\":2}");
+    indexer.newCall().execute();
+
+    assertThat(es.takeRequest().getBody().readUtf8()).isEqualTo(""
+      + INDEX_METADATA + "{\"a\":1}\n"
+      + INDEX_METADATA + "{\"b\":2}\n");
+    assertThat(es.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test public void splitsByMaxDocuments() throws Exception {
+    HttpBulkIndexer indexer = newIndexer(ElasticsearchStorage.newBuilder().bulkMaxDocuments(2));
+    es.enqueue(new MockResponse());
+    es.enqueue(new MockResponse());
+
+    addDocuments(indexer, "{\"a\":1}", "{\"b\":2}", "{\"c\":3}");
+    indexer.newCall().execute();
+
+    assertThat(es.takeRequest().getBody().readUtf8()).isEqualTo(""
+      + INDEX_METADATA + "{\"a\":1}\n"
+      + INDEX_METADATA + "{\"b\":2}\n");
+    assertThat(es.takeRequest().getBody().readUtf8()).isEqualTo(""
+      + INDEX_METADATA + "{\"c\":3}\n");
+  }
+
+  @Test public void splitsByMaxBytes() throws Exception {
+    HttpBulkIndexer indexer = newIndexer(ElasticsearchStorage.newBuilder().bulkMaxBytes(1));
+    es.enqueue(new MockResponse());
+    es.enqueue(new MockResponse());
+
+    addDocuments(indexer, "{\"a\":1}", "{\"b\":2}");
+    indexer.newCall().execute();
+
+    assertThat(es.takeRequest().getBody().readUtf8()).isEqualTo(INDEX_METADATA + "{\"a\":1}\n");
+    assertThat(es.takeRequest().getBody().readUtf8()).isEqualTo(INDEX_METADATA + "{\"b\":2}\n");
+  }
+
+  @Test public void retriesOnlyRejectedDocuments() throws Exception {
+    HttpBulkIndexer indexer = newIndexer(ElasticsearchStorage.newBuilder());
+    es.enqueue(rejectSecond());
+    es.enqueue(new MockResponse());
+
+    addDocuments(indexer, "{\"a\":1}", "{\"b\":2}");
+    indexer.newCall().execute();
+
+    es.takeRequest(); // original request
+    assertThat(es.takeRequest().getBody().readUtf8()).isEqualTo(INDEX_METADATA + "{\"b\":2}\n");
+  }
+
+  @Test public void retriesOnlyRejectedDocuments_async() throws Exception {
+    HttpBulkIndexer indexer = newIndexer(ElasticsearchStorage.newBuilder());
+    es.enqueue(rejectSecond());
+    es.enqueue(new MockResponse());
+
+    addDocuments(indexer, "{\"a\":1}", "{\"b\":2}");
+    LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<>();
+    indexer.newCall().enqueue(new QueueCallback(result));
+
+    assertThat(result.poll(5, TimeUnit.SECONDS)).isEqualTo("success");
+    es.takeRequest(); // original request
+    assertThat(es.takeRequest().getBody().readUtf8()).isEqualTo(INDEX_METADATA + "{\"b\":2}\n");
+  }
+
+  @Test public void failsAfterMaxRetries() {
+    HttpBulkIndexer indexer = newIndexer(ElasticsearchStorage.newBuilder());
+    for (int i = 0; i <= HttpBulkIndexer.MAX_RETRIES; i++) es.enqueue(rejectSecond());
+
+    addDocuments(indexer, "{\"a\":1}", "{\"b\":2}");
+
+    assertThatThrownBy(() -> indexer.newCall().execute())
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageStartingWith("1 of 2 documents were rejected after 3 retries")
+      .hasMessageContaining("queue capacity 200");
+  }
+
+  @Test public void failsOnOtherDocumentErrors() {
+    HttpBulkIndexer indexer = newIndexer(ElasticsearchStorage.newBuilder());
+    es.enqueue(new MockResponse().setBody("{"
+      + "\"took\":1,\"errors\":true,\"items\":["
+      + "{\"index\":{\"_index\":\"zipkin:span-2019-01-01\",\"status\":400,\"error\":{"
+      + "\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}}}"
+      + "]}"));
+
+    addDocuments(indexer, "{\"a\":1}");
+
+    assertThatThrownBy(() -> indexer.newCall().execute())
+      .isInstanceOf(IllegalStateException.class)
+      .hasMessageContaining("mapper_parsing_exception");
+    assertThat(es.getRequestCount()).isEqualTo(1);
+  }
+
+  @Test public void pipelinesRequests() throws Exception {
+    HttpBulkIndexer indexer = newIndexer(ElasticsearchStorage.newBuilder()
+      .bulkMaxDocuments(1)
+      .bulkConcurrency(2));
+    for (int i = 0; i < 3; i++) es.enqueue(new MockResponse());
+
+    addDocuments(indexer, "{\"a\":1}", "{\"b\":2}", "{\"c\":3}");
+    LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<>();
+    indexer.newCall().enqueue(new QueueCallback(result));
+
+    assertThat(result.poll(5, TimeUnit.SECONDS)).isEqualTo("success");
+    assertThat(es.getRequestCount()).isEqualTo(3);
+  }
+
+  @Test public void pipelinesRequests_failsOnError() throws Exception {
+    HttpBulkIndexer indexer = newIndexer(ElasticsearchStorage.newBuilder()
+      .bulkMaxDocuments(1)
+      .bulkConcurrency(1));
+    es.enqueue(new MockResponse().setResponseCode(500));
+
+    addDocuments(indexer, "{\"a\":1}", "{\"b\":2}");
+    LinkedBlockingQueue<Object> result = new LinkedBlockingQueue<>();
+    indexer.newCall().enqueue(new QueueCallback(result));
+
+    assertThat(result.poll(5, TimeUnit.SECONDS)).isInstanceOf(IllegalStateException.class);
+    assertThat(es.getRequestCount()).isEqualTo(1); // the second request wasn't sent
+  }
+
+  static final class QueueCallback implements Callback<Void> {
+    final LinkedBlockingQueue<Object> result;
+
+    QueueCallback(LinkedBlockingQueue<Object> result) {
+      this.result = result;
+    }
+
+    @Override public void onSuccess(Void value) {
+      result.add("success");
+    }
+
+    @Override public void onError(Throwable t) {
+      result.add(t);
+    }
+  }
+}
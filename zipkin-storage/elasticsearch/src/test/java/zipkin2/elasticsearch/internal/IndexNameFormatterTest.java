@@ -273,4 +273,37 @@ public class IndexNameFormatterTest {
     assertThat(formatter.formatTypeAndRange("span", start, end))
       .containsExactly("zipkin:span-2016.06.*");
   }
+
+  @Test
+  public void indexNameForTimestampRange_compressesTens_february() throws ParseException {
+    long start = iso8601.parse("2017-02-19T01:01:01Z").getTime();
+    long end = iso8601.parse("2017-03-01T01:01:01Z").getTime();
+
+    assertThat(formatter.formatTypeAndRange("span", start, end))
+      .containsExactly(
+        "zipkin:span-2017-02-19",
+        "zipkin:span-2017-02-2*",
+        "zipkin:span-2017-03-01");
+  }
+
+  @Test
+  public void formatTypeAndTimestamp_reusesNameForSameDay() throws ParseException {
+    long start = iso8601.parse("2016-11-01T01:01:01Z").getTime();
+    long end = iso8601.parse("2016-11-01T23:59:59Z").getTime();
+
+    assertThat(formatter.formatTypeAndTimestamp("span", end))
+      .isEqualTo("zipkin:span-2016-11-01")
+      .isSameAs(formatter.formatTypeAndTimestamp("span", start));
+  }
+
+  @Test
+  public void formatTypeAndTimestamp_noDateSeparator() throws ParseException {
+    formatter = formatter.toBuilder().dateSeparator((char) 0).build();
+    long timestamp = iso8601.parse("2016-11-01T01:01:01Z").getTime();
+
+    assertThat(formatter.formatTypeAndTimestamp("span", timestamp))
+      .isEqualTo("zipkin:span-20161101");
+    assertThat(formatter.parseDate("20161101"))
+      .isEqualTo(iso8601.parse("2016-11-01T00:00:00Z").getTime());
+  }
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.elasticsearch.internal;
+
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import zipkin2.Call;
+import zipkin2.Callback;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class QueryCacheTest {
+  static final long TTL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  FakeTicker ticker = new FakeTicker();
+  QueryCache cache = QueryCache.newBuilder().ttl(1000).maxSize(2).ticker(ticker).build();
+  AtomicInteger requests = new AtomicInteger();
+  List<Callback<List<String>>> inFlight = new ArrayList<>();
+  List<Object> results = new ArrayList<>();
+
+  @Test public void disabledByDefault() {
+    Call<List<String>> call = new NamesCall(asList("a"));
+    assertThat(QueryCache.newBuilder().build().newCall("key", () -> call)).isSameAs(call);
+  }
+
+  @Test public void cachesUntilTtl() throws IOException {
+    assertThat(cache.newCall("key", () -> new NamesCall(asList("a"))).execute())
+      .containsExactly("a");
+    assertThat(cache.newCall("key", () -> new NamesCall(asList("b"))).execute())
+      .containsExactly("a");
+
+    ticker.time += TTL_NANOS;
+    assertThat(cache.newCall("key", () -> new NamesCall(asList("b"))).execute())
+      .containsExactly("b");
+
+    assertThat(requests).hasValue(2);
+    assertThat(cache.hitCount()).isEqualTo(1);
+    assertThat(cache.missCount()).isEqualTo(2);
+  }
+
+  @Test public void sharesRequestInFlight() {
+    cache.newCall("key", () -> new NamesCall(asList("a"))).enqueue(new ResultCallback());
+    cache.newCall("key", () -> new NamesCall(asList("a"))).enqueue(new ResultCallback());
+    assertThat(results).isEmpty();
+
+    inFlight.remove(0).onSuccess(asList("a"));
+
+    assertThat(results).containsExactly(asList("a"), asList("a"));
+    assertThat(requests).hasValue(1);
+  }
+
+  @Test public void sharesRequestInFlight_execute() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<List<String>>> futures = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        futures.add(executor.submit(() -> cache.newCall("key", () -> new NamesCall(asList("a")) {
+          @Override protected List<String> doExecute() throws IOException {
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            return super.doExecute();
+          }
+        }).execute()));
+      }
+      Thread.sleep(100L); // let the other threads join the first request
+      release.countDown();
+
+      for (Future<List<String>> future : futures) {
+        assertThat(future.get(1, TimeUnit.SECONDS)).containsExactly("a");
+      }
+      assertThat(requests).hasValue(1);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test public void doesntCacheFailures() throws IOException {
+    assertThatThrownBy(() -> cache.newCall("key", FailingCall::new).execute())
+      .isInstanceOf(IOException.class);
+
+    assertThat(cache.newCall("key", () -> new NamesCall(asList("a"))).execute())
+      .containsExactly("a");
+  }
+
+  @Test public void evictsLeastRecentlyUsed() throws IOException {
+    cache.newCall("a", () -> new NamesCall(asList("a"))).execute();
+    cache.newCall("b", () -> new NamesCall(asList("b"))).execute();
+    cache.newCall("a", () -> new NamesCall(asList("a"))).execute();
+    cache.newCall("c", () -> new NamesCall(asList("c"))).execute();
+
+    assertThat(cache.entries).containsOnlyKeys("a", "c");
+  }
+
+  @Test public void refreshUnlessContains() throws IOException {
+    cache.newCall("key", () -> new NamesCall(asList("a"))).execute();
+
+    cache.refreshUnlessContains("key", "a");
+    assertThat(inFlight).isEmpty();
+
+    cache.refreshUnlessContains("key", "b");
+    cache.refreshUnlessContains("key", "b"); // doesn't make another request
+    assertThat(inFlight).hasSize(1);
+
+    // the old value is returned while the refresh is in flight
+    assertThat(cache.newCall("key", () -> new NamesCall(asList("a"))).execute())
+      .containsExactly("a");
+
+    inFlight.remove(0).onSuccess(asList("a", "b"));
+
+    assertThat(cache.newCall("key", () -> new NamesCall(asList("a"))).execute())
+      .containsExactly("a", "b");
+    assertThat(requests).hasValue(2);
+  }
+
+  @Test public void refreshUnlessContains_confirmedUntilValueChanges() throws IOException {
+    cache.newCall("key", () -> new NamesCall(asList("a"))).execute();
+    cache.refreshUnlessContains("key", "a");
+    assertThat(cache.confirmed).containsExactly(new SimpleImmutableEntry<>("key", "a"));
+
+    ticker.time += TTL_NANOS;
+    cache.newCall("key", () -> new NamesCall(asList("b"))).execute();
+    assertThat(cache.confirmed).isEmpty();
+
+    cache.refreshUnlessContains("key", "a"); // no longer in the cached value
+    assertThat(inFlight).hasSize(1);
+  }
+
+  @Test public void refreshUnlessContains_ignoresAbsentKey() {
+    cache.refreshUnlessContains("key", "a");
+
+    assertThat(requests).hasValue(0);
+  }
+
+  static final class FakeTicker extends QueryCache.Ticker {
+    long time;
+
+    @Override long read() {
+      return time;
+    }
+  }
+
+  final class ResultCallback implements Callback<List<String>> {
+    @Override public void onSuccess(List<String> value) {
+      results.add(value);
+    }
+
+    @Override public void onError(Throwable t) {
+      results.add(t);
+    }
+  }
+
+  /** Returns names on execute, or waits for the test to complete the callback on enqueue */
+  class NamesCall extends Call.Base<List<String>> {
+    final List<String> names;
+
+    NamesCall(List<String> names) {
+      this.names = names;
+    }
+
+    @Override protected List<String> doExecute() throws IOException {
+      requests.incrementAndGet();
+      return names;
+    }
+
+    @Override protected void doEnqueue(Callback<List<String>> callback) {
+      requests.incrementAndGet();
+      inFlight.add(callback);
+    }
+
+    @Override public Call<List<String>> clone() {
+      return new NamesCall(names);
+    }
+  }
+
+  static final class FailingCall extends Call.Base<List<String>> {
+    @Override protected List<String> doExecute() throws IOException {
+      throw new IOException("timeout");
+    }
+
+    @Override protected void doEnqueue(Callback<List<String>> callback) {
+      callback.onError(new IOException("timeout"));
+    }
+
+    @Override public Call<List<String>> clone() {
+      return new FailingCall();
+    }
+  }
+}
@@ -36,4 +36,12 @@ public class SearchRequestTest {
     assertThat(adapter.toJson(request))
         .isEqualTo("{\"size\":10000}");
   }
+
+  @Test
+  public void excludeSource() {
+    request.excludeSource("_q", "timestamp_millis");
+
+    assertThat(adapter.toJson(request))
+        .isEqualTo("{\"size\":10000,\"_source\":{\"excludes\":[\"_q\",\"timestamp_millis\"]}}");
+  }
 }
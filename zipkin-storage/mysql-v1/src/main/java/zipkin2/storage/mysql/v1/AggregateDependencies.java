@@ -18,6 +18,7 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.function.Function;
+import org.jooq.Condition;
 import org.jooq.Cursor;
 import org.jooq.DSLContext;
 import org.jooq.Record;
@@ -49,6 +50,11 @@ final class AggregateDependencies implements Function<DSLContext, List<Dependenc
       .where(startTsBegin == startTsEnd
         ? ZIPKIN_SPANS.START_TS.lessOrEqual(startTsEnd)
         : ZIPKIN_SPANS.START_TS.between(startTsBegin, startTsEnd));
+    return link(context, schema, ZIPKIN_SPANS.TRACE_ID.in(traceIDs));
+  }
+
+  /** Links all spans in the traces matched by the condition. */
+  static List<DependencyLink> link(DSLContext context, Schema schema, Condition traceIds) {
     // Lazy fetching the cursor prevents us from buffering the whole dataset in memory.
     Cursor<Record> cursor = context.selectDistinct(schema.dependencyLinkerFields)
       // left joining allows us to keep a mapping of all span ids, not just ones that have
@@ -60,7 +66,7 @@ final class AggregateDependencies implements Function<DSLContext, List<Dependenc
         .on(ZIPKIN_SPANS.TRACE_ID.eq(ZIPKIN_ANNOTATIONS.TRACE_ID)
           .and(ZIPKIN_SPANS.ID.eq(ZIPKIN_ANNOTATIONS.SPAN_ID)))
         .and(ZIPKIN_ANNOTATIONS.A_KEY.in("lc", "cs", "ca", "sr", "sa", "ma", "mr", "ms", "error")))
-      .where(ZIPKIN_SPANS.TRACE_ID.in(traceIDs))
+      .where(traceIds)
       // Grouping so that later code knows when a span or trace is finished.
       .groupBy(schema.dependencyLinkerGroupByFields)
       .fetchLazy();
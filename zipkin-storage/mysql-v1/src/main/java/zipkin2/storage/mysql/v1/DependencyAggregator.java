@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.mysql.v1;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jooq.Condition;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.InsertOnDuplicateSetMoreStep;
+import org.jooq.InsertSetMoreStep;
+import org.jooq.Query;
+import org.jooq.Record;
+import org.jooq.Record1;
+import org.jooq.Select;
+import org.jooq.Table;
+import org.jooq.impl.DSL;
+import zipkin2.DependencyLink;
+
+import static org.jooq.impl.DSL.coalesce;
+import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.min;
+import static org.jooq.impl.DSL.name;
+import static org.jooq.impl.DSL.row;
+import static org.jooq.impl.DSL.table;
+import static zipkin2.storage.mysql.v1.internal.generated.tables.ZipkinDependencies.ZIPKIN_DEPENDENCIES;
+import static zipkin2.storage.mysql.v1.internal.generated.tables.ZipkinSpans.ZIPKIN_SPANS;
+
+/**
+ * Aggregates dependency links in the background, so that {@link MySQLSpanStore#getDependencies}
+ * mostly sums rows of zipkin_dependencies, instead of linking all traces in the request window.
+ *
+ * <p>Traces are linked an hour at a time, and belong to the hour of their earliest span. An hour
+ * is linked once the quiet period has passed since its end, as traces are assumed to be complete by
+ * then. Links are added to the zipkin_dependencies row of that hour's day. In the same transaction,
+ * the end of that hour is saved as the watermark in zipkin_dependency_watermark. Hours are linked
+ * without a lock. The watermark row is only locked while the links are written, and they are
+ * discarded if another server advanced the watermark in the mean time.
+ *
+ * <p>Links are added to any already in zipkin_dependencies. Don't use this with the
+ * zipkin-dependencies job, which would count the same traces again.
+ */
+final class DependencyAggregator implements Runnable, Closeable {
+  static final Logger LOG = Logger.getLogger(DependencyAggregator.class.getName());
+  static final long HOUR_MICROS = TimeUnit.HOURS.toMicros(1);
+  static final long DAY_MICROS = TimeUnit.DAYS.toMicros(1);
+
+  // Not generated, as this table is only used when aggregating dependencies
+  static final Table<Record> ZIPKIN_DEPENDENCY_WATERMARK =
+    table(name("zipkin_dependency_watermark"));
+  static final Field<Integer> WATERMARK_ID = field(name("id"), Integer.class);
+  static final Field<Long> WATERMARK_LINKED_FROM = field(name("linked_from"), Long.class);
+  static final Field<Long> WATERMARK_LINKED_UNTIL = field(name("linked_until"), Long.class);
+
+  final MySQLStorage storage;
+  final long quietPeriodMicros;
+
+  // guarded by this
+  ScheduledExecutorService scheduler;
+  boolean closed;
+
+  DependencyAggregator(MySQLStorage storage, int quietPeriodMillis) {
+    this.storage = storage;
+    this.quietPeriodMicros = TimeUnit.MILLISECONDS.toMicros(quietPeriodMillis);
+  }
+
+  /**
+   * Checks for settled hours every minute, starting on the first call. This is called on first use
+   * of the storage, so that building one doesn't start a thread.
+   */
+  synchronized void start() {
+    if (closed || scheduler != null) return;
+    scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "ZipkinMySQLDependencyAggregator");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(this, 0, 1, TimeUnit.MINUTES);
+  }
+
+  @Override public void run() {
+    try {
+      while (!Thread.currentThread().isInterrupted() && linkNextHour(currentTimeMicros())) {
+        // keep linking until caught up
+      }
+    } catch (SQLException | RuntimeException e) {
+      // the transaction rolled back, so the same hour will be linked next time
+      LOG.log(Level.WARNING, "problem aggregating dependencies", e);
+    }
+  }
+
+  /** Returns true if an hour was linked, as the next hour may also be settled. */
+  boolean linkNextHour(long nowMicros) throws SQLException {
+    Schema schema = storage.schema();
+    try (Connection conn = storage.datasource.getConnection()) {
+      DSLContext context = storage.context.get(conn);
+      // ensure there's a watermark, in case this is the first run
+      long initialWatermark = initialWatermark(nowMicros, quietPeriodMicros);
+      context.insertInto(ZIPKIN_DEPENDENCY_WATERMARK)
+        .set(WATERMARK_ID, 1)
+        .set(WATERMARK_LINKED_FROM, initialWatermark)
+        .set(WATERMARK_LINKED_UNTIL, initialWatermark)
+        .onDuplicateKeyIgnore()
+        .execute();
+      long hourStart = context.select(WATERMARK_LINKED_UNTIL)
+        .from(ZIPKIN_DEPENDENCY_WATERMARK)
+        .where(WATERMARK_ID.eq(1))
+        .fetchOne(WATERMARK_LINKED_UNTIL);
+      if (!isSettled(hourStart, nowMicros, quietPeriodMicros)) return false;
+
+      // Linking an hour can take a while, so it is done before locking the watermark.
+      List<DependencyLink> links = AggregateDependencies.link(context, schema,
+        traceIdsStartedIn(context, schema, hourStart, hourStart + HOUR_MICROS - 1));
+
+      return context.transactionResult(configuration -> {
+        DSLContext transaction = DSL.using(configuration);
+        long linkedUntil = transaction.select(WATERMARK_LINKED_UNTIL)
+          .from(ZIPKIN_DEPENDENCY_WATERMARK)
+          .where(WATERMARK_ID.eq(1))
+          .forUpdate()
+          .fetchOne(WATERMARK_LINKED_UNTIL);
+        // another server linked this hour first: drop our links and move on to the next
+        if (linkedUntil != hourStart) return true;
+
+        Date day = new Date(TimeUnit.MICROSECONDS.toMillis(hourStart / DAY_MICROS * DAY_MICROS));
+        List<Query> queries = new ArrayList<>();
+        for (DependencyLink link : links) {
+          InsertSetMoreStep<Record> insert = transaction.insertInto(ZIPKIN_DEPENDENCIES)
+            .set(ZIPKIN_DEPENDENCIES.DAY, day)
+            .set(ZIPKIN_DEPENDENCIES.PARENT, link.parent())
+            .set(ZIPKIN_DEPENDENCIES.CHILD, link.child())
+            .set(ZIPKIN_DEPENDENCIES.CALL_COUNT, link.callCount());
+          if (schema.hasErrorCount) insert.set(ZIPKIN_DEPENDENCIES.ERROR_COUNT, link.errorCount());
+
+          // add to the counts of the day so far
+          InsertOnDuplicateSetMoreStep<Record> upsert = insert.onDuplicateKeyUpdate()
+            .set(ZIPKIN_DEPENDENCIES.CALL_COUNT,
+              coalesce(ZIPKIN_DEPENDENCIES.CALL_COUNT, 0L).plus(link.callCount()));
+          if (schema.hasErrorCount) {
+            upsert.set(ZIPKIN_DEPENDENCIES.ERROR_COUNT,
+              coalesce(ZIPKIN_DEPENDENCIES.ERROR_COUNT, 0L).plus(link.errorCount()));
+          }
+          queries.add(upsert);
+        }
+        queries.add(transaction.update(ZIPKIN_DEPENDENCY_WATERMARK)
+          .set(WATERMARK_LINKED_UNTIL, hourStart + HOUR_MICROS)
+          .where(WATERMARK_ID.eq(1)));
+        transaction.batch(queries).execute();
+        return true;
+      });
+    }
+  }
+
+  /**
+   * Returns a condition matching traces whose earliest span started in the interval, inclusive.
+   * When the schema has 128-bit trace IDs, traces that only share the lower 64-bits are considered
+   * separately.
+   */
+  static Condition traceIdsStartedIn(DSLContext context, Schema schema, long startTsBegin,
+    long startTsEnd) {
+    // Only traces with a span in the interval can have started in it
+    Select<Record1<Long>> candidates = context.selectDistinct(ZIPKIN_SPANS.TRACE_ID)
+      .from(ZIPKIN_SPANS)
+      .where(ZIPKIN_SPANS.START_TS.between(startTsBegin, startTsEnd));
+    if (schema.hasTraceIdHigh) {
+      return row(ZIPKIN_SPANS.TRACE_ID_HIGH, ZIPKIN_SPANS.TRACE_ID).in(
+        context.select(ZIPKIN_SPANS.TRACE_ID_HIGH, ZIPKIN_SPANS.TRACE_ID)
+          .from(ZIPKIN_SPANS)
+          .where(ZIPKIN_SPANS.TRACE_ID.in(candidates))
+          .groupBy(ZIPKIN_SPANS.TRACE_ID_HIGH, ZIPKIN_SPANS.TRACE_ID)
+          .having(min(ZIPKIN_SPANS.START_TS).greaterOrEqual(startTsBegin)));
+    }
+    return ZIPKIN_SPANS.TRACE_ID.in(context.select(ZIPKIN_SPANS.TRACE_ID)
+      .from(ZIPKIN_SPANS)
+      .where(ZIPKIN_SPANS.TRACE_ID.in(candidates))
+      .groupBy(ZIPKIN_SPANS.TRACE_ID)
+      .having(min(ZIPKIN_SPANS.START_TS).greaterOrEqual(startTsBegin)));
+  }
+
+  /** Without a watermark, start linking at midnight, so that the current day is complete. */
+  static long initialWatermark(long nowMicros, long quietPeriodMicros) {
+    return (nowMicros - quietPeriodMicros) / DAY_MICROS * DAY_MICROS;
+  }
+
+  /** Returns true when the quiet period has passed since the end of the hour. */
+  static boolean isSettled(long hourStart, long nowMicros, long quietPeriodMicros) {
+    return hourStart + HOUR_MICROS + quietPeriodMicros <= nowMicros;
+  }
+
+  long currentTimeMicros() {
+    return System.currentTimeMillis() * 1000L;
+  }
+
+  @Override public void close() {
+    synchronized (this) {
+      closed = true;
+      if (scheduler == null) return;
+    }
+    scheduler.shutdownNow();
+  }
+
+  @Override public String toString() {
+    return "DependencyAggregator{quietPeriodMicros=" + quietPeriodMicros + "}";
+  }
+}
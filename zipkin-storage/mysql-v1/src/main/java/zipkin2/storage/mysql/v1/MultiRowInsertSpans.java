@@ -0,0 +1,295 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.mysql.v1;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.internal.Nullable;
+import zipkin2.v1.V1Annotation;
+import zipkin2.v1.V1BinaryAnnotation;
+import zipkin2.v1.V1Span;
+import zipkin2.v1.V2SpanConverter;
+
+import static zipkin2.internal.HexCodec.lowerHexToUnsignedLong;
+import static zipkin2.storage.mysql.v1.MySQLSpanConsumer.ONE;
+import static zipkin2.storage.mysql.v1.MySQLSpanConsumer.UTF_8;
+import static zipkin2.storage.mysql.v1.internal.generated.tables.ZipkinAnnotations.ZIPKIN_ANNOTATIONS;
+import static zipkin2.storage.mysql.v1.internal.generated.tables.ZipkinSpans.ZIPKIN_SPANS;
+
+/**
+ * Writes the same rows as {@link MySQLSpanConsumer.BatchInsertSpans}, but with multi-row {@code
+ * INSERT ... VALUES (...),(...)} statements instead of one jOOQ query per row.
+ *
+ * <p>Rows are chunked into statements of up to {@code maxRowsPerInsert} rows. All full chunks of a
+ * table share one prepared statement, executed as a JDBC batch, so the SQL text is only built for
+ * the remainder. Span rows are read directly from the v2 model. Annotation rows still use {@link
+ * V2SpanConverter}, as it derives core annotations like "cs" and address annotations like "sa".
+ *
+ * <p>This uses the JDBC connection directly, so an {@link org.jooq.ExecuteListenerProvider} isn't
+ * notified of these statements.
+ */
+final class MultiRowInsertSpans implements Function<DSLContext, Void> {
+
+  /** Holds SQL which only depends on the schema, so that it is built once per consumer. */
+  static final class Factory {
+    final Schema schema;
+    final int maxRowsPerInsert;
+    final Table spans, sharedSpans, annotations;
+
+    Factory(Schema schema, int maxRowsPerInsert) {
+      if (maxRowsPerInsert <= 0) throw new IllegalArgumentException("maxRowsPerInsert <= 0");
+      this.schema = schema;
+      this.maxRowsPerInsert = maxRowsPerInsert;
+
+      List<Field<?>> spanFields = new ArrayList<>();
+      if (schema.hasTraceIdHigh) spanFields.add(ZIPKIN_SPANS.TRACE_ID_HIGH);
+      spanFields.add(ZIPKIN_SPANS.TRACE_ID);
+      spanFields.add(ZIPKIN_SPANS.ID);
+      spanFields.add(ZIPKIN_SPANS.NAME);
+      if (schema.hasRemoteServiceName) spanFields.add(ZIPKIN_SPANS.REMOTE_SERVICE_NAME);
+      spanFields.add(ZIPKIN_SPANS.PARENT_ID);
+      spanFields.add(ZIPKIN_SPANS.DEBUG);
+      spanFields.add(ZIPKIN_SPANS.START_TS);
+      spanFields.add(ZIPKIN_SPANS.DURATION);
+
+      // Empty names are placeholders for missing ones, so don't overwrite a name with them.
+      StringBuilder update = new StringBuilder(" ON DUPLICATE KEY UPDATE ");
+      updateName(update, ZIPKIN_SPANS.NAME);
+      if (schema.hasRemoteServiceName) {
+        updateName(update.append(','), ZIPKIN_SPANS.REMOTE_SERVICE_NAME);
+      }
+      updateIfNotNull(update.append(','), ZIPKIN_SPANS.PARENT_ID);
+      updateIfNotNull(update.append(','), ZIPKIN_SPANS.DURATION);
+      String sharedUpdate = update.toString();
+      // replace any tentative timestamp with the authoritative one.
+      updateIfNotNull(update.append(','), ZIPKIN_SPANS.START_TS);
+
+      String insertSpans = "INSERT INTO " + ZIPKIN_SPANS.getName();
+      spans = new Table(insertSpans, spanFields, update.toString(), maxRowsPerInsert);
+      sharedSpans = new Table(insertSpans, spanFields, sharedUpdate, maxRowsPerInsert);
+
+      List<Field<?>> annotationFields = new ArrayList<>();
+      if (schema.hasTraceIdHigh) annotationFields.add(ZIPKIN_ANNOTATIONS.TRACE_ID_HIGH);
+      annotationFields.add(ZIPKIN_ANNOTATIONS.TRACE_ID);
+      annotationFields.add(ZIPKIN_ANNOTATIONS.SPAN_ID);
+      annotationFields.add(ZIPKIN_ANNOTATIONS.A_KEY);
+      annotationFields.add(ZIPKIN_ANNOTATIONS.A_VALUE);
+      annotationFields.add(ZIPKIN_ANNOTATIONS.A_TYPE);
+      annotationFields.add(ZIPKIN_ANNOTATIONS.A_TIMESTAMP);
+      annotationFields.add(ZIPKIN_ANNOTATIONS.ENDPOINT_IPV4);
+      if (schema.hasIpv6) annotationFields.add(ZIPKIN_ANNOTATIONS.ENDPOINT_IPV6);
+      annotationFields.add(ZIPKIN_ANNOTATIONS.ENDPOINT_PORT);
+      annotationFields.add(ZIPKIN_ANNOTATIONS.ENDPOINT_SERVICE_NAME);
+
+      annotations = new Table("INSERT IGNORE INTO " + ZIPKIN_ANNOTATIONS.getName(),
+        annotationFields, "", maxRowsPerInsert);
+    }
+
+    MultiRowInsertSpans create(List<Span> spans) {
+      return new MultiRowInsertSpans(this, spans);
+    }
+  }
+
+  /** The SQL and parameter types of a multi-row insert into one table. */
+  static final class Table {
+    final String insert, values, suffix, fullChunkSql;
+    final int[] sqlTypes;
+
+    Table(String insert, List<Field<?>> fields, String suffix, int maxRowsPerInsert) {
+      StringBuilder columns = new StringBuilder(insert).append(" (");
+      StringBuilder values = new StringBuilder("(");
+      sqlTypes = new int[fields.size()];
+      for (int i = 0; i < sqlTypes.length; i++) {
+        if (i > 0) {
+          columns.append(',');
+          values.append(',');
+        }
+        columns.append(fields.get(i).getName());
+        values.append('?');
+        sqlTypes[i] = sqlType(fields.get(i));
+      }
+      this.insert = columns.append(") VALUES ").toString();
+      this.values = values.append(')').toString();
+      this.suffix = suffix;
+      this.fullChunkSql = sql(maxRowsPerInsert);
+    }
+
+    String sql(int rowCount) {
+      StringBuilder result = new StringBuilder(
+        insert.length() + rowCount * (values.length() + 1) + suffix.length()).append(insert);
+      for (int i = 0; i < rowCount; i++) {
+        if (i > 0) result.append(',');
+        result.append(values);
+      }
+      return result.append(suffix).toString();
+    }
+  }
+
+  final Factory factory;
+  final List<Span> spans;
+
+  MultiRowInsertSpans(Factory factory, List<Span> spans) {
+    this.factory = factory;
+    this.spans = spans;
+  }
+
+  @Override public Void apply(DSLContext create) {
+    Schema schema = factory.schema;
+    // parameters of all rows, in column order
+    List<Object> spanValues = new ArrayList<>(), sharedSpanValues = new ArrayList<>();
+    List<Object> annotationValues = new ArrayList<>();
+    V2SpanConverter v2SpanConverter = V2SpanConverter.create();
+
+    for (Span v2 : spans) {
+      String traceIdHex = v2.traceId();
+      long traceIdHigh = schema.hasTraceIdHigh && traceIdHex.length() == 32
+        ? lowerHexToUnsignedLong(traceIdHex, 0) : 0L;
+      long traceId = lowerHexToUnsignedLong(traceIdHex), spanId = lowerHexToUnsignedLong(v2.id());
+      long timestamp = v2.timestampAsLong();
+
+      // Shared spans don't report duration, and their timestamp is only tentative.
+      boolean shared = Boolean.TRUE.equals(v2.shared());
+      List<Object> row = shared ? sharedSpanValues : spanValues;
+      if (schema.hasTraceIdHigh) row.add(traceIdHigh);
+      row.add(traceId);
+      row.add(spanId);
+      row.add(nameOrEmpty(v2.name()));
+      if (schema.hasRemoteServiceName) row.add(nameOrEmpty(v2.remoteServiceName()));
+      row.add(v2.parentId() != null ? lowerHexToUnsignedLong(v2.parentId()) : null);
+      row.add(v2.debug());
+      row.add(timestamp != 0L ? timestamp : null);
+      long duration = shared ? 0L : v2.durationAsLong();
+      row.add(duration != 0L ? duration : null);
+
+      V1Span v1Span = v2SpanConverter.convert(v2);
+      Endpoint ep = v2.localEndpoint();
+      for (V1Annotation a : v1Span.annotations()) {
+        addAnnotation(annotationValues, traceIdHigh, traceId, spanId, a.value(), null, -1,
+          a.timestamp(), ep);
+      }
+      for (V1BinaryAnnotation ba : v1Span.binaryAnnotations()) {
+        if (ba.stringValue() != null) {
+          addAnnotation(annotationValues, traceIdHigh, traceId, spanId, ba.key(),
+            ba.stringValue().getBytes(UTF_8), ba.type(), timestamp, ep);
+        } else { // add the address annotation
+          addAnnotation(annotationValues, traceIdHigh, traceId, spanId, ba.key(), ONE, ba.type(),
+            timestamp, ba.endpoint());
+        }
+      }
+    }
+
+    create.connection(conn -> {
+      insert(conn, factory.spans, spanValues);
+      insert(conn, factory.sharedSpans, sharedSpanValues);
+      insert(conn, factory.annotations, annotationValues);
+    });
+    return null;
+  }
+
+  void addAnnotation(List<Object> row, long traceIdHigh, long traceId, long spanId, String key,
+    @Nullable byte[] value, int type, long timestamp, @Nullable Endpoint ep) {
+    if (factory.schema.hasTraceIdHigh) row.add(traceIdHigh);
+    row.add(traceId);
+    row.add(spanId);
+    row.add(key);
+    row.add(value);
+    row.add(type);
+    row.add(timestamp);
+    int ipv4 = ep != null && ep.ipv4Bytes() != null ? ByteBuffer.wrap(ep.ipv4Bytes()).getInt() : 0;
+    row.add(ipv4 != 0 ? ipv4 : null);
+    if (factory.schema.hasIpv6) row.add(ep != null ? ep.ipv6Bytes() : null);
+    row.add(ep != null && ep.portAsInt() != 0 ? (short) ep.portAsInt() : null);
+    // old code wrote empty service names
+    row.add(ep != null ? (ep.serviceName() != null ? ep.serviceName() : "") : null);
+  }
+
+  void insert(Connection conn, Table table, List<Object> values) throws SQLException {
+    int maxRowsPerInsert = factory.maxRowsPerInsert;
+    int rowCount = values.size() / table.sqlTypes.length;
+    int fullChunks = rowCount / maxRowsPerInsert, remainder = rowCount % maxRowsPerInsert;
+    int offset = 0;
+    if (fullChunks > 0) {
+      try (PreparedStatement statement = conn.prepareStatement(table.fullChunkSql)) {
+        for (int i = 0; i < fullChunks; i++) {
+          offset = bind(statement, table, values, offset, maxRowsPerInsert);
+          statement.addBatch();
+        }
+        statement.executeBatch();
+      }
+    }
+    if (remainder > 0) {
+      try (PreparedStatement statement = conn.prepareStatement(table.sql(remainder))) {
+        bind(statement, table, values, offset, remainder);
+        statement.executeUpdate();
+      }
+    }
+  }
+
+  /** Binds parameters of the rows at the offset, returning the offset of the next row. */
+  static int bind(PreparedStatement statement, Table table, List<Object> values, int offset,
+    int rowCount) throws SQLException {
+    int columnCount = table.sqlTypes.length;
+    for (int i = 0, length = rowCount * columnCount; i < length; i++) {
+      Object value = values.get(offset++);
+      int sqlType = table.sqlTypes[i % columnCount];
+      if (value == null) {
+        statement.setNull(i + 1, sqlType);
+      } else {
+        statement.setObject(i + 1, value, sqlType);
+      }
+    }
+    return offset;
+  }
+
+  static int sqlType(Field<?> field) {
+    Class<?> type = field.getType();
+    if (type == Long.class) return Types.BIGINT;
+    if (type == Integer.class) return Types.INTEGER;
+    if (type == Short.class) return Types.SMALLINT;
+    if (type == Boolean.class) return Types.BIT;
+    if (type == byte[].class) return Types.VARBINARY;
+    return Types.VARCHAR;
+  }
+
+  static void updateName(StringBuilder update, Field<?> field) {
+    String name = field.getName();
+    update.append(name).append("=CASE WHEN VALUES(").append(name).append(")='' THEN ")
+      .append(name).append(" ELSE VALUES(").append(name).append(") END");
+  }
+
+  static void updateIfNotNull(StringBuilder update, Field<?> field) {
+    String name = field.getName();
+    update.append(name).append("=COALESCE(VALUES(").append(name).append("),").append(name)
+      .append(')');
+  }
+
+  static String nameOrEmpty(@Nullable String name) {
+    // old code wrote empty span name
+    return name != null && !name.equals("unknown") ? name : "";
+  }
+
+  @Override public String toString() {
+    return "MultiRowInsertSpans{spans=" + spans + "}";
+  }
+}
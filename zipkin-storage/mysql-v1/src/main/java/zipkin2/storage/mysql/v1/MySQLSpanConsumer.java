@@ -44,15 +44,23 @@ final class MySQLSpanConsumer implements SpanConsumer {
 
   final DataSourceCall.Factory dataSourceCallFactory;
   final Schema schema;
+  @Nullable final MultiRowInsertSpans.Factory multiRowInsertSpans;
 
-  MySQLSpanConsumer(DataSourceCall.Factory dataSourceCallFactory, Schema schema) {
+  MySQLSpanConsumer(DataSourceCall.Factory dataSourceCallFactory, Schema schema,
+    int maxRowsPerInsert) {
     this.dataSourceCallFactory = dataSourceCallFactory;
     this.schema = schema;
+    this.multiRowInsertSpans = maxRowsPerInsert > 0
+      ? new MultiRowInsertSpans.Factory(schema, maxRowsPerInsert)
+      : null;
   }
 
   @Override
   public Call<Void> accept(List<Span> spans) {
     if (spans.isEmpty()) return Call.create(null);
+    if (multiRowInsertSpans != null) {
+      return dataSourceCallFactory.create(multiRowInsertSpans.create(spans));
+    }
     return dataSourceCallFactory.create(new BatchInsertSpans(spans, schema));
   }
 
@@ -30,7 +30,7 @@ final class MySQLSpanStore implements SpanStore, ServiceAndSpanNames {
 
   final DataSourceCall.Factory dataSourceCallFactory;
   final Schema schema;
-  final boolean strictTraceId, searchEnabled;
+  final boolean strictTraceId, searchEnabled, aggregatesDependencies;
   final SelectSpansAndAnnotations.Factory selectFromSpansAndAnnotationsFactory;
   final Call.Mapper<List<Span>, List<List<Span>>> groupByTraceId;
   final DataSourceCall<List<String>> getServiceNamesCall;
@@ -40,8 +40,10 @@ final class MySQLSpanStore implements SpanStore, ServiceAndSpanNames {
     this.schema = schema;
     this.strictTraceId = storage.strictTraceId;
     this.searchEnabled = storage.searchEnabled;
+    this.aggregatesDependencies =
+      storage.dependencyAggregator != null && schema.hasDependencyWatermark;
     this.selectFromSpansAndAnnotationsFactory =
-      new SelectSpansAndAnnotations.Factory(schema, strictTraceId);
+      new SelectSpansAndAnnotations.Factory(schema, strictTraceId, storage.streamTraces);
     this.groupByTraceId = GroupByTraceId.create(strictTraceId);
     this.getServiceNamesCall = dataSourceCallFactory.create(new SelectAnnotationServiceNames());
   }
@@ -90,6 +92,10 @@ final class MySQLSpanStore implements SpanStore, ServiceAndSpanNames {
     if (endTs <= 0) throw new IllegalArgumentException("endTs <= 0");
     if (lookback <= 0) throw new IllegalArgumentException("lookback <= 0");
 
+    if (aggregatesDependencies) {
+      return dataSourceCallFactory.create(
+        new SelectAggregatedDependencies(schema, endTs * 1000 - lookback * 1000, endTs * 1000));
+    }
     if (schema.hasPreAggregatedDependencies) {
       return dataSourceCallFactory.create(new SelectDependencies(schema, getDays(endTs, lookback)));
     }
@@ -39,12 +39,13 @@ public final class MySQLStorage extends StorageComponent {
   }
 
   public static final class Builder extends StorageComponent.Builder {
-    boolean strictTraceId = true, searchEnabled = true;
+    boolean strictTraceId = true, searchEnabled = true, streamTraces;
     private DataSource datasource;
     private Settings settings = new Settings().withRenderSchema(false);
     private ExecuteListenerProvider listenerProvider;
     private Executor executor;
     List<String> autocompleteKeys = new ArrayList<>();
+    int maxRowsPerInsert, dependencyQuietPeriod;
 
     @Override public Builder strictTraceId(boolean strictTraceId) {
       this.strictTraceId = strictTraceId;
@@ -85,6 +86,48 @@ public final class MySQLStorage extends StorageComponent {
       return this;
     }
 
+    /**
+     * When positive, spans are written with multi-row {@code INSERT} statements of up to this
+     * count of rows, bound via JDBC instead of rendered by jOOQ per row. Defaults to zero, which
+     * writes one jOOQ statement per row.
+     *
+     * <p>Note: Statements written this way aren't passed to the {@link
+     * #listenerProvider(ExecuteListenerProvider) listener provider}. Add
+     * "rewriteBatchedStatements=true" to the JDBC url to send all chunks in one round trip.
+     */
+    public Builder maxRowsPerInsert(int maxRowsPerInsert) {
+      if (maxRowsPerInsert < 0) throw new IllegalArgumentException("maxRowsPerInsert < 0");
+      this.maxRowsPerInsert = maxRowsPerInsert;
+      return this;
+    }
+
+    /**
+     * When true, spans and their annotations are read with one ordered join, fetched lazily and
+     * assembled a span at a time. Otherwise, both tables are read in full and grouped in memory
+     * before assembly. Defaults to false.
+     */
+    public Builder streamTraces(boolean streamTraces) {
+      this.streamTraces = streamTraces;
+      return this;
+    }
+
+    /**
+     * When positive, dependency links are aggregated in the background into zipkin_dependencies,
+     * an hour of traces at a time, once this many milliseconds have passed since the end of that
+     * hour. {@link SpanStore#getDependencies(long, long)} then only reads zipkin_dependencies.
+     * Defaults to zero, which links traces on demand when zipkin_dependencies is empty.
+     *
+     * <p>Note: This requires the zipkin_dependency_watermark table, and shouldn't be used with the
+     * zipkin-dependencies job.
+     */
+    public Builder dependencyQuietPeriod(int dependencyQuietPeriod) {
+      if (dependencyQuietPeriod < 0) {
+        throw new IllegalArgumentException("dependencyQuietPeriod < 0");
+      }
+      this.dependencyQuietPeriod = dependencyQuietPeriod;
+      return this;
+    }
+
     @Override public MySQLStorage build() {
       return new MySQLStorage(this);
     }
@@ -99,8 +142,10 @@ public final class MySQLStorage extends StorageComponent {
   final DataSource datasource;
   final DataSourceCall.Factory dataSourceCallFactory;
   final DSLContexts context;
-  final boolean strictTraceId, searchEnabled;
+  final boolean strictTraceId, searchEnabled, streamTraces;
   final List<String> autocompleteKeys;
+  final int maxRowsPerInsert;
+  @Nullable final DependencyAggregator dependencyAggregator;
   volatile Schema schema;
 
   MySQLStorage(MySQLStorage.Builder builder) {
@@ -112,7 +157,14 @@ public final class MySQLStorage extends StorageComponent {
     dataSourceCallFactory = new DataSourceCall.Factory(datasource, context, executor);
     strictTraceId = builder.strictTraceId;
     searchEnabled = builder.searchEnabled;
+    streamTraces = builder.streamTraces;
     autocompleteKeys = builder.autocompleteKeys;
+    maxRowsPerInsert = builder.maxRowsPerInsert;
+    if (builder.dependencyQuietPeriod > 0) {
+      dependencyAggregator = new DependencyAggregator(this, builder.dependencyQuietPeriod);
+    } else {
+      dependencyAggregator = null;
+    }
   }
 
   /** Returns the session in use by this storage component. */
@@ -133,7 +185,9 @@ public final class MySQLStorage extends StorageComponent {
   }
 
   @Override public SpanStore spanStore() {
-    return new MySQLSpanStore(this, schema());
+    Schema schema = schema();
+    maybeStartDependencyAggregator(schema);
+    return new MySQLSpanStore(this, schema);
   }
 
   @Override public ServiceAndSpanNames serviceAndSpanNames() {
@@ -145,7 +199,14 @@ public final class MySQLStorage extends StorageComponent {
   }
 
   @Override public SpanConsumer spanConsumer() {
-    return new MySQLSpanConsumer(dataSourceCallFactory, schema());
+    Schema schema = schema();
+    maybeStartDependencyAggregator(schema);
+    return new MySQLSpanConsumer(dataSourceCallFactory, schema, maxRowsPerInsert);
+  }
+
+  /** Aggregating starts on first use, so that building this component doesn't start a thread. */
+  void maybeStartDependencyAggregator(Schema schema) {
+    if (dependencyAggregator != null && schema.hasDependencyWatermark) dependencyAggregator.start();
   }
 
   @Override public CheckResult check() {
@@ -159,6 +220,7 @@ public final class MySQLStorage extends StorageComponent {
 
   @Override public void close() {
     // didn't open the DataSource or executor
+    if (dependencyAggregator != null) dependencyAggregator.close();
   }
 
   /** Visible for testing */
@@ -36,6 +36,8 @@ final class Schema {
   final List<Field<?>> spanIdFields;
   final List<Field<?>> spanFields;
   final List<Field<?>> annotationFields;
+  /** Annotation fields besides the span ID, used when selected from a join with spans. */
+  final List<Field<?>> joinedAnnotationFields;
   final List<Field<?>> dependencyLinkerFields;
   final List<Field<?>> dependencyLinkerGroupByFields;
   final List<Field<?>> dependencyLinkFields;
@@ -44,6 +46,7 @@ final class Schema {
   final boolean hasIpv6;
   final boolean hasErrorCount;
   final boolean hasRemoteServiceName;
+  final boolean hasDependencyWatermark;
   final boolean strictTraceId;
 
   Schema(DataSource datasource, DSLContexts context, boolean strictTraceId) {
@@ -52,6 +55,7 @@ final class Schema {
     hasIpv6 = HasIpv6.test(datasource, context);
     hasErrorCount = HasErrorCount.test(datasource, context);
     hasRemoteServiceName = HasRemoteServiceName.test(datasource, context);
+    hasDependencyWatermark = HasDependencyWatermark.test(datasource, context);
     this.strictTraceId = strictTraceId;
 
     spanIdFields = list(ZIPKIN_SPANS.TRACE_ID_HIGH, ZIPKIN_SPANS.TRACE_ID);
@@ -80,6 +84,10 @@ final class Schema {
     if (!hasIpv6) {
       annotationFields.remove(ZIPKIN_ANNOTATIONS.ENDPOINT_IPV6);
     }
+    joinedAnnotationFields = new ArrayList<>(annotationFields);
+    joinedAnnotationFields.remove(ZIPKIN_ANNOTATIONS.TRACE_ID_HIGH);
+    joinedAnnotationFields.remove(ZIPKIN_ANNOTATIONS.TRACE_ID);
+    joinedAnnotationFields.remove(ZIPKIN_ANNOTATIONS.SPAN_ID);
     if (!hasErrorCount) {
       dependencyLinkFields.remove(ZIPKIN_DEPENDENCIES.ERROR_COUNT);
     }
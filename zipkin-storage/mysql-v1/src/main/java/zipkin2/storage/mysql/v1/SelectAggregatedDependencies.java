@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.mysql.v1;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Function;
+import org.jooq.DSLContext;
+import org.jooq.Record2;
+import org.jooq.impl.DSL;
+import zipkin2.DependencyLink;
+import zipkin2.internal.DependencyLinker;
+
+import static zipkin2.storage.mysql.v1.DependencyAggregator.DAY_MICROS;
+import static zipkin2.storage.mysql.v1.DependencyAggregator.WATERMARK_ID;
+import static zipkin2.storage.mysql.v1.DependencyAggregator.WATERMARK_LINKED_FROM;
+import static zipkin2.storage.mysql.v1.DependencyAggregator.WATERMARK_LINKED_UNTIL;
+import static zipkin2.storage.mysql.v1.DependencyAggregator.ZIPKIN_DEPENDENCY_WATERMARK;
+import static zipkin2.storage.mysql.v1.DependencyAggregator.traceIdsStartedIn;
+
+/**
+ * Used with {@link DependencyAggregator}. Sums zipkin_dependencies rows for the part of the window
+ * that was aggregated, and links traces on the fly for the parts before or after it.
+ */
+final class SelectAggregatedDependencies implements Function<DSLContext, List<DependencyLink>> {
+  final Schema schema;
+  final long startTsBegin, startTsEnd;
+
+  SelectAggregatedDependencies(Schema schema, long startTsBegin, long startTsEnd) {
+    this.schema = schema;
+    this.startTsBegin = startTsBegin;
+    this.startTsEnd = startTsEnd;
+  }
+
+  @Override
+  public List<DependencyLink> apply(DSLContext context) {
+    // Reading in one transaction ensures rows match the watermark, even if an hour is aggregated
+    // concurrently.
+    return context.transactionResult(configuration -> {
+      DSLContext transaction = DSL.using(configuration);
+      Record2<Long, Long> watermark =
+        transaction.select(WATERMARK_LINKED_FROM, WATERMARK_LINKED_UNTIL)
+          .from(ZIPKIN_DEPENDENCY_WATERMARK)
+          .where(WATERMARK_ID.eq(1))
+          .fetchOne();
+      if (watermark == null) { // nothing aggregated, yet
+        return new AggregateDependencies(schema, startTsBegin, startTsEnd).apply(transaction);
+      }
+      long linkedFrom = watermark.value1(), linkedUntil = watermark.value2();
+
+      List<DependencyLink> unmerged = new ArrayList<>();
+      if (startTsBegin < linkedFrom) {
+        unmerged.addAll(AggregateDependencies.link(transaction, schema, traceIdsStartedIn(
+          transaction, schema, startTsBegin, Math.min(startTsEnd, linkedFrom - 1))));
+      }
+      long aggregatedBegin = Math.max(startTsBegin, linkedFrom);
+      long aggregatedEnd = Math.min(startTsEnd, linkedUntil - 1);
+      if (aggregatedBegin <= aggregatedEnd) {
+        unmerged.addAll(new SelectDependencies(schema, days(aggregatedBegin, aggregatedEnd))
+          .apply(transaction));
+      }
+      if (startTsEnd >= linkedUntil) {
+        unmerged.addAll(AggregateDependencies.link(transaction, schema, traceIdsStartedIn(
+          transaction, schema, Math.max(startTsBegin, linkedUntil), startTsEnd)));
+      }
+      return DependencyLinker.merge(unmerged);
+    });
+  }
+
+  /** Returns the days of zipkin_dependencies rows covering the interval, inclusive. */
+  static List<Date> days(long startTsBegin, long startTsEnd) {
+    List<Date> result = new ArrayList<>();
+    for (long day = startTsBegin / DAY_MICROS * DAY_MICROS; day <= startTsEnd; day += DAY_MICROS) {
+      result.add(new Date(day / 1000L));
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "SelectAggregatedDependencies{"
+      + "startTsBegin="
+      + startTsBegin
+      + ", startTsEnd="
+      + startTsEnd
+      + '}';
+  }
+}
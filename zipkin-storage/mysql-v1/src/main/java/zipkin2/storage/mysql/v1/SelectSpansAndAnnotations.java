@@ -20,12 +20,14 @@ import java.util.Map;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import org.jooq.Condition;
+import org.jooq.Cursor;
 import org.jooq.DSLContext;
 import org.jooq.Record;
 import org.jooq.Row3;
 import org.jooq.SelectConditionStep;
 import org.jooq.SelectField;
 import org.jooq.SelectOffsetStep;
+import org.jooq.SortField;
 import org.jooq.TableOnConditionStep;
 import zipkin2.Endpoint;
 import zipkin2.Span;
@@ -46,19 +48,23 @@ import static zipkin2.storage.mysql.v1.internal.generated.tables.ZipkinAnnotatio
 import static zipkin2.storage.mysql.v1.internal.generated.tables.ZipkinSpans.ZIPKIN_SPANS;
 
 abstract class SelectSpansAndAnnotations implements Function<DSLContext, List<Span>> {
+  /** Rows read per round trip when streaming. Small enough to not buffer large traces. */
+  static final int STREAMING_FETCH_SIZE = 1000;
+
   static final class Factory {
     final Schema schema;
-    final boolean strictTraceId;
+    final boolean strictTraceId, streamTraces;
 
-    Factory(Schema schema, boolean strictTraceId) {
+    Factory(Schema schema, boolean strictTraceId, boolean streamTraces) {
       this.schema = schema;
       this.strictTraceId = strictTraceId;
+      this.streamTraces = streamTraces;
     }
 
     SelectSpansAndAnnotations create(long traceIdHigh, long traceIdLow) {
       if (traceIdHigh != 0L && !strictTraceId) traceIdHigh = 0L;
       long finalTraceIdHigh = traceIdHigh;
-      return new SelectSpansAndAnnotations(schema) {
+      return new SelectSpansAndAnnotations(schema, streamTraces) {
         @Override
         Condition traceIdCondition(DSLContext context) {
           return schema.spanTraceIdCondition(finalTraceIdHigh, traceIdLow);
@@ -71,7 +77,7 @@ abstract class SelectSpansAndAnnotations implements Function<DSLContext, List<Sp
         throw new IllegalArgumentException("remoteService=" + request.remoteServiceName()
           + " unsupported due to missing column zipkin_spans.remote_service_name");
       }
-      return new SelectSpansAndAnnotations(schema) {
+      return new SelectSpansAndAnnotations(schema, streamTraces) {
         @Override
         Condition traceIdCondition(DSLContext context) {
           return schema.spanTraceIdCondition(toTraceIdQuery(context, request));
@@ -81,15 +87,68 @@ abstract class SelectSpansAndAnnotations implements Function<DSLContext, List<Sp
   }
 
   final Schema schema;
+  final boolean streamTraces;
 
-  SelectSpansAndAnnotations(Schema schema) {
+  SelectSpansAndAnnotations(Schema schema, boolean streamTraces) {
     this.schema = schema;
+    this.streamTraces = streamTraces;
   }
 
   abstract Condition traceIdCondition(DSLContext context);
 
   @Override
   public List<Span> apply(DSLContext context) {
+    return streamTraces ? streamSpansAndAnnotations(context) : groupSpansAndAnnotations(context);
+  }
+
+  /**
+   * Reads spans left joined with their annotations in one query, ordered by span ID. As each span's
+   * rows are adjacent, it is complete as soon as a row of the next span arrives. Rows are fetched
+   * lazily, so at most one span and a fetch of rows are held besides the results.
+   *
+   * <p>This uses one query, as opposed to a cursor per table, because MySQL connections can only
+   * stream one result at a time.
+   */
+  List<Span> streamSpansAndAnnotations(DSLContext context) {
+    List<SelectField<?>> fields = new ArrayList<>(schema.spanFields);
+    fields.addAll(schema.joinedAnnotationFields);
+
+    List<SortField<?>> order = new ArrayList<>();
+    if (schema.hasTraceIdHigh) order.add(ZIPKIN_SPANS.TRACE_ID_HIGH.asc());
+    order.add(ZIPKIN_SPANS.TRACE_ID.asc());
+    order.add(ZIPKIN_SPANS.ID.asc());
+    order.add(ZIPKIN_ANNOTATIONS.A_TIMESTAMP.asc());
+    order.add(ZIPKIN_ANNOTATIONS.A_KEY.asc());
+
+    V1SpanConverter converter = V1SpanConverter.create();
+    List<Span> allSpans = new ArrayList<>();
+    try (Cursor<Record> cursor = context.select(fields)
+      .from(ZIPKIN_SPANS.leftJoin(ZIPKIN_ANNOTATIONS).on(schema.joinCondition(ZIPKIN_ANNOTATIONS)))
+      .where(traceIdCondition(context))
+      .orderBy(order)
+      .fetchSize(STREAMING_FETCH_SIZE)
+      .fetchLazy()) {
+      V1Span.Builder span = null;
+      for (Record r : cursor) {
+        long traceIdHigh = maybeGet(r, ZIPKIN_SPANS.TRACE_ID_HIGH, 0L);
+        long traceId = r.getValue(ZIPKIN_SPANS.TRACE_ID), id = r.getValue(ZIPKIN_SPANS.ID);
+        if (span == null
+          || span.id() != id || span.traceId() != traceId || span.traceIdHigh() != traceIdHigh) {
+          if (span != null) converter.convert(span.build(), allSpans);
+          span = newSpanBuilder(r);
+        }
+        // a span without annotations is joined with a row of nulls
+        if (r.getValue(ZIPKIN_ANNOTATIONS.A_TYPE) != null) {
+          processAnnotationRecord(r, span, endpoint(r));
+        }
+      }
+      if (span != null) converter.convert(span.build(), allSpans);
+    }
+    return allSpans;
+  }
+
+  /** Reads all spans, then all of their annotations, grouping both before assembling spans. */
+  List<Span> groupSpansAndAnnotations(DSLContext context) {
     final Map<Pair, List<V1Span.Builder>> spansWithoutAnnotations;
     final Map<Row3<Long, Long, Long>, List<Record>> dbAnnotations;
 
@@ -99,17 +158,7 @@ abstract class SelectSpansAndAnnotations implements Function<DSLContext, List<Sp
             .from(ZIPKIN_SPANS)
             .where(traceIdCondition(context))
             .stream()
-            .map(
-                r ->
-                    V1Span.newBuilder()
-                        .traceIdHigh(maybeGet(r, ZIPKIN_SPANS.TRACE_ID_HIGH, 0L))
-                        .traceId(r.getValue(ZIPKIN_SPANS.TRACE_ID))
-                        .name(r.getValue(ZIPKIN_SPANS.NAME))
-                        .id(r.getValue(ZIPKIN_SPANS.ID))
-                        .parentId(maybeGet(r, ZIPKIN_SPANS.PARENT_ID, 0L))
-                        .timestamp(maybeGet(r, ZIPKIN_SPANS.START_TS, 0L))
-                        .duration(maybeGet(r, ZIPKIN_SPANS.DURATION, 0L))
-                        .debug(r.getValue(ZIPKIN_SPANS.DEBUG)))
+            .map(SelectSpansAndAnnotations::newSpanBuilder)
             .collect(
                 groupingBy(
                     s -> new Pair(s.traceIdHigh(), s.traceId()),
@@ -150,6 +199,18 @@ abstract class SelectSpansAndAnnotations implements Function<DSLContext, List<Sp
     return allSpans;
   }
 
+  static V1Span.Builder newSpanBuilder(Record r) {
+    return V1Span.newBuilder()
+        .traceIdHigh(maybeGet(r, ZIPKIN_SPANS.TRACE_ID_HIGH, 0L))
+        .traceId(r.getValue(ZIPKIN_SPANS.TRACE_ID))
+        .name(r.getValue(ZIPKIN_SPANS.NAME))
+        .id(r.getValue(ZIPKIN_SPANS.ID))
+        .parentId(maybeGet(r, ZIPKIN_SPANS.PARENT_ID, 0L))
+        .timestamp(maybeGet(r, ZIPKIN_SPANS.START_TS, 0L))
+        .duration(maybeGet(r, ZIPKIN_SPANS.DURATION, 0L))
+        .debug(r.getValue(ZIPKIN_SPANS.DEBUG));
+  }
+
   static void processAnnotationRecord(Record a, V1Span.Builder span, @Nullable Endpoint endpoint) {
     Integer type = a.getValue(ZIPKIN_ANNOTATIONS.A_TYPE);
     if (type == null) return;
@@ -46,3 +46,10 @@ CREATE TABLE IF NOT EXISTS zipkin_dependencies (
   `error_count` BIGINT,
   PRIMARY KEY (`day`, `parent`, `child`)
 ) ENGINE=InnoDB ROW_FORMAT=COMPRESSED CHARACTER SET=utf8 COLLATE utf8_general_ci;
+
+CREATE TABLE IF NOT EXISTS zipkin_dependency_watermark (
+  `id` TINYINT NOT NULL COMMENT 'Always 1, as there is only one watermark',
+  `linked_from` BIGINT NOT NULL COMMENT 'Epoch micros of the first trace in zipkin_dependencies',
+  `linked_until` BIGINT NOT NULL COMMENT 'Epoch micros before which traces are in zipkin_dependencies',
+  PRIMARY KEY (`id`)
+) ENGINE=InnoDB ROW_FORMAT=COMPRESSED CHARACTER SET=utf8 COLLATE utf8_general_ci;
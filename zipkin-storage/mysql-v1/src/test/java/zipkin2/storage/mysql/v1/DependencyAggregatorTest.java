@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage.mysql.v1;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import javax.sql.DataSource;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static zipkin2.storage.mysql.v1.DependencyAggregator.DAY_MICROS;
+import static zipkin2.storage.mysql.v1.DependencyAggregator.HOUR_MICROS;
+
+public class DependencyAggregatorTest {
+  static final long MIDNIGHT = 17_000 * DAY_MICROS;
+  static final long QUIET_PERIOD = TimeUnit.MINUTES.toMicros(15);
+
+  MySQLStorage storage = MySQLStorage.newBuilder()
+    .executor(Runnable::run)
+    .datasource(mock(DataSource.class))
+    .dependencyQuietPeriod((int) TimeUnit.MINUTES.toMillis(15))
+    .build();
+
+  @After public void close() {
+    storage.close();
+  }
+
+  @Test public void build_doesntStartThread() {
+    assertThat(storage.dependencyAggregator.scheduler).isNull();
+  }
+
+  @Test public void start_isIdempotent() {
+    storage.dependencyAggregator.start();
+    Object scheduler = storage.dependencyAggregator.scheduler;
+    storage.dependencyAggregator.start();
+
+    assertThat(storage.dependencyAggregator.scheduler).isSameAs(scheduler);
+  }
+
+  @Test public void close_stopsThread() {
+    storage.dependencyAggregator.start();
+    storage.close();
+
+    assertThat(storage.dependencyAggregator.scheduler.isShutdown()).isTrue();
+  }
+
+  @Test public void start_afterCloseDoesNothing() {
+    storage.close();
+    storage.dependencyAggregator.start();
+
+    assertThat(storage.dependencyAggregator.scheduler).isNull();
+  }
+
+  /** The mock data source has no zipkin_dependency_watermark table */
+  @Test public void spanConsumer_doesntStartWithoutWatermarkTable() {
+    storage.spanConsumer();
+
+    assertThat(storage.dependencyAggregator.scheduler).isNull();
+  }
+
+  @Test public void initialWatermark_startOfDay() {
+    assertThat(DependencyAggregator.initialWatermark(MIDNIGHT + 5 * HOUR_MICROS, QUIET_PERIOD))
+      .isEqualTo(MIDNIGHT);
+  }
+
+  /** Just after midnight, the previous day may not be complete */
+  @Test public void initialWatermark_previousDayDuringQuietPeriod() {
+    assertThat(DependencyAggregator.initialWatermark(MIDNIGHT + QUIET_PERIOD - 1, QUIET_PERIOD))
+      .isEqualTo(MIDNIGHT - DAY_MICROS);
+  }
+
+  @Test public void isSettled_afterQuietPeriod() {
+    long hourEnd = MIDNIGHT + HOUR_MICROS;
+
+    assertThat(DependencyAggregator.isSettled(MIDNIGHT, hourEnd, QUIET_PERIOD))
+      .isFalse();
+    assertThat(DependencyAggregator.isSettled(MIDNIGHT, hourEnd + QUIET_PERIOD - 1, QUIET_PERIOD))
+      .isFalse();
+    assertThat(DependencyAggregator.isSettled(MIDNIGHT, hourEnd + QUIET_PERIOD, QUIET_PERIOD))
+      .isTrue();
+  }
+
+  @Test public void days_coversPartialDays() {
+    assertThat(SelectAggregatedDependencies.days(MIDNIGHT - HOUR_MICROS, MIDNIGHT + HOUR_MICROS))
+      .containsExactly(
+        new Date((MIDNIGHT - DAY_MICROS) / 1000L),
+        new Date(MIDNIGHT / 1000L)
+      );
+  }
+}
@@ -52,6 +52,43 @@ public class ITMySQLStorage {
     }
   }
 
+  public static class ITSpanStoreMultiRowInsert extends zipkin2.storage.ITSpanStore {
+    @ClassRule public static LazyMySQLStorage storageRule = classRule();
+
+    MySQLStorage storage;
+
+    @Override protected StorageComponent storage() {
+      return storage;
+    }
+
+    @Override @Test @Ignore("No consumer-side span deduplication") public void deduplicates() {
+    }
+
+    @Override public void clear() {
+      // small, so that tests write both full and partial chunks
+      storage = storageRule.computeStorageBuilder().maxRowsPerInsert(2).build();
+      storage.clear();
+    }
+  }
+
+  public static class ITSpanStoreStreamTraces extends zipkin2.storage.ITSpanStore {
+    @ClassRule public static LazyMySQLStorage storageRule = classRule();
+
+    MySQLStorage storage;
+
+    @Override protected StorageComponent storage() {
+      return storage;
+    }
+
+    @Override @Test @Ignore("No consumer-side span deduplication") public void deduplicates() {
+    }
+
+    @Override public void clear() {
+      storage = storageRule.computeStorageBuilder().streamTraces(true).build();
+      storage.clear();
+    }
+  }
+
   public static class ITStrictTraceIdFalse extends zipkin2.storage.ITStrictTraceIdFalse {
     @ClassRule public static LazyMySQLStorage storageRule = classRule();
 
@@ -123,4 +123,17 @@ public class SchemaTest {
 
     assertThat(schema.hasRemoteServiceName).isFalse();
   }
+
+  @Test
+  public void hasDependencyWatermark_falseWhenTableMissing() throws SQLException {
+    SQLSyntaxErrorException sqlException = new SQLSyntaxErrorException(
+      "Table 'zipkin.zipkin_dependency_watermark' doesn't exist",
+      "42S02", 1146);
+
+    // cheats to lower mock count: this exception is really thrown during execution of the query
+    when(dataSource.getConnection()).thenThrow(
+      new DataAccessException(sqlException.getMessage(), sqlException));
+
+    assertThat(schema.hasDependencyWatermark).isFalse();
+  }
 }
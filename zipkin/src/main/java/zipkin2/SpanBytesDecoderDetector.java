@@ -13,6 +13,7 @@
  */
 package zipkin2;
 
+import java.nio.ByteBuffer;
 import zipkin2.codec.BytesDecoder;
 import zipkin2.codec.SpanBytesDecoder;
 
@@ -56,7 +57,8 @@ public final class SpanBytesDecoderDetector {
 
   /** @throws IllegalArgumentException if the input isn't a v1 json or thrift single-span message */
   public static BytesDecoder<Span> decoderForMessage(byte[] span) {
-    BytesDecoder<Span> decoder = detectDecoder(span);
+    ByteBuffer bytes = ByteBuffer.wrap(span);
+    BytesDecoder<Span> decoder = detectDecoder(bytes);
     if (span[0] == 12 /* List[ThriftSpan] */ || span[0] == '[') {
       throw new IllegalArgumentException("Expected json or thrift object, not list encoding");
     }
@@ -68,21 +70,33 @@ public final class SpanBytesDecoderDetector {
 
   /** @throws IllegalArgumentException if the input isn't a json, proto3 or thrift list message. */
   public static BytesDecoder<Span> decoderForListMessage(byte[] spans) {
-    BytesDecoder<Span> decoder = detectDecoder(spans);
-    if (spans[0] != 12 /* List[ThriftSpan] */
-      && spans[0] != 11 /* openzipkin/zipkin-reporter-java#133 */
-      && !protobuf3(spans) && spans[0] != '[') {
+    return decoderForListMessage(ByteBuffer.wrap(spans));
+  }
+
+  /**
+   * Like {@link #decoderForListMessage(byte[])}, except this inspects the remaining bytes of the
+   * buffer, without changing its position.
+   *
+   * @throws IllegalArgumentException if the input isn't a json, proto3 or thrift list message.
+   */
+  public static SpanBytesDecoder decoderForListMessage(ByteBuffer spans) {
+    SpanBytesDecoder decoder = detectDecoder(spans);
+    byte first = spans.get(spans.position());
+    if (first != 12 /* List[ThriftSpan] */
+      && first != 11 /* openzipkin/zipkin-reporter-java#133 */
+      && !protobuf3(spans) && first != '[') {
       throw new IllegalArgumentException("Expected json, proto3 or thrift list encoding");
     }
     return decoder;
   }
 
   /** @throws IllegalArgumentException if the input isn't a json or thrift list or object. */
-  static BytesDecoder<Span> detectDecoder(byte[] bytes) {
-    if (bytes[0] <= 16) { // binary format
+  static SpanBytesDecoder detectDecoder(ByteBuffer bytes) {
+    byte first = bytes.get(bytes.position());
+    if (first <= 16) { // binary format
       if (protobuf3(bytes)) return SpanBytesDecoder.PROTO3;
       return SpanBytesDecoder.THRIFT; /* the first byte is the TType, in a range 0-16 */
-    } else if (bytes[0] != '[' && bytes[0] != '{') {
+    } else if (first != '[' && first != '{') {
       throw new IllegalArgumentException("Could not detect the span format");
     }
     if (contains(bytes, ENDPOINT_FIELD_SUFFIX)) return SpanBytesDecoder.JSON_V2;
@@ -90,11 +104,11 @@ public final class SpanBytesDecoderDetector {
     return SpanBytesDecoder.JSON_V1;
   }
 
-  static boolean contains(byte[] bytes, byte[] subsequence) {
+  static boolean contains(ByteBuffer bytes, byte[] subsequence) {
     bytes:
-    for (int i = 0; i < bytes.length - subsequence.length + 1; i++) {
+    for (int i = bytes.position(); i < bytes.limit() - subsequence.length + 1; i++) {
       for (int j = 0; j < subsequence.length; j++) {
-        if (bytes[i + j] != subsequence[j]) {
+        if (bytes.get(i + j) != subsequence[j]) {
           continue bytes;
         }
       }
@@ -104,8 +118,10 @@ public final class SpanBytesDecoderDetector {
   }
 
   /* span key or trace ID key */
-  static boolean protobuf3(byte[] bytes) {
-    return bytes[0] == 10 && bytes[1] != 0; // varint follows and won't be zero
+  static boolean protobuf3(ByteBuffer bytes) {
+    int pos = bytes.position();
+    // varint follows and won't be zero
+    return bytes.get(pos) == 10 && bytes.remaining() > 1 && bytes.get(pos + 1) != 0;
   }
 
   SpanBytesDecoderDetector() {}
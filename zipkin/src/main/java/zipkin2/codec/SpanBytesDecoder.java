@@ -13,6 +13,7 @@
  */
 package zipkin2.codec;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -58,6 +59,11 @@ public enum SpanBytesDecoder implements BytesDecoder<Span> {
       return out.get(0);
     }
 
+    @Override
+    public boolean decodeList(ByteBuffer spans, Collection<Span> out) {
+      return new V1JsonSpanReader().readList(spans, out);
+    }
+
     @Override
     public List<Span> decodeList(byte[] spans) {
       return decodeList(this, spans);
@@ -85,6 +91,11 @@ public enum SpanBytesDecoder implements BytesDecoder<Span> {
       return ThriftCodec.readOne(span);
     }
 
+    @Override
+    public boolean decodeList(ByteBuffer spans, Collection<Span> out) {
+      return ThriftCodec.readList(spans, out);
+    }
+
     @Override
     public List<Span> decodeList(byte[] spans) {
       return decodeList(this, spans);
@@ -113,6 +124,11 @@ public enum SpanBytesDecoder implements BytesDecoder<Span> {
       return JsonCodec.readOne(new V2SpanReader(), span);
     }
 
+    @Override
+    public boolean decodeList(ByteBuffer spans, Collection<Span> out) {
+      return JsonCodec.readList(new V2SpanReader(), spans, out);
+    }
+
     @Override
     public List<Span> decodeList(byte[] spans) {
       return decodeList(this, spans);
@@ -140,12 +156,37 @@ public enum SpanBytesDecoder implements BytesDecoder<Span> {
       return Proto3Codec.readOne(span);
     }
 
+    @Override
+    public boolean decodeList(ByteBuffer spans, Collection<Span> out) {
+      return Proto3Codec.readList(spans, out);
+    }
+
     @Override
     public List<Span> decodeList(byte[] spans) {
       return decodeList(this, spans);
     }
   };
 
+  /**
+   * Like {@link #decodeList(byte[], Collection)}, except this reads the remaining bytes of a buffer
+   * without changing its position. Use this to decode a slice of a larger array, such as {@code
+   * ByteBuffer.wrap(bytes, offset, length)}, or a pooled network buffer without copying it first.
+   *
+   * <p>Heap buffers are always read in place. Direct buffers are read in place for binary formats,
+   * but copied for json.
+   *
+   * @return true if an element was decoded
+   * @throws {@linkplain IllegalArgumentException} if the type couldn't be decoded
+   */
+  public abstract boolean decodeList(ByteBuffer spans, Collection<Span> out);
+
+  /** Convenience method for {@link #decodeList(ByteBuffer, Collection)} */
+  public List<Span> decodeList(ByteBuffer spans) {
+    List<Span> out = new ArrayList<>();
+    if (!decodeList(spans, out)) return Collections.emptyList();
+    return out;
+  }
+
   static List<Span> decodeList(SpanBytesDecoder decoder, byte[] spans) {
     List<Span> out = new ArrayList<>();
     if (!decoder.decodeList(spans, out)) return Collections.emptyList();
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.List;
+import java.util.logging.Logger;
+import zipkin2.Span;
+import zipkin2.Span.Kind;
+
+import static java.util.logging.Level.FINE;
+
+/**
+ * The rules that link a span to its remote ancestor, shared by {@link DependencyLinker} and {@link
+ * CompactDependencyLinker}. Subclasses only differ in how they hold the trace tree and count links.
+ */
+abstract class AbstractDependencyLinker {
+  final Logger logger;
+
+  AbstractDependencyLinker(Logger logger) {
+    this.logger = logger;
+  }
+
+  /**
+   * Returns the nearest ancestor with a {@link Span#kind()} of the span passed to {@link
+   * #linkSpan}, or null if there is none.
+   */
+  @Nullable abstract Span firstRemoteAncestor();
+
+  abstract void incrementLink(String parent, String child, boolean isError);
+
+  /**
+   * Adds the link of a span, if it has one. Spans are visited breadth-first from the root.
+   *
+   * @param parentId the parent ID of the span as {@link Trace#merge(List)} leaves it
+   * @param hasChildren true when the span has children in the trace tree
+   * @param isRoot true when the span is the root of the trace tree
+   */
+  final void linkSpan(Span currentSpan, @Nullable String parentId, boolean hasChildren,
+    boolean isRoot) {
+    if (logger.isLoggable(FINE)) {
+      logger.fine("processing " + currentSpan);
+    }
+
+    Kind kind = currentSpan.kind();
+    // When processing links to a client span, we prefer the server's name. If we have no child
+    // spans, we proceed to use the name the client chose.
+    if (Kind.CLIENT.equals(kind) && hasChildren) {
+      return;
+    }
+
+    String serviceName = currentSpan.localServiceName();
+    String remoteServiceName = currentSpan.remoteServiceName();
+    if (kind == null) {
+      // Treat unknown type of span as a client span if we know both sides
+      if (serviceName != null && remoteServiceName != null) {
+        kind = Kind.CLIENT;
+      } else {
+        logger.fine("non remote span; skipping");
+        return;
+      }
+    }
+
+    String child;
+    String parent;
+    switch (kind) {
+      case SERVER:
+      case CONSUMER:
+        child = serviceName;
+        parent = remoteServiceName;
+        if (isRoot) { // we are the root-most span.
+          if (parent == null) {
+            logger.fine("root's client is unknown; skipping");
+            return;
+          }
+        }
+        break;
+      case CLIENT:
+      case PRODUCER:
+        parent = serviceName;
+        child = remoteServiceName;
+        break;
+      default:
+        logger.fine("unknown kind; skipping");
+        return;
+    }
+
+    boolean isError = currentSpan.tags().containsKey("error");
+    if (kind == Kind.PRODUCER || kind == Kind.CONSUMER) {
+      if (parent == null || child == null) {
+        logger.fine("cannot link messaging span to its broker; skipping");
+      } else {
+        addLink(parent, child, isError);
+      }
+      return;
+    }
+
+    // Local spans may be between the current node and its remote parent
+    Span remoteAncestor = firstRemoteAncestor();
+    if (remoteAncestor != null && logger.isLoggable(FINE)) {
+      logger.fine("found remote ancestor " + remoteAncestor);
+    }
+    String remoteAncestorName;
+    if (remoteAncestor != null
+      && (remoteAncestorName = remoteAncestor.localServiceName()) != null) {
+      // Some users accidentally put the remote service name on client annotations.
+      // Check for this and backfill a link from the nearest remote to that service as necessary.
+      if (kind == Kind.CLIENT && serviceName != null && !remoteAncestorName.equals(serviceName)) {
+        logger.fine("detected missing link to client span");
+        addLink(remoteAncestorName, serviceName, false); // we don't know if there's an error here
+      }
+
+      if (kind == Kind.SERVER || parent == null) parent = remoteAncestorName;
+
+      // When an RPC is split between spans, we skip the child (server side). If our parent is a
+      // client, we need to check it for errors.
+      if (!isError && Kind.CLIENT.equals(remoteAncestor.kind()) &&
+        parentId != null && parentId.equals(remoteAncestor.id())) {
+        isError = remoteAncestor.tags().containsKey("error");
+      }
+    }
+
+    if (parent == null || child == null) {
+      logger.fine("cannot find remote ancestor; skipping");
+      return;
+    }
+
+    addLink(parent, child, isError);
+  }
+
+  void addLink(String parent, String child, boolean isError) {
+    if (logger.isLoggable(FINE)) {
+      logger.fine("incrementing " + (isError ? "error " : "") + "link " + parent + " -> " + child);
+    }
+    incrementLink(parent, child, isError);
+  }
+}
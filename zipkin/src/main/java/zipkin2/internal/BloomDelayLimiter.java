@@ -0,0 +1,286 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Like {@link DelayLimiter}, this limits invocations of a given context to at most once per period.
+ * The difference is memory: contexts are remembered in counting Bloom filters of fixed size, as
+ * opposed to an entry per context. This means there's no garbage per context, and no limit on
+ * their cardinality. The cost is a small rate of false positives, where a context not seen before
+ * is suppressed.
+ *
+ * <p>Two filters are rotated every half of the period: a context is suppressed while present in
+ * either. A context is hashed on its content by a {@link Hasher}, which should return different
+ * values for contexts that aren't equal. That 64-bit hash is remixed with a different seed per
+ * filter, so a context falsely suppressed in one generation is unlikely to be in the next.
+ *
+ * <p>Counters are updated atomically, so contexts don't contend unless they hash to the same lock
+ * stripe. The stripe makes checking and adding a context atomic, so that it is invoked once even
+ * when racing on multiple threads.
+ */
+// this is a dependency-free variant of a time-rotated counting bloom filter
+public final class BloomDelayLimiter<C> implements InvocationLimiter<C> {
+
+  /** Hashes the content of a context, for example with {@link #hashString(long, String)}. */
+  public interface Hasher<C> {
+    long hash(C context);
+  }
+
+  /**
+   * Continues a content hash with the given string, such that different sequences of strings
+   * are unlikely to collide. Start with zero, for example {@code hashString(hashString(0L, key),
+   * value)}. This doesn't allocate.
+   */
+  public static long hashString(long hash, String value) {
+    int length = value.length();
+    hash = (hash ^ length) * FNV_PRIME; // the length separates adjacent strings
+    for (int i = 0; i < length; i++) {
+      hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+    }
+    return hash;
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  public static final class Builder {
+    DelayLimiter.Ticker ticker = new DelayLimiter.Ticker();
+    long ttlNanos = TimeUnit.HOURS.toNanos(1); // legacy default from cassandra
+    int cardinality = 5 * 4000; // Ex. 5 site tags with cardinality 4000 each
+    double falsePositiveRate = 0.01;
+
+    /**
+     * When {@link #shouldInvoke(Object)} returns true, it will return false for at least half of
+     * this duration, and no longer than it.
+     */
+    public Builder ttl(int ttl) {
+      if (ttl <= 0) throw new IllegalArgumentException("ttl <= 0");
+      this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttl);
+      return this;
+    }
+
+    /**
+     * Expected count of distinct contexts per {@link #ttl(int)}. This sizes the filters, so isn't
+     * a hard limit: exceeding it increases the false positive rate.
+     */
+    public Builder cardinality(int cardinality) {
+      if (cardinality <= 0) throw new IllegalArgumentException("cardinality <= 0");
+      this.cardinality = cardinality;
+      return this;
+    }
+
+    /** Rate of new contexts falsely suppressed at {@link #cardinality(int)}. Defaults to 1%. */
+    public Builder falsePositiveRate(double falsePositiveRate) {
+      if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+        throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+      }
+      this.falsePositiveRate = falsePositiveRate;
+      return this;
+    }
+
+    Builder ticker(DelayLimiter.Ticker ticker) { // do not expose public: only for tests
+      this.ticker = ticker;
+      return this;
+    }
+
+    public <C> BloomDelayLimiter<C> build(Hasher<? super C> hasher) {
+      if (hasher == null) throw new NullPointerException("hasher == null");
+      return new BloomDelayLimiter<>(this, hasher);
+    }
+
+    Builder() {
+    }
+  }
+
+  static final int MAX_COUNT = 15; // counters are 4 bits, which saturate instead of overflowing
+  static final int STRIPE_COUNT = 64;
+  static final long FNV_PRIME = 0x100000001B3L, GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  final Hasher<? super C> hasher;
+  final DelayLimiter.Ticker ticker;
+  final long rotateNanos;
+  final int counterCount, hashCount;
+  final Object[] stripes = new Object[STRIPE_COUNT];
+  volatile Generations generations;
+  volatile long rotateAt;
+  long seeds; // guarded by this
+
+  BloomDelayLimiter(Builder builder, Hasher<? super C> hasher) {
+    this.hasher = hasher;
+    ticker = builder.ticker;
+    rotateNanos = builder.ttlNanos / 2;
+    // optimal sizing per https://en.wikipedia.org/wiki/Bloom_filter#Optimal_number_of_hash_functions
+    double ln2 = Math.log(2);
+    long counters = (long) Math.ceil(
+      -builder.cardinality * Math.log(builder.falsePositiveRate) / (ln2 * ln2));
+    counterCount = (int) Math.min(Integer.MAX_VALUE - 15, Math.max(64, counters));
+    hashCount = Math.max(1, (int) Math.round((double) counterCount / builder.cardinality * ln2));
+    for (int i = 0; i < STRIPE_COUNT; i++) stripes[i] = new Object();
+    synchronized (this) {
+      generations = new Generations(newGeneration(), newGeneration());
+    }
+    rotateAt = ticker.read() + rotateNanos;
+  }
+
+  @Override public boolean shouldInvoke(C context) {
+    long hash = hasher.hash(context);
+    Generations generations = maybeRotate();
+    synchronized (stripe(hash)) {
+      if (generations.current.mightContain(hash, hashCount)
+        || generations.previous.mightContain(hash, hashCount)) {
+        return false;
+      }
+      generations.current.add(hash, hashCount);
+      return true;
+    }
+  }
+
+  /**
+   * Allows the context to be invoked again, by removing it from the generation it was added to.
+   * When the context appears in both generations, one is a false positive, and which isn't known.
+   * Then nothing is removed, so that counters set by other contexts aren't decremented, and the
+   * context waits for rotation instead.
+   */
+  @Override public void invalidate(C context) {
+    long hash = hasher.hash(context);
+    Generations generations = this.generations;
+    synchronized (stripe(hash)) {
+      boolean inCurrent = generations.current.mightContain(hash, hashCount);
+      boolean inPrevious = generations.previous.mightContain(hash, hashCount);
+      if (inCurrent && !inPrevious) generations.current.remove(hash, hashCount);
+      if (inPrevious && !inCurrent) generations.previous.remove(hash, hashCount);
+    }
+  }
+
+  @Override public synchronized void clear() {
+    generations = new Generations(newGeneration(), newGeneration());
+  }
+
+  Generations maybeRotate() {
+    long now = ticker.read();
+    if (now - rotateAt < 0) return generations;
+    synchronized (this) {
+      if (now - rotateAt < 0) return generations; // another thread rotated
+      // a new generation is allocated per rotation, so that none is cleared while in use
+      Generations rotated = now - rotateAt >= rotateNanos
+        ? new Generations(newGeneration(), newGeneration()) // idle for a whole period
+        : new Generations(newGeneration(), generations.current);
+      generations = rotated;
+      rotateAt = now + rotateNanos;
+      return rotated;
+    }
+  }
+
+  Object stripe(long hash) {
+    return stripes[(int) (Generation.mix(hash) >>> 58)]; // the top 6 bits, as STRIPE_COUNT is 64
+  }
+
+  // guarded by this
+  Generation newGeneration() {
+    return new Generation(counterCount, ++seeds * GOLDEN_GAMMA); // golden ratio spreads seeds
+  }
+
+  static final class Generations {
+    final Generation current, previous;
+
+    Generations(Generation current, Generation previous) {
+      this.current = current;
+      this.previous = previous;
+    }
+  }
+
+  /** A counting Bloom filter, with 16 counters of 4 bits packed into each long. */
+  static final class Generation {
+    final AtomicLongArray words;
+    final int counterCount;
+    final long seed;
+
+    Generation(int counterCount, long seed) {
+      this.words = new AtomicLongArray((counterCount + 15) >>> 4);
+      this.counterCount = counterCount;
+      this.seed = seed;
+    }
+
+    /** Hash functions are {@code a + i * b}, per Kirsch and Mitzenmacher, seeded per generation. */
+    boolean mightContain(long hash, int hashCount) {
+      long a = mix(hash ^ seed), b = mix(a ^ GOLDEN_GAMMA) | 1L;
+      for (int i = 0; i < hashCount; i++) {
+        if (get(index(a + i * b)) == 0) return false;
+      }
+      return true;
+    }
+
+    void add(long hash, int hashCount) {
+      long a = mix(hash ^ seed), b = mix(a ^ GOLDEN_GAMMA) | 1L;
+      for (int i = 0; i < hashCount; i++) {
+        increment(index(a + i * b));
+      }
+    }
+
+    void remove(long hash, int hashCount) {
+      long a = mix(hash ^ seed), b = mix(a ^ GOLDEN_GAMMA) | 1L;
+      for (int i = 0; i < hashCount; i++) {
+        decrement(index(a + i * b));
+      }
+    }
+
+    int index(long hash) {
+      return (int) ((hash >>> 1) % counterCount);
+    }
+
+    int get(int index) {
+      return get(words.get(index >>> 4), index);
+    }
+
+    void increment(int index) {
+      int word = index >>> 4;
+      long one = 1L << ((index & 15) << 2);
+      while (true) {
+        long value = words.get(word);
+        if (get(value, index) == MAX_COUNT) return;
+        if (words.compareAndSet(word, value, value + one)) return;
+      }
+    }
+
+    void decrement(int index) {
+      int word = index >>> 4;
+      long one = 1L << ((index & 15) << 2);
+      while (true) {
+        long value = words.get(word);
+        int count = get(value, index);
+        // a saturated counter may count more than we know of, so it is never decremented
+        if (count == 0 || count == MAX_COUNT) return;
+        if (words.compareAndSet(word, value, value - one)) return;
+      }
+    }
+
+    static int get(long word, int index) {
+      return (int) (word >>> ((index & 15) << 2)) & 0xF;
+    }
+
+    /** Finalization mix of MurmurHash3, which spreads the bits of the hash and seed */
+    static long mix(long hash) {
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+      hash *= 0xc4ceb9fe1a85ec53L;
+      hash ^= hash >>> 33;
+      return hash;
+    }
+  }
+}
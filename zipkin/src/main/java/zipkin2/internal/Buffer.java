@@ -13,7 +13,8 @@
  */
 package zipkin2.internal;
 
-public abstract class Buffer {
+/** A buffer that can be written, and then read back. */
+public abstract class Buffer extends ReadBuffer {
 
   public static Buffer wrap(byte[] bytes, int pos) {
     return new ByteArrayBuffer(bytes, pos);
@@ -252,88 +253,6 @@ public abstract class Buffer {
     writeByte((byte) ((v >> 56) & 0xff));
   }
 
-  // reset for reading
-  public abstract void reset();
-
-  long readLongLe() {
-    ensureLength(this, 8);
-    return (readByteUnsafe() & 0xffL)
-      | (readByteUnsafe() & 0xffL) << 8
-      | (readByteUnsafe() & 0xffL) << 16
-      | (readByteUnsafe() & 0xffL) << 24
-      | (readByteUnsafe() & 0xffL) << 32
-      | (readByteUnsafe() & 0xffL) << 40
-      | (readByteUnsafe() & 0xffL) << 48
-      | (readByteUnsafe() & 0xffL) << 56;
-  }
-
-  final byte readByte() {
-    ensureLength(this, 1);
-    return readByteUnsafe();
-  }
-
-  /** This needs to be checked externally to not overrun the underlying array */
-  abstract byte readByteUnsafe();
-
-  abstract byte[] readByteArray(int byteCount);
-
-  /**
-   * @return the value read. Use {@link Buffer#varintSizeInBytes(long)} to tell how many bytes.
-   * @throws IllegalArgumentException if more than 64 bits were encoded
-   */
-  // included in the main api as this is used commonly, for example reading proto tags
-  int readVarint32() {
-    byte b; // negative number implies MSB set
-    if ((b = readByte()) >= 0) {
-      return b;
-    }
-    int result = b & 0x7f;
-
-    if ((b = readByte()) >= 0) {
-      return result | b << 7;
-    }
-    result |= (b & 0x7f) << 7;
-
-    if ((b = readByte()) >= 0) {
-      return result | b << 14;
-    }
-    result |= (b & 0x7f) << 14;
-
-    if ((b = readByte()) >= 0) {
-      return result | b << 21;
-    }
-    result |= (b & 0x7f) << 21;
-
-    b = readByte();
-    if ((b & 0xf0) != 0) {
-      throw new IllegalArgumentException("Greater than 32-bit varint at position " + (pos() - 1));
-    }
-    return result | b << 28;
-  }
-
-  long readVarint64() {
-    byte b; // negative number implies MSB set
-    if ((b = readByte()) >= 0) {
-      return b;
-    }
-
-    long result = b & 0x7f;
-    for (int i = 1; b < 0 && i < 10; i++) {
-      b = readByte();
-      if (i == 9 && (b & 0xf0) != 0) {
-        throw new IllegalArgumentException("Greater than 64-bit varint at position " + (pos() - 1));
-      }
-      result |= (long) (b & 0x7f) << (i * 7);
-    }
-    return result;
-  }
-
-  abstract int remaining();
-
-  abstract boolean skip(int maxCount);
-
-  public abstract int pos();
-
   public abstract byte[] toByteArray();
 
   public interface Writer<T> {
@@ -341,11 +260,4 @@ public abstract class Buffer {
 
     void write(T value, Buffer buffer);
   }
-
-  static void ensureLength(Buffer buffer, int length) {
-    if (length > buffer.remaining()) {
-      throw new IllegalArgumentException(
-        "Truncated: length " + length + " > bytes remaining " + buffer.remaining());
-    }
-  }
 }
@@ -16,15 +16,24 @@ package zipkin2.internal;
 final class ByteArrayBuffer extends Buffer {
 
   private final byte[] buf;
+  private final int start; // where reset() returns to
+  private final int limit; // exclusive end of readable bytes
   int pos; // visible for testing
 
   ByteArrayBuffer(int size) {
     buf = new byte[size];
+    start = 0;
+    limit = size;
   }
 
   ByteArrayBuffer(byte[] buf, int pos) {
+    this(buf, pos, buf.length);
+  }
+
+  ByteArrayBuffer(byte[] buf, int pos, int limit) {
     this.buf = buf;
-    this.pos = pos;
+    this.start = this.pos = pos;
+    this.limit = limit;
   }
 
   @Override public void writeByte(int v) {
@@ -59,7 +68,7 @@ final class ByteArrayBuffer extends Buffer {
   }
 
   @Override public void reset() {
-    pos = 0;
+    pos = start;
   }
 
   @Override byte readByteUnsafe() {
@@ -75,13 +84,13 @@ final class ByteArrayBuffer extends Buffer {
   }
 
   @Override int remaining() {
-    return buf.length - pos;
+    return limit - pos;
   }
 
   @Override boolean skip(int maxCount) {
     int nextPos = pos + maxCount;
-    if (nextPos > buf.length) {
-      pos = buf.length;
+    if (nextPos > limit) {
+      pos = limit;
       return false;
     }
     pos = nextPos;
@@ -92,6 +101,10 @@ final class ByteArrayBuffer extends Buffer {
     return pos;
   }
 
+  @Override void pos(int pos) {
+    this.pos = pos;
+  }
+
   @Override public byte[] toByteArray() {
     // assert pos == buf.length;
     return buf;
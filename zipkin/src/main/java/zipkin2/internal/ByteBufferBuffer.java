@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.nio.ByteBuffer;
+
+/** Read-only view of a buffer without a backing array, such as a direct buffer. */
+final class ByteBufferBuffer extends ReadBuffer {
+
+  private final ByteBuffer buf; // not shared, so its position is ours to change
+  private final int start; // slices and offset views don't begin at zero
+
+  ByteBufferBuffer(ByteBuffer buf) {
+    this.buf = buf;
+    this.start = buf.position();
+  }
+
+  @Override public void reset() {
+    buf.position(start);
+  }
+
+  @Override byte readByteUnsafe() {
+    return buf.get();
+  }
+
+  @Override byte[] readByteArray(int length) {
+    ensureLength(this, length);
+    byte[] result = new byte[length];
+    buf.get(result);
+    return result;
+  }
+
+  @Override int remaining() {
+    return buf.remaining();
+  }
+
+  @Override boolean skip(int maxCount) {
+    int nextPos = buf.position() + maxCount;
+    if (nextPos > buf.limit()) {
+      buf.position(buf.limit());
+      return false;
+    }
+    buf.position(nextPos);
+    return true;
+  }
+
+  @Override public int pos() {
+    return buf.position();
+  }
+
+  @Override void pos(int pos) {
+    buf.position(pos);
+  }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import zipkin2.DependencyLink;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+
+import static java.util.logging.Level.FINE;
+import static zipkin2.internal.HexCodec.lowerHexToUnsignedLong;
+
+/**
+ * Produces the same links as {@link DependencyLinker}, in the same order, but with little garbage
+ * per trace, for use when linking many traces.
+ *
+ * <p>Service names are interned to integers, and links are counted in a {@link LongMap} keyed on
+ * the parent and child service IDs. Instead of building a {@link SpanNode} tree, the tree of each
+ * trace is held in arrays that are reused by the next trace. Traces with spans reported in pieces,
+ * or which otherwise need {@link Trace#merge(List) merging}, fall back to {@link SpanNode}. The
+ * exception is a shared server span missing its parent ID, which is backfilled when linking.
+ * The rules for linking each span are those of {@link DependencyLinker}.
+ *
+ * <p>Service names are untrusted input, so {@link #clear()} forgets them once there are more than
+ * {@value #MAX_INTERNED_SERVICES}. Without calling {@link #clear()}, interned names are bounded by
+ * the links that {@link #link()} would return anyway.
+ *
+ * <p>Not thread safe.
+ */
+public final class CompactDependencyLinker extends AbstractDependencyLinker {
+  static final int NONE = -1;
+  static final int MAX_INTERNED_SERVICES = 1000;
+
+  final SpanNode.Builder builder;
+  final Map<String, Integer> serviceIds = new LinkedHashMap<>();
+  final List<String> serviceNames = new ArrayList<>();
+  /** Counts are keyed on the parent service ID in the high bits, and the child in the low bits */
+  final LongMap<long[]> counts = new LongMap<>();
+  /** Same values as {@link #counts}, in the order links were first seen */
+  final List<long[]> countsInOrder = new ArrayList<>();
+
+  // Scratch space for the current trace, reused by the next. Positions are indexes of #spans
+  Span[] spans = new Span[0], sortScratch = new Span[0];
+  int[] parents = new int[0], firstChildren = new int[0], nextSiblings = new int[0];
+  int[] queue = new int[0];
+  int spanCount, root, current; // current is the position being linked
+
+  // Open addressing index of span ID to the position of the span, and its shared server span
+  long[] indexKeys = new long[0];
+  int[] indexSpans = new int[0], indexSharedSpans = new int[0];
+  int indexMask;
+
+  public CompactDependencyLinker() {
+    this(Logger.getLogger(CompactDependencyLinker.class.getName()));
+  }
+
+  CompactDependencyLinker(Logger logger) {
+    super(logger);
+    this.builder = SpanNode.newBuilder(logger);
+  }
+
+  /**
+   * @param spans spans where all spans have the same trace id
+   */
+  public CompactDependencyLinker putTrace(List<Span> spans) {
+    if (spans.isEmpty()) return this;
+    if (!indexTrace(spans)) {
+      Arrays.fill(this.spans, 0, spanCount, null);
+      indexTraceTree(builder.build(spans));
+    }
+    try {
+      linkTrace();
+    } finally {
+      Arrays.fill(this.spans, 0, spanCount, null); // don't retain spans until the next trace
+    }
+    return this;
+  }
+
+  public List<DependencyLink> link() {
+    List<DependencyLink> result = new ArrayList<>(countsInOrder.size());
+    for (int i = 0, length = countsInOrder.size(); i < length; i++) {
+      long[] count = countsInOrder.get(i);
+      result.add(DependencyLink.newBuilder()
+        .parent(serviceNames.get((int) (count[0] >>> 32)))
+        .child(serviceNames.get((int) count[0]))
+        .callCount(count[1])
+        .errorCount(count[2])
+        .build());
+    }
+    return result;
+  }
+
+  /** Forgets all links, but not scratch space or, unless there are too many, service names. */
+  public void clear() {
+    counts.clear();
+    countsInOrder.clear();
+    if (serviceNames.size() > MAX_INTERNED_SERVICES) {
+      serviceIds.clear();
+      serviceNames.clear();
+    }
+  }
+
+  /**
+   * Indexes the trace into the scratch arrays the same way {@link SpanNode.Builder} would, or
+   * returns false if the trace needs merging first.
+   *
+   * <p>Without merging, the only spans allowed to share an ID are a client and its shared server.
+   */
+  boolean indexTrace(List<Span> input) {
+    int length = input.size();
+    ensureCapacity(length);
+    spanCount = length;
+    root = NONE;
+
+    for (int i = 0; i < length; i++) spans[i] = input.get(i);
+    // Positions are in the order SpanNode.Builder visits siblings, so links are in the same order
+    sortSpans(length);
+
+    for (int i = 0; i < length; i++) {
+      Span span = spans[i];
+      int slot = indexSlot(lowerHexToUnsignedLong(span.id()), true);
+      if (Boolean.TRUE.equals(span.shared())) {
+        if (indexSharedSpans[slot] != NONE) return false;
+        indexSharedSpans[slot] = i;
+      } else {
+        if (indexSpans[slot] != NONE) return false;
+        indexSpans[slot] = i;
+        // SpanNode.Builder sorts by ID, so the root is the parentless span with the lowest ID
+        if (span.parentId() != null) continue;
+        if (root == NONE || span.id().compareTo(spans[root].id()) < 0) root = i;
+      }
+    }
+
+    for (int i = 0; i < length; i++) {
+      if (i == root) {
+        parents[i] = NONE;
+        continue;
+      }
+      Span span = spans[i];
+      int parent = NONE;
+      if (Boolean.TRUE.equals(span.shared())) { // the parent of a shared server is its client
+        parent = indexSpans[indexSlot(lowerHexToUnsignedLong(span.id()), false)];
+      } else if (span.parentId() != null) {
+        int slot = indexSlot(lowerHexToUnsignedLong(span.parentId()), false);
+        if (slot != NONE) {
+          // prefer a shared server span on the same endpoint, as it is the most specific
+          int shared = indexSharedSpans[slot];
+          if (shared != NONE && equal(spans[shared].localEndpoint(), span.localEndpoint())) {
+            parent = shared;
+          } else {
+            parent = indexSpans[slot];
+          }
+        }
+      }
+      // Like SpanNode.Builder, attribute spans missing their parent to the root, if there is one
+      parents[i] = parent != NONE ? parent : root;
+    }
+    return true;
+  }
+
+  /**
+   * Stable merge sort by timestamp, then the order {@link Trace#merge(List)} leaves spans in. This
+   * doesn't allocate, unlike {@link Arrays#sort(Object[], java.util.Comparator)}.
+   */
+  void sortSpans(int length) {
+    Span[] from = spans, to = sortScratch;
+    for (int width = 1; width < length; width <<= 1) {
+      for (int low = 0; low < length; low += width << 1) {
+        int middle = Math.min(low + width, length), high = Math.min(low + (width << 1), length);
+        int left = low, right = middle, out = low;
+        while (left < middle && right < high) {
+          to[out++] = compare(from[right], from[left]) < 0 ? from[right++] : from[left++];
+        }
+        while (left < middle) to[out++] = from[left++];
+        while (right < high) to[out++] = from[right++];
+      }
+      Span[] swap = from;
+      from = to;
+      to = swap;
+    }
+    if (from != spans) System.arraycopy(from, 0, spans, 0, length);
+    Arrays.fill(sortScratch, 0, length, null);
+  }
+
+  static int compare(Span left, Span right) {
+    long x = left.timestampAsLong(), y = right.timestampAsLong();
+    if (x != y) return x < y ? -1 : 1; // Long.compare is JRE 7+
+    return Trace.CLEANUP_COMPARATOR.compare(left, right);
+  }
+
+  /** Copies a tree built from a trace that needed merging into the scratch arrays. */
+  void indexTraceTree(SpanNode tree) {
+    Map<SpanNode, Integer> positions = new IdentityHashMap<>();
+    for (Iterator<SpanNode> i = tree.traverse(); i.hasNext(); ) {
+      positions.put(i.next(), positions.size());
+    }
+    ensureCapacity(positions.size());
+    spanCount = positions.size();
+    root = tree.span() != null ? 0 : NONE;
+
+    for (Map.Entry<SpanNode, Integer> entry : positions.entrySet()) {
+      int position = entry.getValue();
+      spans[position] = entry.getKey().span();
+      Integer parent = positions.get(entry.getKey().parent()); // absent when the synthetic root
+      parents[position] = parent != null ? parent : NONE;
+    }
+  }
+
+  /** Visits spans reachable from the root, breadth-first, as {@link SpanNode#traverse()} does. */
+  void linkTrace() {
+    int length = spanCount;
+    Arrays.fill(firstChildren, 0, length, NONE);
+    for (int i = length - 1; i >= 0; i--) {
+      int parent = parents[i];
+      if (parent == NONE) continue;
+      nextSiblings[i] = firstChildren[parent];
+      firstChildren[parent] = i;
+    }
+
+    int head = 0, tail = 0;
+    for (int i = 0; i < length; i++) {
+      if (parents[i] == NONE) queue[tail++] = i; // the root, or all headless spans if there's none
+    }
+    if (logger.isLoggable(FINE)) logger.fine("traversing trace tree, breadth-first");
+    while (head < tail) {
+      current = queue[head++];
+      for (int child = firstChildren[current]; child != NONE; child = nextSiblings[child]) {
+        queue[tail++] = child;
+      }
+      linkSpan(spans[current], parentId(current), firstChildren[current] != NONE, current == root);
+    }
+  }
+
+  /**
+   * Returns the parent ID of the span as {@link Trace#merge(List)} would leave it. Unlike other
+   * spans, a shared server span missing its parent ID takes the one of the span it shares its ID
+   * with, which is its parent in the tree.
+   */
+  @Nullable String parentId(int position) {
+    Span span = spans[position];
+    String result = span.parentId();
+    if (result != null || !Boolean.TRUE.equals(span.shared())) return result;
+    int parent = parents[position];
+    if (parent == NONE || !spans[parent].id().equals(span.id())) return null;
+    return spans[parent].parentId();
+  }
+
+  @Override Span firstRemoteAncestor() {
+    for (int ancestor = parents[current]; ancestor != NONE; ancestor = parents[ancestor]) {
+      if (spans[ancestor].kind() != null) return spans[ancestor];
+    }
+    return null;
+  }
+
+  @Override void incrementLink(String parent, String child, boolean isError) {
+    long key = ((long) serviceId(parent) << 32) | serviceId(child);
+    long[] count = counts.get(key);
+    if (count == null) {
+      count = new long[] {key, 0L, 0L};
+      counts.put(key, count);
+      countsInOrder.add(count);
+    }
+    count[1]++;
+    if (isError) count[2]++;
+  }
+
+  int serviceId(String serviceName) {
+    Integer id = serviceIds.get(serviceName);
+    if (id != null) return id;
+    int result = serviceNames.size();
+    serviceIds.put(serviceName, result);
+    serviceNames.add(serviceName);
+    return result;
+  }
+
+  /**
+   * Returns the slot of the span ID in the index, or {@link #NONE} if absent and not inserting.
+   */
+  int indexSlot(long id, boolean insert) {
+    // murmur3 finalizer, so that sequential IDs spread across the table
+    long hash = id;
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    for (int i = (int) hash & indexMask; ; i = (i + 1) & indexMask) {
+      if (indexSpans[i] == NONE && indexSharedSpans[i] == NONE) {
+        if (!insert) return NONE;
+        indexKeys[i] = id;
+        return i;
+      }
+      if (indexKeys[i] == id) return i;
+    }
+  }
+
+  /** Grows the scratch arrays if needed, and clears the part of the span ID index to use. */
+  void ensureCapacity(int spanCount) {
+    if (spans.length < spanCount) {
+      int length = Math.max(16, Integer.highestOneBit(spanCount - 1) << 1);
+      spans = new Span[length];
+      sortScratch = new Span[length];
+      parents = new int[length];
+      firstChildren = new int[length];
+      nextSiblings = new int[length];
+      queue = new int[length];
+      indexKeys = new long[length * 2];
+      indexSpans = new int[length * 2];
+      indexSharedSpans = new int[length * 2];
+    }
+    // keep the index at most half full, but only clear what this trace needs
+    int indexCapacity = Math.max(16, Integer.highestOneBit(spanCount - 1) << 2);
+    indexMask = indexCapacity - 1;
+    Arrays.fill(indexSpans, 0, indexCapacity, NONE);
+    Arrays.fill(indexSharedSpans, 0, indexCapacity, NONE);
+  }
+
+  static boolean equal(Endpoint a, Endpoint b) {
+    return a == b || (a != null && a.equals(b));
+  }
+
+  @Override public String toString() {
+    return "CompactDependencyLinker{services=" + serviceNames.size() + ", links=" + counts.size()
+      + "}";
+  }
+}
@@ -20,7 +20,7 @@ import java.util.concurrent.TimeUnit;
 
 /** Limits invocations of a given context to at most once per period. */
 // this is a dependency-free variant formerly served by an expiring guava cache
-public final class DelayLimiter<C> {
+public final class DelayLimiter<C> implements InvocationLimiter<C> {
 
   public static <C> DelayLimiter<C> create() {
     return new Builder().build();
@@ -84,8 +84,7 @@ public final class DelayLimiter<C> {
     cardinality = builder.cardinality;
   }
 
-  /** Returns true if a given context should be invoked. */
-  public boolean shouldInvoke(C context) {
+  @Override public boolean shouldInvoke(C context) {
     cleanupExpiredSuppressions();
 
     if (cache.containsKey(context)) return false;
@@ -112,12 +111,12 @@ public final class DelayLimiter<C> {
     }
   }
 
-  public void invalidate(C context) {
+  @Override public void invalidate(C context) {
     Suppression<C> suppression = cache.remove(context);
     if (suppression != null) suppressions.remove(suppression);
   }
 
-  public void clear() {
+  @Override public void clear() {
     cache.clear();
     suppressions.clear();
   }
@@ -34,18 +34,18 @@ import static java.util.logging.Level.FINE;
  * services. Spans with {@link Span#kind()} unset, but {@link Span#remoteEndpoint()} set are treated
  * the same as client spans.
  */
-public final class DependencyLinker {
-  final Logger logger;
+public final class DependencyLinker extends AbstractDependencyLinker {
   final SpanNode.Builder builder;
   final Map<Pair, Long> callCounts = new LinkedHashMap<>();
   final Map<Pair, Long> errorCounts = new LinkedHashMap<>();
+  SpanNode current; // the node being linked
 
   public DependencyLinker() {
     this(Logger.getLogger(DependencyLinker.class.getName()));
   }
 
   DependencyLinker(Logger logger) {
-    this.logger = logger;
+    super(logger);
     this.builder = SpanNode.newBuilder(logger);
   }
 
@@ -57,115 +57,30 @@ public final class DependencyLinker {
     SpanNode traceTree = builder.build(spans);
 
     if (logger.isLoggable(FINE)) logger.fine("traversing trace tree, breadth-first");
-    for (Iterator<SpanNode> i = traceTree.traverse(); i.hasNext(); ) {
-      SpanNode current = i.next();
-      Span currentSpan = current.span();
-      if (logger.isLoggable(FINE)) {
-        logger.fine("processing " + currentSpan);
+    try {
+      for (Iterator<SpanNode> i = traceTree.traverse(); i.hasNext(); ) {
+        current = i.next();
+        Span currentSpan = current.span();
+        linkSpan(currentSpan, currentSpan.parentId(), !current.children().isEmpty(),
+          current == traceTree);
       }
-
-      Kind kind = currentSpan.kind();
-      // When processing links to a client span, we prefer the server's name. If we have no child
-      // spans, we proceed to use the name the client chose.
-      if (Kind.CLIENT.equals(kind) && !current.children().isEmpty()) {
-        continue;
-      }
-
-      String serviceName = currentSpan.localServiceName();
-      String remoteServiceName = currentSpan.remoteServiceName();
-      if (kind == null) {
-        // Treat unknown type of span as a client span if we know both sides
-        if (serviceName != null && remoteServiceName != null) {
-          kind = Kind.CLIENT;
-        } else {
-          logger.fine("non remote span; skipping");
-          continue;
-        }
-      }
-
-      String child;
-      String parent;
-      switch (kind) {
-        case SERVER:
-        case CONSUMER:
-          child = serviceName;
-          parent = remoteServiceName;
-          if (current == traceTree) { // we are the root-most span.
-            if (parent == null) {
-              logger.fine("root's client is unknown; skipping");
-              continue;
-            }
-          }
-          break;
-        case CLIENT:
-        case PRODUCER:
-          parent = serviceName;
-          child = remoteServiceName;
-          break;
-        default:
-          logger.fine("unknown kind; skipping");
-          continue;
-      }
-
-      boolean isError = currentSpan.tags().containsKey("error");
-      if (kind == Kind.PRODUCER || kind == Kind.CONSUMER) {
-        if (parent == null || child == null) {
-          logger.fine("cannot link messaging span to its broker; skipping");
-        } else {
-          addLink(parent, child, isError);
-        }
-        continue;
-      }
-
-      // Local spans may be between the current node and its remote parent
-      Span remoteAncestor = firstRemoteAncestor(current);
-      String remoteAncestorName;
-      if (remoteAncestor != null
-        && (remoteAncestorName = remoteAncestor.localServiceName()) != null) {
-        // Some users accidentally put the remote service name on client annotations.
-        // Check for this and backfill a link from the nearest remote to that service as necessary.
-        if (kind == Kind.CLIENT && serviceName != null && !remoteAncestorName.equals(serviceName)) {
-          logger.fine("detected missing link to client span");
-          addLink(remoteAncestorName, serviceName, false); // we don't know if there's an error here
-        }
-
-        if (kind == Kind.SERVER || parent == null) parent = remoteAncestorName;
-
-        // When an RPC is split between spans, we skip the child (server side). If our parent is a
-        // client, we need to check it for errors.
-        if (!isError && Kind.CLIENT.equals(remoteAncestor.kind()) &&
-          currentSpan.parentId() != null && currentSpan.parentId().equals(remoteAncestor.id())) {
-          isError = remoteAncestor.tags().containsKey("error");
-        }
-      }
-
-      if (parent == null || child == null) {
-        logger.fine("cannot find remote ancestor; skipping");
-        continue;
-      }
-
-      addLink(parent, child, isError);
+    } finally {
+      current = null; // don't retain the trace until the next one
     }
     return this;
   }
 
-  Span firstRemoteAncestor(SpanNode current) {
+  @Override Span firstRemoteAncestor() {
     SpanNode ancestor = current.parent();
     while (ancestor != null) {
       Span maybeRemote = ancestor.span();
-      if (maybeRemote != null && maybeRemote.kind() != null) {
-        if (logger.isLoggable(FINE)) logger.fine("found remote ancestor " + maybeRemote);
-        return maybeRemote;
-      }
+      if (maybeRemote != null && maybeRemote.kind() != null) return maybeRemote;
       ancestor = ancestor.parent();
     }
     return null;
   }
 
-  void addLink(String parent, String child, boolean isError) {
-    if (logger.isLoggable(FINE)) {
-      logger.fine("incrementing " + (isError ? "error " : "") + "link " + parent + " -> " + child);
-    }
+  @Override void incrementLink(String parent, String child, boolean isError) {
     Pair key = new Pair(parent, child);
     if (callCounts.containsKey(key)) {
       callCounts.put(key, callCounts.get(key) + 1);
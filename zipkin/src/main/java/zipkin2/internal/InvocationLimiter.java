@@ -0,0 +1,35 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+/**
+ * Limits invocations of a given context, such as writes of the same name, to at most once per
+ * period.
+ *
+ * @see DelayLimiter
+ * @see BloomDelayLimiter
+ */
+public interface InvocationLimiter<C> {
+  /** Returns true if a given context should be invoked. */
+  boolean shouldInvoke(C context);
+
+  /**
+   * Allows a context to be invoked again, for example when its invocation failed. Only call this
+   * for a context that {@link #shouldInvoke(Object)} recently allowed.
+   */
+  void invalidate(C context);
+
+  /** Allows all contexts to be invoked again. */
+  void clear();
+}
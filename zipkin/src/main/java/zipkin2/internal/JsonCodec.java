@@ -13,17 +13,15 @@
  */
 package zipkin2.internal;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import zipkin2.Span;
 
-import static com.google.gson.stream.JsonToken.BOOLEAN;
-import static com.google.gson.stream.JsonToken.NULL;
-import static com.google.gson.stream.JsonToken.STRING;
 import static java.lang.String.format;
 
 /**
@@ -41,79 +39,603 @@ import static java.lang.String.format;
  * this should be easy to justify as these objects don't change much at all.
  */
 public final class JsonCodec {
-  // Hides gson types for internal use in other submodules
+  /**
+   * Reads json directly from UTF-8 bytes, without decoding to an intermediate character stream.
+   * Numbers are parsed in place, and common field names are returned as constants, so reading
+   * them allocates nothing. Strings are decoded from the bytes between their quotes.
+   *
+   * <p>This follows the structure and error messages of Gson's reader, which it replaces. Like
+   * Gson's, this is strict except that keywords such as {@code null} are case-insensitive.
+   */
   public static final class JsonReader {
-    final com.google.gson.stream.JsonReader delegate;
+    // values of peeked
+    static final int PEEKED_NONE = 0, PEEKED_BEGIN_OBJECT = 1, PEEKED_END_OBJECT = 2,
+      PEEKED_BEGIN_ARRAY = 3, PEEKED_END_ARRAY = 4, PEEKED_TRUE = 5, PEEKED_FALSE = 6,
+      PEEKED_NULL = 7, PEEKED_STRING = 8, PEEKED_NAME = 9, PEEKED_NUMBER = 10, PEEKED_EOF = 11;
+
+    // values of the scope stack
+    static final int EMPTY_ARRAY = 1, NONEMPTY_ARRAY = 2, EMPTY_OBJECT = 3, DANGLING_NAME = 4,
+      NONEMPTY_OBJECT = 5, EMPTY_DOCUMENT = 6, NONEMPTY_DOCUMENT = 7;
+
+    static final String[] TOKEN_NAMES = {
+      null, "BEGIN_OBJECT", "END_OBJECT", "BEGIN_ARRAY", "END_ARRAY", "BOOLEAN", "BOOLEAN", "NULL",
+      "STRING", "NAME", "NUMBER", "END_DOCUMENT"
+    };
+
+    /** Field names of zipkin model types, returned without allocation when read. */
+    static final String[] KNOWN_NAMES = {
+      "traceId", "parentId", "id", "kind", "name", "timestamp", "duration", "localEndpoint",
+      "remoteEndpoint", "annotations", "tags", "debug", "shared", "serviceName", "ipv4", "ipv6",
+      "port", "value", "endpoint", "binaryAnnotations", "key", "type", "parent", "child",
+      "callCount", "errorCount"
+    };
+    static final byte[][] KNOWN_NAME_BYTES = new byte[KNOWN_NAMES.length][];
+
+    static {
+      for (int i = 0; i < KNOWN_NAMES.length; i++) {
+        KNOWN_NAME_BYTES[i] = KNOWN_NAMES[i].getBytes(UTF_8);
+      }
+    }
+
+    final byte[] buf;
+    final int offset, limit;
+    int pos, peeked = PEEKED_NONE;
+    // when peeked is PEEKED_NUMBER, the end of its bytes
+    int numberEnd;
+
+    int[] stack = new int[32];
+    int stackSize = 0;
+    String[] pathNames = new String[32];
+    int[] pathIndices = new int[32];
+
+    // state saved by mark(), to read a value again after scanning it
+    int markPos, markPeeked, markStackSize, markScope, markPathIndex;
 
     JsonReader(byte[] bytes) {
-      delegate =
-        new com.google.gson.stream.JsonReader(
-          new InputStreamReader(new ByteArrayInputStream(bytes), UTF_8));
+      this(bytes, 0, bytes.length);
+    }
+
+    JsonReader(byte[] bytes, int offset, int length) {
+      this.buf = bytes;
+      this.offset = this.pos = offset;
+      this.limit = offset + length;
+      stack[stackSize++] = EMPTY_DOCUMENT;
+    }
+
+    /**
+     * Reads the remaining bytes of the buffer without changing its position. Heap buffers are read
+     * in place, while others are copied, as parsing needs an array.
+     */
+    static JsonReader of(ByteBuffer bytes) {
+      if (bytes.hasArray()) {
+        return new JsonReader(
+          bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+      }
+      byte[] copy = new byte[bytes.remaining()];
+      bytes.duplicate().get(copy);
+      return new JsonReader(copy);
     }
 
     public void beginArray() throws IOException {
-      delegate.beginArray();
+      int p = peeked != PEEKED_NONE ? peeked : doPeek();
+      if (p != PEEKED_BEGIN_ARRAY) throw unexpected("BEGIN_ARRAY", p);
+      push(EMPTY_ARRAY);
+      pathIndices[stackSize - 1] = 0;
+      peeked = PEEKED_NONE;
     }
 
     public boolean hasNext() throws IOException {
-      return delegate.hasNext();
+      int p = peeked != PEEKED_NONE ? peeked : doPeek();
+      return p != PEEKED_END_OBJECT && p != PEEKED_END_ARRAY && p != PEEKED_EOF;
     }
 
     public void endArray() throws IOException {
-      delegate.endArray();
+      int p = peeked != PEEKED_NONE ? peeked : doPeek();
+      if (p != PEEKED_END_ARRAY) throw unexpected("END_ARRAY", p);
+      stackSize--;
+      pathIndices[stackSize - 1]++;
+      peeked = PEEKED_NONE;
     }
 
     public void beginObject() throws IOException {
-      delegate.beginObject();
+      int p = peeked != PEEKED_NONE ? peeked : doPeek();
+      if (p != PEEKED_BEGIN_OBJECT) throw unexpected("BEGIN_OBJECT", p);
+      push(EMPTY_OBJECT);
+      peeked = PEEKED_NONE;
     }
 
     public void endObject() throws IOException {
-      delegate.endObject();
+      int p = peeked != PEEKED_NONE ? peeked : doPeek();
+      if (p != PEEKED_END_OBJECT) throw unexpected("END_OBJECT", p);
+      stackSize--;
+      pathNames[stackSize] = null; // Free the last path name so that it can be garbage collected!
+      pathIndices[stackSize - 1]++;
+      peeked = PEEKED_NONE;
     }
 
     public String nextName() throws IOException {
-      return delegate.nextName();
+      int p = peeked != PEEKED_NONE ? peeked : doPeek();
+      if (p != PEEKED_NAME) throw unexpected("a name", p);
+      String result = knownName();
+      if (result == null) result = readString();
+      pathNames[stackSize - 1] = result;
+      peeked = PEEKED_NONE;
+      return result;
     }
 
     public String nextString() throws IOException {
-      return delegate.nextString();
+      int p = peeked != PEEKED_NONE ? peeked : doPeek();
+      String result;
+      if (p == PEEKED_STRING) {
+        result = readString();
+      } else if (p == PEEKED_NUMBER) {
+        result = new String(buf, pos, numberEnd - pos, UTF_8);
+        pos = numberEnd;
+      } else {
+        throw unexpected("a string", p);
+      }
+      peeked = PEEKED_NONE;
+      pathIndices[stackSize - 1]++;
+      return result;
     }
 
     public void skipValue() throws IOException {
-      delegate.skipValue();
+      int count = 0;
+      do {
+        int p = peeked != PEEKED_NONE ? peeked : doPeek();
+        if (p == PEEKED_BEGIN_ARRAY) {
+          push(EMPTY_ARRAY);
+          count++;
+        } else if (p == PEEKED_BEGIN_OBJECT) {
+          push(EMPTY_OBJECT);
+          count++;
+        } else if (p == PEEKED_END_ARRAY || p == PEEKED_END_OBJECT) {
+          stackSize--;
+          count--;
+        } else if (p == PEEKED_NAME || p == PEEKED_STRING) {
+          skipString();
+        } else if (p == PEEKED_NUMBER) {
+          pos = numberEnd;
+        } else if (p == PEEKED_EOF) {
+          throw syntaxError("End of input");
+        }
+        peeked = PEEKED_NONE;
+      } while (count != 0);
+
+      pathIndices[stackSize - 1]++;
+      pathNames[stackSize - 1] = "null";
     }
 
     public long nextLong() throws IOException {
-      return delegate.nextLong();
+      int p = peeked != PEEKED_NONE ? peeked : doPeek();
+      long result;
+      if (p == PEEKED_NUMBER) {
+        result = parseLong(pos, numberEnd);
+        pos = numberEnd;
+      } else if (p == PEEKED_STRING) { // like Gson, quoted numbers are permitted
+        int start = pos;
+        skipString();
+        result = parseLong(start, pos - 1);
+      } else {
+        throw unexpected("a long", p);
+      }
+      peeked = PEEKED_NONE;
+      pathIndices[stackSize - 1]++;
+      return result;
+    }
+
+    /**
+     * Parses the lower 64 bits of a hex string, such as a trace ID, without allocating. Returns
+     * zero if the string isn't hex, leaving the error to the code which decodes it.
+     */
+    long nextLowerHex() throws IOException {
+      int p = peeked != PEEKED_NONE ? peeked : doPeek();
+      if (p != PEEKED_STRING) throw unexpected("a string", p);
+      int start = pos;
+      skipString();
+      int end = pos - 1; // the closing quote
+      peeked = PEEKED_NONE;
+      pathIndices[stackSize - 1]++;
+
+      long result = 0L;
+      for (int i = Math.max(start, end - 16); i < end; i++) {
+        byte c = buf[i];
+        result <<= 4;
+        if (c >= '0' && c <= '9') {
+          result |= c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+          result |= c - 'a' + 10;
+        } else {
+          return 0L;
+        }
+      }
+      return result;
+    }
+
+    /** Saves the position of the value about to be read, so that {@link #reset()} can return. */
+    void mark() throws IOException {
+      markPeeked = peeked != PEEKED_NONE ? peeked : doPeek();
+      markPos = pos;
+      markStackSize = stackSize;
+      markScope = stack[stackSize - 1];
+      markPathIndex = pathIndices[stackSize - 1];
+    }
+
+    /** Returns to the value at {@link #mark()}, after it was skipped or partially read. */
+    void reset() {
+      pos = markPos;
+      peeked = markPeeked;
+      stackSize = markStackSize;
+      stack[stackSize - 1] = markScope;
+      pathIndices[stackSize - 1] = markPathIndex;
     }
 
     public String getPath() {
-      return delegate.getPath();
+      StringBuilder result = new StringBuilder().append('$');
+      for (int i = 0; i < stackSize; i++) {
+        switch (stack[i]) {
+          case EMPTY_ARRAY:
+          case NONEMPTY_ARRAY:
+            result.append('[').append(pathIndices[i]).append(']');
+            break;
+          case EMPTY_OBJECT:
+          case DANGLING_NAME:
+          case NONEMPTY_OBJECT:
+            result.append('.');
+            if (pathNames[i] != null) result.append(pathNames[i]);
+            break;
+          default:
+            break;
+        }
+      }
+      return result.toString();
     }
 
     public boolean nextBoolean() throws IOException {
-      return delegate.nextBoolean();
+      int p = peeked != PEEKED_NONE ? peeked : doPeek();
+      if (p != PEEKED_TRUE && p != PEEKED_FALSE) throw unexpected("a boolean", p);
+      peeked = PEEKED_NONE;
+      pathIndices[stackSize - 1]++;
+      return p == PEEKED_TRUE;
     }
 
     public int nextInt() throws IOException {
-      return delegate.nextInt();
+      long result = nextLong();
+      if (result != (int) result) {
+        throw new NumberFormatException("Expected an int but was " + result + locationString());
+      }
+      return (int) result;
     }
 
     public boolean peekString() throws IOException {
-      return delegate.peek() == STRING;
+      int p = peeked != PEEKED_NONE ? peeked : doPeek();
+      return p == PEEKED_STRING;
     }
 
     public boolean peekBoolean() throws IOException {
-      return delegate.peek() == BOOLEAN;
+      int p = peeked != PEEKED_NONE ? peeked : doPeek();
+      return p == PEEKED_TRUE || p == PEEKED_FALSE;
     }
 
     public boolean peekNull() throws IOException {
-      return delegate.peek() == NULL;
+      int p = peeked != PEEKED_NONE ? peeked : doPeek();
+      return p == PEEKED_NULL;
     }
 
     @Override
     public String toString() {
-      return delegate.toString();
+      return "JsonReader" + locationString();
+    }
+
+    int doPeek() throws IOException {
+      int peekStack = stack[stackSize - 1];
+      if (peekStack == EMPTY_ARRAY) {
+        stack[stackSize - 1] = NONEMPTY_ARRAY;
+      } else if (peekStack == NONEMPTY_ARRAY) {
+        int c = nextNonWhitespace();
+        if (c == ']') return peeked = PEEKED_END_ARRAY;
+        if (c != ',') throw syntaxError("Unterminated array");
+      } else if (peekStack == EMPTY_OBJECT || peekStack == NONEMPTY_OBJECT) {
+        stack[stackSize - 1] = DANGLING_NAME;
+        if (peekStack == NONEMPTY_OBJECT) {
+          int c = nextNonWhitespace();
+          if (c == '}') return peeked = PEEKED_END_OBJECT;
+          if (c != ',') throw syntaxError("Unterminated object");
+        }
+        int c = nextNonWhitespace();
+        if (c == '"') return peeked = PEEKED_NAME;
+        if (c == '}' && peekStack != NONEMPTY_OBJECT) return peeked = PEEKED_END_OBJECT;
+        throw syntaxError("Expected name");
+      } else if (peekStack == DANGLING_NAME) {
+        stack[stackSize - 1] = NONEMPTY_OBJECT;
+        if (nextNonWhitespace() != ':') throw syntaxError("Expected ':'");
+      } else if (peekStack == EMPTY_DOCUMENT) {
+        stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+      } else if (peekStack == NONEMPTY_DOCUMENT) {
+        if (nextNonWhitespace() == -1) return peeked = PEEKED_EOF;
+        throw syntaxError("Expected end of document");
+      }
+
+      int c = nextNonWhitespace();
+      switch (c) {
+        case -1:
+          throw syntaxError("End of input");
+        case ']':
+          if (peekStack == EMPTY_ARRAY) return peeked = PEEKED_END_ARRAY;
+          throw syntaxError("Unexpected value");
+        case '"':
+          return peeked = PEEKED_STRING;
+        case '[':
+          return peeked = PEEKED_BEGIN_ARRAY;
+        case '{':
+          return peeked = PEEKED_BEGIN_OBJECT;
+        default:
+          pos--; // Don't consume the first character in a literal value.
+      }
+
+      int result = peekKeyword();
+      if (result != PEEKED_NONE) return peeked = result;
+      result = peekNumber();
+      if (result != PEEKED_NONE) return peeked = result;
+      throw syntaxError("Unexpected value");
+    }
+
+    int peekKeyword() {
+      byte c = buf[pos];
+      String keyword;
+      int peeking;
+      if (c == 't' || c == 'T') {
+        keyword = "true";
+        peeking = PEEKED_TRUE;
+      } else if (c == 'f' || c == 'F') {
+        keyword = "false";
+        peeking = PEEKED_FALSE;
+      } else if (c == 'n' || c == 'N') {
+        keyword = "null";
+        peeking = PEEKED_NULL;
+      } else {
+        return PEEKED_NONE;
+      }
+
+      int length = keyword.length();
+      if (pos + length > limit) return PEEKED_NONE;
+      for (int i = 1; i < length; i++) {
+        int k = keyword.charAt(i);
+        c = buf[pos + i];
+        if (c != k && c != k - ('a' - 'A')) return PEEKED_NONE;
+      }
+      if (pos + length < limit && !isLiteralEnd(buf[pos + length])) return PEEKED_NONE;
+      pos += length;
+      return peeking;
+    }
+
+    /**
+     * Like Gson, only accepts numbers in the json grammar: an optional minus sign, an integer part
+     * without leading zeros, then an optional fraction and exponent.
+     */
+    int peekNumber() {
+      int i = pos;
+      if (i < limit && buf[i] == '-') i++;
+      if (i == limit) return PEEKED_NONE;
+      if (buf[i] == '0') {
+        i++; // Leading '0' prefix is not allowed (since it could be octal).
+      } else {
+        int digits = skipDigits(i);
+        if (digits == i) return PEEKED_NONE;
+        i = digits;
+      }
+      if (i < limit && buf[i] == '.') {
+        int digits = skipDigits(++i);
+        if (digits == i) return PEEKED_NONE;
+        i = digits;
+      }
+      if (i < limit && (buf[i] == 'e' || buf[i] == 'E')) {
+        if (++i < limit && (buf[i] == '+' || buf[i] == '-')) i++;
+        int digits = skipDigits(i);
+        if (digits == i) return PEEKED_NONE;
+        i = digits;
+      }
+      if (i < limit && !isLiteralEnd(buf[i])) return PEEKED_NONE;
+      numberEnd = i;
+      return PEEKED_NUMBER;
+    }
+
+    /** Returns the index after any decimal digits starting at the index. */
+    int skipDigits(int i) {
+      while (i < limit && buf[i] >= '0' && buf[i] <= '9') i++;
+      return i;
+    }
+
+    /** Parses a number in place. Like Gson, integral values written as a double are permitted. */
+    long parseLong(int start, int end) {
+      int i = start;
+      boolean negative = i < end && buf[i] == '-';
+      if (negative) i++;
+      // 18 digits or less can't overflow a long
+      if (i < end && end - i <= 18) {
+        long result = 0L;
+        for (; i < end; i++) {
+          byte c = buf[i];
+          if (c < '0' || c > '9') break;
+          result = result * 10 + (c - '0');
+        }
+        if (i == end) return negative ? -result : result;
+      }
+      String number = new String(buf, start, end - start, UTF_8);
+      try {
+        return Long.parseLong(number);
+      } catch (NumberFormatException e) {
+        // Only quoted values can fail here, as peekNumber validated the others. Like Gson, let the
+        // NumberFormatException propagate.
+        double asDouble = Double.parseDouble(number);
+        long result = (long) asDouble;
+        if (result != asDouble) { // Make sure no precision was lost casting to 'long'.
+          throw new NumberFormatException("Expected a long but was " + number + locationString());
+        }
+        return result;
+      }
+    }
+
+    /** Returns a constant when the name at the current position is well-known, without escapes. */
+    @Nullable String knownName() {
+      int end = pos;
+      while (end < limit && buf[end] != '"' && buf[end] != '\\') end++;
+      if (end == limit || buf[end] != '"') return null;
+      int length = end - pos;
+      for (int i = 0; i < KNOWN_NAME_BYTES.length; i++) {
+        byte[] name = KNOWN_NAME_BYTES[i];
+        if (name.length != length) continue;
+        int j = 0;
+        while (j < length && name[j] == buf[pos + j]) j++;
+        if (j == length) {
+          pos = end + 1;
+          return KNOWN_NAMES[i];
+        }
+      }
+      return null;
+    }
+
+    /** Reads the string up to the closing quote, decoding UTF-8 and any escape sequences. */
+    String readString() throws IOException {
+      int start = pos;
+      for (; pos < limit; pos++) {
+        byte c = buf[pos];
+        if (c == '"') {
+          String result = new String(buf, start, pos - start, UTF_8);
+          pos++;
+          return result;
+        } else if (c == '\\') {
+          return readEscapedString(start);
+        }
+      }
+      throw syntaxError("Unterminated string");
+    }
+
+    /** Slow path, used when the string includes escapes. */
+    String readEscapedString(int start) throws IOException {
+      StringBuilder builder = new StringBuilder(Math.max(16, (pos - start) * 2));
+      builder.append(new String(buf, start, pos - start, UTF_8));
+      while (pos < limit) {
+        byte c = buf[pos++];
+        if (c == '"') return builder.toString();
+        if (c != '\\') {
+          int segment = pos - 1;
+          while (pos < limit && buf[pos] != '"' && buf[pos] != '\\') pos++;
+          builder.append(new String(buf, segment, pos - segment, UTF_8));
+          continue;
+        }
+        if (pos == limit) break;
+        c = buf[pos++];
+        switch (c) {
+          case 'u':
+            if (pos + 4 > limit) throw syntaxError("Unterminated escape sequence");
+            char result = 0;
+            for (int i = pos, end = i + 4; i < end; i++) {
+              byte h = buf[i];
+              result <<= 4;
+              if (h >= '0' && h <= '9') {
+                result += (h - '0');
+              } else if (h >= 'a' && h <= 'f') {
+                result += (h - 'a' + 10);
+              } else if (h >= 'A' && h <= 'F') {
+                result += (h - 'A' + 10);
+              } else {
+                throw syntaxError("Malformed unicode escape");
+              }
+            }
+            pos += 4;
+            builder.append(result);
+            break;
+          case 't':
+            builder.append('\t');
+            break;
+          case 'b':
+            builder.append('\b');
+            break;
+          case 'n':
+            builder.append('\n');
+            break;
+          case 'r':
+            builder.append('\r');
+            break;
+          case 'f':
+            builder.append('\f');
+            break;
+          case '\n':
+          case '\'':
+          case '"':
+          case '\\':
+          case '/':
+            builder.append((char) c);
+            break;
+          default:
+            throw syntaxError("Invalid escape sequence");
+        }
+      }
+      throw syntaxError("Unterminated string");
+    }
+
+    void skipString() throws IOException {
+      for (; pos < limit; pos++) {
+        byte c = buf[pos];
+        if (c == '"') {
+          pos++;
+          return;
+        } else if (c == '\\') {
+          pos++; // skip the escaped character, which could be a quote
+        }
+      }
+      throw syntaxError("Unterminated string");
+    }
+
+    /** Returns the next byte as an unsigned value, or -1 at the end of input. */
+    int nextNonWhitespace() {
+      while (pos < limit) {
+        int c = buf[pos++] & 0xff;
+        if (c == ' ' || c == '\n' || c == '\t' || c == '\r') continue;
+        return c;
+      }
+      return -1;
+    }
+
+    static boolean isLiteralEnd(byte c) {
+      switch (c) {
+        case ' ':
+        case '\t':
+        case '\n':
+        case '\r':
+        case ',':
+        case ':':
+        case '}':
+        case ']':
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    void push(int newTop) {
+      if (stackSize == stack.length) {
+        int newLength = stackSize * 2;
+        stack = Arrays.copyOf(stack, newLength);
+        pathIndices = Arrays.copyOf(pathIndices, newLength);
+        pathNames = Arrays.copyOf(pathNames, newLength);
+      }
+      stack[stackSize++] = newTop;
+    }
+
+    IllegalStateException unexpected(String expected, int peeked) {
+      return new IllegalStateException(
+        "Expected " + expected + " but was " + TOKEN_NAMES[peeked] + locationString());
+    }
+
+    /** The message includes "malformed", which {@link #exceptionReading} summarizes. */
+    IOException syntaxError(String message) {
+      return new IOException(message + " in malformed json" + locationString());
+    }
+
+    String locationString() {
+      return " at offset " + (pos - offset) + " path " + getPath();
     }
   }
 
@@ -142,7 +664,16 @@ public final class JsonCodec {
   public static <T> boolean readList(
     JsonReaderAdapter<T> adapter, byte[] bytes, Collection<T> out) {
     if (bytes.length == 0) return false;
-    JsonReader reader = new JsonReader(bytes);
+    return readList(adapter, new JsonReader(bytes), out);
+  }
+
+  public static <T> boolean readList(
+    JsonReaderAdapter<T> adapter, ByteBuffer bytes, Collection<T> out) {
+    if (!bytes.hasRemaining()) return false;
+    return readList(adapter, JsonReader.of(bytes), out);
+  }
+
+  static <T> boolean readList(JsonReaderAdapter<T> adapter, JsonReader reader, Collection<T> out) {
     try {
       reader.beginArray();
       if (!reader.hasNext()) return false;
@@ -154,6 +685,48 @@ public final class JsonCodec {
     }
   }
 
+  /** Like {@link #readList(JsonReaderAdapter, JsonReader, Collection)}, but only sampled spans. */
+  static int readList(JsonReaderAdapter<Span> adapter, JsonReader reader, Collection<Span> out,
+    TraceIdSampler sampler) {
+    int count = 0;
+    try {
+      reader.beginArray();
+      while (reader.hasNext()) {
+        count++;
+        if (isSampled(reader, sampler)) out.add(adapter.fromJson(reader));
+      }
+      reader.endArray();
+      return count;
+    } catch (Exception e) {
+      throw exceptionReading("List<" + adapter + ">", e);
+    }
+  }
+
+  /**
+   * Scans the span at the reader's position for its trace ID and debug flag. When sampled, the
+   * reader is reset to the start of the span. Otherwise, it is left after the span.
+   */
+  static boolean isSampled(JsonReader reader, TraceIdSampler sampler) throws IOException {
+    reader.mark();
+    long traceId = 0L;
+    boolean debug = false;
+    reader.beginObject();
+    while (reader.hasNext()) {
+      String nextName = reader.nextName();
+      if (nextName.equals("traceId") && reader.peekString()) {
+        traceId = reader.nextLowerHex();
+      } else if (nextName.equals("debug") && reader.peekBoolean()) {
+        debug = reader.nextBoolean();
+      } else {
+        reader.skipValue();
+      }
+    }
+    reader.endObject();
+    if (!sampler.isSampled(traceId, debug)) return false;
+    reader.reset();
+    return true;
+  }
+
   static <T> int sizeInBytes(Buffer.Writer<T> writer, List<T> value) {
     int length = value.size();
     int sizeInBytes = 2; // []
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.Arrays;
+
+/**
+ * Hash map keyed on a primitive long, such as the lower 64-bits of a trace ID. This avoids boxing
+ * and entry allocation on lookup, insert and removal.
+ *
+ * <p>This uses open addressing with linear probing. Removal shifts later entries back, so there
+ * are no tombstones. Null values are not permitted, as a null value marks an empty slot.
+ *
+ * <p>Iterate with {@link #capacity()}, skipping slots where {@link #valueAt(int)} is null. Don't
+ * modify the map while iterating.
+ *
+ * <p>Not thread safe.
+ */
+public final class LongMap<V> {
+  static final int MIN_CAPACITY = 16;
+
+  long[] keys;
+  Object[] values;
+  int size, mask;
+
+  public LongMap() {
+    this(MIN_CAPACITY);
+  }
+
+  /** @param expectedSize how many entries can be added before a resize */
+  public LongMap(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < expectedSize * 2) capacity <<= 1;
+    allocate(capacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Nullable public V get(long key) {
+    for (int i = indexOf(key); ; i = (i + 1) & mask) {
+      Object value = values[i];
+      if (value == null) return null;
+      if (keys[i] == key) {
+        @SuppressWarnings("unchecked") V result = (V) value;
+        return result;
+      }
+    }
+  }
+
+  /** Returns the previous value, or null if there was none. */
+  @Nullable public V put(long key, V value) {
+    if (value == null) throw new NullPointerException("value == null");
+    int i = indexOf(key);
+    for (; values[i] != null; i = (i + 1) & mask) {
+      if (keys[i] == key) {
+        @SuppressWarnings("unchecked") V previous = (V) values[i];
+        values[i] = value;
+        return previous;
+      }
+    }
+    keys[i] = key;
+    values[i] = value;
+    if (++size * 2 > values.length) resize(values.length << 1);
+    return null;
+  }
+
+  /** Returns the removed value, or null if there was none. */
+  @Nullable public V remove(long key) {
+    int i = indexOf(key);
+    for (; ; i = (i + 1) & mask) {
+      if (values[i] == null) return null;
+      if (keys[i] == key) break;
+    }
+    @SuppressWarnings("unchecked") V previous = (V) values[i];
+    size--;
+    // shift back any entries which probed past the removed slot
+    for (int next = (i + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+      int home = indexOf(keys[next]);
+      // move the entry if its home slot is not between the hole and its current slot
+      if (((next - home) & mask) >= ((next - i) & mask)) {
+        keys[i] = keys[next];
+        values[i] = values[next];
+        i = next;
+      }
+    }
+    values[i] = null;
+    return previous;
+  }
+
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  /** The upper bound of slot indexes, for use in iteration. */
+  public int capacity() {
+    return values.length;
+  }
+
+  /** The key at the slot index, only valid when {@link #valueAt(int)} is not null. */
+  public long keyAt(int index) {
+    return keys[index];
+  }
+
+  /** The value at the slot index, or null if the slot is empty. */
+  @Nullable public V valueAt(int index) {
+    @SuppressWarnings("unchecked") V result = (V) values[index];
+    return result;
+  }
+
+  int indexOf(long key) {
+    // murmur3 finalizer, so that sequential keys spread across the table
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key & mask;
+  }
+
+  void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+  }
+
+  void resize(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(capacity);
+    for (int i = 0; i < oldValues.length; i++) {
+      if (oldValues[i] == null) continue;
+      int j = indexOf(oldKeys[i]);
+      while (values[j] != null) j = (j + 1) & mask;
+      keys[j] = oldKeys[i];
+      values[j] = oldValues[i];
+    }
+  }
+
+  @Override public String toString() {
+    return "LongMap{size=" + size + "}";
+  }
+}
@@ -13,6 +13,7 @@
  */
 package zipkin2.internal;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.List;
 import zipkin2.Span;
@@ -43,7 +44,7 @@ public final class Proto3Codec {
 
   public static boolean read(byte[] bytes, Collection<Span> out) {
     if (bytes.length == 0) return false;
-    Buffer buffer = Buffer.wrap(bytes, 0);
+    ReadBuffer buffer = Buffer.wrap(bytes, 0);
     try {
       Span span = SPAN.read(buffer);
       if (span == null) return false;
@@ -59,11 +60,18 @@ public final class Proto3Codec {
   }
 
   public static boolean readList(byte[] bytes, Collection<Span> out) {
-    int length = bytes.length;
-    if (length == 0) return false;
-    Buffer buffer = Buffer.wrap(bytes, 0);
+    if (bytes.length == 0) return false;
+    return doReadList(Buffer.wrap(bytes, 0), out);
+  }
+
+  public static boolean readList(ByteBuffer bytes, Collection<Span> out) {
+    if (!bytes.hasRemaining()) return false;
+    return doReadList(ReadBuffer.wrap(bytes), out);
+  }
+
+  static boolean doReadList(ReadBuffer buffer, Collection<Span> out) {
     try {
-      while (buffer.pos() < length) {
+      while (buffer.remaining() > 0) {
         Span span = SPAN.read(buffer);
         if (span == null) return false;
         out.add(span);
@@ -74,6 +82,24 @@ public final class Proto3Codec {
     return true;
   }
 
+  /** Like {@link #doReadList(ReadBuffer, Collection)}, but only sampled spans are decoded. */
+  static int doReadList(ReadBuffer buffer, Collection<Span> out, TraceIdSampler sampler) {
+    int count = 0;
+    try {
+      while (buffer.remaining() > 0) {
+        int start = buffer.pos();
+        count++;
+        if (!SPAN.isSampled(buffer, sampler)) continue;
+        buffer.pos(start);
+        Span span = SPAN.read(buffer);
+        if (span != null) out.add(span);
+      }
+    } catch (Exception e) {
+      throw exceptionReading("List<Span>", e);
+    }
+    return count;
+  }
+
   static IllegalArgumentException exceptionReading(String type, Exception e) {
     String cause = e.getMessage() == null ? "Error" : e.getMessage();
     if (cause.indexOf("Malformed") != -1) cause = "Malformed";
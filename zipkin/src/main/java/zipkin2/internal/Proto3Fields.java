@@ -68,7 +68,7 @@ final class Proto3Fields {
       return wireType;
     }
 
-    static boolean skipValue(Buffer buffer, int wireType) {
+    static boolean skipValue(ReadBuffer buffer, int wireType) {
       int remaining = buffer.remaining();
       switch (wireType) {
         case WIRETYPE_VARINT:
@@ -121,13 +121,13 @@ final class Proto3Fields {
      * Calling this after consuming the field key to ensures there's enough space for the data. Null
      * is returned when the length prefix is zero.
      */
-    final T readLengthPrefixAndValue(Buffer b) {
+    final T readLengthPrefixAndValue(ReadBuffer b) {
       int length = readLengthPrefix(b);
       if (length == 0) return null;
       return readValue(b, length);
     }
 
-    final int readLengthPrefix(Buffer b) {
+    final int readLengthPrefix(ReadBuffer b) {
       return b.readVarint32();
     }
 
@@ -136,7 +136,7 @@ final class Proto3Fields {
     abstract void writeValue(Buffer b, T value);
 
     /** @param length is greater than zero */
-    abstract T readValue(Buffer b, int length);
+    abstract T readValue(ReadBuffer b, int length);
   }
 
   static class BytesField extends LengthDelimitedField<byte[]> {
@@ -152,7 +152,7 @@ final class Proto3Fields {
       b.write(bytes);
     }
 
-    @Override byte[] readValue(Buffer b, int length) {
+    @Override byte[] readValue(ReadBuffer b, int length) {
       return b.readByteArray(length);
     }
   }
@@ -185,7 +185,7 @@ final class Proto3Fields {
       throw new AssertionError("not lowerHex " + c); // bug
     }
 
-    @Override String readValue(Buffer buffer, int length) {
+    @Override String readValue(ReadBuffer buffer, int length) {
       length *= 2;
       char[] result = new char[length];
 
@@ -212,7 +212,7 @@ final class Proto3Fields {
       b.writeUtf8(utf8);
     }
 
-    @Override String readValue(Buffer buffer, int length) {
+    @Override String readValue(ReadBuffer buffer, int length) {
       return new String(buffer.readByteArray(length), UTF_8);
     }
   }
@@ -234,7 +234,7 @@ final class Proto3Fields {
       return 1 + 8; // tag + 8 byte number
     }
 
-    long readValue(Buffer buffer) {
+    long readValue(ReadBuffer buffer) {
       return buffer.readLongLe();
     }
   }
@@ -282,7 +282,7 @@ final class Proto3Fields {
       b.writeByte(1);
     }
 
-    boolean read(Buffer b) {
+    boolean read(ReadBuffer b) {
       byte bool = b.readByte();
       if (bool < 0 || bool > 1) {
         throw new IllegalArgumentException("Malformed: invalid boolean value at byte " + b.pos());
@@ -73,7 +73,7 @@ final class Proto3ZipkinFields {
       PORT.write(b, value.portAsInt());
     }
 
-    @Override Endpoint readValue(Buffer buffer, int length) {
+    @Override Endpoint readValue(ReadBuffer buffer, int length) {
       int endPos = buffer.pos() + length;
 
       // now, we are in the endpoint fields
@@ -108,11 +108,11 @@ final class Proto3ZipkinFields {
       super(key);
     }
 
-    @Override final T readValue(Buffer b, int length) {
+    @Override final T readValue(ReadBuffer b, int length) {
       throw new UnsupportedOperationException();
     }
 
-    abstract boolean readLengthPrefixAndValue(Buffer b, Span.Builder builder);
+    abstract boolean readLengthPrefixAndValue(ReadBuffer b, Span.Builder builder);
   }
 
   static class AnnotationField extends SpanBuilderField<Annotation> {
@@ -135,7 +135,7 @@ final class Proto3ZipkinFields {
       VALUE.write(b, value.value());
     }
 
-    @Override boolean readLengthPrefixAndValue(Buffer b, Span.Builder builder) {
+    @Override boolean readLengthPrefixAndValue(ReadBuffer b, Span.Builder builder) {
       int length = readLengthPrefix(b);
       if (length == 0) return false;
       int endPos = b.pos() + length;
@@ -183,7 +183,7 @@ final class Proto3ZipkinFields {
       VALUE.write(b, value.getValue());
     }
 
-    @Override boolean readLengthPrefixAndValue(Buffer b, Span.Builder builder) {
+    @Override boolean readLengthPrefixAndValue(ReadBuffer b, Span.Builder builder) {
       int length = readLengthPrefix(b);
       if (length == 0) return false;
       int endPos = b.pos() + length;
@@ -306,12 +306,37 @@ final class Proto3ZipkinFields {
       return kind != null ? kind.ordinal() + 1 : 0;
     }
 
-    public Span read(Buffer buffer) {
+    public Span read(ReadBuffer buffer) {
       buffer.readVarint32(); // toss the key
       return readLengthPrefixAndValue(buffer);
     }
 
-    @Override Span readValue(Buffer buffer, int length) {
+    /**
+     * Reads only the lower 64 bits of the trace ID and the debug flag, leaving the buffer after
+     * the span.
+     */
+    boolean isSampled(ReadBuffer buffer, TraceIdSampler sampler) {
+      buffer.readVarint32(); // toss the key
+      int endPos = buffer.pos() + readLengthPrefix(buffer);
+      long traceId = 0L;
+      boolean debug = false;
+      while (buffer.pos() < endPos) {
+        int nextKey = buffer.readVarint32();
+        if (nextKey == TRACE_ID_KEY) {
+          // big-endian, so the lower 64 bits are the last 8 bytes
+          for (int i = 0, idLength = buffer.readVarint32(); i < idLength; i++) {
+            traceId = (traceId << 8) | (buffer.readByte() & 0xff);
+          }
+        } else if (nextKey == DEBUG_KEY) {
+          debug = DEBUG.read(buffer);
+        } else if (!skipValue(buffer, wireType(nextKey, buffer.pos()))) {
+          break; // truncated: the error is raised when decoding
+        }
+      }
+      return sampler.isSampled(traceId, debug);
+    }
+
+    @Override Span readValue(ReadBuffer buffer, int length) {
       int endPos = buffer.pos() + length;
 
       // now, we are in the span fields
@@ -369,7 +394,7 @@ final class Proto3ZipkinFields {
     }
   }
 
-  static void logAndSkip(Buffer buffer, int nextKey) {
+  static void logAndSkip(ReadBuffer buffer, int nextKey) {
     int nextWireType = wireType(nextKey, buffer.pos());
     if (LOG.isLoggable(FINE)) {
       int nextFieldNumber = fieldNumber(nextKey, buffer.pos());
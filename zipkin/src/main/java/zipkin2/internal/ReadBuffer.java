@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The read side of {@link Buffer}. This is split out so that views which cannot be written, such as
+ * a direct {@link ByteBuffer}, do not inherit write methods.
+ */
+public abstract class ReadBuffer {
+
+  /**
+   * Reads the remaining bytes of the buffer without copying them or changing its position. Heap
+   * buffers are read via their backing array.
+   */
+  public static ReadBuffer wrap(ByteBuffer bytes) {
+    if (bytes.hasArray()) {
+      int offset = bytes.arrayOffset();
+      return new ByteArrayBuffer(
+        bytes.array(), offset + bytes.position(), offset + bytes.limit());
+    }
+    return new ByteBufferBuffer(bytes.duplicate());
+  }
+
+  /** Moves the read position back to where this buffer started. */
+  public abstract void reset();
+
+  long readLongLe() {
+    ensureLength(this, 8);
+    return (readByteUnsafe() & 0xffL)
+      | (readByteUnsafe() & 0xffL) << 8
+      | (readByteUnsafe() & 0xffL) << 16
+      | (readByteUnsafe() & 0xffL) << 24
+      | (readByteUnsafe() & 0xffL) << 32
+      | (readByteUnsafe() & 0xffL) << 40
+      | (readByteUnsafe() & 0xffL) << 48
+      | (readByteUnsafe() & 0xffL) << 56;
+  }
+
+  final byte readByte() {
+    ensureLength(this, 1);
+    return readByteUnsafe();
+  }
+
+  /** This needs to be checked externally to not overrun the underlying array */
+  abstract byte readByteUnsafe();
+
+  abstract byte[] readByteArray(int byteCount);
+
+  /**
+   * @return the value read. Use {@link Buffer#varintSizeInBytes(long)} to tell how many bytes.
+   * @throws IllegalArgumentException if more than 64 bits were encoded
+   */
+  // included in the main api as this is used commonly, for example reading proto tags
+  int readVarint32() {
+    byte b; // negative number implies MSB set
+    if ((b = readByte()) >= 0) {
+      return b;
+    }
+    int result = b & 0x7f;
+
+    if ((b = readByte()) >= 0) {
+      return result | b << 7;
+    }
+    result |= (b & 0x7f) << 7;
+
+    if ((b = readByte()) >= 0) {
+      return result | b << 14;
+    }
+    result |= (b & 0x7f) << 14;
+
+    if ((b = readByte()) >= 0) {
+      return result | b << 21;
+    }
+    result |= (b & 0x7f) << 21;
+
+    b = readByte();
+    if ((b & 0xf0) != 0) {
+      throw new IllegalArgumentException("Greater than 32-bit varint at position " + (pos() - 1));
+    }
+    return result | b << 28;
+  }
+
+  long readVarint64() {
+    byte b; // negative number implies MSB set
+    if ((b = readByte()) >= 0) {
+      return b;
+    }
+
+    long result = b & 0x7f;
+    for (int i = 1; b < 0 && i < 10; i++) {
+      b = readByte();
+      if (i == 9 && (b & 0xf0) != 0) {
+        throw new IllegalArgumentException("Greater than 64-bit varint at position " + (pos() - 1));
+      }
+      result |= (long) (b & 0x7f) << (i * 7);
+    }
+    return result;
+  }
+
+  abstract int remaining();
+
+  abstract boolean skip(int maxCount);
+
+  public abstract int pos();
+
+  /** Moves the read position, for example to decode a value after scanning it. */
+  abstract void pos(int pos);
+
+  static void ensureLength(ReadBuffer buffer, int length) {
+    if (length > buffer.remaining()) {
+      throw new IllegalArgumentException(
+        "Truncated: length " + length + " > bytes remaining " + buffer.remaining());
+    }
+  }
+}
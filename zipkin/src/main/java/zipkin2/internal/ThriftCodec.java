@@ -90,9 +90,17 @@ public final class ThriftCodec {
   }
 
   public static boolean readList(byte[] bytes, Collection<Span> out) {
-    int length = bytes.length;
-    if (length == 0) return false;
-    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    if (bytes.length == 0) return false;
+    return doReadList(ByteBuffer.wrap(bytes), out);
+  }
+
+  /** Reads the remaining bytes without changing the position of the input. */
+  public static boolean readList(ByteBuffer bytes, Collection<Span> out) {
+    if (!bytes.hasRemaining()) return false;
+    return doReadList(bytes.duplicate(), out);
+  }
+
+  static boolean doReadList(ByteBuffer buffer, Collection<Span> out) {
     try {
       int listLength = readListLength(buffer);
       if (listLength == 0) return false;
@@ -108,6 +116,45 @@ public final class ThriftCodec {
     return true;
   }
 
+  /** Like {@link #doReadList(ByteBuffer, Collection)}, but only sampled spans are decoded. */
+  static int doReadList(ByteBuffer buffer, Collection<Span> out, TraceIdSampler sampler) {
+    try {
+      int listLength = readListLength(buffer);
+      V1ThriftSpanReader reader = new V1ThriftSpanReader();
+      V1SpanConverter converter = V1SpanConverter.create();
+      for (int i = 0; i < listLength; i++) {
+        int start = buffer.position();
+        if (!isSampled(buffer, sampler)) continue;
+        ((java.nio.Buffer) buffer).position(start); // cast avoids the JDK 9+ covariant override
+        converter.convert(reader.read(buffer), out);
+      }
+      return listLength;
+    } catch (Exception e) {
+      throw exceptionReading("List<Span>", e);
+    }
+  }
+
+  /**
+   * Reads only the lower 64 bits of the trace ID and the debug flag, leaving the buffer after the
+   * span.
+   */
+  static boolean isSampled(ByteBuffer bytes, TraceIdSampler sampler) {
+    long traceId = 0L;
+    boolean debug = false;
+    while (true) {
+      ThriftField thriftField = ThriftField.read(bytes);
+      if (thriftField.type == TYPE_STOP) break;
+      if (thriftField.isEqualTo(V1ThriftSpanWriter.TRACE_ID)) {
+        traceId = bytes.getLong();
+      } else if (thriftField.isEqualTo(V1ThriftSpanWriter.DEBUG)) {
+        debug = bytes.get() == 1;
+      } else {
+        skip(bytes, thriftField.type);
+      }
+    }
+    return sampler.isSampled(traceId, debug);
+  }
+
   static int readListLength(ByteBuffer bytes) {
     byte ignoredType = bytes.get();
     return guardLength(bytes);
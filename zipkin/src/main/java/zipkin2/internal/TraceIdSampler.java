@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+
+/**
+ * Decodes only the spans a collector will keep. Each span's trace ID and debug flag are read from
+ * its encoded form first. Unsampled spans are skipped without building objects.
+ */
+public abstract class TraceIdSampler {
+
+  /**
+   * @param traceId the lower 64 bits of the span's trace ID, or zero if it wasn't present
+   * @param debug true if the span's debug flag was set
+   */
+  public abstract boolean isSampled(long traceId, boolean debug);
+
+  /**
+   * Like {@link SpanBytesDecoder#decodeList(ByteBuffer, Collection)}, except only sampled spans
+   * are added. The position of the input is unchanged.
+   *
+   * @return the count of spans read, including those not sampled. For {@link
+   * SpanBytesDecoder#JSON_V1} and {@link SpanBytesDecoder#THRIFT}, this counts spans before
+   * conversion, which can split one span into two.
+   * @throws IllegalArgumentException if the spans couldn't be decoded
+   */
+  public final int decodeList(SpanBytesDecoder decoder, ByteBuffer spans, Collection<Span> out) {
+    if (!spans.hasRemaining()) return 0;
+    switch (decoder) {
+      case JSON_V1:
+        return new V1JsonSpanReader().readList(JsonCodec.JsonReader.of(spans), out, this);
+      case JSON_V2:
+        return JsonCodec.readList(new V2SpanReader(), JsonCodec.JsonReader.of(spans), out, this);
+      case THRIFT:
+        return ThriftCodec.doReadList(spans.duplicate(), out, this);
+      case PROTO3:
+        return Proto3Codec.doReadList(ReadBuffer.wrap(spans), out, this);
+      default: // an encoding this can't read the trace ID from: decode, then sample
+        return sample(decoder.decodeList(spans), out);
+    }
+  }
+
+  int sample(List<Span> spans, Collection<Span> out) {
+    for (int i = 0, length = spans.size(); i < length; i++) {
+      Span span = spans.get(i);
+      long traceId = HexCodec.lowerHexToUnsignedLong(span.traceId());
+      if (isSampled(traceId, Boolean.TRUE.equals(span.debug()))) out.add(span);
+    }
+    return spans.size();
+  }
+}
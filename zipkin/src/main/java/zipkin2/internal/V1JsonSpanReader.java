@@ -14,6 +14,7 @@
 package zipkin2.internal;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import zipkin2.Endpoint;
 import zipkin2.Span;
@@ -31,8 +32,16 @@ public final class V1JsonSpanReader implements JsonReaderAdapter<V1Span> {
 
   public boolean readList(byte[] bytes, Collection<Span> out) {
     if (bytes.length == 0) return false;
+    return readList(new JsonReader(bytes), out);
+  }
+
+  public boolean readList(ByteBuffer bytes, Collection<Span> out) {
+    if (!bytes.hasRemaining()) return false;
+    return readList(JsonReader.of(bytes), out);
+  }
+
+  boolean readList(JsonReader reader, Collection<Span> out) {
     V1SpanConverter converter = V1SpanConverter.create();
-    JsonReader reader = new JsonReader(bytes);
     try {
       reader.beginArray();
       if (!reader.hasNext()) return false;
@@ -47,6 +56,23 @@ public final class V1JsonSpanReader implements JsonReaderAdapter<V1Span> {
     }
   }
 
+  /** Like {@link #readList(JsonReader, Collection)}, but only sampled spans are converted. */
+  int readList(JsonReader reader, Collection<Span> out, TraceIdSampler sampler) {
+    V1SpanConverter converter = V1SpanConverter.create();
+    int count = 0;
+    try {
+      reader.beginArray();
+      while (reader.hasNext()) {
+        count++;
+        if (JsonCodec.isSampled(reader, sampler)) converter.convert(fromJson(reader), out);
+      }
+      reader.endArray();
+      return count;
+    } catch (Exception e) {
+      throw exceptionReading("List<Span>", e);
+    }
+  }
+
   @Override
   public V1Span fromJson(JsonReader reader) throws IOException {
     if (builder == null) {
@@ -13,10 +13,13 @@
  */
 package zipkin2.storage;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
@@ -26,18 +29,28 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import zipkin2.Call;
 import zipkin2.DependencyLink;
 import zipkin2.Endpoint;
 import zipkin2.Span;
+import zipkin2.codec.SpanBytesEncoder;
 import zipkin2.internal.DependencyLinker;
+import zipkin2.internal.HexCodec;
+import zipkin2.internal.LongMap;
+import zipkin2.internal.Nullable;
 
 /**
  * Test storage component that keeps all spans in memory, accepting them on the calling thread.
  *
- * <p>Internally, spans are indexed on 64-bit trace ID
+ * <p>Spans are held in a ring of segments, filled in the order spans are accepted. Each segment
+ * has its own indexes, so evicting the eldest segment drops its spans and indexes at once, instead
+ * of removing traces one at a time. Internally, spans are indexed on 64-bit trace ID
  *
- * <p>Here's an example of some traces in memory:
+ * <p>Here's an example of some traces in a segment:
  *
  * <pre>{@code
  * spansByTraceIdTimeStamp:
@@ -47,21 +60,29 @@ import zipkin2.internal.DependencyLinker;
  *    <bbbb,July 5> --> ( spanD(time:July 5, traceId:bbbb, service:biz, name:GET) )
  *    <bbbb,July 6> --> ( spanE(time:July 6, traceId:bbbb) service:foo, name:POST )
  *
- * traceIdToTraceIdTimeStamps:
- *    aaaa --> [ <aaaa,July 4> ]
- *    bbbb --> [ <bbbb,July 5>, <bbbb,July 6> ]
- *    cccc --> [ <cccc,July 4> ]
+ * traceIdToTraceEntry:
+ *    0xaaaa --> { keys: [ <aaaa,July 4> ] }
+ *    0xbbbb --> { keys: [ <bbbb,July 5>, <bbbb,July 6> ] }
+ *    0xcccc --> { keys: [ <cccc,July 4> ] }
  *
- * serviceToTraceIds:
- *    foo --> [ <aaaa>, <cccc>, <bbbb> ]
- *    bar --> [ <aaaa> ]
- *    biz --> [ <bbbb> ]
+ * serviceToTraceIds (keyed by interned service ID):
+ *    foo(1) --> { 0xaaaa, 0xcccc, 0xbbbb }
+ *    bar(2) --> { 0xaaaa }
+ *    biz(3) --> { 0xbbbb }
  *
  * serviceToSpanNames:
  *    bar --> ( GET )
  *    biz --> ( GET )
  *    foo --> ( GET, POST )
  * }</pre>
+ *
+ * <p>Trace IDs are indexed as primitive longs in a {@link LongMap}. Service names are interned to
+ * primitive IDs, shared by all segments, and released when no segment uses them. A trace whose
+ * spans were accepted at different times can be in several segments, so queries read all
+ * segments. As there are only a few segments, this is a few lookups per trace.
+ *
+ * <p>Indexes are guarded by a {@link ReadWriteLock}. Queries only hold the read lock long enough
+ * to copy trace IDs or the spans of one trace, so they don't stall writers while filtering.
  */
 public final class InMemoryStorage extends StorageComponent implements SpanStore, SpanConsumer,
   AutocompleteTags, ServiceAndSpanNames {
@@ -71,8 +92,9 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
   }
 
   public static final class Builder extends StorageComponent.Builder {
-    boolean strictTraceId = true, searchEnabled = true;
+    boolean strictTraceId = true, searchEnabled = true, offHeap;
     int maxSpanCount = 500000;
+    long maxOffHeapBytes = 256L * 1024 * 1024;
     List<String> autocompleteKeys = Collections.emptyList();
 
     /** {@inheritDoc} */
@@ -94,177 +116,232 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
       return this;
     }
 
-    /** Eldest traces are removed to ensure spans in memory don't exceed this value */
+    /**
+     * Eldest spans are removed to ensure spans in memory don't exceed this value. Spans are evicted
+     * a segment at a time, each holding a sixteenth of this value, in the order they were accepted.
+     */
     public Builder maxSpanCount(int maxSpanCount) {
       if (maxSpanCount <= 0) throw new IllegalArgumentException("maxSpanCount <= 0");
       this.maxSpanCount = maxSpanCount;
       return this;
     }
 
+    /**
+     * When true, spans are held as {@link zipkin2.codec.SpanBytesEncoder#PROTO3 PROTO3} bytes in
+     * direct memory, and only decoded when read. This allows a much higher {@link
+     * #maxSpanCount(int)} for the same heap size, at the cost of decoding on each query. Defaults
+     * to false.
+     */
+    public Builder offHeap(boolean offHeap) {
+      this.offHeap = offHeap;
+      return this;
+    }
+
+    /**
+     * When {@link #offHeap(boolean) off-heap}, eldest spans are also removed to ensure direct
+     * memory allocated for spans doesn't exceed this value. Defaults to 256 MiB.
+     */
+    public Builder maxOffHeapBytes(long maxOffHeapBytes) {
+      if (maxOffHeapBytes <= 0) throw new IllegalArgumentException("maxOffHeapBytes <= 0");
+      this.maxOffHeapBytes = maxOffHeapBytes;
+      return this;
+    }
+
     @Override
     public InMemoryStorage build() {
       return new InMemoryStorage(this);
     }
   }
 
-  /**
-   * Primary source of data is this map, which includes spans ordered descending by timestamp. All
-   * other maps are derived from the span values here. This uses a list for the spans, so that it is
-   * visible (via /api/v2/trace/id?raw) when instrumentation report the same spans multiple times.
-   */
-  private final SortedMultimap<TraceIdTimestamp, Span> spansByTraceIdTimeStamp =
-    new SortedMultimap(TIMESTAMP_DESCENDING) {
-      @Override
-      Collection<Span> valueContainer() {
-        return new LinkedHashSet<>();
-      }
-    };
+  /** Spans are held in this many segments, so evicting one drops a sixteenth of them. */
+  static final int SEGMENT_COUNT = 16;
 
-  /** This supports span lookup by {@link Span#traceId() lower 64-bits of the trace ID} */
-  private final SortedMultimap<String, TraceIdTimestamp> traceIdToTraceIdTimeStamps =
-    new SortedMultimap<String, TraceIdTimestamp>(STRING_COMPARATOR) {
-      @Override
-      Collection<TraceIdTimestamp> valueContainer() {
-        return new LinkedHashSet<>();
-      }
-    };
-  /** This is an index of {@link Span#traceId()} by {@link Endpoint#serviceName() service name} */
-  private final ServiceNameToTraceIds serviceToTraceIds = new ServiceNameToTraceIds();
-  /** This is an index of {@link Span#name()} by {@link Endpoint#serviceName() service name} */
-  private final SortedMultimap<String, String> serviceToSpanNames =
-    new SortedMultimap<String, String>(STRING_COMPARATOR) {
-      @Override
-      Collection<String> valueContainer() {
-        return new LinkedHashSet<>();
-      }
-    };
-  /**
-   * This is an index of {@link Span#remoteServiceName()} by {@link Endpoint#serviceName() service
-   * name}
-   */
-  private final SortedMultimap<String, String> serviceToRemoteServiceNames =
-    new SortedMultimap<String, String>(STRING_COMPARATOR) {
-      @Override
-      Collection<String> valueContainer() {
-        return new LinkedHashSet<>();
-      }
-    };
-
-  private final SortedMultimap<String, String> autocompleteTags =
-    new SortedMultimap<String, String>(STRING_COMPARATOR) {
-      @Override
-      Collection<String> valueContainer() {
-        return new LinkedHashSet<>();
-      }
-    };
+  /** Segments in the order they were filled. Spans are added to the last one. */
+  final ArrayDeque<Segment> segments = new ArrayDeque<>();
 
-  final boolean strictTraceId, searchEnabled;
-  final int maxSpanCount;
+  final boolean strictTraceId, searchEnabled, offHeap;
+  final int maxSpanCount, maxSegmentSpanCount, offHeapChunkSize;
+  final long maxOffHeapBytes, maxSegmentOffHeapBytes;
   final Call<List<String>> autocompleteKeysCall;
   final Set<String> autocompleteKeys;
+  int spanCount; // guarded by the write lock
   volatile int acceptedSpanCount;
+  volatile long evictedSpanCount;
+  volatile long offHeapBytes; // written under the write lock, read without a lock for metrics
+
+  /** Service names interned to IDs, which index traces in segments. Guarded by the lock. */
+  final Map<String, ServiceName> serviceNames = new HashMap<>();
+  final LongMap<ServiceName> serviceNamesById = new LongMap<>();
+  int nextServiceId; // guarded by the write lock
+
+  // guards the segments and their index maps. Writers take the write lock, queries take the read
+  // lock only while copying out of the maps. Filtering and linking results happens outside it.
+  final ReadWriteLock lock = new ReentrantReadWriteLock();
 
   InMemoryStorage(Builder builder) {
     this.strictTraceId = builder.strictTraceId;
     this.searchEnabled = builder.searchEnabled;
     this.maxSpanCount = builder.maxSpanCount;
+    this.maxSegmentSpanCount = Math.max(1, builder.maxSpanCount / SEGMENT_COUNT);
     this.autocompleteKeysCall = Call.create(builder.autocompleteKeys);
     this.autocompleteKeys = new LinkedHashSet<>(builder.autocompleteKeys);
+    this.offHeap = builder.offHeap;
+    this.maxOffHeapBytes = builder.maxOffHeapBytes;
+    this.maxSegmentOffHeapBytes = Math.max(1L, builder.maxOffHeapBytes / SEGMENT_COUNT);
+    // several chunks per segment, so that the last chunk of each doesn't add much to the total
+    this.offHeapChunkSize =
+      (int) Math.min(SpanArena.CHUNK_SIZE, Math.max(1024L, maxSegmentOffHeapBytes / 8));
   }
 
   public int acceptedSpanCount() {
     return acceptedSpanCount;
   }
 
-  public synchronized void clear() {
-    acceptedSpanCount = 0;
-    traceIdToTraceIdTimeStamps.clear();
-    spansByTraceIdTimeStamp.clear();
-    serviceToTraceIds.clear();
-    serviceToRemoteServiceNames.clear();
-    serviceToSpanNames.clear();
-    autocompleteTags.clear();
+  /**
+   * Cumulative count of spans evicted to stay within {@link Builder#maxSpanCount(int)}. A rising
+   * rate of eviction means traces are retained for less time.
+   */
+  public long evictedSpanCount() {
+    return evictedSpanCount;
+  }
+
+  /** Direct memory allocated for {@link Builder#offHeap(boolean) off-heap} spans. */
+  public long offHeapBytes() {
+    return offHeapBytes;
+  }
+
+  public void clear() {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      acceptedSpanCount = 0;
+      evictedSpanCount = 0L;
+      spanCount = 0;
+      offHeapBytes = 0L;
+      segments.clear();
+      serviceNames.clear();
+      serviceNamesById.clear();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  @Override public Call<Void> accept(List<Span> spans) {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      doAccept(spans);
+    } finally {
+      writeLock.unlock();
+    }
+    return Call.create(null /* Void == null */);
   }
 
-  @Override
-  public synchronized Call<Void> accept(List<Span> spans) {
+  // guarded by the write lock
+  void doAccept(List<Span> spans) {
     int delta = spans.size();
-    int spansToRecover = (spansByTraceIdTimeStamp.size() + delta) - maxSpanCount;
-    evictToRecoverSpans(spansToRecover);
+    int spansToRecover = (spanCount + delta) - maxSpanCount;
+    if (spansToRecover > 0) evictedSpanCount += evictToRecoverSpans(spansToRecover);
     for (Span span : spans) {
-      long timestamp = span.timestampAsLong();
-      String lowTraceId = lowTraceId(span.traceId());
-      TraceIdTimestamp traceIdTimeStamp = new TraceIdTimestamp(lowTraceId, timestamp);
-      spansByTraceIdTimeStamp.put(traceIdTimeStamp, span);
-      traceIdToTraceIdTimeStamps.put(lowTraceId, traceIdTimeStamp);
       acceptedSpanCount++;
+      long lowTraceId = HexCodec.lowerHexToUnsignedLong(span.traceId());
+      TraceIdTimestamp traceIdTimeStamp = new TraceIdTimestamp(lowTraceId, span.timestampAsLong());
+      byte[] encoded = offHeap ? SpanBytesEncoder.PROTO3.encode(span) : null;
+
+      Segment segment = writableSegment();
+      long bytesAllocated = offHeap ? segment.spanArena.bytesAllocated : 0L;
+      if (!segment.put(lowTraceId, traceIdTimeStamp, span, encoded)) continue;
+      spanCount++;
+
+      if (!offHeap) continue;
+      offHeapBytes += segment.spanArena.bytesAllocated - bytesAllocated;
+      if (offHeapBytes > maxOffHeapBytes) evictedSpanCount += evictToRecoverOffHeapBytes();
+    }
+  }
 
-      if (!searchEnabled) continue;
-      String serviceName = span.localServiceName();
-      if (serviceName != null) {
-        serviceToTraceIds.put(serviceName, lowTraceId);
-        String remoteServiceName = span.remoteServiceName();
-        if (remoteServiceName != null) {
-          serviceToRemoteServiceNames.put(serviceName, remoteServiceName);
-        }
-        String spanName = span.name();
-        if (spanName != null) {
-          serviceToSpanNames.put(serviceName, spanName);
-        }
-      }
-      for (Map.Entry<String, String> tag : span.tags().entrySet()) {
-        if (autocompleteKeys.contains(tag.getKey())) {
-          autocompleteTags.put(tag.getKey(), tag.getValue());
-        }
-      }
+  /** Returns the last segment, or a new one if it is full. */
+  Segment writableSegment() {
+    Segment segment = segments.peekLast();
+    if (segment == null
+      || segment.spanCount >= maxSegmentSpanCount
+      || (offHeap && segment.spanArena.bytesStored >= maxSegmentOffHeapBytes)) {
+      segments.addLast(segment = new Segment(offHeap ? new SpanArena(offHeapChunkSize) : null));
     }
-    return Call.create(null /* Void == null */);
+    return segment;
   }
 
-  /** Returns the count of spans evicted. */
+  /** Drops whole segments, eldest first, returning the count of spans evicted. */
   int evictToRecoverSpans(int spansToRecover) {
     int spansEvicted = 0;
-    while (spansToRecover > 0) {
-      int spansInOldestTrace = deleteOldestTrace();
-      spansToRecover -= spansInOldestTrace;
-      spansEvicted += spansInOldestTrace;
+    while (spansEvicted < spansToRecover && !segments.isEmpty()) {
+      spansEvicted += evictEldestSegment();
     }
     return spansEvicted;
   }
 
-  /** Returns the count of spans evicted. */
-  private int deleteOldestTrace() {
+  /** Drops segments until under the direct memory limit, keeping the one written to. */
+  int evictToRecoverOffHeapBytes() {
     int spansEvicted = 0;
-    String lowTraceId = spansByTraceIdTimeStamp.delegate.lastKey().lowTraceId;
-    Collection<TraceIdTimestamp> traceIdTimeStamps = traceIdToTraceIdTimeStamps.remove(lowTraceId);
-    for (Iterator<TraceIdTimestamp> traceIdTimeStampIter = traceIdTimeStamps.iterator();
-      traceIdTimeStampIter.hasNext(); ) {
-      TraceIdTimestamp traceIdTimeStamp = traceIdTimeStampIter.next();
-      Collection<Span> spans = spansByTraceIdTimeStamp.remove(traceIdTimeStamp);
-      spansEvicted += spans.size();
-    }
-    if (searchEnabled) {
-      for (String orphanedService : serviceToTraceIds.removeServiceIfTraceId(lowTraceId)) {
-        serviceToRemoteServiceNames.remove(orphanedService);
-        serviceToSpanNames.remove(orphanedService);
-      }
+    while (offHeapBytes > maxOffHeapBytes && segments.size() > 1) {
+      spansEvicted += evictEldestSegment();
     }
     return spansEvicted;
   }
 
-  @Override
-  public synchronized Call<List<List<Span>>> getTraces(QueryRequest request) {
+  /** Returns the interned service name, adding it if absent. */
+  // guarded by the write lock
+  ServiceName internServiceName(String name) {
+    ServiceName result = serviceNames.get(name);
+    if (result != null) return result;
+    // IDs are unique among interned names, as at most one per name is live at a time
+    while (serviceNamesById.get(nextServiceId) != null) nextServiceId++;
+    result = new ServiceName(name, nextServiceId++);
+    serviceNames.put(name, result);
+    serviceNamesById.put(result.id, result);
+    return result;
+  }
+
+  /** Called once per segment which indexed the service, when that segment is evicted. */
+  // guarded by the write lock
+  void releaseServiceName(long id) {
+    ServiceName serviceName = serviceNamesById.get(id);
+    if (--serviceName.segmentCount > 0) return;
+    serviceNames.remove(serviceName.name);
+    serviceNamesById.remove(id);
+  }
+
+  /** Returns the count of spans evicted. */
+  int evictEldestSegment() {
+    Segment eldest = segments.removeFirst();
+    spanCount -= eldest.spanCount;
+    LongMap<LongMap<TraceEntry>> services = eldest.serviceToTraceIds;
+    for (int i = 0, length = services.capacity(); i < length; i++) {
+      if (services.valueAt(i) != null) releaseServiceName(services.keyAt(i));
+    }
+    // the chunks of the arena are released with the segment
+    if (eldest.spanArena != null) offHeapBytes -= eldest.spanArena.bytesAllocated;
+    return eldest.spanCount;
+  }
+
+  @Override public Call<List<List<Span>>> getTraces(QueryRequest request) {
     return getTraces(request, strictTraceId);
   }
 
-  synchronized Call<List<List<Span>>> getTraces(QueryRequest request, boolean strictTraceId) {
-    Set<String> traceIdsInTimerange = traceIdsDescendingByTimestamp(request);
-    if (traceIdsInTimerange.isEmpty()) return Call.emptyList();
+  Call<List<List<Span>>> getTraces(QueryRequest request, boolean strictTraceId) {
+    long[] traceIdsInTimerange;
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      traceIdsInTimerange = traceIdsDescendingByTimestamp(request);
+    } finally {
+      readLock.unlock();
+    }
+    if (traceIdsInTimerange.length == 0) return Call.emptyList();
 
     List<List<Span>> result = new ArrayList<>();
-    for (Iterator<String> lowTraceId = traceIdsInTimerange.iterator();
-      lowTraceId.hasNext() && result.size() < request.limit(); ) {
-      List<Span> next = spansByTraceId(lowTraceId.next());
+    for (int i = 0; i < traceIdsInTimerange.length && result.size() < request.limit(); i++) {
+      List<Span> next = readSpansByTraceId(traceIdsInTimerange[i]);
+      if (next.isEmpty()) continue; // evicted since we read the trace IDs
       if (!request.test(next)) continue;
       if (!strictTraceId) {
         result.add(next);
@@ -292,51 +369,95 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
     return groupedByTraceId.values();
   }
 
-  /** Used for testing. Returns all traces unconditionally. */
-  public synchronized List<List<Span>> getTraces() {
-    List<List<Span>> result = new ArrayList<>();
-    for (String lowTraceId : traceIdToTraceIdTimeStamps.keySet()) {
-      List<Span> sameTraceId = spansByTraceId(lowTraceId);
-      if (strictTraceId) {
-        result.addAll(strictByTraceId(sameTraceId));
-      } else {
-        result.add(sameTraceId);
+  /**
+   * Used for testing. Returns all traces unconditionally, ordered ascending by {@link
+   * Span#traceId() lower 64-bits of the trace ID}.
+   */
+  public List<List<Span>> getTraces() {
+    List<List<Span>> sameTraceIds = new ArrayList<>();
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      LongMap<Boolean> traceIds = new LongMap<>();
+      for (Segment segment : segments) {
+        LongMap<TraceEntry> traces = segment.traceIdToTraceEntry;
+        for (int i = 0, length = traces.capacity(); i < length; i++) {
+          if (traces.valueAt(i) != null) traceIds.put(traces.keyAt(i), Boolean.TRUE);
+        }
+      }
+      for (long lowTraceId : sortedTraceIds(traceIds)) {
+        sameTraceIds.add(spansByTraceId(lowTraceId));
       }
+    } finally {
+      readLock.unlock();
+    }
+    if (!strictTraceId) return sameTraceIds;
+
+    List<List<Span>> result = new ArrayList<>();
+    for (List<Span> sameTraceId : sameTraceIds) {
+      result.addAll(strictByTraceId(sameTraceId));
     }
     return result;
   }
 
+  /** Returns the keys of the map in unsigned order, which sorts the same as the lower-hex ID. */
+  static long[] sortedTraceIds(LongMap<?> traces) {
+    long[] result = new long[traces.size()];
+    int length = 0;
+    for (int i = 0, capacity = traces.capacity(); i < capacity; i++) {
+      // flip the sign bit so that a signed sort is an unsigned one
+      if (traces.valueAt(i) != null) result[length++] = traces.keyAt(i) + Long.MIN_VALUE;
+    }
+    Arrays.sort(result);
+    for (int i = 0; i < length; i++) result[i] -= Long.MIN_VALUE;
+    return result;
+  }
+
   /** Used for testing. Returns all dependency links unconditionally. */
-  public synchronized List<DependencyLink> getDependencies() {
+  public List<DependencyLink> getDependencies() {
     return LinkDependencies.INSTANCE.map(getTraces());
   }
 
-  Set<String> traceIdsDescendingByTimestamp(QueryRequest request) {
-    if (!searchEnabled) return Collections.emptySet();
+  /** Returns distinct trace IDs, ordered by their most recent timestamp */
+  long[] traceIdsDescendingByTimestamp(QueryRequest request) {
+    if (!searchEnabled || segments.isEmpty()) return EMPTY_TRACE_IDS;
 
     Collection<TraceIdTimestamp> traceIdTimestamps =
       request.serviceName() != null
         ? traceIdTimestampsByServiceName(request.serviceName())
-        : spansByTraceIdTimeStamp.keySet();
+        : traceIdTimestamps();
 
     long endTs = request.endTs() * 1000;
     long startTs = endTs - request.lookback() * 1000;
 
-    if (traceIdTimestamps == null || traceIdTimestamps.isEmpty()) return Collections.emptySet();
-    Set<String> result = new LinkedHashSet<>();
+    if (traceIdTimestamps.isEmpty()) return EMPTY_TRACE_IDS;
+    long[] result = new long[traceIdTimestamps.size()];
+    int length = 0;
+    LongMap<Boolean> seen = new LongMap<>(result.length);
     for (TraceIdTimestamp traceIdTimestamp : traceIdTimestamps) {
       if (traceIdTimestamp.timestamp >= startTs || traceIdTimestamp.timestamp <= endTs) {
-        result.add(traceIdTimestamp.lowTraceId);
+        if (seen.put(traceIdTimestamp.lowTraceId, Boolean.TRUE) == null) {
+          result[length++] = traceIdTimestamp.lowTraceId;
+        }
       }
     }
+    return length == result.length ? result : Arrays.copyOf(result, length);
+  }
+
+  /** Returns the keys of all segments, ordered by timestamp descending. */
+  Collection<TraceIdTimestamp> traceIdTimestamps() {
+    if (segments.size() == 1) return segments.getFirst().spansByTraceIdTimeStamp.keySet();
+    List<TraceIdTimestamp> result = new ArrayList<>();
+    for (Segment segment : segments) result.addAll(segment.spansByTraceIdTimeStamp.keySet());
+    // each segment's keys are already sorted, which the merge sort in Collections.sort exploits
+    Collections.sort(result, TIMESTAMP_DESCENDING);
     return result;
   }
 
-  @Override
-  public synchronized Call<List<Span>> getTrace(String traceId) {
+  @Override public Call<List<Span>> getTrace(String traceId) {
     traceId = Span.normalizeTraceId(traceId);
-    List<Span> spans = spansByTraceId(lowTraceId(traceId));
-    if (spans == null || spans.isEmpty()) return Call.emptyList();
+    List<Span> spans = readSpansByTraceId(HexCodec.lowerHexToUnsignedLong(traceId));
+    if (spans.isEmpty()) return Call.emptyList();
     if (!strictTraceId) return Call.create(spans);
 
     List<Span> filtered = new ArrayList<>(spans);
@@ -351,24 +472,31 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
 
   @Override public Call<List<String>> getServiceNames() {
     if (!searchEnabled) return Call.emptyList();
-    return Call.create(new ArrayList<>(serviceToTraceIds.keySet()));
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      // interned names are exactly those indexed by a segment
+      Set<String> result = new TreeSet<>(STRING_COMPARATOR);
+      result.addAll(serviceNames.keySet());
+      return Call.create(new ArrayList<>(result));
+    } finally {
+      readLock.unlock();
+    }
   }
 
   @Override public Call<List<String>> getRemoteServiceNames(String service) {
     if (service.isEmpty() || !searchEnabled) return Call.emptyList();
     service = service.toLowerCase(Locale.ROOT); // service names are always lowercase!
-    return Call.create(new ArrayList<>(serviceToRemoteServiceNames.get(service)));
+    return Call.create(readValues(ValueIndex.REMOTE_SERVICE_NAMES, service));
   }
 
-  @Override
-  public synchronized Call<List<String>> getSpanNames(String service) {
+  @Override public Call<List<String>> getSpanNames(String service) {
     if (service.isEmpty() || !searchEnabled) return Call.emptyList();
     service = service.toLowerCase(Locale.ROOT); // service names are always lowercase!
-    return Call.create(new ArrayList<>(serviceToSpanNames.get(service)));
+    return Call.create(readValues(ValueIndex.SPAN_NAMES, service));
   }
 
-  @Override
-  public synchronized Call<List<DependencyLink>> getDependencies(long endTs, long lookback) {
+  @Override public Call<List<DependencyLink>> getDependencies(long endTs, long lookback) {
     QueryRequest request =
       QueryRequest.newBuilder().endTs(endTs).lookback(lookback).limit(Integer.MAX_VALUE).build();
 
@@ -387,7 +515,40 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
     if (key == null) throw new NullPointerException("key == null");
     if (key.isEmpty()) throw new IllegalArgumentException("key was empty");
     if (!searchEnabled) return Call.emptyList();
-    return Call.create(new ArrayList<>(autocompleteTags.get(key)));
+    return Call.create(readValues(ValueIndex.AUTOCOMPLETE_TAGS, key));
+  }
+
+  List<String> readValues(ValueIndex index, String key) {
+    Set<String> result = new LinkedHashSet<>();
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      for (Segment segment : segments) result.addAll(index.get(segment).get(key));
+    } finally {
+      readLock.unlock();
+    }
+    return new ArrayList<>(result);
+  }
+
+  /** Selects one of the indexes of values by key in a segment. */
+  enum ValueIndex {
+    SPAN_NAMES {
+      @Override SortedMultimap<String, String> get(Segment segment) {
+        return segment.serviceToSpanNames;
+      }
+    },
+    REMOTE_SERVICE_NAMES {
+      @Override SortedMultimap<String, String> get(Segment segment) {
+        return segment.serviceToRemoteServiceNames;
+      }
+    },
+    AUTOCOMPLETE_TAGS {
+      @Override SortedMultimap<String, String> get(Segment segment) {
+        return segment.autocompleteTags;
+      }
+    };
+
+    abstract SortedMultimap<String, String> get(Segment segment);
   }
 
   enum LinkDependencies implements Call.Mapper<List<List<Span>>, List<DependencyLink>> {
@@ -427,7 +588,10 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
         long x = left.timestamp, y = right.timestamp;
         int result = (x < y) ? -1 : ((x == y) ? 0 : 1); // Long.compareTo is JRE 7+
         if (result != 0) return -result; // use negative as we are descending
-        return right.lowTraceId.compareTo(left.lowTraceId);
+        // unsigned comparison, which sorts the same as the lower-hex trace ID
+        x = left.lowTraceId + Long.MIN_VALUE;
+        y = right.lowTraceId + Long.MIN_VALUE;
+        return (x < y) ? 1 : ((x == y) ? 0 : -1);
       }
 
       @Override
@@ -436,31 +600,222 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
       }
     };
 
-  static final class ServiceNameToTraceIds extends SortedMultimap<String, String> {
-    ServiceNameToTraceIds() {
-      super(STRING_COMPARATOR);
+  static final long[] EMPTY_TRACE_IDS = new long[0];
+
+  /**
+   * Holds the spans accepted while this was the last segment, with indexes derived from them. A
+   * segment is evicted whole.
+   */
+  final class Segment {
+    /**
+     * Primary source of data is this map, which includes spans ordered descending by timestamp.
+     * All other maps are derived from the span values here. This uses a list for the spans, so that
+     * it is visible (via /api/v2/trace/id?raw) when instrumentation report the same spans multiple
+     * times.
+     */
+    final SortedMap<TraceIdTimestamp, SpanList> spansByTraceIdTimeStamp =
+      new TreeMap<>(TIMESTAMP_DESCENDING);
+    int spanCount;
+
+    /** This supports span lookup by {@link Span#traceId() lower 64-bits of the trace ID} */
+    final LongMap<TraceEntry> traceIdToTraceEntry = new LongMap<>();
+    /** This is an index of {@link Span#traceId()} by {@link Endpoint#serviceName() service name} */
+    final LongMap<LongMap<TraceEntry>> serviceToTraceIds = new LongMap<>();
+    /** This is an index of {@link Span#name()} by {@link Endpoint#serviceName() service name} */
+    final SortedMultimap<String, String> serviceToSpanNames =
+      new SortedMultimap<String, String>(STRING_COMPARATOR) {
+        @Override
+        Collection<String> valueContainer() {
+          return new LinkedHashSet<>();
+        }
+      };
+    /**
+     * This is an index of {@link Span#remoteServiceName()} by {@link Endpoint#serviceName() service
+     * name}
+     */
+    final SortedMultimap<String, String> serviceToRemoteServiceNames =
+      new SortedMultimap<String, String>(STRING_COMPARATOR) {
+        @Override
+        Collection<String> valueContainer() {
+          return new LinkedHashSet<>();
+        }
+      };
+
+    final SortedMultimap<String, String> autocompleteTags =
+      new SortedMultimap<String, String>(STRING_COMPARATOR) {
+        @Override
+        Collection<String> valueContainer() {
+          return new LinkedHashSet<>();
+        }
+      };
+
+    /** Holds the spans when {@link Builder#offHeap(boolean) off-heap} */
+    @Nullable final SpanArena spanArena;
+
+    Segment(@Nullable SpanArena spanArena) {
+      this.spanArena = spanArena;
     }
 
-    @Override
-    Set<String> valueContainer() {
-      return new LinkedHashSet<>();
+    /**
+     * Returns false if the span was already present in any segment.
+     *
+     * @param encoded the span as PROTO3 when {@link Builder#offHeap(boolean) off-heap}
+     */
+    boolean put(long lowTraceId, TraceIdTimestamp key, Span span, @Nullable byte[] encoded) {
+      for (Segment segment : segments) {
+        if (segment == this) continue;
+        SpanList spans = segment.spansByTraceIdTimeStamp.get(key);
+        if (spans != null && spans.contains(span, encoded)) {
+          return false; // duplicate accepted before the last segment was added
+        }
+      }
+      TraceEntry trace = traceIdToTraceEntry.get(lowTraceId);
+      if (trace == null) traceIdToTraceEntry.put(lowTraceId, trace = new TraceEntry());
+      SpanList spans = spansByTraceIdTimeStamp.get(key);
+      if (spans == null) {
+        spans = spanArena == null ? new HeapSpanList(key) : new EncodedSpanList(key, spanArena);
+        spansByTraceIdTimeStamp.put(spans, spans); // the list is its own key
+        trace.addKey(spans);
+      }
+      if (!spans.add(span, encoded)) return false;
+      spanCount++;
+      if (!searchEnabled) return true;
+
+      String serviceName = span.localServiceName();
+      if (serviceName != null) {
+        ServiceName service = internServiceName(serviceName);
+        LongMap<TraceEntry> traces = serviceToTraceIds.get(service.id);
+        if (traces == null) {
+          serviceToTraceIds.put(service.id, traces = new LongMap<>());
+          service.segmentCount++;
+        }
+        traces.put(lowTraceId, trace);
+        String remoteServiceName = span.remoteServiceName();
+        if (remoteServiceName != null) {
+          serviceToRemoteServiceNames.put(serviceName, remoteServiceName);
+        }
+        String spanName = span.name();
+        if (spanName != null) {
+          serviceToSpanNames.put(serviceName, spanName);
+        }
+      }
+      for (Map.Entry<String, String> tag : span.tags().entrySet()) {
+        if (autocompleteKeys.contains(tag.getKey())) {
+          autocompleteTags.put(tag.getKey(), tag.getValue());
+        }
+      }
+      return true;
+    }
+
+    void addSpans(long lowTraceId, List<Span> sameTraceId) {
+      TraceEntry trace = traceIdToTraceEntry.get(lowTraceId);
+      if (trace == null) return;
+      for (int i = 0; i < trace.keyCount; i++) trace.keys[i].addTo(sameTraceId);
+    }
+  }
+
+  /**
+   * Spans with the same key in the primary map of a segment. This is also the key, so that each
+   * key costs one object on the heap, not one for the key and another for its spans.
+   */
+  abstract static class SpanList extends TraceIdTimestamp {
+    SpanList(TraceIdTimestamp key) {
+      super(key.lowTraceId, key.timestamp);
+    }
+
+    /**
+     * Returns false if the span was already present.
+     *
+     * @param encoded the span as PROTO3 when {@link Builder#offHeap(boolean) off-heap}
+     */
+    abstract boolean add(Span span, @Nullable byte[] encoded);
+
+    abstract boolean contains(Span span, @Nullable byte[] encoded);
+
+    /** Adds the spans in the order they were accepted. */
+    abstract void addTo(List<Span> result);
+  }
+
+  static final class HeapSpanList extends SpanList {
+    final Set<Span> spans = new LinkedHashSet<>();
+
+    HeapSpanList(TraceIdTimestamp key) {
+      super(key);
+    }
+
+    @Override boolean add(Span span, @Nullable byte[] encoded) {
+      return spans.add(span);
+    }
+
+    @Override boolean contains(Span span, @Nullable byte[] encoded) {
+      return spans.contains(span);
     }
 
-    /** Returns service names orphaned by removing the trace ID */
-    Set<String> removeServiceIfTraceId(String lowTraceId) {
-      Set<String> result = new LinkedHashSet<>();
-      for (Map.Entry<String, Collection<String>> entry : delegate.entrySet()) {
-        Collection<String> lowTraceIds = entry.getValue();
-        if (lowTraceIds.remove(lowTraceId) && lowTraceIds.isEmpty()) {
-          result.add(entry.getKey());
+    @Override void addTo(List<Span> result) {
+      result.addAll(spans);
+    }
+  }
+
+  /**
+   * Holds the primitive addresses of spans in the arena, instead of span objects. Most keys have
+   * one span, so the first address is held in a field instead of an array.
+   */
+  static final class EncodedSpanList extends SpanList {
+    final SpanArena spanArena;
+    long firstAddress;
+    long[] moreAddresses; // null until there is a second span
+    int count;
+
+    EncodedSpanList(TraceIdTimestamp key, SpanArena spanArena) {
+      super(key);
+      this.spanArena = spanArena;
+    }
+
+    @Override boolean add(Span span, byte[] encoded) {
+      if (contains(span, encoded)) return false;
+      long address = spanArena.store(encoded);
+      if (count == 0) {
+        firstAddress = address;
+      } else {
+        if (moreAddresses == null) {
+          moreAddresses = new long[1];
+        } else if (count - 1 == moreAddresses.length) {
+          moreAddresses = Arrays.copyOf(moreAddresses, moreAddresses.length * 2);
         }
+        moreAddresses[count - 1] = address;
       }
-      delegate.keySet().removeAll(result);
-      return result;
+      count++;
+      return true;
+    }
+
+    long address(int index) {
+      return index == 0 ? firstAddress : moreAddresses[index - 1];
+    }
+
+    @Override boolean contains(Span span, byte[] encoded) {
+      for (int i = 0; i < count; i++) {
+        if (spanArena.equals(address(i), encoded)) return true;
+      }
+      return false;
+    }
+
+    @Override void addTo(List<Span> result) {
+      for (int i = 0; i < count; i++) result.add(spanArena.decode(address(i)));
+    }
+  }
+
+  /** Indexes a trace's keys in the primary map of a segment. */
+  static final class TraceEntry {
+    SpanList[] keys = new SpanList[1];
+    int keyCount;
+
+    void addKey(SpanList key) {
+      if (keyCount == keys.length) keys = Arrays.copyOf(keys, keyCount * 2);
+      keys[keyCount++] = key;
     }
   }
 
-  // Not synchronized as every exposed method on the enclosing type is
+  // Not synchronized as every exposed method on the enclosing type holds a lock
   abstract static class SortedMultimap<K, V> {
     final SortedMap<K, Collection<V>> delegate;
     int size = 0;
@@ -479,12 +834,15 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
       return size;
     }
 
-    void put(K key, V value) {
+    /** Returns false if the value was already present */
+    boolean put(K key, V value) {
       Collection<V> valueContainer = delegate.get(key);
       if (valueContainer == null) {
         delegate.put(key, valueContainer = valueContainer());
       }
-      if (valueContainer.add(value)) size++;
+      if (!valueContainer.add(value)) return false;
+      size++;
+      return true;
     }
 
     Collection<V> remove(K key) {
@@ -504,27 +862,40 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
     }
   }
 
-  List<Span> spansByTraceId(String lowTraceId) {
-    List<Span> sameTraceId = new ArrayList<>();
-    for (TraceIdTimestamp traceIdTimestamp : traceIdToTraceIdTimeStamps.get(lowTraceId)) {
-      sameTraceId.addAll(spansByTraceIdTimeStamp.get(traceIdTimestamp));
+  List<Span> readSpansByTraceId(long lowTraceId) {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      return spansByTraceId(lowTraceId);
+    } finally {
+      readLock.unlock();
     }
+  }
+
+  /** Returns the spans of the trace in the order segments were filled. */
+  List<Span> spansByTraceId(long lowTraceId) {
+    List<Span> sameTraceId = new ArrayList<>();
+    for (Segment segment : segments) segment.addSpans(lowTraceId, sameTraceId);
     return sameTraceId;
   }
 
   Collection<TraceIdTimestamp> traceIdTimestampsByServiceName(String serviceName) {
     List<TraceIdTimestamp> traceIdTimestamps = new ArrayList<>();
-    for (String lowTraceId : serviceToTraceIds.get(serviceName)) {
-      traceIdTimestamps.addAll(traceIdToTraceIdTimeStamps.get(lowTraceId));
+    ServiceName service = serviceNames.get(serviceName);
+    if (service == null) return traceIdTimestamps;
+    for (Segment segment : segments) {
+      LongMap<TraceEntry> traces = segment.serviceToTraceIds.get(service.id);
+      if (traces == null) continue;
+      for (int i = 0, length = traces.capacity(); i < length; i++) {
+        TraceEntry trace = traces.valueAt(i);
+        if (trace == null) continue;
+        for (int j = 0; j < trace.keyCount; j++) traceIdTimestamps.add(trace.keys[j]);
+      }
     }
     Collections.sort(traceIdTimestamps, TIMESTAMP_DESCENDING);
     return traceIdTimestamps;
   }
 
-  static String lowTraceId(String traceId) {
-    return traceId.length() == 32 ? traceId.substring(16) : traceId;
-  }
-
   @Override public InMemoryStorage spanStore() {
     return this;
   }
@@ -544,11 +915,23 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
   @Override public void close() {
   }
 
-  static final class TraceIdTimestamp {
-    final String lowTraceId;
+  /** A service name interned to an ID, counting the segments which index traces by it. */
+  static final class ServiceName {
+    final String name;
+    final int id;
+    int segmentCount; // guarded by the write lock
+
+    ServiceName(String name, int id) {
+      this.name = name;
+      this.id = id;
+    }
+  }
+
+  static class TraceIdTimestamp { // not final as SpanList is its own key
+    final long lowTraceId;
     final long timestamp;
 
-    TraceIdTimestamp(String lowTraceId, long timestamp) {
+    TraceIdTimestamp(long lowTraceId, long timestamp) {
       this.lowTraceId = lowTraceId;
       this.timestamp = timestamp;
     }
@@ -558,14 +941,14 @@ public final class InMemoryStorage extends StorageComponent implements SpanStore
       if (o == this) return true;
       if (!(o instanceof TraceIdTimestamp)) return false;
       TraceIdTimestamp that = (TraceIdTimestamp) o;
-      return lowTraceId.equals(that.lowTraceId) && timestamp == that.timestamp;
+      return lowTraceId == that.lowTraceId && timestamp == that.timestamp;
     }
 
     @Override
     public int hashCode() {
       int h$ = 1;
       h$ *= 1000003;
-      h$ ^= lowTraceId.hashCode();
+      h$ ^= (int) ((lowTraceId >>> 32) ^ lowTraceId);
       h$ *= 1000003;
       h$ ^= (int) ((timestamp >>> 32) ^ timestamp);
       return h$;
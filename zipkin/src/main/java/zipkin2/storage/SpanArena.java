@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+/**
+ * Holds spans as {@link SpanBytesEncoder#PROTO3 PROTO3} bytes in direct memory, so that the heap
+ * only holds a primitive address per span.
+ *
+ * <p>Spans are appended to chunks, each prefixed with their length. An address is the index of
+ * the chunk in the upper 32 bits, and the offset in it in the lower 32 bits. Each segment of
+ * {@link InMemoryStorage} has its own arena, so its chunks are released together when the segment
+ * is evicted. This means a span can't keep a chunk alive after the spans around it are evicted.
+ *
+ * <p>Chunks start small and double in size up to the chunk size, so a segment holding few spans
+ * doesn't reserve a whole chunk of direct memory. No chunk is allocated until a span is stored.
+ *
+ * <p>Not thread safe: writes must be guarded externally. Reads may happen concurrently with each
+ * other, as they don't mutate shared buffer state.
+ */
+final class SpanArena {
+  static final int CHUNK_SIZE = 1024 * 1024;
+  static final int MIN_CHUNK_SIZE = 4 * 1024;
+
+  final int chunkSize;
+  final List<ByteBuffer> chunks = new ArrayList<>();
+  int current = -1; // index of the chunk spans are appended to
+  long bytesAllocated, bytesStored;
+
+  /** @param chunkSize maximum size of the direct buffers spans are appended to */
+  SpanArena(int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  /** Appends the encoded span, returning its address. */
+  long store(byte[] encoded) {
+    int length = 4 + encoded.length;
+    int index;
+    if (length > chunkSize) { // large spans get their own chunk, leaving the current one
+      index = allocate(length);
+    } else {
+      if (current == -1 || chunks.get(current).remaining() < length) {
+        current = allocate(Math.max(length, nextChunkSize()));
+      }
+      index = current;
+    }
+    ByteBuffer chunk = chunks.get(index);
+    int offset = chunk.position();
+    chunk.putInt(encoded.length);
+    chunk.put(encoded);
+    bytesStored += length;
+    return ((long) index << 32) | offset;
+  }
+
+  /** Doubles the memory allocated so far, within the bounds of the chunk size. */
+  int nextChunkSize() {
+    return (int) Math.min(chunkSize, Math.max(MIN_CHUNK_SIZE, bytesAllocated));
+  }
+
+  int allocate(int capacity) {
+    chunks.add(ByteBuffer.allocateDirect(capacity));
+    bytesAllocated += capacity;
+    return chunks.size() - 1;
+  }
+
+  /** Returns true if the span at the address has the same bytes. */
+  boolean equals(long address, byte[] encoded) {
+    ByteBuffer chunk = chunks.get((int) (address >>> 32));
+    int offset = (int) address;
+    if (chunk.getInt(offset) != encoded.length) return false;
+    offset += 4;
+    for (int i = 0; i < encoded.length; i++) {
+      if (chunk.get(offset + i) != encoded[i]) return false;
+    }
+    return true;
+  }
+
+  /** Decodes a span previously {@link #store(byte[]) stored}. */
+  Span decode(long address) {
+    ByteBuffer chunk = chunks.get((int) (address >>> 32));
+    int offset = (int) address;
+    byte[] encoded = new byte[chunk.getInt(offset)];
+    // duplicate so that concurrent readers and the writer don't share a position
+    ByteBuffer buffer = chunk.duplicate();
+    buffer.position(offset + 4);
+    buffer.get(encoded);
+    return SpanBytesDecoder.PROTO3.decodeOne(encoded);
+  }
+}
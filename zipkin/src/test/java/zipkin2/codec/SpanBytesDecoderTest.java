@@ -13,7 +13,9 @@
  */
 package zipkin2.codec;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import org.junit.Rule;
@@ -152,6 +154,63 @@ public class SpanBytesDecoderTest {
     assertThat(SpanBytesDecoder.PROTO3.decodeList(message)).isEqualTo(TRACE);
   }
 
+  @Test public void traceRoundTrip_JSON_V2_byteBufferSlice() {
+    ByteBuffer message = slice(SpanBytesEncoder.JSON_V2.encodeList(TRACE));
+
+    assertThat(SpanBytesDecoder.JSON_V2.decodeList(message)).isEqualTo(TRACE);
+    assertThat(message.position()).isEqualTo(3); // position is unchanged
+  }
+
+  @Test public void traceRoundTrip_PROTO3_byteBufferSlice() {
+    ByteBuffer message = slice(SpanBytesEncoder.PROTO3.encodeList(TRACE));
+
+    assertThat(SpanBytesDecoder.PROTO3.decodeList(message)).isEqualTo(TRACE);
+    assertThat(message.position()).isEqualTo(3);
+  }
+
+  @Test public void traceRoundTrip_JSON_V2_directByteBuffer() {
+    ByteBuffer message = direct(SpanBytesEncoder.JSON_V2.encodeList(TRACE));
+
+    assertThat(SpanBytesDecoder.JSON_V2.decodeList(message)).isEqualTo(TRACE);
+    assertThat(message.remaining()).isNotZero();
+  }
+
+  @Test public void traceRoundTrip_PROTO3_directByteBuffer() {
+    ByteBuffer message = direct(SpanBytesEncoder.PROTO3.encodeList(TRACE));
+
+    assertThat(SpanBytesDecoder.PROTO3.decodeList(message)).isEqualTo(TRACE);
+    assertThat(message.remaining()).isNotZero();
+  }
+
+  @Test public void traceRoundTrip_PROTO3_directByteBufferSlice() {
+    byte[] encoded = SpanBytesEncoder.PROTO3.encodeList(TRACE);
+    ByteBuffer message = ByteBuffer.allocateDirect(encoded.length + 1);
+    message.put((byte) 0).put(encoded).flip();
+    message.position(1);
+
+    assertThat(SpanBytesDecoder.PROTO3.decodeList(message.slice())).isEqualTo(TRACE);
+  }
+
+  @Test public void falseOnEmpty_inputSpans_byteBuffer() {
+    for (SpanBytesDecoder decoder : SpanBytesDecoder.values()) {
+      assertThat(decoder.decodeList(ByteBuffer.allocate(0), new ArrayList<>())).isFalse();
+    }
+  }
+
+  /** Pads the message on both sides, so that decoding must honor the array offset and limit */
+  static ByteBuffer slice(byte[] message) {
+    byte[] padded = new byte[message.length + 6];
+    Arrays.fill(padded, (byte) 'x');
+    System.arraycopy(message, 0, padded, 3, message.length);
+    return ByteBuffer.wrap(padded, 3, message.length);
+  }
+
+  static ByteBuffer direct(byte[] message) {
+    ByteBuffer result = ByteBuffer.allocateDirect(message.length);
+    result.put(message).flip();
+    return result;
+  }
+
   @Test public void spansRoundTrip_JSON_V2() {
     List<Span> tenClientSpans = Collections.nCopies(10, span);
 
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BloomDelayLimiterTest {
+  static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+  long nanoTime;
+  DelayLimiter.Ticker ticker = new DelayLimiter.Ticker() {
+    long read() {
+      return nanoTime;
+    }
+  };
+
+  @Test public void mutesDuringDelayPeriod() {
+    BloomDelayLimiter<Long> limiter =
+      BloomDelayLimiter.newBuilder().ticker(ticker).ttl(3000).build(Long::longValue);
+
+    nanoTime = NANOS_PER_SECOND;
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+
+    nanoTime = NANOS_PER_SECOND * 2; // rotated once
+    assertThat(limiter.shouldInvoke(0L)).isFalse();
+
+    nanoTime = NANOS_PER_SECOND * 4; // rotated twice
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+  }
+
+  @Test public void contextsAreIndependent() {
+    BloomDelayLimiter<Long> limiter =
+      BloomDelayLimiter.newBuilder().ticker(ticker).ttl(3000).build(Long::longValue);
+
+    nanoTime = NANOS_PER_SECOND;
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+
+    nanoTime = NANOS_PER_SECOND * 2;
+    assertThat(limiter.shouldInvoke(0L)).isFalse();
+    assertThat(limiter.shouldInvoke(1L)).isTrue();
+
+    nanoTime = NANOS_PER_SECOND * 4;
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+    assertThat(limiter.shouldInvoke(1L)).isFalse();
+  }
+
+  @Test public void contextsWithSameHashCodeAreIndependent() {
+    BloomDelayLimiter<String> limiter = BloomDelayLimiter.newBuilder().ticker(ticker)
+      .build(s -> BloomDelayLimiter.hashString(0L, s));
+    assertThat("Aa".hashCode()).isEqualTo("BB".hashCode());
+
+    assertThat(limiter.shouldInvoke("Aa")).isTrue();
+    assertThat(limiter.shouldInvoke("BB")).isTrue();
+  }
+
+  @Test public void hashString_separatesAdjacentStrings() {
+    BloomDelayLimiter<Map.Entry<String, String>> limiter = BloomDelayLimiter.newBuilder()
+      .ticker(ticker)
+      .build(e -> BloomDelayLimiter.hashString(BloomDelayLimiter.hashString(0L, e.getKey()),
+        e.getValue()));
+
+    // both entries concatenate to "ab=c"
+    assertThat(limiter.shouldInvoke(new SimpleImmutableEntry<>("ab", "=c"))).isTrue();
+    assertThat(limiter.shouldInvoke(new SimpleImmutableEntry<>("a", "b=c"))).isTrue();
+    assertThat(limiter.shouldInvoke(new SimpleImmutableEntry<>("a", "b=c"))).isFalse();
+  }
+
+  @Test public void forgetsAllWhenIdleForTtl() {
+    BloomDelayLimiter<Long> limiter =
+      BloomDelayLimiter.newBuilder().ticker(ticker).ttl(3000).build(Long::longValue);
+
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+
+    nanoTime = NANOS_PER_SECOND * 3;
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+  }
+
+  @Test public void worksOnRollover() {
+    nanoTime = -NANOS_PER_SECOND;
+    BloomDelayLimiter<Long> limiter =
+      BloomDelayLimiter.newBuilder().ticker(ticker).ttl(3000).build(Long::longValue);
+
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+
+    nanoTime = 0L;
+    assertThat(limiter.shouldInvoke(0L)).isFalse();
+
+    nanoTime = NANOS_PER_SECOND * 2;
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+  }
+
+  @Test public void invalidate() {
+    BloomDelayLimiter<Long> limiter =
+      BloomDelayLimiter.newBuilder().ticker(ticker).build(Long::longValue);
+
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+    limiter.invalidate(0L);
+
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+    assertThat(limiter.shouldInvoke(0L)).isFalse();
+  }
+
+  @Test public void invalidate_afterRotation() {
+    BloomDelayLimiter<Long> limiter =
+      BloomDelayLimiter.newBuilder().ticker(ticker).ttl(3000).build(Long::longValue);
+
+    nanoTime = NANOS_PER_SECOND;
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+
+    nanoTime = NANOS_PER_SECOND * 2; // rotated once, so 0L is in the previous generation
+    limiter.invalidate(0L);
+
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+  }
+
+  @Test public void invalidate_notInvoked_changesNothing() {
+    BloomDelayLimiter<Long> limiter =
+      BloomDelayLimiter.newBuilder().ticker(ticker).build(Long::longValue);
+
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+    String words = limiter.generations.current.words.toString();
+    limiter.invalidate(1L);
+
+    assertThat(limiter.generations.current.words).hasToString(words);
+  }
+
+  @Test public void invalidate_doesntAffectOthers() {
+    BloomDelayLimiter<Long> limiter =
+      BloomDelayLimiter.newBuilder().ticker(ticker).build(Long::longValue);
+
+    for (long i = 0; i < 1000L; i++) limiter.shouldInvoke(i);
+    limiter.invalidate(0L);
+
+    for (long i = 1; i < 1000L; i++) {
+      assertThat(limiter.shouldInvoke(i)).isFalse();
+    }
+  }
+
+  @Test public void clear() {
+    BloomDelayLimiter<Long> limiter =
+      BloomDelayLimiter.newBuilder().ticker(ticker).build(Long::longValue);
+
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+    limiter.clear();
+
+    assertThat(limiter.shouldInvoke(0L)).isTrue();
+  }
+
+  @Test public void falsePositiveRate() {
+    BloomDelayLimiter<Long> limiter = BloomDelayLimiter.newBuilder().ticker(ticker)
+      .cardinality(10_000)
+      .falsePositiveRate(0.01)
+      .build(Long::longValue);
+
+    int falsePositives = 0;
+    for (long i = 0; i < 10_000L; i++) {
+      if (!limiter.shouldInvoke(i)) falsePositives++;
+    }
+
+    assertThat(falsePositives).isLessThan(100); // 1% of 10000
+  }
+
+  @Test public void fixedMemory() {
+    BloomDelayLimiter<Long> limiter = BloomDelayLimiter.newBuilder().ticker(ticker)
+      .cardinality(10_000)
+      .build(Long::longValue);
+
+    // optimal size for 1% is ~9.6 counters per context, 16 counters per long
+    assertThat(limiter.generations.current.words.length()).isEqualTo(5991);
+    assertThat(limiter.hashCount).isEqualTo(7);
+
+    for (long i = 0; i < 100_000L; i++) limiter.shouldInvoke(i);
+
+    assertThat(limiter.generations.current.words.length()).isEqualTo(5991);
+  }
+
+  @Test(timeout = 2000L)
+  public void parallel() throws InterruptedException {
+    BloomDelayLimiter<Long> limiter =
+      BloomDelayLimiter.newBuilder().cardinality(10_000).build(Long::longValue);
+
+    AtomicInteger trueCount = new AtomicInteger();
+    ExecutorService exec = Executors.newFixedThreadPool(4);
+
+    int count = 10_000;
+    LongStream.range(0, count).forEach(i -> exec.execute(() -> {
+      if (limiter.shouldInvoke(i % 1000)) trueCount.incrementAndGet();
+    }));
+
+    exec.shutdown();
+    assertThat(exec.awaitTermination(1, TimeUnit.SECONDS)).isTrue();
+
+    // each context is invoked at most once, less any false positives
+    assertThat(trueCount.get()).isBetween(990, 1000);
+  }
+
+  /** Counters are shared across lock stripes, so each update must be atomic. */
+  @Test(timeout = 2000L)
+  public void parallel_invalidate() throws InterruptedException {
+    BloomDelayLimiter<Long> limiter =
+      BloomDelayLimiter.newBuilder().cardinality(10_000).build(Long::longValue);
+
+    ExecutorService exec = Executors.newFixedThreadPool(4);
+
+    LongStream.range(0, 10_000).forEach(i -> exec.execute(() -> {
+      if (limiter.shouldInvoke(i)) limiter.invalidate(i);
+    }));
+
+    exec.shutdown();
+    assertThat(exec.awaitTermination(1, TimeUnit.SECONDS)).isTrue();
+
+    // every counter incremented was decremented, so none were lost to a race
+    for (int i = 0; i < limiter.generations.current.words.length(); i++) {
+      assertThat(limiter.generations.current.words.get(i)).isZero();
+    }
+  }
+
+  @Test(expected = NullPointerException.class)
+  public void hasher_cantBeNull() {
+    BloomDelayLimiter.newBuilder().build(null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void ttl_cantBeZero() {
+    BloomDelayLimiter.newBuilder().ttl(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void cardinality_cantBeZero() {
+    BloomDelayLimiter.newBuilder().cardinality(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void falsePositiveRate_cantBeZero() {
+    BloomDelayLimiter.newBuilder().falsePositiveRate(0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void falsePositiveRate_cantBeOne() {
+    BloomDelayLimiter.newBuilder().falsePositiveRate(1);
+  }
+}
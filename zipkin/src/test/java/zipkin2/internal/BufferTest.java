@@ -294,4 +294,38 @@ public class BufferTest {
         .hasMessage("Greater than 64-bit varint at position 9");
     }
   }
+
+  @Test public void wrap_directSlice_resetsToStart() {
+    ByteBuffer direct = ByteBuffer.allocateDirect(4);
+    direct.put(new byte[] {1, 2, 3, 4}).flip();
+    direct.position(1);
+
+    ReadBuffer buffer = ReadBuffer.wrap(direct.slice());
+    buffer.skip(2);
+    buffer.reset();
+
+    assertThat(buffer.readByte()).isEqualTo((byte) 2);
+    assertThat(buffer.remaining()).isEqualTo(2);
+  }
+
+  @Test public void wrap_directOffset_resetsToStart() {
+    ByteBuffer direct = ByteBuffer.allocateDirect(4);
+    direct.put(new byte[] {1, 2, 3, 4}).flip();
+    direct.position(2);
+
+    ReadBuffer buffer = ReadBuffer.wrap(direct);
+    buffer.skip(2);
+    buffer.reset();
+
+    assertThat(buffer.readByte()).isEqualTo((byte) 3);
+    assertThat(direct.position()).isEqualTo(2); // the caller's buffer isn't changed
+  }
+
+  @Test public void wrap_heapOffset_resetsToStart() {
+    ReadBuffer buffer = ReadBuffer.wrap(ByteBuffer.wrap(new byte[] {1, 2, 3, 4}, 1, 3));
+    buffer.skip(2);
+    buffer.reset();
+
+    assertThat(buffer.readByte()).isEqualTo((byte) 2);
+  }
 }
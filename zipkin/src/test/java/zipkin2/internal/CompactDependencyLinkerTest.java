@@ -0,0 +1,240 @@
+/*
+ * Copyright 2015-2018 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import zipkin2.DependencyLink;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.Span.Kind;
+
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static zipkin2.internal.DependencyLinkerTest.TRACE;
+import static zipkin2.internal.DependencyLinkerTest.span2;
+
+public class CompactDependencyLinkerTest {
+  CompactDependencyLinker linker = new CompactDependencyLinker();
+
+  @Test public void baseCase() {
+    assertThat(linker.link()).isEmpty();
+  }
+
+  @Test public void linksSpans() {
+    assertThat(linker.putTrace(TRACE).link()).containsExactly(
+      DependencyLink.newBuilder().parent("web").child("app").callCount(1L).build(),
+      DependencyLink.newBuilder().parent("app").child("db").callCount(1L).errorCount(1L).build()
+    );
+  }
+
+  @Test public void linksSpans_serverMissingParentId() {
+    List<Span> trace = new ArrayList<>(asList(
+      span2("a", null, "a", Kind.SERVER, "arn", null, false),
+      span2("a", "a", "b", Kind.CLIENT, "arn", "link", false),
+      span2("a", null, "b", Kind.SERVER, "link", "arn", false).toBuilder().shared(true).build()
+    ));
+    Collections.reverse(trace);
+
+    assertSameLinks(trace);
+  }
+
+  /**
+   * {@link Trace#merge(List)} backfills the parent ID of a shared server from the span sharing its
+   * ID. Here, that makes the server inherit the error of the client above the local span.
+   */
+  @Test public void linksSpans_sharedServerMissingParentId() {
+    List<Span> trace = asList(
+      span2("a", null, "a", Kind.SERVER, "web", null, false),
+      span2("a", "a", "b", Kind.CLIENT, "web", "app", true),
+      span2("a", "b", "c", null, "app", null, false),
+      span2("a", null, "c", Kind.SERVER, "db", null, false).toBuilder().shared(true).build()
+    );
+
+    assertSameLinks(trace);
+    assertThat(new DependencyLinker().putTrace(trace).link()).containsExactly(
+      DependencyLink.newBuilder().parent("web").child("db").callCount(1L).errorCount(1L).build()
+    );
+  }
+
+  /** Without the shared flag, the trace is merged before linking, like {@link SpanNode} does. */
+  @Test public void linksSpans_serverMissingSharedFlag() {
+    List<Span> trace = asList(
+      span2("a", null, "a", Kind.SERVER, "web", null, false),
+      span2("a", "a", "b", Kind.CLIENT, "web", "app", false),
+      span2("a", "a", "b", Kind.SERVER, "app", "web", false)
+    );
+
+    assertSameLinks(trace);
+  }
+
+  @Test public void linksSpans_reportedInPieces() {
+    List<Span> trace = asList(
+      span2("a", null, "a", Kind.SERVER, "web", null, false),
+      span2("a", "a", "b", Kind.CLIENT, "web", null, false),
+      span2("a", "a", "b", null, null, "app", true)
+    );
+
+    assertThat(linker.putTrace(trace).link()).containsExactly(
+      DependencyLink.newBuilder().parent("web").child("app").callCount(1L).errorCount(1L).build()
+    );
+  }
+
+  @Test public void linksSpans_intermediateLocalSpans() {
+    assertSameLinks(asList(
+      span2("a", null, "a", Kind.SERVER, "client", null, false),
+      span2("a", "a", "b", null, null, null, false),
+      span2("a", "b", "c", Kind.CLIENT, "server", null, false),
+      span2("a", "b", "d", Kind.CLIENT, "server", null, false)
+    ));
+  }
+
+  @Test public void linksSpans_messaging() {
+    assertSameLinks(asList(
+      span2("a", null, "a", Kind.PRODUCER, "producer", "kafka", false),
+      span2("a", "a", "b", Kind.CONSUMER, "consumer", "kafka", false),
+      span2("a", "b", "c", Kind.CLIENT, "consumer", "db", true)
+    ));
+  }
+
+  @Test public void missingRootSpan() {
+    assertSameLinks(asList(
+      span2("a", "a", "b", Kind.SERVER, "service1", null, false),
+      span2("a", "b", "c", Kind.SERVER, "service2", null, false),
+      span2("a", "a", "d", Kind.SERVER, "service3", null, false)
+    ));
+  }
+
+  @Test public void multipleRootSpans() {
+    assertSameLinks(asList(
+      span2("a", null, "b", Kind.SERVER, "service1", "client", false),
+      span2("a", null, "a", Kind.SERVER, "service2", null, false),
+      span2("a", "a", "c", Kind.SERVER, "service3", null, false)
+    ));
+  }
+
+  /** Like {@link SpanNode}, spans whose parents form a cycle aren't reachable from the root. */
+  @Test public void ignoresCircularDependencies() {
+    assertSameLinks(asList(
+      span2("a", null, "a", Kind.SERVER, "web", "client", false),
+      span2("a", "c", "b", Kind.CLIENT, "web", "app", false),
+      span2("a", "b", "c", Kind.CLIENT, "app", "db", false)
+    ));
+  }
+
+  @Test public void matchesDependencyLinker_randomTraces() {
+    Random random = new Random(1L);
+    DependencyLinker expected = new DependencyLinker();
+    for (int i = 0; i < 1000; i++) {
+      List<Span> trace = newTrace(random, 10, 1 + random.nextInt(50));
+      Collections.shuffle(trace, random);
+      expected.putTrace(trace);
+      linker.putTrace(trace);
+    }
+
+    assertThat(linker.link()).containsExactlyElementsOf(expected.link());
+  }
+
+  @Test public void reusesScratchSpace() {
+    Random random = new Random(2L);
+    linker.putTrace(newTrace(random, 10, 100));
+    Span[] spans = linker.spans;
+
+    linker.putTrace(TRACE);
+
+    assertThat(linker.spans).isSameAs(spans)
+      .containsOnlyNulls(); // spans aren't retained after linking
+  }
+
+  @Test public void internsServiceNames() {
+    linker.putTrace(TRACE).putTrace(TRACE);
+
+    assertThat(linker.serviceNames).containsExactly("web", "app", "db");
+    assertThat(linker.link()).containsExactly(
+      DependencyLink.newBuilder().parent("web").child("app").callCount(2L).build(),
+      DependencyLink.newBuilder().parent("app").child("db").callCount(2L).errorCount(2L).build()
+    );
+  }
+
+  @Test public void clear() {
+    linker.putTrace(TRACE).clear();
+
+    assertThat(linker.link()).isEmpty();
+    assertThat(linker.serviceNames).containsExactly("web", "app", "db");
+  }
+
+  @Test public void clear_forgetsServiceNamesOverLimit() {
+    for (int i = 0; i <= CompactDependencyLinker.MAX_INTERNED_SERVICES; i++) {
+      linker.putTrace(asList(span2("a", null, "a", Kind.SERVER, "web", "client" + i, false)));
+    }
+    linker.clear();
+
+    assertThat(linker.serviceNames).isEmpty();
+    assertThat(linker.putTrace(TRACE).link()).hasSize(2);
+  }
+
+  void assertSameLinks(List<Span> trace) {
+    assertThat(linker.putTrace(trace).link())
+      .isNotEmpty()
+      .containsExactlyElementsOf(new DependencyLinker().putTrace(trace).link());
+  }
+
+  /**
+   * Returns an RPC tree over the given count of services, where each server calls up to three
+   * others. Some calls are uninstrumented, fail, or are made from local spans. Timestamps are
+   * coarse, so that sibling order depends on both timestamp and ID.
+   */
+  static List<Span> newTrace(Random random, int serviceCount, int rpcCount) {
+    String traceId = Long.toHexString(random.nextLong());
+    List<Span> result = new ArrayList<>();
+    List<Span> servers = new ArrayList<>();
+    long nextId = 1;
+    Span root = Span.newBuilder().traceId(traceId).id(nextId++).kind(Kind.SERVER)
+      .localEndpoint(endpoint("service" + random.nextInt(serviceCount))).build();
+    result.add(root);
+    servers.add(root);
+    for (int i = 0; i < rpcCount; i++) {
+      Span caller = servers.get(random.nextInt(servers.size()));
+      String parentId = caller.id();
+      if (random.nextInt(4) == 0) { // local span between the server and client
+        Span local = Span.newBuilder().traceId(traceId).parentId(parentId).id(nextId++)
+          .name("local").localEndpoint(caller.localEndpoint()).build();
+        result.add(local);
+        parentId = local.id();
+      }
+      String callee = "service" + random.nextInt(serviceCount);
+      Span.Builder client = Span.newBuilder().traceId(traceId).parentId(parentId).id(nextId++)
+        .timestamp(1L + random.nextInt(10)).kind(Kind.CLIENT).localEndpoint(caller.localEndpoint())
+        .remoteEndpoint(endpoint(callee));
+      if (random.nextInt(10) == 0) client.putTag("error", "");
+      Span clientSpan = client.build();
+      result.add(clientSpan);
+      if (random.nextInt(5) == 0) continue; // uninstrumented server
+
+      Span server = Span.newBuilder().traceId(traceId).parentId(parentId).id(clientSpan.id())
+        .shared(true).kind(Kind.SERVER).localEndpoint(endpoint(callee))
+        .remoteEndpoint(caller.localEndpoint()).build();
+      result.add(server);
+      servers.add(server);
+    }
+    return result;
+  }
+
+  static Endpoint endpoint(String serviceName) {
+    return Endpoint.newBuilder().serviceName(serviceName).build();
+  }
+}
@@ -13,10 +13,14 @@
  */
 package zipkin2.internal;
 
+import java.io.IOException;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.failBecauseExceptionWasNotThrown;
 import static zipkin2.TestObjects.UTF_8;
 
 public class JsonCodecTest {
@@ -71,4 +75,121 @@ public class JsonCodecTest {
 
     new Foo().toString();
   }
+
+  @Test public void reader_escapedStrings() throws IOException {
+    JsonCodec.JsonReader reader =
+      reader("[\"tab\\t quote\\\" slash\\/\", \"\\u00e9\\uD83D\\uDE00\", \"\u2603\"]");
+
+    reader.beginArray();
+    assertThat(reader.nextString()).isEqualTo("tab\t quote\" slash/");
+    assertThat(reader.nextString()).isEqualTo("\u00e9\uD83D\uDE00");
+    assertThat(reader.nextString()).isEqualTo("\u2603");
+    reader.endArray();
+  }
+
+  @Test public void reader_knownNamesAreConstants() throws IOException {
+    JsonCodec.JsonReader reader = reader("{\"traceId\":\"a\",\"trace\\u0049d\":\"b\"}");
+
+    reader.beginObject();
+    assertThat(reader.nextName()).isSameAs("traceId");
+    reader.skipValue();
+    assertThat(reader.nextName()).isEqualTo("traceId"); // escaped, so not a constant
+    reader.skipValue();
+    reader.endObject();
+  }
+
+  @Test public void reader_numbers() throws IOException {
+    JsonCodec.JsonReader reader =
+      reader("[1472470996199000, -1, \"12\", 1.0E3, 9223372036854775807, 2]");
+
+    reader.beginArray();
+    assertThat(reader.nextLong()).isEqualTo(1472470996199000L);
+    assertThat(reader.nextLong()).isEqualTo(-1L);
+    assertThat(reader.nextLong()).isEqualTo(12L);
+    assertThat(reader.nextLong()).isEqualTo(1000L);
+    assertThat(reader.nextLong()).isEqualTo(Long.MAX_VALUE);
+    assertThat(reader.nextInt()).isEqualTo(2);
+    reader.endArray();
+  }
+
+  @Test public void reader_skipValue() throws IOException {
+    JsonCodec.JsonReader reader =
+      reader("{\"a\":{\"b\":[1,{\"c\":\"}\\\"\"}],\"d\":null},\"e\":true}");
+
+    reader.beginObject();
+    reader.nextName();
+    reader.skipValue();
+    assertThat(reader.nextName()).isEqualTo("e");
+    assertThat(reader.peekBoolean()).isTrue();
+    assertThat(reader.nextBoolean()).isTrue();
+    reader.endObject();
+  }
+
+  @Test public void reader_keywordsAreCaseInsensitive() throws IOException {
+    JsonCodec.JsonReader reader = reader("[NULL, TRUE, False]");
+
+    reader.beginArray();
+    assertThat(reader.peekNull()).isTrue();
+    reader.skipValue();
+    assertThat(reader.nextBoolean()).isTrue();
+    assertThat(reader.nextBoolean()).isFalse();
+    reader.endArray();
+  }
+
+  @Test public void reader_path() throws IOException {
+    JsonCodec.JsonReader reader = reader("{\"annotations\":[{\"value\":null}]}");
+
+    reader.beginObject();
+    reader.nextName();
+    reader.beginArray();
+    reader.beginObject();
+    reader.nextName();
+
+    assertThat(reader.getPath()).isEqualTo("$.annotations[0].value");
+  }
+
+  @Test public void reader_malformed() throws IOException {
+    thrown.expect(IOException.class);
+    thrown.expectMessage("malformed");
+
+    JsonCodec.JsonReader reader = reader("[1 2]");
+    reader.beginArray();
+    reader.nextLong();
+    reader.hasNext();
+  }
+
+  @Test public void reader_malformedNumbers() throws IOException {
+    for (String number : asList("1-2", "01", "1.", ".5", "1e", "1e+", "--1", "+1", "1.2.3", "-")) {
+      JsonCodec.JsonReader reader = reader("[" + number + "]");
+      reader.beginArray();
+      try {
+        reader.nextLong();
+        failBecauseExceptionWasNotThrown(IOException.class);
+      } catch (IOException e) {
+        assertThat(e).hasMessageContaining("malformed");
+      }
+    }
+  }
+
+  /** 0xFF sign-extends to -1 as a byte, which must not be mistaken for the end of input. */
+  @Test public void reader_byteFFIsntEndOfInput() throws IOException {
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Unexpected value in malformed json");
+
+    JsonCodec.JsonReader reader = new JsonCodec.JsonReader(new byte[] {(byte) 0xff});
+    reader.peekNull();
+  }
+
+  @Test public void reader_byteFFAfterDocument() throws IOException {
+    thrown.expect(IOException.class);
+    thrown.expectMessage("Expected end of document");
+
+    JsonCodec.JsonReader reader = new JsonCodec.JsonReader(new byte[] {'1', ' ', (byte) 0xff});
+    reader.nextLong();
+    reader.hasNext();
+  }
+
+  static JsonCodec.JsonReader reader(String json) {
+    return new JsonCodec.JsonReader(json.getBytes(UTF_8));
+  }
 }
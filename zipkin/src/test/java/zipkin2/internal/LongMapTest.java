@@ -0,0 +1,90 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class LongMapTest {
+  LongMap<String> map = new LongMap<>();
+
+  @Test public void putAndGet() {
+    assertThat(map.put(1L, "1")).isNull();
+    assertThat(map.put(0L, "0")).isNull();
+    assertThat(map.put(-1L, "-1")).isNull();
+
+    assertThat(map.get(1L)).isEqualTo("1");
+    assertThat(map.get(0L)).isEqualTo("0");
+    assertThat(map.get(-1L)).isEqualTo("-1");
+    assertThat(map.get(2L)).isNull();
+    assertThat(map.size()).isEqualTo(3);
+  }
+
+  @Test public void put_replaces() {
+    map.put(1L, "1");
+
+    assertThat(map.put(1L, "one")).isEqualTo("1");
+    assertThat(map.get(1L)).isEqualTo("one");
+    assertThat(map.size()).isEqualTo(1);
+  }
+
+  @Test public void put_nullValue() {
+    assertThatThrownBy(() -> map.put(1L, null))
+      .isInstanceOf(NullPointerException.class);
+  }
+
+  @Test public void remove() {
+    map.put(1L, "1");
+
+    assertThat(map.remove(1L)).isEqualTo("1");
+    assertThat(map.remove(1L)).isNull();
+    assertThat(map.get(1L)).isNull();
+    assertThat(map.isEmpty()).isTrue();
+  }
+
+  @Test public void clear() {
+    map.put(1L, "1");
+    map.clear();
+
+    assertThat(map.get(1L)).isNull();
+    assertThat(map.isEmpty()).isTrue();
+  }
+
+  /** Exercises resize and removal of entries in the middle of a probe sequence */
+  @Test public void matchesHashMap() {
+    Map<Long, String> expected = new LinkedHashMap<>();
+    Random random = new Random(1L);
+    for (int i = 0; i < 100000; i++) {
+      long key = random.nextInt(1000); // forces collisions
+      if (random.nextBoolean()) {
+        assertThat(map.put(key, "" + i)).isEqualTo(expected.put(key, "" + i));
+      } else {
+        assertThat(map.remove(key)).isEqualTo(expected.remove(key));
+      }
+    }
+
+    assertThat(map.size()).isEqualTo(expected.size());
+    Map<Long, String> iterated = new LinkedHashMap<>();
+    for (int i = 0; i < map.capacity(); i++) {
+      String value = map.valueAt(i);
+      if (value != null) iterated.put(map.keyAt(i), value);
+    }
+    assertThat(iterated).isEqualTo(expected);
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2015-2019 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package zipkin2.internal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Test;
+import zipkin2.Span;
+import zipkin2.codec.SpanBytesDecoder;
+import zipkin2.codec.SpanBytesEncoder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static zipkin2.TestObjects.LOTS_OF_SPANS;
+import static zipkin2.TestObjects.UTF_8;
+
+public class TraceIdSamplerTest {
+  /** Keeps odd trace IDs, so that both outcomes are exercised. */
+  TraceIdSampler sampler = new TraceIdSampler() {
+    @Override public boolean isSampled(long traceId, boolean debug) {
+      return debug || (traceId & 1) == 1;
+    }
+  };
+
+  List<Span> spans = Stream.of(LOTS_OF_SPANS).limit(500)
+    .map(s -> s.toBuilder().debug(s.id().endsWith("0") ? true : null).build())
+    .collect(Collectors.toList());
+
+  @Test public void decodeList_matchesSamplingAfterDecode() {
+    for (SpanBytesEncoder encoder : SpanBytesEncoder.values()) {
+      SpanBytesDecoder decoder = SpanBytesDecoder.valueOf(encoder.name());
+      List<Span> expected = new ArrayList<>();
+      for (Span span : decoder.decodeList(encoder.encodeList(spans))) {
+        long traceId = HexCodec.lowerHexToUnsignedLong(span.traceId());
+        if (sampler.isSampled(traceId, Boolean.TRUE.equals(span.debug()))) expected.add(span);
+      }
+
+      List<Span> sampled = new ArrayList<>();
+      ByteBuffer bytes = ByteBuffer.wrap(encoder.encodeList(spans));
+
+      assertThat(sampler.decodeList(decoder, bytes, sampled))
+        .as(encoder.name())
+        .isEqualTo(spans.size());
+      assertThat(sampled).as(encoder.name()).isEqualTo(expected);
+      assertThat(bytes.position()).isZero();
+    }
+  }
+
+  @Test public void decodeList_emptyIsZero() {
+    assertThat(sampler.decodeList(SpanBytesDecoder.JSON_V2, ByteBuffer.allocate(0),
+      new ArrayList<>())).isZero();
+  }
+
+  @Test public void decodeList_malformedSampledSpan() {
+    ByteBuffer bytes = ByteBuffer.wrap("[{\"traceId\":\"1\",\"id\":true}]".getBytes(UTF_8));
+
+    assertThatThrownBy(() -> sampler.decodeList(SpanBytesDecoder.JSON_V2, bytes, new ArrayList<>()))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessageStartingWith("Expected a string but was BOOLEAN");
+  }
+
+  @Test public void decodeList_unsampledSpanIsSkipped() {
+    ByteBuffer bytes = ByteBuffer.wrap("[{\"traceId\":\"2\",\"id\":true}]".getBytes(UTF_8));
+
+    List<Span> sampled = new ArrayList<>();
+    assertThat(sampler.decodeList(SpanBytesDecoder.JSON_V2, bytes, sampled)).isOne();
+    assertThat(sampled).isEmpty();
+  }
+}
@@ -31,6 +31,18 @@ public class ITInMemoryStorage {
     }
   }
 
+  public static class ITSpanStoreOffHeap extends zipkin2.storage.ITSpanStore {
+    InMemoryStorage storage = InMemoryStorage.newBuilder().offHeap(true).build();
+
+    @Override protected InMemoryStorage storage() {
+      return storage;
+    }
+
+    @Override public void clear() {
+      // no need.. the test rule does this
+    }
+  }
+
   public static class ITSearchEnabledFalse extends zipkin2.storage.ITSearchEnabledFalse {
     InMemoryStorage storage = InMemoryStorage.newBuilder().searchEnabled(false).build();
 
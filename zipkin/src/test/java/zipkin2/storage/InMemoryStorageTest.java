@@ -14,9 +14,12 @@
 package zipkin2.storage;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.junit.Test;
@@ -84,8 +87,7 @@ public class InMemoryStorageTest {
     storage.accept(asList(CLIENT_SPAN));
     storage.accept(asList(CLIENT_SPAN.toBuilder().traceId("333").build()));
 
-    assertThat(storage).extracting("spansByTraceIdTimeStamp.delegate")
-      .allSatisfy(map -> assertThat((Map) map).hasSize(2));
+    assertThat(storage.segments.getLast().spansByTraceIdTimeStamp).hasSize(2);
   }
 
   /** It should be safe to run dependency link jobs twice */
@@ -155,4 +157,146 @@ public class InMemoryStorageTest {
     assertThat(storage.getKeys().execute()).containsOnlyOnce("http.path");
     assertThat(storage.getValues("http.path").execute()).containsOnlyOnce("/users");
   }
+
+  @Test public void accept_concurrentWithQueries() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 1; i <= 100; i++) {
+        Span span = CLIENT_SPAN.toBuilder().traceId(Integer.toHexString(i)).build();
+        futures.add(executor.submit(() -> storage.accept(asList(span)).execute()));
+        futures.add(executor.submit(() -> storage.getTraces(requestBuilder().build()).execute()));
+      }
+      for (Future<?> future : futures) future.get();
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(storage.acceptedSpanCount()).isEqualTo(100);
+    assertThat(storage.getTraces()).hasSize(100);
+  }
+
+  @Test public void offHeap_releasesChunksWithEvictedSegments() throws IOException {
+    storage = InMemoryStorage.newBuilder().offHeap(true).maxSpanCount(1000).build();
+
+    for (int i = 1; i <= 100000; i++) {
+      storage.accept(asList(CLIENT_SPAN.toBuilder().traceId(Integer.toHexString(i)).build()))
+        .execute();
+    }
+
+    assertThat(storage.getTraces()).hasSizeBetween(1000 - 1000 / 16, 1000);
+    assertThat(storage.segments) // chunks grow with the spans in a segment, not to a fixed size
+      .allSatisfy(segment -> assertThat(segment.spanArena.bytesAllocated)
+        .isLessThan(SpanArena.CHUNK_SIZE));
+  }
+
+  @Test public void offHeap_allocatesLazily() throws IOException {
+    storage = InMemoryStorage.newBuilder().offHeap(true).build();
+    assertThat(storage.offHeapBytes()).isZero();
+
+    storage.accept(asList(CLIENT_SPAN)).execute();
+
+    assertThat(storage.offHeapBytes()).isEqualTo(SpanArena.MIN_CHUNK_SIZE);
+  }
+
+  @Test public void offHeap_evictsToStayWithinMaxOffHeapBytes() throws IOException {
+    storage = InMemoryStorage.newBuilder().offHeap(true).maxOffHeapBytes(64 * 1024).build();
+
+    // a span far in the future doesn't keep its chunk allocated
+    storage.accept(asList(CLIENT_SPAN.toBuilder().timestamp(Long.MAX_VALUE / 2).build()))
+      .execute();
+    for (int i = 1; i <= 10000; i++) {
+      storage.accept(asList(CLIENT_SPAN.toBuilder().traceId(Integer.toHexString(i)).build()))
+        .execute();
+      assertThat(storage.offHeapBytes()).isLessThanOrEqualTo(64 * 1024);
+    }
+
+    assertThat(storage.evictedSpanCount()).isPositive();
+    assertThat(storage.getTrace(CLIENT_SPAN.traceId()).execute()).isEmpty();
+  }
+
+  @Test public void offHeap_dropsDuplicateSpans() throws IOException {
+    storage = InMemoryStorage.newBuilder().offHeap(true).build();
+
+    storage.accept(asList(CLIENT_SPAN)).execute();
+    storage.accept(asList(CLIENT_SPAN)).execute();
+
+    assertThat(storage.getTrace(CLIENT_SPAN.traceId()).execute()).containsExactly(CLIENT_SPAN);
+  }
+
+  @Test public void serviceNames_releasedWithEvictedSegments() throws IOException {
+    storage = InMemoryStorage.newBuilder().maxSpanCount(16).build();
+
+    for (int i = 1; i <= 32; i++) {
+      storage.accept(asList(CLIENT_SPAN.toBuilder().traceId(Integer.toHexString(i))
+        .localEndpoint(Endpoint.newBuilder().serviceName("service" + i).build()).build()))
+        .execute();
+    }
+
+    assertThat(storage.getServiceNames().execute())
+      .hasSize(16)
+      .doesNotContain("service1");
+    assertThat(storage.serviceNamesById.size()).isEqualTo(16);
+  }
+
+  @Test public void evictedSpanCount() throws IOException {
+    storage = InMemoryStorage.newBuilder().maxSpanCount(10).build();
+
+    for (int i = 1; i <= 15; i++) {
+      storage.accept(asList(CLIENT_SPAN.toBuilder().traceId(Integer.toHexString(i)).build()))
+        .execute();
+    }
+
+    assertThat(storage.evictedSpanCount()).isEqualTo(5L);
+    assertThat(storage.getTraces()).hasSize(10);
+
+    storage.clear();
+    assertThat(storage.evictedSpanCount()).isZero();
+  }
+
+  @Test public void evictsWholeSegments() throws IOException {
+    storage = InMemoryStorage.newBuilder().maxSpanCount(160).build();
+
+    for (int i = 1; i <= 161; i++) {
+      storage.accept(asList(CLIENT_SPAN.toBuilder().traceId(Integer.toHexString(i)).build()))
+        .execute();
+    }
+
+    assertThat(storage.segments).hasSize(InMemoryStorage.SEGMENT_COUNT);
+    assertThat(storage.evictedSpanCount()).isEqualTo(10L);
+    assertThat(storage.getTraces()).hasSize(151);
+    assertThat(storage.getTrace("a").execute()).isEmpty();
+    assertThat(storage.getTrace("b").execute()).isNotEmpty();
+  }
+
+  @Test public void getTrace_spansAcrossSegments() throws IOException {
+    storage = InMemoryStorage.newBuilder().maxSpanCount(160).build();
+
+    Span next = CLIENT_SPAN.toBuilder().id("2").parentId(CLIENT_SPAN.id()).build();
+    storage.accept(asList(CLIENT_SPAN)).execute();
+    for (int i = 1; i <= 10; i++) {
+      storage.accept(asList(CLIENT_SPAN.toBuilder().traceId(Integer.toHexString(i)).build()))
+        .execute();
+    }
+    storage.accept(asList(next, CLIENT_SPAN)).execute(); // CLIENT_SPAN is a duplicate
+
+    assertThat(storage.segments).hasSize(2);
+    assertThat(storage.getTrace(CLIENT_SPAN.traceId()).execute())
+      .containsExactly(CLIENT_SPAN, next);
+  }
+
+  @Test public void getTraces_orderedByTraceId() {
+    List<String> traceIds = asList("a", "1", "ffffffffffffffff", "10", "8000000000000000");
+    for (String traceId : traceIds) {
+      storage.accept(asList(CLIENT_SPAN.toBuilder().traceId(traceId).build()));
+    }
+
+    assertThat(storage.getTraces()).extracting(t -> t.get(0).traceId()).containsExactly(
+      "0000000000000001",
+      "000000000000000a",
+      "0000000000000010",
+      "8000000000000000",
+      "ffffffffffffffff"
+    );
+  }
 }